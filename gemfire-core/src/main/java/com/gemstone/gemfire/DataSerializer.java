@@ -1486,7 +1486,10 @@ public abstract class DataSerializer {
         logger.trace(LogMarker.SERIALIZER, "writeObjectAsByteArray obj.getClass={}", object.getClass());
       }
     }
-    if (object instanceof byte[] || object == null) {
+    if (object != obj && object instanceof byte[]) {
+      // the serialized form of a cached value is never modified
+      InternalDataSerializer.writeUnmodifiableByteArray((byte[])object, out);
+    } else if (object instanceof byte[] || object == null) {
       writeByteArray((byte[])object, out);
     } else if (out instanceof ObjToByteArraySerializer) {
       ((ObjToByteArraySerializer)out).writeAsSerializedByteArray(object);
@@ -316,4 +316,30 @@ public interface Query {
    * Get statistics information for this query.
    */
   public QueryStatistics getStatistics();
+
+  /**
+   * Executes this query with the given parameters and returns the plan it
+   * was executed with, including the rows, time, index lookups and
+   * deserializations of every stage. For a partitioned region the plan has
+   * the stages executed by each member. The results of the query are
+   * discarded.
+   * <p>
+   * Only queries executed on a member that hosts the data can be analyzed.
+   * Queries obtained from the QueryService of a client {@link
+   * com.gemstone.gemfire.cache.client.Pool} throw a QueryException; to
+   * analyze such a query run it on a server, for example with the gfsh
+   * <code>query</code> command and an <code>explain analyze</code> prefix.
+   * <p>
+   * The query should not be executed by other threads while it is analyzed,
+   * as their executions would be recorded too.
+   *
+   * @param params the bind parameters, as for {@link #execute(Object[])}
+   * @return the plan the query was executed with
+   * @throws QueryException if the query could not be executed, see
+   *         {@link #execute(Object[])} for the subclasses thrown, or if the
+   *         query was obtained from a client pool
+   * @since 9.0
+   */
+  public QueryExecutionPlan explainAnalyze(Object[] params)
+    throws QueryException;
 }
@@ -0,0 +1,79 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.cache.query;
+
+import java.util.List;
+
+/**
+ * A stage of the plan a query was executed with, as returned by
+ * {@link Query#explainAnalyze(Object[])}. The root of the plan is the whole
+ * query and its children are the stages it was executed in, for example the
+ * select, the index lookups and scans of its iterators and the projection.
+ *
+ * A stage accumulates all its executions, for example the evaluation of the
+ * select on each bucket of a partitioned region. Time and deserializations
+ * include the child stages, the other counters do not.
+ *
+ * @since 9.0
+ */
+public interface QueryExecutionPlan {
+
+  /**
+   * Returns the kind of stage, for example <code>SELECT</code>,
+   * <code>INDEX LOOKUP</code> or <code>SCAN</code>.
+   */
+  public String getOperation();
+
+  /**
+   * Returns what the stage operated on, for example the name of the index
+   * that was looked up, or null.
+   */
+  public String getDetail();
+
+  /**
+   * Returns the number of times the stage was executed.
+   */
+  public long getExecutions();
+
+  /**
+   * Returns the total number of rows that went into the stage.
+   */
+  public long getRowsIn();
+
+  /**
+   * Returns the total number of rows the stage produced.
+   */
+  public long getRowsOut();
+
+  /**
+   * Returns the total number of rows the query planner estimated the stage
+   * would produce, or -1 if it made no estimate for the stage. Only index
+   * lookups are estimated, from the statistics of their indexes.
+   */
+  public long getEstimatedRows();
+
+  /**
+   * Returns the time spent in the stage and its children in nanoseconds.
+   */
+  public long getTime();
+
+  /**
+   * Returns the number of index lookups done by the stage.
+   */
+  public long getIndexLookups();
+
+  /**
+   * Returns the number of values deserialized by the stage and its children.
+   */
+  public long getDeserializations();
+
+  /**
+   * Returns the stages executed as part of this one.
+   */
+  public List<? extends QueryExecutionPlan> getChildren();
+}
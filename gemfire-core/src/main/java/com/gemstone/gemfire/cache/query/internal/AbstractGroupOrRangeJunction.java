@@ -24,6 +24,9 @@ import com.gemstone.gemfire.cache.query.QueryService;
 import com.gemstone.gemfire.cache.query.SelectResults;
 import com.gemstone.gemfire.cache.query.Struct;
 import com.gemstone.gemfire.cache.query.TypeMismatchException;
+import com.gemstone.gemfire.cache.query.internal.index.BitmapIndexStore;
+import com.gemstone.gemfire.cache.query.internal.index.CompactRangeIndex;
+import com.gemstone.gemfire.cache.query.internal.index.IndexBitmapCandidates;
 import com.gemstone.gemfire.cache.query.internal.parse.OQLLexerTokenTypes;
 import com.gemstone.gemfire.cache.query.internal.types.StructTypeImpl;
 import com.gemstone.gemfire.cache.query.types.ObjectType;
@@ -271,6 +274,8 @@ public abstract class AbstractGroupOrRangeJunction extends
     // put results into new intermediate results
 
      List sortedConditionsList = this.getCondtionsSortedOnIncreasingEstimatedIndexResultSize(context);
+    IndexBitmapCandidates candidates = getBitmapCandidates(
+        sortedConditionsList, context);
 	
 	//Sort the operands in increasing order of resultset size
     Iterator i = sortedConditionsList.iterator();
@@ -294,20 +299,37 @@ public abstract class AbstractGroupOrRangeJunction extends
       // RangeJunction then the Filter is a RangeJunctionEvaluator
       SelectResults filterResults = null;
       Filter filter = (Filter)i.next();
+      if (candidates != null && candidates.isApplied()
+          && candidates.isConsumed(filter)) {
+        // already satisfied by the results of the bitmap candidates
+        i.remove();
+        continue;
+      }
+      boolean isDriver = candidates != null
+          && candidates.getDrivingCondition() == filter;
+      if (isDriver) {
+        context.cachePut(BITMAP_CANDIDATES, candidates);
+      }
       boolean isConditioningNeeded = filter.isConditioningNeededForIndex(this.indpndntItr.length ==1?this.indpndntItr[0]:null, context,this.completeExpansion);
  
       // TODO:Asif: For RangeJunction I am right now returning true as
       // isConditioningNeeded because there is no provision right now to pass
       // intermediate results from RangeJunction & also no code to utilize the
       // intermediate results in the evaluator created out of RangeJunction.
-      filterResults = filter.filterEvaluate(context,
-          !isConditioningNeeded?intermediateResults:null, this.completeExpansion, null/*
-                                             * Asif * Asif :The iter operands
-                                             * passed are null, as a not null
-                                             * value can exists only if there
-                                             * exists a single Filter operand in
-                                             * original GroupJunction
-                                             */, this.indpndntItr,_operator == LITERAL_and,isConditioningNeeded, false /* do not evaluate projection */);
+      try {
+        filterResults = filter.filterEvaluate(context,
+            !isConditioningNeeded?intermediateResults:null, this.completeExpansion, null/*
+                                               * Asif * Asif :The iter operands
+                                               * passed are null, as a not null
+                                               * value can exists only if there
+                                               * exists a single Filter operand in
+                                               * original GroupJunction
+                                               */, this.indpndntItr,_operator == LITERAL_and,isConditioningNeeded, false /* do not evaluate projection */);
+      } finally {
+        if (isDriver) {
+          context.cachePut(BITMAP_CANDIDATES, null);
+        }
+      }
       if (_operator == LITERAL_and) {
         if (filterResults != null && filterResults.isEmpty()) {
           return filterResults;
@@ -347,12 +369,52 @@ public abstract class AbstractGroupOrRangeJunction extends
         } 
       }
     }
+    if (candidates != null && candidates.isApplied()) {
+      sortedConditionsList.removeAll(candidates.getConsumedConditions());
+    }
     if (_operator == LITERAL_and && !sortedConditionsList.isEmpty()) {          
       this.addUnevaluatedFilterOperands(sortedConditionsList);
     }
     return intermediateResults;
   }
 
+  /**
+   * Intersects the bitmaps of the equality conditions of an AND junction
+   * whose compact range indexes keep bitmaps. The first qualifying condition
+   * in the sorted list then returns only the entries satisfying all of them.
+   * 
+   * @return the candidates or null if less than two conditions qualify
+   */
+  private IndexBitmapCandidates getBitmapCandidates(List sortedConditionsList,
+      ExecutionContext context) throws FunctionDomainException,
+      TypeMismatchException, NameResolutionException,
+      QueryInvocationTargetException {
+    if (BitmapIndexStore.MAX_KEYS <= 0 || _operator != LITERAL_and
+        || this.indpndntItr.length != 1 || sortedConditionsList.size() < 2) {
+      return null;
+    }
+    IndexBitmapCandidates candidates = new IndexBitmapCandidates();
+    Iterator itr = sortedConditionsList.iterator();
+    while (itr.hasNext()) {
+      Object filter = itr.next();
+      if (!(filter instanceof CompiledComparison)
+          || ((CompiledComparison)filter).getOperator() != OQLLexerTokenTypes.TOK_EQ) {
+        continue;
+      }
+      IndexInfo[] indexInfo = ((CompiledComparison)filter)
+          .getIndexInfo(context);
+      if (indexInfo == null || indexInfo.length != 1
+          || indexInfo[0]._matchLevel != 0
+          || !(indexInfo[0]._index instanceof CompactRangeIndex)) {
+        continue;
+      }
+      candidates.add((CompiledValue)filter,
+          (CompactRangeIndex)indexInfo[0]._index,
+          indexInfo[0].evaluateIndexKey(context));
+    }
+    return candidates.combine() ? candidates : null;
+  }
+
   /** invariant: the operand is known to be evaluated by iteration */
   private SelectResults auxIterateEvaluate(CompiledValue operand,
       ExecutionContext context, SelectResults intermediateResults)
@@ -9,11 +9,14 @@
 
 package com.gemstone.gemfire.cache.query.internal;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Member;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -22,16 +25,20 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
+import com.gemstone.gemfire.SystemFailure;
 import com.gemstone.gemfire.cache.EntryDestroyedException;
 import com.gemstone.gemfire.cache.query.NameNotFoundException;
 import com.gemstone.gemfire.cache.query.QueryInvocationTargetException;
 import com.gemstone.gemfire.cache.query.QueryService;
 import com.gemstone.gemfire.cache.query.types.ObjectType;
+import com.gemstone.gemfire.internal.cache.Token;
 import com.gemstone.gemfire.internal.i18n.LocalizedStrings;
 import com.gemstone.gemfire.pdx.PdxInstance;
 import com.gemstone.gemfire.pdx.PdxSerializationException;
 import com.gemstone.gemfire.pdx.internal.FieldNotFoundInPdxVersion;
+import com.gemstone.gemfire.pdx.internal.PdxField;
 import com.gemstone.gemfire.pdx.internal.PdxInstanceImpl;
+import com.gemstone.gemfire.pdx.internal.PdxType;
 import com.gemstone.gemfire.pdx.JSONFormatter;
 
 /**
@@ -46,6 +53,16 @@ public class AttributeDescriptor {
   private final String _name;
   /** cache for remembering the correct Member for a class and attribute */
   private static final ConcurrentMap _cache = new ConcurrentHashMap();
+  /** cache for remembering the Accessor for a class and attribute */
+  private static final ConcurrentMap _accessorCache = new ConcurrentHashMap();
+  
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+  
+  /** the accessor used for the last object read by this descriptor */
+  private volatile Accessor _lastAccessor;
+  
+  /** the field read from the last PdxInstance read by this descriptor */
+  private volatile PdxTypeField _lastPdxField;
   
   
   
@@ -83,54 +100,74 @@ public class AttributeDescriptor {
   throws NameNotFoundException, QueryInvocationTargetException {
     Support.Assert(target != null);
     Support.Assert(target != QueryService.UNDEFINED);
-    Member m;
-    if (target.getClass().getName().startsWith("com.gemstone.gemfire.internal.cache.Token$")) {
+    if (target instanceof Token) {
       return QueryService.UNDEFINED;
-    } else {
-      m = getReadMember(resolutionClass);
     }
+    Accessor accessor = getAccessor(resolutionClass);
     try {
-      if (m instanceof Method) {
-        try {
-          if (target.getClass().getName().startsWith("com.gemstone.gemfire.internal.cache.Token$")) {
-            return QueryService.UNDEFINED;
-          } else {            
-            return ((Method)m).invoke(target, (Object[])null);
-          }
-        } catch (EntryDestroyedException e) {
-          //eat the Exception
-          return QueryService.UNDEFINED;
-        } catch (IllegalAccessException e) {
-          throw new NameNotFoundException(LocalizedStrings.AttributeDescriptor_METHOD_0_IN_CLASS_1_IS_NOT_ACCESSIBLE_TO_THE_QUERY_PROCESSOR.toLocalizedString(new Object[] {m.getName(), target.getClass().getName()}), e);
-        } catch (InvocationTargetException e) {
-          // if the target exception is Exception, wrap that,
-          // otherwise wrap the InvocationTargetException itself
-          Throwable t = e.getTargetException();
-          if ((t instanceof EntryDestroyedException)) {
-             //eat the exception
-             return QueryService.UNDEFINED;
-          }
-          if (t instanceof Exception)
-            throw new QueryInvocationTargetException(t);
-          throw new QueryInvocationTargetException(e);
+      return accessor.handle.invokeExact(target);
+    } catch (EntryDestroyedException e) {
+      //eat the Exception
+      return QueryService.UNDEFINED;
+    } catch (VirtualMachineError err) {
+      SystemFailure.initiateFailure(err);
+      // If this ever returns, rethrow the error. We're poisoned
+      // now, so don't let this thread continue.
+      throw err;
+    } catch (Throwable t) {
+      // Whenever you catch Error or Throwable, you must also
+      // catch VirtualMachineError (see above). However, there is
+      // _still_ a possibility that you are dealing with a cascading
+      // error condition, so you also need to check to see if the JVM
+      // is still usable:
+      SystemFailure.checkFailure();
+      // the handle does not wrap what the accessor throws, so this is
+      // the exception of the target method
+      throw new QueryInvocationTargetException(t);
+    }
+  }
+  
+  /**
+   * Returns the accessor for this attribute on the given class. Each
+   * descriptor remembers the last class it was used for, since the objects
+   * reaching one path expression are usually all of the same class. Other
+   * classes are looked up in a cache shared by all descriptors.
+   */
+  private Accessor getAccessor(Class targetClass)
+  throws NameNotFoundException {
+    Accessor accessor = _lastAccessor;
+    if (accessor != null && accessor.targetClass == targetClass) {
+      return accessor;
+    }
+    List key = new ArrayList(2);
+    key.add(targetClass);
+    key.add(_name);
+    accessor = (Accessor)_accessorCache.get(key);
+    if (accessor == null) {
+      Member m = getReadMember(targetClass);
+      MethodHandle handle;
+      try {
+        if (m instanceof Method) {
+          handle = LOOKUP.unreflect((Method)m);
+        } else {
+          handle = LOOKUP.unreflectGetter((Field)m);
         }
-      } else {
-        try {
-          if (target.getClass().getName().startsWith("com.gemstone.gemfire.internal.cache.Token$")) {
-            return QueryService.UNDEFINED;
-          } else {
-            return ((Field)m).get(target);
-          }  
-        } catch (IllegalAccessException e) {
-          throw new NameNotFoundException(LocalizedStrings.AttributeDescriptor_FIELD_0_IN_CLASS_1_IS_NOT_ACCESSIBLE_TO_THE_QUERY_PROCESSOR.toLocalizedString(new Object[] {m.getName(), target.getClass().getName()}), e);
-        } catch (EntryDestroyedException e) {
-          return QueryService.UNDEFINED;
+      } catch (IllegalAccessException e) {
+        if (m instanceof Method) {
+          throw new NameNotFoundException(LocalizedStrings.AttributeDescriptor_METHOD_0_IN_CLASS_1_IS_NOT_ACCESSIBLE_TO_THE_QUERY_PROCESSOR.toLocalizedString(new Object[] {m.getName(), targetClass.getName()}), e);
         }
+        throw new NameNotFoundException(LocalizedStrings.AttributeDescriptor_FIELD_0_IN_CLASS_1_IS_NOT_ACCESSIBLE_TO_THE_QUERY_PROCESSOR.toLocalizedString(new Object[] {m.getName(), targetClass.getName()}), e);
       }
-    } catch (EntryDestroyedException e) {
-      // eat the exception
-      return QueryService.UNDEFINED;
+      if (Modifier.isStatic(m.getModifiers())) {
+        // the target is ignored, as it is by reflection
+        handle = MethodHandles.dropArguments(handle, 0, Object.class);
+      }
+      accessor = new Accessor(targetClass,
+          handle.asType(MethodType.methodType(Object.class, Object.class)));
+      _accessorCache.putIfAbsent(key, accessor);
     }
+    _lastAccessor = accessor;
+    return accessor;
   }
   
   
@@ -301,6 +338,21 @@ public class AttributeDescriptor {
    */
   private Object readPdx(PdxInstance target) throws NameNotFoundException,
       QueryInvocationTargetException {
+    if (target.getClass() == PdxInstanceImpl.class) {
+      // a PdxInstance that has not been modified reads its fields from its
+      // own type, so the field can be remembered for that type
+      PdxInstanceImpl pdxInstance = (PdxInstanceImpl) target;
+      PdxType pdxType = pdxInstance.getPdxType();
+      PdxTypeField last = _lastPdxField;
+      if (last != null && last.pdxType == pdxType) {
+        return pdxInstance.getRawField(last.field);
+      }
+      PdxField field = pdxType.getPdxField(_name);
+      if (field != null) {
+        _lastPdxField = new PdxTypeField(pdxType, field);
+        return pdxInstance.getRawField(field);
+      }
+    }
     if (target instanceof PdxInstanceImpl) {
       PdxInstanceImpl pdxInstance = (PdxInstanceImpl) target;
       // if the field is present in the pdxinstance
@@ -408,5 +460,28 @@ public class AttributeDescriptor {
   
 
   
-}
 
+  /**
+   * A getter or public field of a class, as a method handle that takes the
+   * target object and returns the attribute value.
+   */
+  private static final class Accessor {
+    final Class targetClass;
+    final MethodHandle handle;
+    
+    Accessor(Class targetClass, MethodHandle handle) {
+      this.targetClass = targetClass;
+      this.handle = handle;
+    }
+  }
+  
+  private static final class PdxTypeField {
+    final PdxType pdxType;
+    final PdxField field;
+    
+    PdxTypeField(PdxType pdxType, PdxField field) {
+      this.pdxType = pdxType;
+      this.field = field;
+    }
+  }
+}
@@ -367,6 +367,7 @@ public class CompiledComparison extends AbstractCompiledValue implements
     try {
       if( !createEmptySet) {
         observer.beforeIndexLookup(indexInfo._index, op, key);
+        context.recordIndexLookup();
         context.cachePut(CompiledValue.INDEX_INFO, indexInfo);
       }	
       // //////////////////////////////////////////////////////////
@@ -590,6 +591,8 @@ public class CompiledComparison extends AbstractCompiledValue implements
       try {
         observer.beforeIndexLookup(indxInfo[0]._index, this._operator, null);
         observer.beforeIndexLookup(indxInfo[1]._index, this._operator, null);
+        context.recordIndexLookup();
+        context.recordIndexLookup();
         if (context.getBucketList() != null) {
           data = QueryUtils.queryEquijoinConditionBucketIndexes(indxInfo, context);
         } else {
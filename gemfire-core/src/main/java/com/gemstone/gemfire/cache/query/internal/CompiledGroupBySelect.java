@@ -155,8 +155,34 @@ public class CompiledGroupBySelect extends CompiledSelect {
       throws FunctionDomainException, TypeMismatchException,
       NameResolutionException, QueryInvocationTargetException {
     SelectResults sr = super.evaluate(context);
-    return this.applyAggregateAndGroupBy(sr, context);
+    try {
+      QueryPlan stage = QueryPlan.start(context, QueryPlan.GROUP_BY, null);
+      if (stage == null) {
+        return this.applyAggregateAndGroupBy(sr, context);
+      }
+      stage.addRowsIn(sr.size());
+      SelectResults result = null;
+      try {
+        result = this.applyAggregateAndGroupBy(sr, context);
+        return result;
+      } finally {
+        stage.end(context, result);
+      }
+    } finally {
+      if (sr instanceof ResultsCollectionWrapper
+          && ((ResultsCollectionWrapper)sr).getBase() instanceof SpilledSortedResults) {
+        ((SpilledSortedResults)((ResultsCollectionWrapper)sr).getBase()).close();
+      }
+    }
+  }
 
+  /**
+   * The grouped rows are aggregated in a single pass, so they can be read
+   * back from temporary results that overflow to disk.
+   */
+  @Override
+  protected boolean streamOrderedResults() {
+    return true;
   }
 
   public SelectResults applyAggregateAndGroupBy(SelectResults baseResults,
@@ -654,6 +654,7 @@ public class CompiledIn extends AbstractCompiledValue implements Indexable {
     try {
       Object evalColln = evaluateColln(context);
       observer.beforeIndexLookup(indexInfo._index, TOK_EQ, evalColln);      
+      context.recordIndexLookup();
       //We need to reset the result type just in case the colln turned out to 
       //be a compiled comparison which could change the result type
       //Exec caches are incorrectly shared across all queries, this would result
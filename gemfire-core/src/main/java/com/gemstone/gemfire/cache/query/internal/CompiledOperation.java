@@ -48,6 +48,8 @@ public class CompiledOperation extends AbstractCompiledValue {
   private final String methodName;
   private final List args;
   private static final ConcurrentMap cache = new ConcurrentHashMap();
+  /** the dispatch of the last evaluation without arguments */
+  private volatile MethodDispatch lastDispatch;
   
   
   // receiver is an ID or PATH that contains the operation name
@@ -250,8 +252,13 @@ public class CompiledOperation extends AbstractCompiledValue {
         argTypes.add(o.getClass()); // otherwise use the runtime type
     }
     
+    // calls without arguments remember their last dispatch, most of them
+    // only ever see one receiver class
+    MethodDispatch methodDispatch = argTypes.isEmpty() ? this.lastDispatch : null;
+    if (methodDispatch != null && methodDispatch.getTargetClass() == resolutionType) {
+      return methodDispatch.invoke(toInvocationReceiver(receiver), args);
+    }
     // see if in cache
-    MethodDispatch methodDispatch;
     List key = Arrays.asList(new Object[] { resolutionType , this.methodName, argTypes });
     methodDispatch = (MethodDispatch)CompiledOperation.cache.get(key);
     if (methodDispatch == null) {
@@ -269,6 +276,18 @@ public class CompiledOperation extends AbstractCompiledValue {
       // cache
       CompiledOperation.cache.putIfAbsent(key, methodDispatch);
     }
+    if (argTypes.isEmpty()) {
+      this.lastDispatch = methodDispatch;
+    }
+    return methodDispatch.invoke(toInvocationReceiver(receiver), args);
+  }
+
+  /**
+   * Returns the object a method is invoked on for the given receiver.
+   * PdxInstances are deserialized and PdxStrings converted to Strings.
+   */
+  private static Object toInvocationReceiver(Object receiver)
+  throws QueryInvocationTargetException {
     if (receiver instanceof PdxInstance) {
       try {
         if (receiver instanceof PdxInstanceImpl) {
@@ -282,7 +301,7 @@ public class CompiledOperation extends AbstractCompiledValue {
     } else if (receiver instanceof PdxString) {
       receiver = ((PdxString)receiver).toString();
     }
-    return methodDispatch.invoke(receiver, args);
+    return receiver;
   }
   
   //Asif :Function for generating from clause
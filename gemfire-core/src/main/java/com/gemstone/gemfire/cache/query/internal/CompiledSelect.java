@@ -39,6 +39,10 @@ import com.gemstone.gemfire.cache.query.internal.types.TypeUtils;
 import com.gemstone.gemfire.cache.query.types.CollectionType;
 import com.gemstone.gemfire.cache.query.types.ObjectType;
 import com.gemstone.gemfire.cache.query.types.StructType;
+import com.gemstone.gemfire.internal.cache.CachedDeserializable;
+import com.gemstone.gemfire.internal.cache.persistence.query.CloseableIterator;
+import com.gemstone.gemfire.internal.cache.persistence.query.TemporaryResultSetFactory;
+import com.gemstone.gemfire.internal.cache.persistence.query.overflow.ExternalSortedResults;
 import com.gemstone.gemfire.internal.i18n.LocalizedStrings;
 import com.gemstone.gemfire.pdx.PdxInstance;
 import com.gemstone.gemfire.pdx.internal.PdxString;
@@ -390,6 +394,8 @@ public class CompiledSelect extends AbstractCompiledValue {
   
   public SelectResults evaluate(ExecutionContext context) throws FunctionDomainException, TypeMismatchException,
       NameResolutionException, QueryInvocationTargetException {
+    QueryPlan plan = QueryPlan.start(context, QueryPlan.SELECT, null);
+    SelectResults result = null;
    // context.newScope(context.getScopeID(this));
     context.newScope(this.scopeID);
     context.pushExecCache(scopeID);
@@ -418,7 +424,6 @@ public class CompiledSelect extends AbstractCompiledValue {
         //already set the index id
       }
       Integer limitValue = evaluateLimitValue(context, this.limit);
-      SelectResults result = null;
       boolean evalAsFilters = false;
       if (this.whereClause == null) {
         result = doIterationEvaluate(context, false);
@@ -536,13 +541,36 @@ public class CompiledSelect extends AbstractCompiledValue {
               }
               
               
-              result = ((Filter) this.whereClause)
-                  .filterEvaluate(context, null);
+              QueryPlan stage = QueryPlan.start(context,
+                  QueryPlan.INDEX_LOOKUP, getIndexNames(planInfo));
+              if (stage != null && isIndexedCondition(this.whereClause)) {
+                // junctions record the estimate of the operand they pick
+                stage.addEstimatedRows(((Filter)this.whereClause)
+                    .getSizeEstimate(context));
+              }
+              try {
+                result = ((Filter) this.whereClause)
+                    .filterEvaluate(context, null);
+              } finally {
+                if (stage != null) {
+                  stage.end(context, result);
+                }
+              }
               if (!(context.cacheGet(RESULT_TYPE) instanceof Boolean)) {
                 QueryObserverHolder.getInstance()
                     .beforeApplyingProjectionOnFilterEvaluatedResults(result);
-                result = applyProjectionOnCollection( result, context,
-                    !needsTopLevelOrdering);
+                stage = QueryPlan.start(context, QueryPlan.PROJECTION, null);
+                if (stage != null) {
+                  stage.addRowsIn(result.size());
+                }
+                try {
+                  result = applyProjectionOnCollection( result, context,
+                      !needsTopLevelOrdering);
+                } finally {
+                  if (stage != null) {
+                    stage.end(context, result);
+                  }
+                }
               }
             } else {
               // otherwise iterate over the single from var to evaluate
@@ -565,6 +593,15 @@ public class CompiledSelect extends AbstractCompiledValue {
       if (result instanceof SelectResults) {
         SelectResults sr = (SelectResults) result;
         CollectionType colnType = sr.getCollectionType();
+        QueryPlan stage = null;
+        if (this.distinct) {
+          stage = QueryPlan.start(context, QueryPlan.DISTINCT, null);
+        } else if (limitValue > -1) {
+          stage = QueryPlan.start(context, QueryPlan.LIMIT, limitValue.toString());
+        }
+        if (stage != null) {
+          stage.addRowsIn(sr.size());
+        }
         //if (this.distinct && colnType.allowsDuplicates()) {
         if (this.distinct) {
           Collection r;
@@ -588,6 +625,9 @@ public class CompiledSelect extends AbstractCompiledValue {
             ((Bag)sr).applyLimit(limitValue);
           }
         }
+        if (stage != null) {
+          stage.end(context, result);
+        }
 
         /*
          * We still have to get size of SelectResults in some cases like,
@@ -623,8 +663,36 @@ public class CompiledSelect extends AbstractCompiledValue {
     finally {
       context.popScope();
       context.popExecCache();
+      if (plan != null) {
+        plan.end(context, result);
+      }
     }
   }
+
+  /**
+   * Returns the names of the indexes a filter evaluation will use, for the
+   * query plan.
+   */
+  /**
+   * Returns true if the condition is a single condition looked up in an
+   * index, whose size estimate comes from the index
+   */
+  private static boolean isIndexedCondition(CompiledValue condition) {
+    return condition instanceof CompiledComparison
+        || condition instanceof CompiledIn
+        || condition instanceof CompiledUndefined;
+  }
+
+    private static String getIndexNames(PlanInfo planInfo) {
+    StringBuilder names = new StringBuilder();
+    for (Object index : planInfo.indexes) {
+      if (names.length() > 0) {
+        names.append(", ");
+      }
+      names.append(((Index)index).getName());
+    }
+    return names.toString();
+  }
   
   /**
    * The index is locked during query to prevent it from being
@@ -688,9 +756,123 @@ public class CompiledSelect extends AbstractCompiledValue {
   private SelectResults doIterationEvaluate(ExecutionContext context, boolean evaluateWhereClause)
       throws TypeMismatchException, FunctionDomainException, NameResolutionException,
       QueryInvocationTargetException {
+    QueryPlan stage = QueryPlan.start(context, QueryPlan.SCAN, null);
+    if (stage == null) {
+      return iterateAndEvaluate(context, evaluateWhereClause);
+    }
+    SelectResults results = null;
+    try {
+      results = iterateAndEvaluate(context, evaluateWhereClause);
+      return results;
+    } finally {
+      stage.end(context, results);
+    }
+  }
+
+  private SelectResults iterateAndEvaluate(ExecutionContext context, boolean evaluateWhereClause)
+      throws TypeMismatchException, FunctionDomainException, NameResolutionException,
+      QueryInvocationTargetException {
     
     SelectResults results = prepareEmptyResultSet(context,false);
-    
+    ExternalSortedResults spill = createOrderBySpill(context, results);
+    if (spill == null) {
+      return iterateAndEvaluate(context, evaluateWhereClause, results);
+    }
+    // the rows are sorted in the spill, which overflows to disk, and only
+    // the rows within the limit are added to the results
+    boolean streamed = false;
+    context.cachePut(ORDER_BY_SPILL, spill);
+    try {
+      if (iterateAndEvaluate(context, evaluateWhereClause, results) == null) {
+        return null;
+      }
+      ObjectType elementType = results.getCollectionType().getElementType();
+      if (streamOrderedResults()) {
+        streamed = true;
+        ResultsCollectionWrapper rows = new ResultsCollectionWrapper(
+            elementType, new SpilledSortedResults(spill, elementType,
+                ((Ordered)results).comparator()));
+        rows.setModifiable(false);
+        return rows;
+      }
+      addSpilledResults(spill, results, elementType.isStructType(),
+          evaluateLimitValue(context, this.limit));
+      return results;
+    } finally {
+      context.cachePut(ORDER_BY_SPILL, null);
+      if (!streamed) {
+        spill.close();
+      }
+    }
+  }
+
+  /**
+   * Returns the temporary results to sort the rows of this select in, or
+   * null if they are sorted in the given results as usual. Spilling the
+   * rows only pays off if far fewer rows end up in the results: if there is
+   * a limit, or if the rows are {@linkplain #streamOrderedResults streamed}.
+   */
+  private ExternalSortedResults createOrderBySpill(ExecutionContext context,
+      SelectResults results) throws FunctionDomainException,
+      TypeMismatchException, NameResolutionException,
+      QueryInvocationTargetException {
+    if (!TemporaryResultSetFactory.SPILL_QUERY_RESULTS
+        || this.orderByAttrs == null || this.hasUnmappedOrderByCols
+        || this.count || context.getBucketList() != null
+        || !(context instanceof QueryExecutionContext)
+        || !(results instanceof Ordered)) {
+      return null;
+    }
+    if (!streamOrderedResults()
+        && evaluateLimitValue(context, this.limit) < 0) {
+      return null;
+    }
+    return context.getResultSetFactory().getSortedResults(
+        ((Ordered)results).comparator(), this.distinct);
+  }
+
+  /**
+   * Returns true if the ordered rows of this select are only iterated once,
+   * so that they can be returned straight from temporary results that
+   * overflow to disk instead of being collected in memory. The caller must
+   * close the returned {@link SpilledSortedResults}.
+   */
+  protected boolean streamOrderedResults() {
+    return false;
+  }
+
+  /**
+   * Adds the rows sorted in the spill, up to the limit, to the results.
+   */
+  private void addSpilledResults(ExternalSortedResults spill,
+      SelectResults results, boolean isStruct, int limitValue) {
+    CloseableIterator<CachedDeserializable> rows = spill.iterator();
+    try {
+      int numAdded = 0;
+      while ((limitValue < 0 || numAdded < limitValue) && rows.hasNext()) {
+        QueryMonitor.isQueryExecutionCanceled();
+        Object row = rows.next().getDeserializedForReading();
+        boolean added;
+        if (this.distinct) {
+          added = isStruct ? ((StructFields)results).addFieldValues((Object[])row)
+              : results.add(row);
+        } else {
+          ((Bag)results).addAndGetOccurence(row);
+          added = true;
+        }
+        if (added) {
+          ++numAdded;
+        }
+      }
+    } finally {
+      rows.close();
+    }
+  }
+
+  private SelectResults iterateAndEvaluate(ExecutionContext context,
+      boolean evaluateWhereClause, SelectResults results)
+      throws TypeMismatchException, FunctionDomainException, NameResolutionException,
+      QueryInvocationTargetException {
     //TODO:Asif: SELF : Work on limit implementation on bulk get    
     // check for bulk get optimization
     if (evaluateWhereClause) {
@@ -703,6 +885,9 @@ public class CompiledSelect extends AbstractCompiledValue {
           rIter.setCurrent(currObj);
           QueryObserver observer = QueryObserverHolder.getInstance();
           observer.beforeIterationEvaluation(rIter, currObj);
+          if (context.getQueryPlan() != null) {
+            context.getQueryPlan().addRowsIn(1);
+          }
           applyProjectionAndAddToResultSet(context, results, this.orderByAttrs ==null);
         }
         return results;
@@ -780,6 +965,9 @@ public class CompiledSelect extends AbstractCompiledValue {
       NameResolutionException, QueryInvocationTargetException, CompiledSelect.NullIteratorException {
     List iterList = context.getCurrentIterators();
     if (level == iterList.size()) {
+      if (context.getQueryPlan() != null) {
+        context.getQueryPlan().addRowsIn(1);
+      }
       boolean addToResults = true;
       if (evaluateWhereClause) {
         Object result = this.whereClause.evaluate(context);
@@ -1196,8 +1384,10 @@ public class CompiledSelect extends AbstractCompiledValue {
       applyOrderBy = true;
     }
 
+    ExternalSortedResults spill = null;
     if (this.orderByAttrs != null && !ignoreOrderBy) {
       comparator = (OrderByComparator) ((Ordered) resultSet).comparator();
+      spill = (ExternalSortedResults) context.cacheGet(ORDER_BY_SPILL);
     }
     if (projAttrs == null) {
       int len = currrentRuntimeIters.size();
@@ -1228,7 +1418,16 @@ public class CompiledSelect extends AbstractCompiledValue {
         occurence = 1;
       } else {
         // if order by is present
-        if (applyOrderBy) {
+        if (applyOrderBy && spill != null) {
+          if (!isStruct) {
+            spill.add(values[0]);
+          } else if (values.length == 1 && values[0] instanceof StructImpl) {
+            spill.add(((StructImpl) values[0]).getFieldValues());
+          } else {
+            spill.add(values);
+          }
+          occurence = 1;
+        } else if (applyOrderBy) {
           StructImpl structImpl;
           if (this.distinct) {
             if (isStruct) {
@@ -1358,7 +1557,10 @@ public class CompiledSelect extends AbstractCompiledValue {
         }
       }
       // if order by is present
-      if (applyOrderBy) {
+      if (applyOrderBy && spill != null) {
+        spill.add(isStruct ? values : values[0]);
+        occurence = 1;
+      } else if (applyOrderBy) {
         if (distinct) {
           if (isStruct) {
             comparator.addEvaluatedSortCriteria(values, context);
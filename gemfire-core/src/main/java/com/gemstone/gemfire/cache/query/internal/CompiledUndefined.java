@@ -98,6 +98,7 @@ public class CompiledUndefined extends AbstractCompiledValue implements
     QueryObserver observer = QueryObserverHolder.getInstance();
     try {
       observer.beforeIndexLookup(idxInfo[0]._index, op, key);
+      context.recordIndexLookup();
       context.cachePut(CompiledValue.INDEX_INFO, idxInfo[0]);
       idxInfo[0]._index.query(key, op, set,context);
     }
@@ -52,6 +52,8 @@ public interface CompiledValue {
   public static final String CAN_APPLY_ORDER_BY_AT_INDEX = "can_apply_orderby_at_index";
   public static final String PREF_INDEX_COND = "preferred_index_condition"; 
   public static final String QUERY_INDEX_HINTS = "query_index_hints";  
+  public static final String BITMAP_CANDIDATES = "bitmap_candidates";
+  public static final String ORDER_BY_SPILL = "order_by_spill";
   public static final CompiledValue MAP_INDEX_ALL_KEYS = new AbstractCompiledValue() {
     
     @Override
@@ -19,10 +19,13 @@ import java.util.List;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import com.gemstone.gemfire.cache.query.FunctionDomainException;
+import com.gemstone.gemfire.cache.query.Index;
+import com.gemstone.gemfire.cache.query.IndexStatistics;
 import com.gemstone.gemfire.cache.query.NameResolutionException;
 import com.gemstone.gemfire.cache.query.QueryInvocationTargetException;
 import com.gemstone.gemfire.cache.query.SelectResults;
 import com.gemstone.gemfire.cache.query.TypeMismatchException;
+import com.gemstone.gemfire.cache.query.internal.index.IndexProtocol;
 import com.gemstone.gemfire.cache.query.internal.parse.OQLLexerTokenTypes;
 import com.gemstone.gemfire.cache.query.internal.types.StructTypeImpl;
 import com.gemstone.gemfire.cache.query.internal.SelectResultsComparator;
@@ -218,7 +221,7 @@ public class CompositeGroupJunction extends AbstractCompiledValue implements
     // group junction");
     boolean delayIterOpEval = (this.groupJunctions != null && this.groupJunctions
         .size() != 0);
-    Iterator itr = this.filterableCC.iterator();
+    Iterator itr = getCostOrderedFilterableCCs(context).iterator();
     int filterableCCSize = this.filterableCC.size();
     if (filterableCCSize > 1) {
       for (int i = 0; i < (filterableCCSize - 1); i++) {
@@ -507,6 +510,92 @@ public class CompositeGroupJunction extends AbstractCompiledValue implements
     return Collections.unmodifiableList(this.filterableCC);
   }
 
+  /**
+   * Orders the equi join conditions by their estimated number of join
+   * results, cheapest first, so that the most selective join produces the
+   * intermediate results the remaining conditions are evaluated against.
+   * Conditions whose cost cannot be estimated keep their relative order after
+   * the estimated ones. If the query carries index hints the conditions are
+   * left in the order of the where clause.
+   */
+  private List getCostOrderedFilterableCCs(ExecutionContext context)
+      throws TypeMismatchException, NameResolutionException {
+    int size = this.filterableCC.size();
+    if (size < 2 || (context instanceof QueryExecutionContext
+        && ((QueryExecutionContext)context).hasHints())) {
+      return this.filterableCC;
+    }
+    List<JoinEstimate> estimates = new ArrayList<JoinEstimate>(size);
+    for (Object cc : this.filterableCC) {
+      estimates.add(new JoinEstimate((CompiledValue)cc, context));
+    }
+    Collections.sort(estimates);
+    List ordered = new ArrayList(size);
+    Index[][] joinIndexes = new Index[size][];
+    long[] sizeEstimates = new long[size];
+    for (int i = 0; i < size; i++) {
+      JoinEstimate estimate = estimates.get(i);
+      ordered.add(estimate.condition);
+      joinIndexes[i] = estimate.indexes;
+      sizeEstimates[i] = estimate.size;
+    }
+    QueryObserverHolder.getInstance().afterEquiJoinOrdering(joinIndexes,
+        sizeEstimates);
+    return ordered;
+  }
+
+  /**
+   * Estimates the number of results of an equi join between two indexes from
+   * their statistics, assuming the keys of the index with fewer distinct keys
+   * are contained in the other one.
+   */
+  static long estimateEquiJoinSize(IndexProtocol left, IndexProtocol right) {
+    IndexStatistics leftStats = left.getStatistics();
+    IndexStatistics rightStats = right.getStatistics();
+    if (leftStats == null || rightStats == null) {
+      return Long.MAX_VALUE;
+    }
+    long distinctKeys = Math.max(leftStats.getNumberOfKeys(),
+        rightStats.getNumberOfKeys());
+    if (distinctKeys <= 0) {
+      return 0;
+    }
+    double size = (double)leftStats.getNumberOfValues()
+        * rightStats.getNumberOfValues() / distinctKeys;
+    return size >= Long.MAX_VALUE ? Long.MAX_VALUE : (long)size;
+  }
+
+  /**
+   * The estimated cost of evaluating one equi join condition
+   */
+  private static class JoinEstimate implements Comparable<JoinEstimate> {
+    final CompiledValue condition;
+    final Index[] indexes;
+    final long size;
+
+    JoinEstimate(CompiledValue condition, ExecutionContext context)
+        throws TypeMismatchException, NameResolutionException {
+      this.condition = condition;
+      IndexInfo[] indexInfo = null;
+      if (condition instanceof Indexable) {
+        indexInfo = ((Indexable)condition).getIndexInfo(context);
+      }
+      if (indexInfo != null && indexInfo.length == 2) {
+        this.indexes = new Index[] { indexInfo[0]._index, indexInfo[1]._index };
+        this.size = estimateEquiJoinSize(indexInfo[0]._index,
+            indexInfo[1]._index);
+      }
+      else {
+        this.indexes = null;
+        this.size = Long.MAX_VALUE;
+      }
+    }
+
+    public int compareTo(JoinEstimate other) {
+      return this.size < other.size ? -1 : (this.size == other.size ? 0 : 1);
+    }
+  }
+
   /**
    * 
    * @return List containg GroupJunctions which are part of this
@@ -52,6 +52,7 @@ import com.gemstone.gemfire.internal.cache.PartitionedRegion;
 import com.gemstone.gemfire.internal.cache.TXManagerImpl;
 import com.gemstone.gemfire.internal.cache.TXStateProxy;
 import com.gemstone.gemfire.internal.i18n.LocalizedStrings;
+import com.gemstone.gemfire.internal.util.BlobHelper;
 
 
 /**
@@ -76,6 +77,12 @@ public class DefaultQuery implements Query {
 
   private boolean traceOn = false;
 
+  /**
+   * The plan the executions on this member are recorded into while the query
+   * is analyzed, null otherwise
+   */
+  private volatile QueryPlan queryPlan;
+
   private static final Object[] EMPTY_ARRAY = new Object[0];
 
   public static boolean QUERY_VERBOSE =
@@ -541,9 +548,56 @@ public class DefaultQuery implements Query {
   }
 
 
+  /**
+   * Executes the query and returns the plan it was executed with.
+   *
+   * @see Query#explainAnalyze(Object[])
+   * @since 9.0
+   */
+  public QueryPlan explainAnalyze(Object[] parameters) throws QueryException {
+    if (this.serverProxy != null) {
+      throw new QueryException(
+          "Queries of a client pool can not be analyzed, analyze the query on a server hosting the data");
+    }
+    QueryPlan plan = new QueryPlan(QueryPlan.QUERY, this.queryString);
+    this.queryPlan = plan;
+    long startTime = NanoTimer.getTime();
+    Object result = null;
+    try {
+      result = execute(parameters);
+    } finally {
+      this.queryPlan = null;
+      plan.recordExecution(NanoTimer.getTime() - startTime, 0,
+          QueryPlan.sizeOf(result));
+    }
+    return plan;
+  }
+
+  /**
+   * Returns the plan the executions on this member are recorded into, or
+   * null if the query is not being analyzed.
+   */
+  public QueryPlan getQueryPlan() {
+    return this.queryPlan;
+  }
+
+  public void setQueryPlan(QueryPlan queryPlan) {
+    this.queryPlan = queryPlan;
+  }
+
   public Object executeUsingContext(ExecutionContext context)
   throws FunctionDomainException, TypeMismatchException, NameResolutionException, QueryInvocationTargetException {
     QueryObserver observer = QueryObserverHolder.getInstance();
+    QueryPlan queryPlan = this.queryPlan;
+    QueryPlan executionPlan = null;
+    boolean countingDeserializations = false;
+    if (queryPlan != null) {
+      // each execution, for example on a bucket, has its own plan that is
+      // merged once it is done
+      executionPlan = new QueryPlan(queryPlan.getOperation(), queryPlan.getDetail());
+      context.setQueryPlan(executionPlan);
+      countingDeserializations = BlobHelper.startCountingDeserializations();
+    }
 
     long startTime = CachePerfStats.getStatTime();
     TXStateProxy tx = null;
@@ -586,6 +640,13 @@ public class DefaultQuery implements Query {
       updateStatistics(endTime - startTime);
       pdxClassToFieldsMap.remove();
       pdxClassToMethodsMap.remove();
+      if (executionPlan != null) {
+        context.setQueryPlan(null);
+        queryPlan.mergeChildren(executionPlan);
+        if (countingDeserializations) {
+          BlobHelper.stopCountingDeserializations();
+        }
+      }
       if (tx != null) {
         ((TXManagerImpl) this.cache.getCacheTransactionManager()).resume(tx);
       }
@@ -902,6 +963,7 @@ public class DefaultQuery implements Query {
     if (observer != null && observer instanceof IndexTrackingQueryObserver) {
       IndexTrackingQueryObserver indexObserver = (IndexTrackingQueryObserver)observer;
       Map usedIndexes = indexObserver.getUsedIndexes();
+      List planEstimates = indexObserver.getPlanEstimates();
       indexObserver.reset();
       StringBuffer buf = new StringBuffer();
       buf.append(" indexesUsed(");
@@ -917,6 +979,7 @@ public class DefaultQuery implements Query {
           }
         }
       }
+      appendPlanEstimates(buf, planEstimates);
       usedIndexesString = buf.toString();
     } else if (DefaultQuery.QUERY_VERBOSE) {
       usedIndexesString = " indexesUsed(NA due to other observer in the way: "
@@ -932,6 +995,23 @@ public class DefaultQuery implements Query {
     " \"" + query + "\"";
   }
 
+  /**
+   * Appends the cost estimates the query planner based its index selection
+   * and join order on.
+   */
+  private static void appendPlanEstimates(StringBuffer buf, List planEstimates) {
+    if (planEstimates.size() > 0) {
+      buf.append(" planEstimates(");
+      for (Iterator itr = planEstimates.iterator(); itr.hasNext();) {
+        buf.append(itr.next());
+        if (itr.hasNext()) {
+          buf.append(",");
+        }
+      }
+      buf.append(")");
+    }
+  }
+
   public static String getLogMessage(IndexTrackingQueryObserver indexObserver,
       long startTime, String otherObserver, int resultSize, String query, BucketRegion bucket) {
     String usedIndexesString = null;
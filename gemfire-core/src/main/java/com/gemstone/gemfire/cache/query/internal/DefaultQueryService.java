@@ -43,6 +43,7 @@ import com.gemstone.gemfire.cache.query.IndexType;
 import com.gemstone.gemfire.cache.query.MultiIndexCreationException;
 import com.gemstone.gemfire.cache.query.NameResolutionException;
 import com.gemstone.gemfire.cache.query.Query;
+import com.gemstone.gemfire.cache.query.QueryException;
 import com.gemstone.gemfire.cache.query.QueryExecutionLowMemoryException;
 import com.gemstone.gemfire.cache.query.QueryInvalidException;
 import com.gemstone.gemfire.cache.query.QueryService;
@@ -130,6 +131,18 @@ public class DefaultQueryService implements QueryService {
     return query;
   }
 
+  /**
+   * Executes the query, discarding its results, and returns the plan it was
+   * executed with.
+   * 
+   * @see Query#explainAnalyze(Object[])
+   * @since 9.0
+   */
+  public QueryPlan explainAnalyze(String queryString, Object[] parameters)
+      throws QueryException {
+    return ((DefaultQuery)newQuery(queryString)).explainAnalyze(parameters);
+  }
+
   public Index createHashIndex(String indexName,
       String indexedExpression, String fromClause)
       throws IndexNameConflictException, IndexExistsException, 
@@ -22,6 +22,7 @@ import com.gemstone.gemfire.internal.cache.PartitionedRegion;
 import com.gemstone.gemfire.internal.cache.BucketRegion;
 import com.gemstone.gemfire.internal.cache.GemFireCacheImpl;
 import com.gemstone.gemfire.internal.cache.CachePerfStats;
+import com.gemstone.gemfire.internal.cache.persistence.query.TemporaryResultSetFactory;
 import com.gemstone.gemfire.internal.i18n.LocalizedStrings;
 import com.gemstone.gemfire.pdx.internal.PdxString;
 
@@ -83,6 +84,13 @@ public class ExecutionContext {
   private boolean distinct = false;
   private Object currentProjectionField = null;
   private boolean isPRQueryNode = false;
+  /** The stage being recorded when the query is analyzed, null otherwise */
+  private QueryPlan queryPlan = null;
+  /**
+   * Creates the temporary results of this execution, which share one memory
+   * budget. Created on first use.
+   */
+  private TemporaryResultSetFactory resultSetFactory = null;
   /**
    * Param specialIteratorVar name of special variable to use to denote the
    * current iteration element. Used to implement the "this" var in the query
@@ -109,6 +117,20 @@ public class ExecutionContext {
     return ((GemFireCacheImpl)this.cache).getCachePerfStats();
   }
 
+  /**
+   * Returns the factory for the temporary results of this execution. All of
+   * them count against the same memory budget, so one execution can not
+   * use more than that budget no matter how many results it sorts.
+   * 
+   * @since 9.0
+   */
+  public TemporaryResultSetFactory getResultSetFactory() {
+    if (this.resultSetFactory == null) {
+      this.resultSetFactory = new TemporaryResultSetFactory();
+    }
+    return this.resultSetFactory;
+  }
+
   /**
    * Add RuntimeIterator as a dependency of a CompiledValue. ASSUMPTION:
    * unsynchronized, assumed to be single-threaded.
@@ -721,4 +743,22 @@ public class ExecutionContext {
     return this.isPRQueryNode;
   }
   
+  public QueryPlan getQueryPlan() {
+    return this.queryPlan;
+  }
+
+  public void setQueryPlan(QueryPlan queryPlan) {
+    this.queryPlan = queryPlan;
+  }
+
+  /**
+   * Counts an index lookup against the current stage if the query is being
+   * analyzed.
+   */
+  void recordIndexLookup() {
+    if (this.queryPlan != null) {
+      this.queryPlan.addIndexLookup();
+    }
+  }
+  
 }
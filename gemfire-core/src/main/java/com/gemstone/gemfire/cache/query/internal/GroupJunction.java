@@ -101,6 +101,7 @@ public class GroupJunction extends AbstractGroupOrRangeJunction {
         */    
         
         Filter currentBestFilter = null;
+        PlanInfo currentBestPlanInfo = null;
         int currentBestFilterSize =-1;
         indexCount = 1;
       
@@ -130,12 +131,14 @@ public class GroupJunction extends AbstractGroupOrRangeJunction {
               }
               // new best
               currentBestFilter = (Filter)_operands[i];
+              currentBestPlanInfo = pi;
               currentBestFilterSize = ((Filter)_operands[i]).getSizeEstimate(context);
               foundPreferredCondition = true;
               continue;
             }
             if (currentBestFilter == null) {
               currentBestFilter = (Filter)_operands[i];            
+              currentBestPlanInfo = pi;
               currentBestFilterSize = ((Filter)_operands[i]).getSizeEstimate(context);
             }
             else if ( foundPreferredCondition ||currentBestFilter.isBetterFilter((Filter)_operands[i], context, currentBestFilterSize)) {
@@ -144,6 +147,7 @@ public class GroupJunction extends AbstractGroupOrRangeJunction {
             else {
               evalOperands.add(currentBestFilter);
               currentBestFilter = (Filter)_operands[i];
+              currentBestPlanInfo = pi;
               // TODO:Asif: Avoid this call. Let the function which is doing the
               // comparison return some how the size of comparedTo operand. 
               currentBestFilterSize = ((Filter)_operands[i]).getSizeEstimate(context);
@@ -161,6 +165,11 @@ public class GroupJunction extends AbstractGroupOrRangeJunction {
           }
         }
         evalOperands.add(0, currentBestFilter);
+        if (currentBestPlanInfo != null) {
+          QueryObserverHolder.getInstance().afterFilterSelection(
+              currentBestPlanInfo.indexes, currentBestFilterSize);
+          QueryPlan.estimate(context, currentBestFilterSize);
+        }
       }
     }else {
       indexCount =_operands.length ;
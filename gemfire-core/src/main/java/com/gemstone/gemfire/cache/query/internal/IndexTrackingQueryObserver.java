@@ -20,9 +20,12 @@ package com.gemstone.gemfire.cache.query.internal;
 
 import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -42,6 +45,7 @@ public class IndexTrackingQueryObserver extends QueryObserverAdapter {
   
   private static final ThreadLocal indexInfo = new ThreadLocal();
   private static final ThreadLocal lastIndexUsed = new ThreadLocal();
+  private static final ThreadLocal planEstimates = new ThreadLocal();
   private volatile TestHook th;
   
   public void beforeIndexLookup(Index index, int oper, Object key) {
@@ -124,6 +128,64 @@ public class IndexTrackingQueryObserver extends QueryObserverAdapter {
     }
   }    
   
+  /**
+   * Records the cost estimate of the filter selected by a GroupJunction
+   */
+  public void afterFilterSelection(List indexes, int sizeEstimate) {
+    StringBuilder sb = new StringBuilder("filter[");
+    for (Iterator itr = indexes.iterator(); itr.hasNext();) {
+      sb.append(((Index)itr.next()).getName());
+      if (itr.hasNext()) {
+        sb.append(",");
+      }
+    }
+    sb.append("](estimate: ").append(sizeEstimate).append(")");
+    addPlanEstimate(sb.toString());
+  }
+
+  /**
+   * Records the cost estimates of the equi join conditions of a
+   * CompositeGroupJunction in the order they are evaluated
+   */
+  public void afterEquiJoinOrdering(Index[][] joinIndexes, long[] sizeEstimates) {
+    StringBuilder sb = new StringBuilder("joinOrder[");
+    for (int i = 0; i < joinIndexes.length; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      if (joinIndexes[i] == null) {
+        sb.append("(no estimate)");
+      } else {
+        sb.append(joinIndexes[i][0].getName()).append("=")
+            .append(joinIndexes[i][1].getName()).append("(estimate: ")
+            .append(sizeEstimates[i]).append(")");
+      }
+    }
+    sb.append("]");
+    addPlanEstimate(sb.toString());
+  }
+
+  private void addPlanEstimate(String estimate) {
+    List<String> estimates = (List<String>)planEstimates.get();
+    if (estimates == null) {
+      estimates = new ArrayList<String>();
+      planEstimates.set(estimates);
+    }
+    estimates.add(estimate);
+  }
+
+  /**
+   * Returns the cost estimates recorded while planning the query executed by
+   * the current thread
+   */
+  public List<String> getPlanEstimates() {
+    List<String> estimates = (List<String>)planEstimates.get();
+    if (estimates == null) {
+      return Collections.emptyList();
+    }
+    return estimates;
+  }
+
   /**
    * This should be called only when one query execution on one gemfire node is done.
    * NOT for each buckets.
@@ -133,6 +195,7 @@ public class IndexTrackingQueryObserver extends QueryObserverAdapter {
       th.hook(4);
     }
     this.indexInfo.set(null);
+    planEstimates.set(null);
   }
 
   public void setIndexInfo(Map indexInfoMap) {
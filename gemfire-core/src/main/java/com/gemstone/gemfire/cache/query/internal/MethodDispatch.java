@@ -11,8 +11,12 @@ package com.gemstone.gemfire.cache.query.internal;
 
 
 import java.util.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.*;
 
+import com.gemstone.gemfire.SystemFailure;
 import com.gemstone.gemfire.cache.query.*;
 import com.gemstone.gemfire.cache.query.internal.types.TypeUtils;
 import com.gemstone.gemfire.internal.i18n.LocalizedStrings;
@@ -31,6 +35,7 @@ public class MethodDispatch
     private String _methodName;
     private Class[] _argTypes;
     private Method _method; // remember the right method
+    private MethodHandle _handle; // _method taking (Object target, Object[] args)
     
     
     public MethodDispatch(Class targetClass, String methodName, List argTypes)
@@ -44,15 +49,74 @@ public class MethodDispatch
             // override security in case this is a method on a nonpublic class
             // with a public method
         _method.setAccessible(true);
+        _handle = toHandle(_method);
+    }
+
+    
+    /**
+     * Returns a handle that invokes the method with the target and an array
+     * of arguments, converting the arguments the way reflection does. Returns
+     * null if no handle can be created, the method is invoked reflectively
+     * then.
+     */
+    private static MethodHandle toHandle(Method method)
+    {
+        MethodHandle handle;
+        try
+        {
+            handle = MethodHandles.lookup().unreflect(method);
+        }
+        catch (IllegalAccessException e)
+        {
+            return null;
+        }
+        if (handle.isVarargsCollector())
+            handle = handle.asFixedArity();
+        if (Modifier.isStatic(method.getModifiers()))
+            handle = MethodHandles.dropArguments(handle, 0, Object.class);
+        int argCount = method.getParameterTypes().length;
+        return handle.asSpreader(Object[].class, argCount)
+            .asType(MethodType.methodType(Object.class, Object.class, Object[].class));
     }
 
     
 
+    Class getTargetClass()
+    {
+        return _targetClass;
+    }
+
+
     public Object invoke(Object target, List args)
         throws NameNotFoundException, QueryInvocationTargetException
     {
         Object[] argsArray = args.toArray();
         
+        if (_handle != null)
+        {
+            try
+            {
+                return _handle.invokeExact(target, argsArray);
+            }
+            catch (VirtualMachineError err)
+            {
+                SystemFailure.initiateFailure(err);
+                // If this ever returns, rethrow the error. We're poisoned
+                // now, so don't let this thread continue.
+                throw err;
+            }
+            catch (Throwable t)
+            {
+                // Whenever you catch Error or Throwable, you must also
+                // catch VirtualMachineError (see above). However, there is
+                // _still_ a possibility that you are dealing with a cascading
+                // error condition, so you also need to check to see if the JVM
+                // is still usable:
+                SystemFailure.checkFailure();
+                // the handle does not wrap what the method throws
+                throw new QueryInvocationTargetException(t);
+            }
+        }
        
         try
         {
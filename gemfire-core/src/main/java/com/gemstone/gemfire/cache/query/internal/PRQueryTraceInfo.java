@@ -18,6 +18,7 @@ import com.gemstone.gemfire.DataSerializer;
 import com.gemstone.gemfire.distributed.DistributedMember;
 import com.gemstone.gemfire.distributed.internal.membership.InternalDistributedMember;
 import com.gemstone.gemfire.internal.DataSerializableFixedID;
+import com.gemstone.gemfire.internal.InternalDataSerializer;
 import com.gemstone.gemfire.internal.Version;
 import com.gemstone.gemfire.internal.i18n.LocalizedStrings;
 
@@ -29,6 +30,8 @@ public class PRQueryTraceInfo implements DataSerializableFixedID {
   private InternalDistributedMember sender;
   private float timeInMillis;
   private int numResults;
+  //Only set if the query is analyzed, sent to 9.0 and later members
+  private QueryPlan queryPlan;
   
   public PRQueryTraceInfo() {
   }
@@ -38,6 +41,9 @@ public class PRQueryTraceInfo implements DataSerializableFixedID {
     out.writeFloat(timeInMillis);
     out.writeInt(numResults);
     DataSerializer.writeString(indexesUsed, out);
+    if (InternalDataSerializer.getVersionForDataStream(out).compareTo(Version.GFE_90) >= 0) {
+      DataSerializer.writeObject(queryPlan, out);
+    }
   }
 
   @Override
@@ -45,6 +51,9 @@ public class PRQueryTraceInfo implements DataSerializableFixedID {
     timeInMillis = in.readFloat();
     numResults = in.readInt();
     indexesUsed = DataSerializer.readString(in);
+    if (InternalDataSerializer.getVersionForDataStream(in).compareTo(Version.GFE_90) >= 0) {
+      queryPlan = DataSerializer.readObject(in);
+    }
   }
   
 
@@ -97,5 +106,13 @@ public class PRQueryTraceInfo implements DataSerializableFixedID {
   public void setIndexesUsed(String indexesUsed) {
     this.indexesUsed = indexesUsed;
   }
+
+  public QueryPlan getQueryPlan() {
+    return queryPlan;
+  }
+
+  public void setQueryPlan(QueryPlan queryPlan) {
+    this.queryPlan = queryPlan;
+  }
   
 }
@@ -53,6 +53,19 @@ public class PathUtils {
   }
   
   public static Object evaluateAttribute(Object target, String attribute)
+  throws NameNotFoundException, QueryInvocationTargetException {
+    return evaluateAttribute(target, attribute, null);
+  }
+
+  /**
+   * Evaluates the attribute using the given AttributeDescriptor. Path
+   * expressions keep their descriptor, which remembers how the attribute was
+   * read from the last object.
+   * 
+   * @param attributeDescriptor the descriptor for the attribute, or null to
+   *          create one
+   */
+  public static Object evaluateAttribute(Object target, String attribute, AttributeDescriptor attributeDescriptor)
   throws NameNotFoundException, QueryInvocationTargetException {
     if(target instanceof Struct){
       Struct struct = (Struct)target;
@@ -62,8 +75,11 @@ public class PathUtils {
         throw new NameNotFoundException(attribute);
       }
     }
+    if (attributeDescriptor == null) {
+      attributeDescriptor = new AttributeDescriptor(attribute);
+    }
     try {
-      return new AttributeDescriptor(attribute).read(target);
+      return attributeDescriptor.read(target);
     } catch (NameNotFoundException nfe) {
       if (DefaultQueryService.QUERY_HETEROGENEOUS_OBJECTS ||
           DefaultQueryService.TEST_QUERY_HETEROGENEOUS_OBJECTS) {
@@ -74,26 +90,6 @@ public class PathUtils {
     }
   }
 
-  /*
-   * This was added as part of CQ performance changes.
-   * The change is done to re-use the AttributeDescriptor object instead of creating
-   * it each time. 
-   */
-  /*
-  public static Object evaluateAttribute(Object target, String attribute, AttributeDescriptor attributeDescriptor)
-  throws NameNotFoundException, QueryInvocationTargetException {
-    if(target instanceof Struct){
-      Struct struct = (Struct)target;
-      try{
-        return struct.get(attribute);
-      }catch(Exception e){
-        throw new NameNotFoundException(attribute);
-      }
-    }
-    return attributeDescriptor.read(target);
-  }
-  */
-  
   /**
    * @param pathArray the path starting with an attribute on
    * the initial type.
@@ -327,4 +327,28 @@ public interface QueryObserver {
    */
   void orderByColumnsEqual();
 
+  /**
+   * Callback issued when a GroupJunction has picked the filter operand that
+   * drives its index lookup.
+   * 
+   * @param indexes
+   *          the indexes used by the selected filter operand
+   * @param sizeEstimate
+   *          the number of results the filter operand is estimated to return
+   */
+  void afterFilterSelection(List indexes, int sizeEstimate);
+
+  /**
+   * Callback issued when a CompositeGroupJunction has ordered its equi join
+   * conditions by estimated cost, cheapest first.
+   * 
+   * @param joinIndexes
+   *          the pair of indexes used by each equi join condition, in
+   *          evaluation order. An element is null if the condition's cost
+   *          could not be estimated.
+   * @param sizeEstimates
+   *          the estimated number of join results of each condition
+   */
+  void afterEquiJoinOrdering(Index[][] joinIndexes, long[] sizeEstimates);
+
 }
@@ -330,4 +330,10 @@ public class QueryObserverAdapter implements QueryObserver {
   public void orderByColumnsEqual() {
     
   }
+
+  public void afterFilterSelection(List indexes, int sizeEstimate) {
+  }
+
+  public void afterEquiJoinOrdering(Index[][] joinIndexes, long[] sizeEstimates) {
+  }
 }
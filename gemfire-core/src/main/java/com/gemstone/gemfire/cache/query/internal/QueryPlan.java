@@ -0,0 +1,362 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.cache.query.internal;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import com.gemstone.gemfire.DataSerializable;
+import com.gemstone.gemfire.DataSerializer;
+import com.gemstone.gemfire.cache.query.QueryExecutionPlan;
+import com.gemstone.gemfire.internal.NanoTimer;
+import com.gemstone.gemfire.internal.util.BlobHelper;
+
+/**
+ * The plan of a query as it was executed by
+ * {@link com.gemstone.gemfire.cache.query.Query#explainAnalyze(Object[])}.
+ * Every node is a stage of the execution and records the rows that went in
+ * and out of it, the time spent in it and the index lookups and
+ * deserializations done by it.
+ *
+ * A node accumulates all executions of its stage, for example the evaluation
+ * of the select on each bucket of a partitioned region or of a correlated
+ * subquery for each row. Time and deserializations include the child stages,
+ * the other counters do not. Index lookups also record the number of rows the
+ * query planner estimated they would return, so that wrong estimates can be
+ * told from the rows they actually returned.
+ *
+ * @since 9.0
+ */
+public class QueryPlan implements QueryExecutionPlan, DataSerializable {
+
+  private static final long serialVersionUID = -1645733263585263411L;
+
+  /** The whole query, the root of a plan */
+  public static final String QUERY = "QUERY";
+
+  /** The part of a partitioned region query executed by one member */
+  public static final String MEMBER = "MEMBER";
+
+  /** Combining the results of the members on the query node */
+  public static final String MERGE = "MERGE";
+
+  public static final String SELECT = "SELECT";
+
+  public static final String INDEX_LOOKUP = "INDEX LOOKUP";
+
+  public static final String SCAN = "SCAN";
+
+  public static final String PROJECTION = "PROJECTION";
+
+  public static final String DISTINCT = "DISTINCT";
+
+  public static final String LIMIT = "LIMIT";
+
+  public static final String GROUP_BY = "GROUP BY";
+
+  private String operation;
+
+  private String detail;
+
+  private long executions;
+
+  private long rowsIn;
+
+  private long rowsOut;
+
+  private long time;
+
+  private long indexLookups;
+
+  private long deserializations;
+
+  /** The rows the planner estimated this stage would produce, or -1 */
+  private long estimatedRows = -1;
+
+  private List<QueryPlan> children = new ArrayList<QueryPlan>();
+
+  /** The stage that was current before this one was started */
+  private transient QueryPlan parent;
+
+  private transient long startTime;
+
+  private transient long startDeserializations;
+
+  /** For deserialization */
+  public QueryPlan() {
+  }
+
+  public QueryPlan(String operation, String detail) {
+    this.operation = operation;
+    this.detail = detail;
+  }
+
+  /**
+   * Starts the execution of a stage below the stage that is current in the
+   * context and makes it current.
+   *
+   * @return the stage, or null if the query is not being analyzed
+   */
+  static QueryPlan start(ExecutionContext context, String operation,
+      String detail) {
+    QueryPlan current = context.getQueryPlan();
+    if (current == null) {
+      return null;
+    }
+    QueryPlan stage = current.getChild(operation, detail);
+    stage.parent = current;
+    stage.executions++;
+    stage.startDeserializations = BlobHelper.getDeserializationCount();
+    stage.startTime = NanoTimer.getTime();
+    context.setQueryPlan(stage);
+    return stage;
+  }
+
+  /**
+   * Ends the execution of this stage and makes its parent current again.
+   *
+   * @param result
+   *          the output of the stage, its size is added to the rows out if
+   *          it is a collection
+   */
+  void end(ExecutionContext context, Object result) {
+    this.time += NanoTimer.getTime() - this.startTime;
+    this.deserializations += BlobHelper.getDeserializationCount()
+        - this.startDeserializations;
+    this.rowsOut += sizeOf(result);
+    context.setQueryPlan(this.parent);
+    this.parent = null;
+  }
+
+  static int sizeOf(Object result) {
+    if (result instanceof Collection) {
+      return ((Collection)result).size();
+    }
+    return result == null ? 0 : 1;
+  }
+
+  /**
+   * Records an execution of a stage that is not timed with
+   * {@link #start(ExecutionContext, String, String)}.
+   */
+  public synchronized void recordExecution(long time, long rowsIn, long rowsOut) {
+    this.executions++;
+    this.time += time;
+    this.rowsIn += rowsIn;
+    this.rowsOut += rowsOut;
+  }
+
+  void addRowsIn(long rows) {
+    this.rowsIn += rows;
+  }
+
+  void addIndexLookup() {
+    this.indexLookups++;
+  }
+
+  void addEstimatedRows(long rows) {
+    if (rows >= 0) {
+      this.estimatedRows = Math.max(this.estimatedRows, 0) + rows;
+    }
+  }
+
+  /**
+   * Records the number of rows the planner estimated the index lookup that
+   * is current in the context would return.
+   */
+  static void estimate(ExecutionContext context, long rows) {
+    QueryPlan current = context.getQueryPlan();
+    if (current != null && INDEX_LOOKUP.equals(current.operation)) {
+      current.addEstimatedRows(rows);
+    }
+  }
+
+  /**
+   * Returns the child with the given operation and detail, adding it if
+   * this stage has not executed it before.
+   */
+  synchronized QueryPlan getChild(String operation, String detail) {
+    for (QueryPlan child : this.children) {
+      if (child.operation.equals(operation)
+          && (child.detail == null ? detail == null : child.detail.equals(detail))) {
+        return child;
+      }
+    }
+    QueryPlan child = new QueryPlan(operation, detail);
+    this.children.add(child);
+    return child;
+  }
+
+  public synchronized void addChild(QueryPlan child) {
+    this.children.add(child);
+  }
+
+  /**
+   * Adds the counters and the children of another plan of the same stage to
+   * this one.
+   */
+  public synchronized void merge(QueryPlan other) {
+    this.executions += other.executions;
+    this.rowsIn += other.rowsIn;
+    this.rowsOut += other.rowsOut;
+    this.time += other.time;
+    this.indexLookups += other.indexLookups;
+    this.deserializations += other.deserializations;
+    addEstimatedRows(other.estimatedRows);
+    mergeChildren(other);
+  }
+
+  /**
+   * Merges the children of another plan into the children of this one,
+   * leaving the counters of this plan alone.
+   */
+  public synchronized void mergeChildren(QueryPlan other) {
+    for (QueryPlan child : other.getChildren()) {
+      getChild(child.operation, child.detail).merge(child);
+    }
+  }
+
+  public String getOperation() {
+    return this.operation;
+  }
+
+  public String getDetail() {
+    return this.detail;
+  }
+
+  public synchronized long getExecutions() {
+    return this.executions;
+  }
+
+  public synchronized long getRowsIn() {
+    return this.rowsIn;
+  }
+
+  public synchronized long getRowsOut() {
+    return this.rowsOut;
+  }
+
+  /**
+   * Returns the time spent in this stage and its children in nanoseconds
+   */
+  public synchronized long getTime() {
+    return this.time;
+  }
+
+  public synchronized long getIndexLookups() {
+    return this.indexLookups;
+  }
+
+  public synchronized long getDeserializations() {
+    return this.deserializations;
+  }
+
+  public synchronized long getEstimatedRows() {
+    return this.estimatedRows;
+  }
+
+  public synchronized List<QueryPlan> getChildren() {
+    return Collections.unmodifiableList(new ArrayList<QueryPlan>(this.children));
+  }
+
+  /**
+   * Returns the first node below this one, depth first, that executed the
+   * given operation, or null.
+   */
+  public QueryPlan find(String operation) {
+    for (QueryPlan child : getChildren()) {
+      if (child.operation.equals(operation)) {
+        return child;
+      }
+      QueryPlan found = child.find(operation);
+      if (found != null) {
+        return found;
+      }
+    }
+    return null;
+  }
+
+  public void toData(DataOutput out) throws IOException {
+    List<QueryPlan> children;
+    synchronized (this) {
+      DataSerializer.writeString(this.operation, out);
+      DataSerializer.writeString(this.detail, out);
+      out.writeLong(this.executions);
+      out.writeLong(this.rowsIn);
+      out.writeLong(this.rowsOut);
+      out.writeLong(this.time);
+      out.writeLong(this.indexLookups);
+      out.writeLong(this.deserializations);
+      out.writeLong(this.estimatedRows);
+      children = new ArrayList<QueryPlan>(this.children);
+    }
+    out.writeInt(children.size());
+    for (QueryPlan child : children) {
+      child.toData(out);
+    }
+  }
+
+  public void fromData(DataInput in) throws IOException, ClassNotFoundException {
+    this.operation = DataSerializer.readString(in);
+    this.detail = DataSerializer.readString(in);
+    this.executions = in.readLong();
+    this.rowsIn = in.readLong();
+    this.rowsOut = in.readLong();
+    this.time = in.readLong();
+    this.indexLookups = in.readLong();
+    this.deserializations = in.readLong();
+    this.estimatedRows = in.readLong();
+    int size = in.readInt();
+    this.children = new ArrayList<QueryPlan>(size);
+    for (int i = 0; i < size; i++) {
+      QueryPlan child = new QueryPlan();
+      child.fromData(in);
+      this.children.add(child);
+    }
+  }
+
+  /**
+   * Returns the plan as an indented tree, one stage per line.
+   */
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    appendTo(sb, 0);
+    return sb.toString();
+  }
+
+  private void appendTo(StringBuilder sb, int depth) {
+    for (int i = 0; i < depth; i++) {
+      sb.append("  ");
+    }
+    synchronized (this) {
+      sb.append(this.operation);
+      if (this.detail != null) {
+        sb.append(' ').append(this.detail);
+      }
+      sb.append(" (executions=").append(this.executions)
+          .append(", rows in=").append(this.rowsIn)
+          .append(", rows out=").append(this.rowsOut);
+      if (this.estimatedRows >= 0) {
+        sb.append(", estimated rows=").append(this.estimatedRows);
+      }
+      sb.append(", time=").append(String.format("%.3f", this.time / 1.0e6))
+          .append(" ms, index lookups=").append(this.indexLookups)
+          .append(", deserializations=").append(this.deserializations)
+          .append(")\n");
+    }
+    for (QueryPlan child : getChildren()) {
+      child.appendTo(sb, depth + 1);
+    }
+  }
+}
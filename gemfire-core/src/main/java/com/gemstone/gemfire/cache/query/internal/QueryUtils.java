@@ -1260,6 +1260,8 @@ public class QueryUtils {
             OQLLexerTokenTypes.TOK_EQ, null);
         observer.beforeIndexLookup(indxInfo[1]._index,
             OQLLexerTokenTypes.TOK_EQ, null);
+        context.recordIndexLookup();
+        context.recordIndexLookup();
         if (context.getBucketList() != null) {
           data = queryEquijoinConditionBucketIndexes(indxInfo, context);
         } else {
@@ -1464,6 +1466,7 @@ public class QueryUtils {
           if (key != null && key.equals(QueryService.UNDEFINED)) continue;
           singleUsblIndex.query(key, OQLLexerTokenTypes.TOK_EQ,
               singlUsblIndxRes, context);
+          context.recordIndexLookup();
           cutDownAndExpandIndexResults(returnSet, singlUsblIndxRes,
               singleUsableICH.indexFieldToItrsMapping, totalExpList, finalList,
               context, singleUsableICH.checkList, iterOperands);
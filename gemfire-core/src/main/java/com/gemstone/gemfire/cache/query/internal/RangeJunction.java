@@ -849,6 +849,7 @@ public class RangeJunction extends AbstractGroupOrRangeJunction {
       try {
         observer.beforeIndexLookup(this.indxInfo._index,
             OQLLexerTokenTypes.TOK_NE, this.notEqualTypeKeys);
+        context.recordIndexLookup();
         context.cachePut(CompiledValue.INDEX_INFO, this.indxInfo);
         this.indxInfo._index.query(set, notEqualTypeKeys, context);
       }
@@ -1043,6 +1044,7 @@ public class RangeJunction extends AbstractGroupOrRangeJunction {
       try {
         observer.beforeIndexLookup(this.indxInfo._index, this.condnOp,
             this.condnKey);
+        context.recordIndexLookup();
         context.cachePut(CompiledValue.INDEX_INFO, this.indxInfo);
         this.indxInfo._index.query(this.condnKey, this.condnOp, set,
             notEqualTypeKeys, context);
@@ -1203,6 +1205,7 @@ public class RangeJunction extends AbstractGroupOrRangeJunction {
         observer.beforeIndexLookup(this.indxInfo._index, this.greaterCondnOp,
             this.greaterCondnKey, this.lessCondnOp, this.lessCondnKey,
             this.notEqualTypeKeys);
+        context.recordIndexLookup();
         context.cachePut(CompiledValue.INDEX_INFO, this.indxInfo);
         this.indxInfo._index.query(this.greaterCondnKey, this.greaterCondnOp,
             this.lessCondnKey, this.lessCondnOp, set, notEqualTypeKeys, context);
@@ -471,6 +471,13 @@ public final class ResultsCollectionWrapper
     return this.collectionType;
   }
 
+  /**
+   * Returns the collection this wraps
+   */
+  Collection getBase() {
+    return this.base;
+  }
+
   /**
    * Getter for property modifiable.
    * 
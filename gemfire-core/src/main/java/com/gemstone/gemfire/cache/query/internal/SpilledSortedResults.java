@@ -0,0 +1,118 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.cache.query.internal;
+
+import java.util.AbstractCollection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.gemstone.gemfire.cache.query.internal.types.StructTypeImpl;
+import com.gemstone.gemfire.cache.query.types.ObjectType;
+import com.gemstone.gemfire.internal.cache.CachedDeserializable;
+import com.gemstone.gemfire.internal.cache.persistence.query.CloseableIterator;
+import com.gemstone.gemfire.internal.cache.persistence.query.overflow.ExternalSortedResults;
+
+/**
+ * A read only view of the rows of a select that were sorted in temporary
+ * results which overflow to disk. Struct rows are kept as their field values
+ * and returned as {@link StructImpl}s. The rows are read back from disk each
+ * time the view is iterated, and the temporary results are deleted when the
+ * view is closed.
+ *
+ * @see CompiledSelect#streamOrderedResults
+ * @since 9.0
+ */
+final class SpilledSortedResults extends AbstractCollection implements Ordered {
+
+  private final ExternalSortedResults rows;
+
+  private final ObjectType elementType;
+
+  private final Comparator comparator;
+
+  private int size = -1;
+
+  SpilledSortedResults(ExternalSortedResults rows, ObjectType elementType,
+      Comparator comparator) {
+    this.rows = rows;
+    this.elementType = elementType;
+    this.comparator = comparator;
+  }
+
+  @Override
+  public Iterator iterator() {
+    final CloseableIterator<CachedDeserializable> it = this.rows.iterator();
+    return new Iterator() {
+      private boolean closed = false;
+
+      public boolean hasNext() {
+        if (this.closed) {
+          return false;
+        }
+        if (it.hasNext()) {
+          return true;
+        }
+        it.close();
+        this.closed = true;
+        return false;
+      }
+
+      public Object next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        Object row = it.next().getDeserializedForReading();
+        if (elementType.isStructType()) {
+          return new StructImpl((StructTypeImpl)elementType, (Object[])row);
+        }
+        return row;
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Returns the number of rows, counting them the first time
+   */
+  @Override
+  public int size() {
+    if (this.size < 0) {
+      int count = 0;
+      CloseableIterator<CachedDeserializable> it = this.rows.iterator();
+      try {
+        while (it.hasNext()) {
+          it.next();
+          count++;
+        }
+      } finally {
+        it.close();
+      }
+      this.size = count;
+    }
+    return this.size;
+  }
+
+  public Comparator comparator() {
+    return this.comparator;
+  }
+
+  public boolean dataPreordered() {
+    return false;
+  }
+
+  /**
+   * Deletes the temporary results
+   */
+  void close() {
+    this.rows.close();
+  }
+}
@@ -0,0 +1,394 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.cache.query.internal.cq;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.Logger;
+
+import com.gemstone.gemfire.cache.query.QueryService;
+import com.gemstone.gemfire.cache.query.internal.AttributeDescriptor;
+import com.gemstone.gemfire.cache.query.internal.CompiledComparison;
+import com.gemstone.gemfire.cache.query.internal.CompiledID;
+import com.gemstone.gemfire.cache.query.internal.CompiledIteratorDef;
+import com.gemstone.gemfire.cache.query.internal.CompiledJunction;
+import com.gemstone.gemfire.cache.query.internal.CompiledLiteral;
+import com.gemstone.gemfire.cache.query.internal.CompiledPath;
+import com.gemstone.gemfire.cache.query.internal.CompiledRegion;
+import com.gemstone.gemfire.cache.query.internal.CompiledSelect;
+import com.gemstone.gemfire.cache.query.internal.CompiledValue;
+import com.gemstone.gemfire.cache.query.internal.QCompiler;
+import com.gemstone.gemfire.cache.query.internal.parse.OQLLexerTokenTypes;
+import com.gemstone.gemfire.internal.logging.LogService;
+import com.gemstone.gemfire.pdx.internal.PdxString;
+
+/**
+ * An index over the WHERE clauses of the CQs registered in a FilterProfile,
+ * used to find the CQs an entry value can possibly satisfy without
+ * evaluating all of them.
+ *
+ * For every CQ on a single region iterator the index picks one conjunct of
+ * the form <code>attribute op literal</code> whose operator is one of
+ * =, &lt;, &lt;=, &gt; or &gt;=. The CQ can only be true for a value if
+ * that conjunct is, so equality conjuncts are kept in a hash map per
+ * attribute and range conjuncts in sorted maps of their bounds. CQs without
+ * such a conjunct are always candidates. The index errs on the side of
+ * returning too many CQs: the candidates still have to be evaluated.
+ *
+ * Instances are immutable; FilterProfile replaces its index whenever its
+ * CQs change, just like it replaces its map of CQs.
+ *
+ * @since 9.0
+ */
+public class CqPredicateIndex {
+  private static final Logger logger = LogService.getLogger();
+
+  public static final CqPredicateIndex EMPTY = new CqPredicateIndex(
+      Collections.<String, Predicate> emptyMap());
+
+  /** The predicate of every CQ, null for the ones that are not indexed */
+  private final Map<String, Predicate> predicates;
+
+  private final Set<String> unindexed = new HashSet<String>();
+
+  private final Map<List<String>, AttributeIndex> attributes = new HashMap<List<String>, AttributeIndex>();
+
+  private CqPredicateIndex(Map<String, Predicate> predicates) {
+    this.predicates = predicates;
+    for (Map.Entry<String, Predicate> entry : predicates.entrySet()) {
+      Predicate predicate = entry.getValue();
+      if (predicate == null) {
+        this.unindexed.add(entry.getKey());
+      } else {
+        AttributeIndex index = this.attributes.get(predicate.path);
+        if (index == null) {
+          index = new AttributeIndex(predicate.path);
+          this.attributes.put(predicate.path, index);
+        }
+        index.add(entry.getKey(), predicate);
+      }
+    }
+  }
+
+  /**
+   * Returns an index that also contains the given CQ, replacing any CQ with
+   * the same name.
+   */
+  public CqPredicateIndex add(String cqName, String queryString) {
+    Map<String, Predicate> newPredicates = new HashMap<String, Predicate>(this.predicates);
+    newPredicates.put(cqName, getPredicate(queryString));
+    return new CqPredicateIndex(newPredicates);
+  }
+
+  /**
+   * Returns an index without the given CQ.
+   */
+  public CqPredicateIndex remove(String cqName) {
+    if (!this.predicates.containsKey(cqName)) {
+      return this;
+    }
+    Map<String, Predicate> newPredicates = new HashMap<String, Predicate>(this.predicates);
+    newPredicates.remove(cqName);
+    return new CqPredicateIndex(newPredicates);
+  }
+
+  /**
+   * Returns true if at least one CQ has an indexed predicate, that is if
+   * looking up the candidates of a value can rule out any CQ.
+   */
+  public boolean isSelective() {
+    return !this.attributes.isEmpty();
+  }
+
+  public int size() {
+    return this.predicates.size();
+  }
+
+  /**
+   * Adds the names of the CQs that may be satisfied by the given entry value
+   * to the given set.
+   */
+  public void addCandidates(Object value, Set<String> result) {
+    result.addAll(this.unindexed);
+    for (AttributeIndex index : this.attributes.values()) {
+      index.addCandidates(value, result);
+    }
+  }
+
+  /**
+   * Returns the predicate the WHERE clause of the given query implies, or
+   * null if the query can not be indexed.
+   */
+  static Predicate getPredicate(String queryString) {
+    try {
+      CompiledValue query = new QCompiler().compileQuery(queryString);
+      if (!(query instanceof CompiledSelect)) {
+        return null;
+      }
+      CompiledSelect select = (CompiledSelect)query;
+      List iterators = select.getIterators();
+      if (iterators == null || iterators.size() != 1) {
+        return null;
+      }
+      CompiledIteratorDef iterator = (CompiledIteratorDef)iterators.get(0);
+      if (!(iterator.getCollectionExpr() instanceof CompiledRegion)) {
+        return null;
+      }
+      return getPredicate(select.getWhereClause(), iterator.getName());
+    } catch (RuntimeException e) {
+      // the CQ is evaluated anyway, so it will report the problem
+      if (logger.isDebugEnabled()) {
+        logger.debug("Not indexing CQ query {}: {}", queryString, e.getMessage());
+      }
+      return null;
+    }
+  }
+
+  private static Predicate getPredicate(CompiledValue condition, String iteratorName) {
+    if (condition instanceof CompiledJunction) {
+      if (((CompiledJunction)condition).getOperator() != OQLLexerTokenTypes.LITERAL_and) {
+        return null;
+      }
+      for (Object operand : condition.getChildren()) {
+        Predicate predicate = getPredicate((CompiledValue)operand, iteratorName);
+        if (predicate != null) {
+          return predicate;
+        }
+      }
+      return null;
+    }
+    if (!(condition instanceof CompiledComparison)) {
+      return null;
+    }
+    int operator = ((CompiledComparison)condition).getOperator();
+    List children = condition.getChildren();
+    CompiledValue attribute = (CompiledValue)children.get(0);
+    CompiledValue literal = (CompiledValue)children.get(1);
+    if (attribute instanceof CompiledLiteral) {
+      CompiledValue swap = attribute;
+      attribute = literal;
+      literal = swap;
+      operator = reflectOperator(operator);
+    }
+    if (operator == OQLLexerTokenTypes.TOK_NE
+        || !(literal instanceof CompiledLiteral)) {
+      return null;
+    }
+    List<String> path = getPath(attribute, iteratorName);
+    Object key;
+    try {
+      key = normalize(literal.evaluate(null));
+    } catch (Exception e) {
+      return null;
+    }
+    if (path == null || key == null
+        || (key instanceof Boolean && operator != OQLLexerTokenTypes.TOK_EQ)) {
+      return null;
+    }
+    return new Predicate(path, operator, key);
+  }
+
+  /**
+   * Returns the attribute names that lead from the iterator to the given
+   * expression, or null if it is not such a path.
+   */
+  private static List<String> getPath(CompiledValue value, String iteratorName) {
+    List<String> path = new ArrayList<String>();
+    while (value instanceof CompiledPath) {
+      path.add(0, ((CompiledPath)value).getTailID());
+      value = ((CompiledPath)value).getReceiver();
+    }
+    if (!(value instanceof CompiledID)) {
+      return null;
+    }
+    String id = ((CompiledID)value).getId();
+    if (!id.equals(iteratorName)) {
+      // an implicit attribute of the iterator
+      path.add(0, id);
+    }
+    return Collections.unmodifiableList(path);
+  }
+
+  private static int reflectOperator(int operator) {
+    switch (operator) {
+      case OQLLexerTokenTypes.TOK_LT:
+        return OQLLexerTokenTypes.TOK_GT;
+      case OQLLexerTokenTypes.TOK_LE:
+        return OQLLexerTokenTypes.TOK_GE;
+      case OQLLexerTokenTypes.TOK_GT:
+        return OQLLexerTokenTypes.TOK_LT;
+      case OQLLexerTokenTypes.TOK_GE:
+        return OQLLexerTokenTypes.TOK_LE;
+      default:
+        return operator;
+    }
+  }
+
+  /**
+   * Returns the key the index uses for a literal or an attribute value, or
+   * null if the index can not tell which predicates the value satisfies.
+   * Numbers of all types compare as doubles. Since distinct numbers may map
+   * to the same double, range bounds are always treated as inclusive.
+   */
+  static Object normalize(Object value) {
+    if (value instanceof String || value instanceof Boolean) {
+      return value;
+    }
+    if (value instanceof PdxString) {
+      return value.toString();
+    }
+    if (value instanceof Number) {
+      double d = ((Number)value).doubleValue();
+      if (Double.isNaN(d)) {
+        return null;
+      }
+      // -0.0 and 0.0 are equal in queries
+      return d == 0.0 ? 0.0 : d;
+    }
+    return null;
+  }
+
+  /** The conjunct that decides if a CQ can be satisfied by a value */
+  static final class Predicate {
+    final List<String> path;
+    final int operator;
+    final Object key;
+
+    Predicate(List<String> path, int operator, Object key) {
+      this.path = path;
+      this.operator = operator;
+      this.key = key;
+    }
+
+    @Override
+    public String toString() {
+      return this.path + " " + this.operator + " " + this.key;
+    }
+  }
+
+  /** The predicates of all the CQs on one attribute path */
+  private static final class AttributeIndex {
+    private final AttributeDescriptor[] descriptors;
+
+    private final Set<String> all = new HashSet<String>();
+
+    private final Map<Object, Set<String>> equal = new HashMap<Object, Set<String>>();
+
+    /** The CQs that need a value at or above a bound, per type of bound */
+    private final Map<Class, TreeMap<Comparable, Set<String>>> lower = new HashMap<Class, TreeMap<Comparable, Set<String>>>();
+
+    /** The CQs that need a value at or below a bound, per type of bound */
+    private final Map<Class, TreeMap<Comparable, Set<String>>> upper = new HashMap<Class, TreeMap<Comparable, Set<String>>>();
+
+    /** The CQs per type of their literal, to find the ones of other types */
+    private final Map<Class, Set<String>> byType = new HashMap<Class, Set<String>>();
+
+    AttributeIndex(List<String> path) {
+      this.descriptors = new AttributeDescriptor[path.size()];
+      for (int i = 0; i < this.descriptors.length; i++) {
+        this.descriptors[i] = new AttributeDescriptor(path.get(i));
+      }
+    }
+
+    void add(String cqName, Predicate predicate) {
+      this.all.add(cqName);
+      Class type = predicate.key.getClass();
+      addTo(this.byType, type, cqName);
+      switch (predicate.operator) {
+        case OQLLexerTokenTypes.TOK_EQ:
+          addTo(this.equal, predicate.key, cqName);
+          break;
+        case OQLLexerTokenTypes.TOK_GT:
+        case OQLLexerTokenTypes.TOK_GE:
+          addTo(getBounds(this.lower, type), (Comparable)predicate.key, cqName);
+          break;
+        default:
+          addTo(getBounds(this.upper, type), (Comparable)predicate.key, cqName);
+          break;
+      }
+    }
+
+    void addCandidates(Object entryValue, Set<String> result) {
+      Object key = read(entryValue);
+      if (key == null) {
+        result.addAll(this.all);
+        return;
+      }
+      Set<String> cqs = this.equal.get(key);
+      if (cqs != null) {
+        result.addAll(cqs);
+      }
+      Class type = key.getClass();
+      TreeMap<Comparable, Set<String>> bounds = this.lower.get(type);
+      if (bounds != null) {
+        addAll(bounds.headMap((Comparable)key, true).values(), result);
+      }
+      bounds = this.upper.get(type);
+      if (bounds != null) {
+        addAll(bounds.tailMap((Comparable)key, true).values(), result);
+      }
+      // comparisons between different types are left to the query engine
+      for (Map.Entry<Class, Set<String>> entry : this.byType.entrySet()) {
+        if (entry.getKey() != type) {
+          result.addAll(entry.getValue());
+        }
+      }
+    }
+
+    /**
+     * Returns the normalized value of the attribute, or null if it can not be
+     * read or looked up.
+     */
+    private Object read(Object value) {
+      try {
+        for (AttributeDescriptor descriptor : this.descriptors) {
+          if (value == null || value == QueryService.UNDEFINED) {
+            return null;
+          }
+          value = descriptor.read(value);
+        }
+      } catch (Exception e) {
+        return null;
+      }
+      return normalize(value);
+    }
+
+    private static TreeMap<Comparable, Set<String>> getBounds(
+        Map<Class, TreeMap<Comparable, Set<String>>> bounds, Class type) {
+      TreeMap<Comparable, Set<String>> map = bounds.get(type);
+      if (map == null) {
+        map = new TreeMap<Comparable, Set<String>>();
+        bounds.put(type, map);
+      }
+      return map;
+    }
+
+    private static <K> void addTo(Map<K, Set<String>> map, K key, String cqName) {
+      Set<String> cqs = map.get(key);
+      if (cqs == null) {
+        cqs = new HashSet<String>();
+        map.put(key, cqs);
+      }
+      cqs.add(cqName);
+    }
+
+    private static void addAll(Collection<Set<String>> sets, Set<String> result) {
+      for (Set<String> cqs : sets) {
+        result.addAll(cqs);
+      }
+    }
+  }
+}
@@ -971,6 +971,22 @@ public abstract class AbstractIndex implements IndexProtocol
     public void incNumBucketIndexes(int delta) 
     {
     }
+
+    public void incHistogramBuilds(long buildTime)
+    {
+    }
+
+    public void incPopulatesInProgress(int delta)
+    {
+    }
+
+    public void incPopulatedEntries(long delta)
+    {
+    }
+
+    public void incPopulateTime(long delta)
+    {
+    }
   }
 
   /**
@@ -2392,6 +2408,42 @@ public abstract class AbstractIndex implements IndexProtocol
   public void setPopulated(boolean isPopulated) {
     this.isPopulated = isPopulated;
   }
+
+  /**
+   * Records that the population of this index started, also on the
+   * partitioned index of a bucket index
+   */
+  void populateStarted() {
+    this.internalIndexStats.incPopulatesInProgress(1);
+    if (this.prIndex instanceof AbstractIndex) {
+      ((AbstractIndex)this.prIndex).internalIndexStats
+          .incPopulatesInProgress(1);
+    }
+  }
+
+  /**
+   * Records the number of entries added so far while populating this index
+   */
+  void incPopulatedEntries(long delta) {
+    this.internalIndexStats.incPopulatedEntries(delta);
+    if (this.prIndex instanceof AbstractIndex) {
+      ((AbstractIndex)this.prIndex).internalIndexStats
+          .incPopulatedEntries(delta);
+    }
+  }
+
+  /**
+   * Records that the population of this index ended after the given time
+   */
+  void populateEnded(long time) {
+    this.internalIndexStats.incPopulatesInProgress(-1);
+    this.internalIndexStats.incPopulateTime(time);
+    if (this.prIndex instanceof AbstractIndex) {
+      InternalIndexStatistics prStats = ((AbstractIndex)this.prIndex).internalIndexStats;
+      prStats.incPopulatesInProgress(-1);
+      prStats.incPopulateTime(time);
+    }
+  }
   
   
 }
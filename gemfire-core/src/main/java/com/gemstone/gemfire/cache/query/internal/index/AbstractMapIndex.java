@@ -144,6 +144,18 @@ public abstract class AbstractMapIndex extends AbstractIndex
       this.vsdStats.incReadLockCount(delta);
     }
 
+    public void incPopulatesInProgress(int delta) {
+      this.vsdStats.incPopulatesInProgress(delta);
+    }
+
+    public void incPopulatedEntries(long delta) {
+      this.vsdStats.incPopulatedEntries(delta);
+    }
+
+    public void incPopulateTime(long delta) {
+      this.vsdStats.incPopulateTime(delta);
+    }
+
     /**
      * Returns the total amount of time (in nanoseconds) spent updating this
      * index.
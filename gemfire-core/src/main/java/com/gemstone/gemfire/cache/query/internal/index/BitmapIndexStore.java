@@ -0,0 +1,466 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.cache.query.internal.index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.gemstone.gemfire.cache.query.TypeMismatchException;
+import com.gemstone.gemfire.cache.query.internal.NullToken;
+import com.gemstone.gemfire.cache.query.internal.Undefined;
+import com.gemstone.gemfire.cache.query.internal.types.TypeUtils;
+import com.gemstone.gemfire.internal.cache.GemFireCacheImpl;
+import com.gemstone.gemfire.internal.cache.RegionEntry;
+import com.gemstone.gemfire.internal.cache.persistence.query.CloseableIterator;
+
+/**
+ * Wraps the index store of a compact range index and additionally keeps a
+ * bitmap of entry ordinals per distinct index key. The bitmaps let an AND of
+ * equality conditions on several indexes of the same region be combined
+ * before any entry is looked at, see {@link IndexBitmapCandidates}.
+ *
+ * Bitmaps are only worthwhile for fields with few distinct values. Once the
+ * index has more than {@link #MAX_KEYS} distinct keys the bitmaps are dropped
+ * and the store just delegates.
+ *
+ * @since 9.0
+ */
+public class BitmapIndexStore implements IndexStore {
+
+  /**
+   * Maximum number of distinct keys an index keeps bitmaps for. Bitmaps are
+   * not kept if zero. Not final so that tests can set it; it is read when an
+   * index is created.
+   */
+  public static int MAX_KEYS = Integer.getInteger(
+      "gemfire.index.BITMAP_MAX_KEYS", 0).intValue();
+
+  private final IndexStore delegate;
+
+  private final EntryOrdinals ordinals;
+
+  private final Comparator comparator = TypeUtils
+      .getExtendedNumericComparator();
+
+  /** Index key to bitmap of the ordinals mapped to it */
+  private final ConcurrentNavigableMap bitmaps = new ConcurrentSkipListMap(
+      this.comparator);
+
+  /** Ordinal to the index key of the entry, null if not in a bitmap */
+  private final EntryOrdinals.ChunkedArray keys = new EntryOrdinals.ChunkedArray();
+
+  private volatile boolean enabled = true;
+
+  public BitmapIndexStore(IndexStore delegate, EntryOrdinals ordinals) {
+    this.delegate = delegate;
+    this.ordinals = ordinals;
+  }
+
+  /**
+   * Returns the wrapped store
+   */
+  public IndexStore getDelegate() {
+    return this.delegate;
+  }
+
+  EntryOrdinals getEntryOrdinals() {
+    return this.ordinals;
+  }
+
+  /**
+   * Returns true as long as the number of distinct keys has not exceeded
+   * {@link #MAX_KEYS}
+   */
+  public boolean isBitmapEnabled() {
+    return this.enabled;
+  }
+
+  @Override
+  public void addMapping(Object indexKey, RegionEntry re) throws IMQException {
+    this.delegate.addMapping(indexKey, re);
+    updateBitmaps(indexKey, re);
+  }
+
+  @Override
+  public void removeMapping(Object indexKey, RegionEntry re)
+      throws IMQException {
+    this.delegate.removeMapping(indexKey, re);
+    updateBitmaps(null, re);
+  }
+
+  @Override
+  public void updateMapping(Object indexKey, Object oldKey, RegionEntry re,
+      Object oldValue) throws IMQException {
+    this.delegate.updateMapping(indexKey, oldKey, re, oldValue);
+    updateBitmaps(indexKey, re);
+  }
+
+  /**
+   * Adds the given mappings to the wrapped store at once if it supports it,
+   * and then to the bitmaps
+   */
+  void bulkLoad(Object[] keys, RegionEntry[] entries, int count)
+      throws IMQException {
+    if (this.delegate instanceof PrimitiveKeyIndexStore) {
+      ((PrimitiveKeyIndexStore)this.delegate).bulkLoad(keys, entries, count);
+      for (int i = 0; i < count; i++) {
+        updateBitmaps(keys[i], entries[i]);
+      }
+    }
+    else {
+      for (int i = 0; i < count; i++) {
+        addMapping(keys[i], entries[i]);
+      }
+    }
+  }
+
+  /**
+   * Moves the entry to the bitmap of the new key. Entries with a null or
+   * undefined key are not kept in any bitmap.
+   */
+  private void updateBitmaps(Object newKey, RegionEntry re) {
+    if (!this.enabled) {
+      return;
+    }
+    try {
+      newKey = TypeUtils.indexKeyFor(newKey);
+    } catch (TypeMismatchException e) {
+      // The delegate accepted the key, it can not happen
+      newKey = null;
+    }
+    if (newKey instanceof NullToken || newKey instanceof Undefined) {
+      newKey = null;
+    }
+    synchronized (this) {
+      if (!this.enabled) {
+        return;
+      }
+      int ordinal = this.ordinals.get(re);
+      Object oldKey = ordinal < 0 ? null : this.keys.get(ordinal);
+      if (oldKey != null && newKey != null
+          && this.comparator.compare(oldKey, newKey) == 0) {
+        return;
+      }
+      if (oldKey != null) {
+        EntryBitmap bitmap = (EntryBitmap)this.bitmaps.get(oldKey);
+        bitmap.remove(ordinal);
+        if (bitmap.isEmpty()) {
+          this.bitmaps.remove(oldKey);
+        }
+      }
+      if (newKey == null) {
+        if (oldKey != null) {
+          this.keys.set(ordinal, null);
+          this.ordinals.release(re);
+        }
+        return;
+      }
+      EntryBitmap bitmap = (EntryBitmap)this.bitmaps.get(newKey);
+      if (bitmap == null) {
+        if (this.bitmaps.size() >= MAX_KEYS) {
+          if (oldKey != null) {
+            this.keys.set(ordinal, null);
+            this.ordinals.release(re);
+          }
+          disable();
+          return;
+        }
+        bitmap = new EntryBitmap();
+        this.bitmaps.put(newKey, bitmap);
+      }
+      if (oldKey == null) {
+        ordinal = this.ordinals.acquire(re);
+      }
+      bitmap.add(ordinal);
+      this.keys.set(ordinal, newKey);
+    }
+  }
+
+  /**
+   * Drops all bitmaps. Must be called while synchronized on this.
+   */
+  private void disable() {
+    this.enabled = false;
+    releaseAll();
+  }
+
+  /**
+   * Releases the ordinals of all entries in the bitmaps. Must be called while
+   * synchronized on this.
+   */
+  private void releaseAll() {
+    Iterator iterator = this.bitmaps.values().iterator();
+    while (iterator.hasNext()) {
+      EntryBitmap.OrdinalIterator ordinalIterator = ((EntryBitmap)iterator
+          .next()).iterator();
+      while (ordinalIterator.hasNext()) {
+        int ordinal = ordinalIterator.next();
+        RegionEntry re = this.ordinals.getEntry(ordinal);
+        this.keys.set(ordinal, null);
+        if (re != null) {
+          this.ordinals.release(re);
+        }
+      }
+    }
+    this.bitmaps.clear();
+  }
+
+  /**
+   * Returns a copy of the bitmap of the given index key, or null if bitmaps
+   * are not kept.
+   */
+  public EntryBitmap getBitmap(Object indexKey) {
+    if (!this.enabled) {
+      return null;
+    }
+    synchronized (this) {
+      if (!this.enabled) {
+        return null;
+      }
+      EntryBitmap bitmap = (EntryBitmap)this.bitmaps.get(indexKey);
+      return bitmap == null ? new EntryBitmap() : bitmap.copy();
+    }
+  }
+
+  /**
+   * Returns true if the entry with the given ordinal is currently mapped to
+   * the given index key
+   */
+  boolean isMappedTo(int ordinal, Object indexKey) {
+    Object key = this.keys.get(ordinal);
+    try {
+      return key != null && this.comparator.compare(key, indexKey) == 0;
+    } catch (ClassCastException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns the number of distinct keys bitmaps are kept for
+   */
+  public int getNumBitmaps() {
+    return this.bitmaps.size();
+  }
+
+  @Override
+  public String printAll() {
+    StringBuffer sb = new StringBuffer(this.delegate.printAll());
+    Iterator iterator = this.bitmaps.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry mapEntry = (Map.Entry)iterator.next();
+      sb.append("Bitmap: " + mapEntry.getKey() + " " + mapEntry.getValue());
+      sb.append("\n");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Returns the entries of the given candidate ordinals that are mapped to the
+   * given index key, or null if the bitmaps of one of the candidate indexes
+   * were dropped meanwhile and the result can not be trusted.
+   */
+  CloseableIterator<IndexStoreEntry> get(Object indexKey,
+      IndexBitmapCandidates candidates) {
+    List entries = new ArrayList();
+    EntryBitmap.OrdinalIterator ordinalIterator = candidates.getBitmap()
+        .iterator();
+    while (ordinalIterator.hasNext()) {
+      int ordinal = ordinalIterator.next();
+      RegionEntry re = this.ordinals.getEntry(ordinal);
+      if (re != null && isMappedTo(ordinal, indexKey)
+          && candidates.matches(ordinal)) {
+        entries.add(re);
+      }
+    }
+    // Bitmaps are never enabled again once dropped, so the entries are
+    // complete if all of them are still kept
+    if (!candidates.isValid()) {
+      return null;
+    }
+    return new CandidateIterator(indexKey, entries.iterator());
+  }
+
+  @Override
+  public CloseableIterator<IndexStoreEntry> get(Object indexKey) {
+    return this.delegate.get(indexKey);
+  }
+
+  @Override
+  public CloseableIterator<IndexStoreEntry> iterator(Object start,
+      boolean startInclusive, Object end, boolean endInclusive,
+      Collection keysToRemove) {
+    return this.delegate.iterator(start, startInclusive, end, endInclusive,
+        keysToRemove);
+  }
+
+  @Override
+  public CloseableIterator<IndexStoreEntry> iterator(Object start,
+      boolean startInclusive, Collection keysToRemove) {
+    return this.delegate.iterator(start, startInclusive, keysToRemove);
+  }
+
+  @Override
+  public CloseableIterator<IndexStoreEntry> iterator(Collection keysToRemove) {
+    return this.delegate.iterator(keysToRemove);
+  }
+
+  @Override
+  public CloseableIterator<IndexStoreEntry> descendingIterator(Object end,
+      boolean endInclusive, Collection keysToRemove) {
+    return this.delegate.descendingIterator(end, endInclusive, keysToRemove);
+  }
+
+  @Override
+  public CloseableIterator<IndexStoreEntry> descendingIterator(
+      Collection keysToRemove) {
+    return this.delegate.descendingIterator(keysToRemove);
+  }
+
+  @Override
+  public CloseableIterator<IndexStoreEntry> descendingIterator(Object start,
+      boolean startInclusive, Object end, boolean endInclusive,
+      Collection keysToRemove) {
+    return this.delegate.descendingIterator(start, startInclusive, end,
+        endInclusive, keysToRemove);
+  }
+
+  @Override
+  public int size(Object key) {
+    return this.delegate.size(key);
+  }
+
+  @Override
+  public int size() {
+    return this.delegate.size();
+  }
+
+  @Override
+  public boolean clear() {
+    synchronized (this) {
+      releaseAll();
+    }
+    return this.delegate.clear();
+  }
+
+  @Override
+  public boolean isIndexOnRegionKeys() {
+    return this.delegate.isIndexOnRegionKeys();
+  }
+
+  @Override
+  public void setIndexOnRegionKeys(boolean indexOnRegionKeys) {
+    this.delegate.setIndexOnRegionKeys(indexOnRegionKeys);
+  }
+
+  @Override
+  public boolean isIndexOnValues() {
+    return this.delegate.isIndexOnValues();
+  }
+
+  @Override
+  public void setIndexOnValues(boolean indexOnValues) {
+    this.delegate.setIndexOnValues(indexOnValues);
+  }
+
+  @Override
+  public Object getTargetObject(RegionEntry entry) {
+    return this.delegate.getTargetObject(entry);
+  }
+
+  @Override
+  public Object getTargetObjectInVM(RegionEntry entry) {
+    return this.delegate.getTargetObjectInVM(entry);
+  }
+
+  /**
+   * Iterates over the entries taken from a combined bitmap
+   */
+  private class CandidateIterator implements
+      CloseableIterator<IndexStoreEntry> {
+    private final Object indexKey;
+    private final Iterator entries;
+    private final CandidateEntry currentEntry = new CandidateEntry(
+        GemFireCacheImpl.getInstance().cacheTimeMillis());
+
+    CandidateIterator(Object indexKey, Iterator entries) {
+      this.indexKey = indexKey;
+      this.entries = entries;
+    }
+
+    public boolean hasNext() {
+      return this.entries.hasNext();
+    }
+
+    public IndexStoreEntry next() {
+      this.currentEntry.setEntry(this.indexKey,
+          (RegionEntry)this.entries.next());
+      return this.currentEntry;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+      // do nothing
+    }
+  }
+
+  /**
+   * A wrapper over an index key and a candidate entry
+   */
+  class CandidateEntry implements IndexStoreEntry {
+    private Object deserializedIndexKey;
+    private RegionEntry regionEntry;
+    private boolean updateInProgress;
+    private Object value;
+    private final long iteratorStartTime;
+
+    private CandidateEntry(long iteratorStartTime) {
+      this.iteratorStartTime = iteratorStartTime;
+    }
+
+    void setEntry(Object deserializedIndexKey, RegionEntry regionEntry) {
+      this.deserializedIndexKey = deserializedIndexKey;
+      this.regionEntry = regionEntry;
+      this.updateInProgress = regionEntry.isUpdateInProgress();
+      this.value = getTargetObject(regionEntry);
+    }
+
+    @Override
+    public Object getDeserializedKey() {
+      return this.deserializedIndexKey;
+    }
+
+    @Override
+    public Object getDeserializedValue() {
+      return this.value;
+    }
+
+    @Override
+    public Object getDeserializedRegionKey() {
+      return this.regionEntry.getKey();
+    }
+
+    @Override
+    public boolean isUpdateInProgress() {
+      return this.updateInProgress
+          || this.regionEntry.isUpdateInProgress()
+          // The index update could have started just before the iterator was
+          // created. The entry still needs to be re-evaluated in this case.
+          || IndexManager.needsRecalculation(this.iteratorStartTime,
+              this.regionEntry.getLastModified());
+    }
+  }
+}
@@ -8,6 +8,7 @@
 
 package com.gemstone.gemfire.cache.query.internal.index;
 import  com.gemstone.gemfire.internal.cache.CachedDeserializable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
@@ -16,7 +17,17 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.logging.log4j.Logger;
+
+import com.gemstone.gemfire.SystemFailure;
 import com.gemstone.gemfire.cache.Cache;
 import com.gemstone.gemfire.cache.CacheException;
 import com.gemstone.gemfire.cache.Region;
@@ -46,9 +57,9 @@ import com.gemstone.gemfire.cache.query.internal.QueryUtils;
 import com.gemstone.gemfire.cache.query.internal.RuntimeIterator;
 import com.gemstone.gemfire.cache.query.internal.StructImpl;
 import com.gemstone.gemfire.cache.query.internal.Support;
+import com.gemstone.gemfire.cache.query.internal.Undefined;
 import com.gemstone.gemfire.cache.query.internal.index.IndexManager.TestHook;
 import com.gemstone.gemfire.cache.query.internal.index.IndexStore.IndexStoreEntry;
-import com.gemstone.gemfire.cache.query.internal.index.MemoryIndexStore.MemoryIndexStoreEntry;
 import com.gemstone.gemfire.cache.query.internal.parse.OQLLexerTokenTypes;
 import com.gemstone.gemfire.cache.query.internal.types.StructTypeImpl;
 import com.gemstone.gemfire.cache.query.internal.types.TypeUtils;
@@ -60,6 +71,8 @@ import com.gemstone.gemfire.internal.cache.RegionEntryContext;
 import com.gemstone.gemfire.internal.cache.VMThinRegionEntryHeap;
 import com.gemstone.gemfire.internal.cache.persistence.query.CloseableIterator;
 import com.gemstone.gemfire.internal.i18n.LocalizedStrings;
+import com.gemstone.gemfire.internal.logging.LogService;
+import com.gemstone.gemfire.internal.logging.LoggingThreadGroup;
 import com.gemstone.gemfire.pdx.internal.PdxString;
 
 //@todo Extend to support the keys or entries of a region.
@@ -79,12 +92,42 @@ import com.gemstone.gemfire.pdx.internal.PdxString;
  */
 public class CompactRangeIndex extends AbstractIndex {
 
+  private static final Logger logger = LogService.getLogger();
+
   private static TestHook testHook;
 
+  /**
+   * Builds the key distribution histograms of all indexes, one at a time, so
+   * that queries never wait for an index to be scanned
+   */
+  private static final ThreadPoolExecutor histogramBuilder;
+  static {
+    final LoggingThreadGroup group = LoggingThreadGroup.createThreadGroup(
+        "Index Histogram Builder", logger);
+    ThreadFactory threadFactory = new ThreadFactory() {
+      public Thread newThread(Runnable command) {
+        Thread thread = new Thread(group, command, "Index Histogram Builder");
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    histogramBuilder = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), threadFactory);
+    histogramBuilder.allowCoreThreadTimeOut(true);
+  }
+
   protected ThreadLocal<OldKeyValuePair> oldKeyValue;
  
   private IndexStore indexStore;
 
+  /** Key distribution of this index, used for cost estimates */
+  private volatile IndexHistogram histogram;
+
+  private final AtomicBoolean histogramBuildInProgress = new AtomicBoolean();
+
+  /** Mappings collected while the index is populated, null otherwise */
+  private volatile BulkLoad bulkLoad;
+
   public CompactRangeIndex(String indexName, Region region, String fromClause,
       String indexedExpression, String projectionAttributes,
       String origFromClause, String origIndexExpr, String[] definitions,
@@ -94,15 +137,158 @@ public class CompactRangeIndex extends AbstractIndex {
     if (IndexManager.IS_TEST_LDM) {
       indexStore = new MapIndexStore(((LocalRegion)region).getIndexMap(indexName, indexedExpression, origFromClause), region);
     }
+    else if (IndexManager.PRIMITIVE_KEY_INDEX_STORE
+        || IndexManager.TEST_PRIMITIVE_KEY_INDEX_STORE) {
+      indexStore = new PrimitiveKeyIndexStore(region, internalIndexStats);
+    }
     else {
       indexStore = new MemoryIndexStore(region, internalIndexStats);
     }
+    if (BitmapIndexStore.MAX_KEYS > 0 && !IndexManager.IS_TEST_LDM) {
+      IndexManager indexManager = IndexUtils.getIndexManager(region, false);
+      indexStore = new BitmapIndexStore(indexStore,
+          indexManager != null ? indexManager.getEntryOrdinals()
+              : new EntryOrdinals());
+    }
   }
 
   public IndexStore getIndexStorage() {
     return indexStore;
   }
 
+  /**
+   * Starts collecting the mappings added while this empty index is populated
+   * instead of adding them to the store one by one. Only done for stores that
+   * are built faster from all keys at once.
+   */
+  void startBulkLoad() {
+    if (getPrimitiveKeyIndexStore() != null && isEmpty()) {
+      this.bulkLoad = new BulkLoad();
+    }
+  }
+
+  /**
+   * Adds the mappings collected since {@link #startBulkLoad()} to the store
+   */
+  void finishBulkLoad() throws IMQException {
+    BulkLoad load = this.bulkLoad;
+    if (load != null) {
+      this.bulkLoad = null;
+      load.loadInto(this);
+    }
+  }
+
+  /**
+   * Returns the store of this index that is built faster from all keys at
+   * once, looking through the bitmaps kept on top of it, or null if the
+   * index does not use one
+   */
+  private PrimitiveKeyIndexStore getPrimitiveKeyIndexStore() {
+    IndexStore store = this.indexStore;
+    if (store instanceof BitmapIndexStore) {
+      store = ((BitmapIndexStore)store).getDelegate();
+    }
+    return store instanceof PrimitiveKeyIndexStore ? (PrimitiveKeyIndexStore)store
+        : null;
+  }
+
+  /**
+   * Adds the given mappings to the store at once if it supports it, or one
+   * by one otherwise
+   */
+  private void loadMappings(Object[] keys, RegionEntry[] entries, int count)
+      throws IMQException {
+    if (this.indexStore instanceof BitmapIndexStore) {
+      ((BitmapIndexStore)this.indexStore).bulkLoad(keys, entries, count);
+    }
+    else if (this.indexStore instanceof PrimitiveKeyIndexStore) {
+      ((PrimitiveKeyIndexStore)this.indexStore).bulkLoad(keys, entries, count);
+    }
+    else {
+      for (int i = 0; i < count; i++) {
+        this.indexStore.addMapping(keys[i], entries[i]);
+      }
+    }
+  }
+
+  /**
+   * Drops the mappings collected if the population failed
+   */
+  void abortBulkLoad() {
+    this.bulkLoad = null;
+  }
+
+  /**
+   * Adds mappings read from an {@link IndexCheckpoint} to this empty index.
+   * The index is left empty if one of them can not be added.
+   */
+  void addMappings(Object[] keys, RegionEntry[] entries, int count)
+      throws IMQException {
+    try {
+      loadMappings(keys, entries, count);
+    } catch (IMQException e) {
+      clear();
+      int numKeys = (int) this.internalIndexStats.getNumberOfKeys();
+      if (numKeys > 0) {
+        this.internalIndexStats.incNumKeys(-numKeys);
+      }
+      int numValues = (int) this.internalIndexStats.getNumberOfValues();
+      if (numValues > 0) {
+        this.internalIndexStats.incNumValues(-numValues);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Writes all mappings of this index to the given checkpoint without
+   * reading any values
+   *
+   * @return false if the store of this index can not be checkpointed
+   */
+  boolean writeMappings(IndexCheckpoint.Writer writer) throws IOException {
+    IndexStore store = this.indexStore;
+    if (store instanceof BitmapIndexStore) {
+      store = ((BitmapIndexStore)store).getDelegate();
+    }
+    if (store instanceof PrimitiveKeyIndexStore) {
+      ((PrimitiveKeyIndexStore)store).writeMappings(writer);
+      return true;
+    }
+    if (store instanceof MemoryIndexStore) {
+      ((MemoryIndexStore)store).writeMappings(writer);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the bitmap store of this index or null if it does not keep
+   * bitmaps
+   */
+  public BitmapIndexStore getBitmapIndexStore() {
+    if (this.indexStore instanceof BitmapIndexStore
+        && ((BitmapIndexStore)this.indexStore).isBitmapEnabled()) {
+      return (BitmapIndexStore)this.indexStore;
+    }
+    return null;
+  }
+
+  /**
+   * Converts a key of an equality condition to the key of the bitmap holding
+   * its entries
+   * 
+   * @return the bitmap key or null if null and undefined keys are looked for,
+   *         which are not kept in bitmaps
+   */
+  public Object getBitmapKey(Object key) throws TypeMismatchException {
+    key = TypeUtils.indexKeyFor(key);
+    if (key == null || key instanceof Undefined) {
+      return null;
+    }
+    return getPdxStringForIndexedPdxKeys(key);
+  }
+
   /**
    * Get the index type
    * 
@@ -163,6 +349,7 @@ public class CompactRangeIndex extends AbstractIndex {
   }
 
   public boolean clear() {
+    this.histogram = null;
     return indexStore.clear();
   }
 
@@ -286,8 +473,7 @@ public class CompactRangeIndex extends AbstractIndex {
     CompactRangeIndex index = (CompactRangeIndex) indexInfo._getIndex();
     RuntimeIterator runtimeItr = index.getRuntimeIteratorForThisIndex(context, indexInfo);
     if (runtimeItr != null) {
-      runtimeItr.setCurrent(((MemoryIndexStoreEntry) entry)
-          .getDeserializedValue());
+      runtimeItr.setCurrent(entry.getDeserializedValue());
     }
     return evaluateEntry(indexInfo, context, keyVal);
   }
@@ -317,6 +503,13 @@ public class CompactRangeIndex extends AbstractIndex {
         break;
       case OQLLexerTokenTypes.TOK_LE:
       case OQLLexerTokenTypes.TOK_LT:
+        if (matchLevel <= 0) {
+          int estimate = getHistogramSizeEstimate(key, operator);
+          if (estimate >= 0) {
+            size = estimate;
+            break;
+          }
+        }
         if (matchLevel <= 0 && (key instanceof Number)) {
 
           int totalSize = indexStore.size();
@@ -381,6 +574,13 @@ public class CompactRangeIndex extends AbstractIndex {
 
       case OQLLexerTokenTypes.TOK_GE:
       case OQLLexerTokenTypes.TOK_GT:
+        if (matchLevel <= 0) {
+          int estimate = getHistogramSizeEstimate(key, operator);
+          if (estimate >= 0) {
+            size = estimate;
+            break;
+          }
+        }
         if (matchLevel <= 0 && (key instanceof Number)) {
           int totalSize = indexStore.size();
           if (CompactRangeIndex.testHook != null) {
@@ -444,6 +644,135 @@ public class CompactRangeIndex extends AbstractIndex {
     return size;
   }
 
+  /**
+   * Estimates the number of entries matching a range condition using the key
+   * distribution histogram of this index.
+   * 
+   * @return the estimate or -1 if no histogram is available or the key cannot
+   *         be compared with the keys of this index
+   */
+  private int getHistogramSizeEstimate(Object key, int operator)
+      throws TypeMismatchException {
+    if (key == IndexManager.NULL || key == QueryService.UNDEFINED) {
+      return -1;
+    }
+    IndexHistogram histogram = getHistogram();
+    if (histogram == null) {
+      return -1;
+    }
+    if (CompactRangeIndex.testHook != null) {
+      boolean lessThan = operator == OQLLexerTokenTypes.TOK_LT
+          || operator == OQLLexerTokenTypes.TOK_LE;
+      CompactRangeIndex.testHook.hook(lessThan ? 1 : 2);
+    }
+    key = TypeUtils.indexKeyFor(key);
+    key = getPdxStringForIndexedPdxKeys(key);
+    long estimate;
+    switch (operator) {
+    case OQLLexerTokenTypes.TOK_LT:
+      estimate = histogram.estimateLessThan(key, false);
+      break;
+    case OQLLexerTokenTypes.TOK_LE:
+      estimate = histogram.estimateLessThan(key, true);
+      break;
+    case OQLLexerTokenTypes.TOK_GT:
+      estimate = histogram.estimateGreaterThan(key, false);
+      break;
+    case OQLLexerTokenTypes.TOK_GE:
+      estimate = histogram.estimateGreaterThan(key, true);
+      break;
+    default:
+      return -1;
+    }
+    return (int)Math.min(estimate, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns the key distribution histogram of this index. If enough updates
+   * have been applied since it was last built, a rebuild is scheduled in the
+   * background and the previous histogram is returned meanwhile. At most one
+   * rebuild of an index is pending at a time.
+   * 
+   * @return the histogram or null if the index store does not support one or
+   *         the first histogram has not been built yet
+   */
+  IndexHistogram getHistogram() {
+    final IndexStore store = getHistogramStore();
+    if (store == null) {
+      return null;
+    }
+    IndexHistogram current = this.histogram;
+    if ((current == null
+        || current.isStale(this.internalIndexStats.getNumUpdates()))
+        && this.histogramBuildInProgress.compareAndSet(false, true)) {
+      try {
+        histogramBuilder.execute(new Runnable() {
+          public void run() {
+            try {
+              buildHistogram(store);
+            } catch (VirtualMachineError err) {
+              SystemFailure.initiateFailure(err);
+              // If this ever returns, rethrow the error. We're poisoned
+              // now, so don't let this thread continue.
+              throw err;
+            } catch (Throwable t) {
+              // Whenever you catch Error or Throwable, you must also
+              // catch VirtualMachineError (see above). However, there is
+              // _still_ a possibility that you are dealing with a cascading
+              // error condition, so you also need to check to see if the JVM
+              // is still usable:
+              SystemFailure.checkFailure();
+              // the index keeps using its previous histogram
+              if (logger.isDebugEnabled()) {
+                logger.debug("Building the histogram of index {} failed", getName(), t);
+              }
+            } finally {
+              histogramBuildInProgress.set(false);
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        this.histogramBuildInProgress.set(false);
+      }
+    }
+    return current;
+  }
+
+  /**
+   * Returns the store a histogram can be built from, or null if the index
+   * store does not support one
+   */
+  private IndexStore getHistogramStore() {
+    IndexStore store = this.indexStore;
+    if (store instanceof BitmapIndexStore) {
+      store = ((BitmapIndexStore)store).getDelegate();
+    }
+    if (!(store instanceof MemoryIndexStore)
+        && !(store instanceof PrimitiveKeyIndexStore)) {
+      return null;
+    }
+    return store;
+  }
+
+  /**
+   * Scans the given store and replaces the histogram of this index with the
+   * result. Called by the histogram builder thread.
+   */
+  void buildHistogram(IndexStore store) {
+    long start = System.nanoTime();
+    IndexHistogram.Builder builder = new IndexHistogram.Builder(
+        this.internalIndexStats.getNumberOfValues(),
+        this.internalIndexStats.getNumUpdates());
+    if (store instanceof PrimitiveKeyIndexStore) {
+      ((PrimitiveKeyIndexStore)store).populateHistogram(builder);
+    }
+    else {
+      ((MemoryIndexStore)store).populateHistogram(builder);
+    }
+    this.histogram = builder.create();
+    this.internalIndexStats.incHistogramBuilds(System.nanoTime() - start);
+  }
+
   /** Method called while appropriate lock held on index */
   private void lockedQueryPrivate(Object key, int operator, Collection results,
       CompiledValue iterOps, RuntimeIterator runtimeItr,
@@ -572,7 +901,17 @@ public class CompactRangeIndex extends AbstractIndex {
       switch (operator) {
       case OQLLexerTokenTypes.TOK_EQ:
         assert keysToRemove.isEmpty();
-        iterator = indexStore.get(key);
+        IndexBitmapCandidates candidates = (IndexBitmapCandidates)context
+            .cacheGet(CompiledValue.BITMAP_CANDIDATES);
+        if (candidates != null && candidates.isDrivenBy(this, key)) {
+          iterator = ((BitmapIndexStore)indexStore).get(key, candidates);
+          if (iterator != null) {
+            candidates.setApplied();
+          }
+        }
+        if (iterator == null) {
+          iterator = indexStore.get(key);
+        }
         addToResultsFromEntries(key, operator, iterator, results, iterOps, runtimeItr,
             context, projAttrib, intermediateResults, isIntersection,
             multiColOrderBy ? -1 : limit);
@@ -887,6 +1226,9 @@ public class CompactRangeIndex extends AbstractIndex {
               // Verify index key in region entry value.
 
               ok = evaluateEntry((IndexInfo) indexInfo, context, null);
+              if (ok) {
+                ok = applyBitmapConditions(context);
+              }
             }
             if (runtimeItr != null) {
               runtimeItr.setCurrent(value);
@@ -915,6 +1257,27 @@ public class CompactRangeIndex extends AbstractIndex {
     }
   }
   
+  /**
+   * Applies the conditions whose index lookups were replaced by the bitmap
+   * candidates of this index. Used for entries updated while the query runs.
+   */
+  private boolean applyBitmapConditions(ExecutionContext context)
+      throws FunctionDomainException, TypeMismatchException,
+      NameResolutionException, QueryInvocationTargetException {
+    IndexBitmapCandidates candidates = (IndexBitmapCandidates)context
+        .cacheGet(CompiledValue.BITMAP_CANDIDATES);
+    if (candidates == null || !candidates.isApplied()
+        || candidates.getIndex() != this) {
+      return true;
+    }
+    for (CompiledValue condition : candidates.getOtherConditions()) {
+      if (!QueryUtils.applyCondition(condition, context)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   public List expandValue(ExecutionContext context, Object lowerBoundKey, Object upperBoundKey, int lowerBoundOperator, int upperBoundOperator, Object value) {
     try {
       List expandedResults = new ArrayList();
@@ -1090,6 +1453,22 @@ public class CompactRangeIndex extends AbstractIndex {
       this.vsdStats.incReadLockCount(delta);
     }
 
+    public void incPopulatesInProgress(int delta) {
+      this.vsdStats.incPopulatesInProgress(delta);
+    }
+
+    public void incPopulatedEntries(long delta) {
+      this.vsdStats.incPopulatedEntries(delta);
+    }
+
+    public void incPopulateTime(long delta) {
+      this.vsdStats.incPopulateTime(delta);
+    }
+
+    public void incHistogramBuilds(long buildTime) {
+      this.vsdStats.incHistogramBuilds(buildTime);
+    }
+
     /**
      * Returns the total amount of time (in nanoseconds) spent updating this
      * index.
@@ -1648,10 +2027,18 @@ public class CompactRangeIndex extends AbstractIndex {
         // A null oldKey means this is a create
         // oldKey would be a NullToken in case of update
         if (oldKey == null) {
-          indexStore.addMapping(indexKey, entry);
+          BulkLoad load = bulkLoad;
+          if (load != null) {
+            load.add(indexKey, entry);
+          } else {
+            indexStore.addMapping(indexKey, entry);
+          }
         } else {
-          // Add new key and remove old
-          indexStore.updateMapping(indexKey, oldKey, entry, oldValue);
+          // An update that does not change the key needs no index maintenance
+          if (!isIndexKeyUnchanged(indexKey, oldKey, entry, oldValue)) {
+            // Add new key and remove old
+            indexStore.updateMapping(indexKey, oldKey, entry, oldValue);
+          }
           // reset the thread local as the update is done
           if (oldKeyValue != null) {
             oldKeyValue.remove();
@@ -1730,6 +2117,66 @@ public class CompactRangeIndex extends AbstractIndex {
     indexStore.addMapping(key, entry);    
   }
 
+  /**
+   * The mappings of an index being populated. Every populating thread
+   * appends to chunks of its own.
+   */
+  private static final class BulkLoad {
+    private static final int CHUNK_SIZE = 1024;
+
+    private final ConcurrentLinkedQueue<Chunk> chunks = new ConcurrentLinkedQueue<Chunk>();
+
+    private final ThreadLocal<Chunk> currentChunk = new ThreadLocal<Chunk>();
+
+    void add(Object indexKey, RegionEntry entry) {
+      Chunk chunk = this.currentChunk.get();
+      if (chunk == null || chunk.size == CHUNK_SIZE) {
+        chunk = new Chunk();
+        this.chunks.add(chunk);
+        this.currentChunk.set(chunk);
+      }
+      chunk.keys[chunk.size] = indexKey;
+      chunk.entries[chunk.size] = entry;
+      chunk.size++;
+    }
+
+    /**
+     * Must be called once all threads adding mappings are done
+     */
+    void loadInto(CompactRangeIndex index) throws IMQException {
+      int count = 0;
+      for (Chunk chunk : this.chunks) {
+        count += chunk.size;
+      }
+      Object[] keys = new Object[count];
+      RegionEntry[] entries = new RegionEntry[count];
+      int pos = 0;
+      for (Chunk chunk : this.chunks) {
+        System.arraycopy(chunk.keys, 0, keys, pos, chunk.size);
+        System.arraycopy(chunk.entries, 0, entries, pos, chunk.size);
+        pos += chunk.size;
+        // the chunks stay referenced by the populating threads for a while
+        chunk.release();
+      }
+      this.chunks.clear();
+      index.loadMappings(keys, entries, count);
+    }
+  }
+
+  private static final class Chunk {
+    Object[] keys = new Object[BulkLoad.CHUNK_SIZE];
+
+    RegionEntry[] entries = new RegionEntry[BulkLoad.CHUNK_SIZE];
+
+    int size;
+
+    void release() {
+      this.keys = null;
+      this.entries = null;
+      this.size = 0;
+    }
+  }
+
   public static void setTestHook(TestHook hook) {
     testHook = hook;
   }
@@ -1754,6 +2201,28 @@ public class CompactRangeIndex extends AbstractIndex {
 
   }
   
+  /**
+   * Returns true if an update leaves the index key of the entry unchanged, in
+   * which case the index store does not need to be updated at all. The old
+   * key, which was evaluated before the update, can only be trusted if the
+   * old value was not modified in place.
+   */
+  private boolean isIndexKeyUnchanged(Object newKey, Object oldKey,
+      RegionEntry entry, Object oldValue) {
+    if (IndexManager.isObjectModificationInplace()) {
+      return false;
+    }
+    if (oldValue != null && oldValue == indexStore.getTargetObjectInVM(entry)) {
+      return false;
+    }
+    try {
+      return TypeUtils.indexKeyFor(oldKey).equals(
+          TypeUtils.indexKeyFor(newKey));
+    } catch (TypeMismatchException e) {
+      return false;
+    }
+  }
+
   private class OldKeyValuePair {
     private Object oldKey;
     private Object oldValue;
@@ -0,0 +1,546 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.cache.query.internal.index;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A compressed set of non negative int ordinals. The ordinals are grouped by
+ * their upper 16 bits into containers. A container holding few ordinals keeps
+ * the lower 16 bits in a sorted char array, a dense one uses a bitmap of 1024
+ * longs.
+ *
+ * Instances are not thread safe.
+ *
+ * @since 9.0
+ */
+public class EntryBitmap {
+
+  /** Containers with more values than this are stored as bitmaps */
+  static final int ARRAY_MAX_SIZE = 4096;
+
+  private static final int BITMAP_WORDS = 1024;
+
+  private char[] highKeys;
+
+  private Container[] containers;
+
+  private int numContainers;
+
+  public EntryBitmap() {
+    this.highKeys = new char[4];
+    this.containers = new Container[4];
+  }
+
+  private EntryBitmap(int capacity) {
+    this.highKeys = new char[Math.max(1, capacity)];
+    this.containers = new Container[Math.max(1, capacity)];
+  }
+
+  /**
+   * Adds the ordinal
+   *
+   * @return true if it was not contained before
+   */
+  public boolean add(int ordinal) {
+    char high = (char)(ordinal >>> 16);
+    int pos = findContainer(high);
+    if (pos < 0) {
+      pos = -pos - 1;
+      insertContainer(pos, high, new ArrayContainer());
+    }
+    Container container = this.containers[pos];
+    boolean added = container.add((char)ordinal);
+    if (added && container instanceof ArrayContainer
+        && container.cardinality > ARRAY_MAX_SIZE) {
+      this.containers[pos] = ((ArrayContainer)container).toBitmap();
+    }
+    return added;
+  }
+
+  /**
+   * Removes the ordinal
+   *
+   * @return true if it was contained
+   */
+  public boolean remove(int ordinal) {
+    int pos = findContainer((char)(ordinal >>> 16));
+    if (pos < 0) {
+      return false;
+    }
+    Container container = this.containers[pos];
+    if (!container.remove((char)ordinal)) {
+      return false;
+    }
+    if (container.cardinality == 0) {
+      removeContainer(pos);
+    }
+    else if (container instanceof BitmapContainer
+        && container.cardinality < ARRAY_MAX_SIZE / 2) {
+      this.containers[pos] = ((BitmapContainer)container).toArray();
+    }
+    return true;
+  }
+
+  public boolean contains(int ordinal) {
+    int pos = findContainer((char)(ordinal >>> 16));
+    return pos >= 0 && this.containers[pos].contains((char)ordinal);
+  }
+
+  public int cardinality() {
+    int result = 0;
+    for (int i = 0; i < this.numContainers; i++) {
+      result += this.containers[i].cardinality;
+    }
+    return result;
+  }
+
+  public boolean isEmpty() {
+    return this.numContainers == 0;
+  }
+
+  public EntryBitmap copy() {
+    EntryBitmap result = new EntryBitmap(this.numContainers);
+    for (int i = 0; i < this.numContainers; i++) {
+      result.highKeys[i] = this.highKeys[i];
+      result.containers[i] = this.containers[i].copy();
+    }
+    result.numContainers = this.numContainers;
+    return result;
+  }
+
+  /**
+   * Returns a new bitmap holding the ordinals contained in both bitmaps
+   */
+  public static EntryBitmap and(EntryBitmap a, EntryBitmap b) {
+    EntryBitmap result = new EntryBitmap(Math.min(a.numContainers,
+        b.numContainers));
+    int i = 0;
+    int j = 0;
+    while (i < a.numContainers && j < b.numContainers) {
+      char ka = a.highKeys[i];
+      char kb = b.highKeys[j];
+      if (ka < kb) {
+        i++;
+      }
+      else if (ka > kb) {
+        j++;
+      }
+      else {
+        Container c = a.containers[i].and(b.containers[j]);
+        if (c.cardinality > 0) {
+          result.appendContainer(ka, c);
+        }
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns a new bitmap holding the ordinals contained in either bitmap
+   */
+  public static EntryBitmap or(EntryBitmap a, EntryBitmap b) {
+    EntryBitmap result = new EntryBitmap(a.numContainers + b.numContainers);
+    int i = 0;
+    int j = 0;
+    while (i < a.numContainers || j < b.numContainers) {
+      if (j >= b.numContainers
+          || (i < a.numContainers && a.highKeys[i] < b.highKeys[j])) {
+        result.appendContainer(a.highKeys[i], a.containers[i].copy());
+        i++;
+      }
+      else if (i >= a.numContainers || a.highKeys[i] > b.highKeys[j]) {
+        result.appendContainer(b.highKeys[j], b.containers[j].copy());
+        j++;
+      }
+      else {
+        result.appendContainer(a.highKeys[i],
+            a.containers[i].or(b.containers[j]));
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns an iterator over the ordinals in ascending order. The bitmap must
+   * not be modified while iterating.
+   */
+  public OrdinalIterator iterator() {
+    return new OrdinalIterator();
+  }
+
+  private int findContainer(char high) {
+    return Arrays.binarySearch(this.highKeys, 0, this.numContainers, high);
+  }
+
+  private void insertContainer(int pos, char high, Container container) {
+    if (this.numContainers == this.highKeys.length) {
+      int capacity = this.numContainers * 2;
+      this.highKeys = Arrays.copyOf(this.highKeys, capacity);
+      this.containers = Arrays.copyOf(this.containers, capacity);
+    }
+    int moved = this.numContainers - pos;
+    if (moved > 0) {
+      System.arraycopy(this.highKeys, pos, this.highKeys, pos + 1, moved);
+      System.arraycopy(this.containers, pos, this.containers, pos + 1, moved);
+    }
+    this.highKeys[pos] = high;
+    this.containers[pos] = container;
+    this.numContainers++;
+  }
+
+  private void appendContainer(char high, Container container) {
+    insertContainer(this.numContainers, high, container);
+  }
+
+  private void removeContainer(int pos) {
+    int moved = this.numContainers - pos - 1;
+    if (moved > 0) {
+      System.arraycopy(this.highKeys, pos + 1, this.highKeys, pos, moved);
+      System.arraycopy(this.containers, pos + 1, this.containers, pos, moved);
+    }
+    this.numContainers--;
+    this.containers[this.numContainers] = null;
+  }
+
+  @Override
+  public String toString() {
+    return "EntryBitmap[cardinality=" + cardinality() + "; containers="
+        + this.numContainers + "]";
+  }
+
+  /**
+   * Iterates over the ordinals of the bitmap without boxing them
+   */
+  public class OrdinalIterator {
+    private int containerIndex;
+    private int position = -1;
+    private int next = -1;
+
+    OrdinalIterator() {
+      advance();
+    }
+
+    private void advance() {
+      while (this.containerIndex < numContainers) {
+        Container container = containers[this.containerIndex];
+        this.position = container.nextPosition(this.position);
+        if (this.position >= 0) {
+          this.next = (highKeys[this.containerIndex] << 16)
+              | container.valueAt(this.position);
+          return;
+        }
+        this.containerIndex++;
+        this.position = -1;
+      }
+      this.next = -1;
+    }
+
+    public boolean hasNext() {
+      return this.next >= 0;
+    }
+
+    public int next() {
+      if (this.next < 0) {
+        throw new NoSuchElementException();
+      }
+      int result = this.next;
+      advance();
+      return result;
+    }
+  }
+
+  private static abstract class Container {
+    int cardinality;
+
+    abstract boolean add(char value);
+
+    abstract boolean remove(char value);
+
+    abstract boolean contains(char value);
+
+    abstract Container copy();
+
+    abstract Container and(Container other);
+
+    abstract Container or(Container other);
+
+    /** Returns the position of the next value after the given one or -1 */
+    abstract int nextPosition(int position);
+
+    abstract int valueAt(int position);
+  }
+
+  private static final class ArrayContainer extends Container {
+    char[] values;
+
+    ArrayContainer() {
+      this.values = new char[4];
+    }
+
+    ArrayContainer(char[] values, int cardinality) {
+      this.values = values;
+      this.cardinality = cardinality;
+    }
+
+    @Override
+    boolean add(char value) {
+      int pos = Arrays.binarySearch(this.values, 0, this.cardinality, value);
+      if (pos >= 0) {
+        return false;
+      }
+      pos = -pos - 1;
+      if (this.cardinality == this.values.length) {
+        this.values = Arrays.copyOf(this.values, this.cardinality * 2);
+      }
+      System.arraycopy(this.values, pos, this.values, pos + 1,
+          this.cardinality - pos);
+      this.values[pos] = value;
+      this.cardinality++;
+      return true;
+    }
+
+    @Override
+    boolean remove(char value) {
+      int pos = Arrays.binarySearch(this.values, 0, this.cardinality, value);
+      if (pos < 0) {
+        return false;
+      }
+      System.arraycopy(this.values, pos + 1, this.values, pos,
+          this.cardinality - pos - 1);
+      this.cardinality--;
+      return true;
+    }
+
+    @Override
+    boolean contains(char value) {
+      return Arrays.binarySearch(this.values, 0, this.cardinality, value) >= 0;
+    }
+
+    @Override
+    Container copy() {
+      return new ArrayContainer(Arrays.copyOf(this.values,
+          Math.max(1, this.cardinality)), this.cardinality);
+    }
+
+    BitmapContainer toBitmap() {
+      BitmapContainer bitmap = new BitmapContainer();
+      for (int i = 0; i < this.cardinality; i++) {
+        bitmap.add(this.values[i]);
+      }
+      return bitmap;
+    }
+
+    @Override
+    Container and(Container other) {
+      if (other instanceof BitmapContainer) {
+        return other.and(this);
+      }
+      ArrayContainer o = (ArrayContainer)other;
+      char[] result = new char[Math.max(1, Math.min(this.cardinality,
+          o.cardinality))];
+      int count = 0;
+      int i = 0;
+      int j = 0;
+      while (i < this.cardinality && j < o.cardinality) {
+        char a = this.values[i];
+        char b = o.values[j];
+        if (a < b) {
+          i++;
+        }
+        else if (a > b) {
+          j++;
+        }
+        else {
+          result[count++] = a;
+          i++;
+          j++;
+        }
+      }
+      return new ArrayContainer(result, count);
+    }
+
+    @Override
+    Container or(Container other) {
+      if (other instanceof BitmapContainer) {
+        return other.or(this);
+      }
+      ArrayContainer o = (ArrayContainer)other;
+      if (this.cardinality + o.cardinality > ARRAY_MAX_SIZE) {
+        BitmapContainer bitmap = toBitmap();
+        for (int i = 0; i < o.cardinality; i++) {
+          bitmap.add(o.values[i]);
+        }
+        return bitmap;
+      }
+      char[] result = new char[Math.max(1, this.cardinality + o.cardinality)];
+      int count = 0;
+      int i = 0;
+      int j = 0;
+      while (i < this.cardinality || j < o.cardinality) {
+        if (j >= o.cardinality
+            || (i < this.cardinality && this.values[i] < o.values[j])) {
+          result[count++] = this.values[i++];
+        }
+        else if (i >= this.cardinality || this.values[i] > o.values[j]) {
+          result[count++] = o.values[j++];
+        }
+        else {
+          result[count++] = this.values[i];
+          i++;
+          j++;
+        }
+      }
+      return new ArrayContainer(result, count);
+    }
+
+    @Override
+    int nextPosition(int position) {
+      int next = position + 1;
+      return next < this.cardinality ? next : -1;
+    }
+
+    @Override
+    int valueAt(int position) {
+      return this.values[position];
+    }
+  }
+
+  private static final class BitmapContainer extends Container {
+    final long[] words;
+
+    BitmapContainer() {
+      this.words = new long[BITMAP_WORDS];
+    }
+
+    BitmapContainer(long[] words, int cardinality) {
+      this.words = words;
+      this.cardinality = cardinality;
+    }
+
+    @Override
+    boolean add(char value) {
+      int index = value >>> 6;
+      long bit = 1L << value;
+      if ((this.words[index] & bit) != 0) {
+        return false;
+      }
+      this.words[index] |= bit;
+      this.cardinality++;
+      return true;
+    }
+
+    @Override
+    boolean remove(char value) {
+      int index = value >>> 6;
+      long bit = 1L << value;
+      if ((this.words[index] & bit) == 0) {
+        return false;
+      }
+      this.words[index] &= ~bit;
+      this.cardinality--;
+      return true;
+    }
+
+    @Override
+    boolean contains(char value) {
+      return (this.words[value >>> 6] & (1L << value)) != 0;
+    }
+
+    @Override
+    Container copy() {
+      return new BitmapContainer(this.words.clone(), this.cardinality);
+    }
+
+    ArrayContainer toArray() {
+      char[] values = new char[Math.max(1, this.cardinality)];
+      int count = 0;
+      for (int i = 0; i < BITMAP_WORDS; i++) {
+        long word = this.words[i];
+        while (word != 0) {
+          values[count++] = (char)((i << 6) + Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+      return new ArrayContainer(values, count);
+    }
+
+    @Override
+    Container and(Container other) {
+      if (other instanceof ArrayContainer) {
+        ArrayContainer o = (ArrayContainer)other;
+        char[] result = new char[Math.max(1, o.cardinality)];
+        int count = 0;
+        for (int i = 0; i < o.cardinality; i++) {
+          if (contains(o.values[i])) {
+            result[count++] = o.values[i];
+          }
+        }
+        return new ArrayContainer(result, count);
+      }
+      long[] o = ((BitmapContainer)other).words;
+      long[] result = new long[BITMAP_WORDS];
+      int count = 0;
+      for (int i = 0; i < BITMAP_WORDS; i++) {
+        result[i] = this.words[i] & o[i];
+        count += Long.bitCount(result[i]);
+      }
+      BitmapContainer bitmap = new BitmapContainer(result, count);
+      return count > ARRAY_MAX_SIZE ? bitmap : bitmap.toArray();
+    }
+
+    @Override
+    Container or(Container other) {
+      BitmapContainer result = (BitmapContainer)copy();
+      if (other instanceof ArrayContainer) {
+        ArrayContainer o = (ArrayContainer)other;
+        for (int i = 0; i < o.cardinality; i++) {
+          result.add(o.values[i]);
+        }
+        return result;
+      }
+      long[] o = ((BitmapContainer)other).words;
+      int count = 0;
+      for (int i = 0; i < BITMAP_WORDS; i++) {
+        result.words[i] |= o[i];
+        count += Long.bitCount(result.words[i]);
+      }
+      result.cardinality = count;
+      return result;
+    }
+
+    @Override
+    int nextPosition(int position) {
+      int next = position + 1;
+      if (next >= BITMAP_WORDS << 6) {
+        return -1;
+      }
+      int index = next >>> 6;
+      long word = this.words[index] & (-1L << next);
+      while (true) {
+        if (word != 0) {
+          return (index << 6) + Long.numberOfTrailingZeros(word);
+        }
+        if (++index == BITMAP_WORDS) {
+          return -1;
+        }
+        word = this.words[index];
+      }
+    }
+
+    @Override
+    int valueAt(int position) {
+      return position;
+    }
+  }
+}
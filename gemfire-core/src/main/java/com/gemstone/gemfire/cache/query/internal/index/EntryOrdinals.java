@@ -0,0 +1,254 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.cache.query.internal.index;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.gemstone.gemfire.internal.cache.RegionEntry;
+
+/**
+ * Assigns small int ordinals to the entries of a region so that the bitmaps
+ * of different indexes on the region can be combined. An ordinal is held as
+ * long as at least one index references the entry and is reused once the
+ * last reference is released. Each region has one instance, kept by its
+ * {@link IndexManager}.
+ * <p>
+ * The ordinal of an entry is found in an open addressing table keyed by the
+ * identity of the entry, and the reference counts are kept in an array
+ * indexed by ordinal, so an entry costs two array slots instead of a map
+ * node and a counter object.
+ *
+ * @since 9.0
+ */
+public class EntryOrdinals {
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  /** Marks a removed slot of the table */
+  private static final Object REMOVED = new Object();
+
+  /** The entries of the table, guarded by this */
+  private Object[] tableEntries = new Object[INITIAL_CAPACITY];
+
+  /** The ordinals of the entries in the same slots, guarded by this */
+  private int[] tableOrdinals = new int[INITIAL_CAPACITY];
+
+  /** Number of entries in the table, guarded by this */
+  private int size;
+
+  /** Number of entries and removed slots in the table, guarded by this */
+  private int usedSlots;
+
+  /** Number of references to each ordinal, guarded by this */
+  private int[] refCounts = new int[INITIAL_CAPACITY];
+
+  private final ChunkedArray entries = new ChunkedArray();
+
+  /** Released ordinals available for reuse, guarded by this */
+  private int[] freeOrdinals = new int[16];
+
+  private int numFree;
+
+  /** Next never used ordinal, guarded by this */
+  private int nextOrdinal;
+
+  /**
+   * Returns the ordinal of the entry, assigning one if needed, and adds a
+   * reference to it.
+   */
+  public synchronized int acquire(RegionEntry entry) {
+    int slot = find(entry);
+    if (slot >= 0) {
+      int ordinal = this.tableOrdinals[slot];
+      this.refCounts[ordinal]++;
+      return ordinal;
+    }
+    int ordinal = allocate();
+    insert(entry, ordinal);
+    if (ordinal >= this.refCounts.length) {
+      this.refCounts = Arrays.copyOf(this.refCounts, Math.max(ordinal + 1,
+          this.refCounts.length * 2));
+    }
+    this.refCounts[ordinal] = 1;
+    this.entries.set(ordinal, entry);
+    return ordinal;
+  }
+
+  /**
+   * Removes a reference to the ordinal of the entry. The ordinal is reused
+   * once no index references it anymore.
+   */
+  public synchronized void release(RegionEntry entry) {
+    int slot = find(entry);
+    if (slot < 0) {
+      return;
+    }
+    int ordinal = this.tableOrdinals[slot];
+    if (--this.refCounts[ordinal] > 0) {
+      return;
+    }
+    this.tableEntries[slot] = REMOVED;
+    this.size--;
+    this.entries.set(ordinal, null);
+    free(ordinal);
+  }
+
+  /**
+   * Returns the ordinal of the entry or -1 if it has none
+   */
+  public synchronized int get(RegionEntry entry) {
+    int slot = find(entry);
+    return slot < 0 ? -1 : this.tableOrdinals[slot];
+  }
+
+  /**
+   * Returns the entry the ordinal is currently assigned to or null
+   */
+  public RegionEntry getEntry(int ordinal) {
+    return (RegionEntry)this.entries.get(ordinal);
+  }
+
+  public synchronized int size() {
+    return this.size;
+  }
+
+  /**
+   * Returns the slot of the entry in the table, or -1
+   */
+  private int find(Object entry) {
+    Object[] keys = this.tableEntries;
+    int mask = keys.length - 1;
+    for (int i = hash(entry) & mask;; i = (i + 1) & mask) {
+      Object key = keys[i];
+      if (key == entry) {
+        return i;
+      }
+      if (key == null) {
+        return -1;
+      }
+    }
+  }
+
+  /**
+   * Adds an entry that is not in the table
+   */
+  private void insert(Object entry, int ordinal) {
+    if ((this.usedSlots + 1) * 4 > this.tableEntries.length * 3) {
+      rehash();
+    }
+    Object[] keys = this.tableEntries;
+    int mask = keys.length - 1;
+    int i = hash(entry) & mask;
+    while (keys[i] != null && keys[i] != REMOVED) {
+      i = (i + 1) & mask;
+    }
+    if (keys[i] == null) {
+      this.usedSlots++;
+    }
+    keys[i] = entry;
+    this.tableOrdinals[i] = ordinal;
+    this.size++;
+  }
+
+  /**
+   * Drops the removed slots, growing the table if it is more than half
+   * full of entries
+   */
+  private void rehash() {
+    Object[] oldKeys = this.tableEntries;
+    int[] oldOrdinals = this.tableOrdinals;
+    int capacity = oldKeys.length;
+    if (this.size * 2 >= capacity) {
+      capacity *= 2;
+    }
+    Object[] keys = new Object[capacity];
+    int[] ordinals = new int[capacity];
+    int mask = capacity - 1;
+    for (int j = 0; j < oldKeys.length; j++) {
+      Object key = oldKeys[j];
+      if (key != null && key != REMOVED) {
+        int i = hash(key) & mask;
+        while (keys[i] != null) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        ordinals[i] = oldOrdinals[j];
+      }
+    }
+    this.tableEntries = keys;
+    this.tableOrdinals = ordinals;
+    this.usedSlots = this.size;
+  }
+
+  private static int hash(Object entry) {
+    int h = System.identityHashCode(entry);
+    // spread the bits, the table is indexed by the low bits
+    return h ^ (h >>> 16);
+  }
+
+  private int allocate() {
+    if (this.numFree > 0) {
+      return this.freeOrdinals[--this.numFree];
+    }
+    return this.nextOrdinal++;
+  }
+
+  private void free(int ordinal) {
+    if (this.numFree == this.freeOrdinals.length) {
+      this.freeOrdinals = Arrays.copyOf(this.freeOrdinals, this.numFree * 2);
+    }
+    this.freeOrdinals[this.numFree++] = ordinal;
+  }
+
+  /**
+   * A growable array indexed by ordinal that can be read without locking
+   */
+  static final class ChunkedArray {
+    private static final int CHUNK_BITS = 12;
+
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private volatile AtomicReferenceArray[] chunks = new AtomicReferenceArray[0];
+
+    Object get(int index) {
+      AtomicReferenceArray[] current = this.chunks;
+      int chunk = index >>> CHUNK_BITS;
+      if (index < 0 || chunk >= current.length) {
+        return null;
+      }
+      return current[chunk].get(index & (CHUNK_SIZE - 1));
+    }
+
+    void set(int index, Object value) {
+      int chunk = index >>> CHUNK_BITS;
+      AtomicReferenceArray[] current = this.chunks;
+      if (chunk >= current.length) {
+        if (value == null) {
+          return;
+        }
+        current = grow(chunk);
+      }
+      current[chunk].set(index & (CHUNK_SIZE - 1), value);
+    }
+
+    private synchronized AtomicReferenceArray[] grow(int chunk) {
+      AtomicReferenceArray[] current = this.chunks;
+      if (chunk < current.length) {
+        return current;
+      }
+      AtomicReferenceArray[] grown = Arrays.copyOf(current, Math.max(
+          chunk + 1, current.length * 2));
+      for (int i = current.length; i < grown.length; i++) {
+        grown[i] = new AtomicReferenceArray(CHUNK_SIZE);
+      }
+      this.chunks = grown;
+      return grown;
+    }
+  }
+}
@@ -0,0 +1,197 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.cache.query.internal.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.gemstone.gemfire.cache.query.TypeMismatchException;
+import com.gemstone.gemfire.cache.query.internal.CompiledValue;
+import com.gemstone.gemfire.cache.query.internal.types.TypeUtils;
+
+/**
+ * The entries that can satisfy an AND of equality conditions on compact range
+ * indexes of the same region, computed by intersecting the bitmaps of the
+ * conditions. The first condition added drives the evaluation: its index
+ * returns only the candidate entries, and the other conditions need not be
+ * evaluated through their indexes anymore once {@link #isApplied()}.
+ *
+ * @since 9.0
+ */
+public class IndexBitmapCandidates {
+
+  private final List<CompactRangeIndex> indexes = new ArrayList<CompactRangeIndex>();
+
+  private final List<BitmapIndexStore> stores = new ArrayList<BitmapIndexStore>();
+
+  private final List keys = new ArrayList();
+
+  private final List<CompiledValue> conditions = new ArrayList<CompiledValue>();
+
+  private EntryBitmap bitmap;
+
+  private boolean applied;
+
+  /**
+   * Adds an equality condition on the given index.
+   *
+   * @return false if the condition can not be evaluated using bitmaps
+   */
+  public boolean add(CompiledValue condition, CompactRangeIndex index,
+      Object key) throws TypeMismatchException {
+    BitmapIndexStore store = index.getBitmapIndexStore();
+    if (store == null || this.bitmap != null || this.indexes.contains(index)) {
+      return false;
+    }
+    if (!this.stores.isEmpty()) {
+      BitmapIndexStore first = this.stores.get(0);
+      if (first.getEntryOrdinals() != store.getEntryOrdinals()
+          || first.isIndexOnValues() != store.isIndexOnValues()) {
+        return false;
+      }
+    }
+    key = index.getBitmapKey(key);
+    if (key == null) {
+      return false;
+    }
+    this.indexes.add(index);
+    this.stores.add(store);
+    this.keys.add(key);
+    this.conditions.add(condition);
+    return true;
+  }
+
+  /**
+   * Intersects the bitmaps of all conditions added so far.
+   *
+   * @return false if there are less than two conditions or the bitmap of one
+   *         of them is not available
+   */
+  public boolean combine() {
+    if (this.stores.size() < 2) {
+      return false;
+    }
+    List<EntryBitmap> bitmaps = new ArrayList<EntryBitmap>(this.stores.size());
+    for (int i = 0; i < this.stores.size(); i++) {
+      EntryBitmap b = this.stores.get(i).getBitmap(this.keys.get(i));
+      if (b == null) {
+        return false;
+      }
+      bitmaps.add(b);
+    }
+    // Start with the smallest bitmap to keep the intermediate results small
+    Collections.sort(bitmaps, new Comparator<EntryBitmap>() {
+      public int compare(EntryBitmap b1, EntryBitmap b2) {
+        int c1 = b1.cardinality();
+        int c2 = b2.cardinality();
+        return c1 < c2 ? -1 : (c1 == c2 ? 0 : 1);
+      }
+    });
+    EntryBitmap result = bitmaps.get(0);
+    for (int i = 1; i < bitmaps.size() && !result.isEmpty(); i++) {
+      result = EntryBitmap.and(result, bitmaps.get(i));
+    }
+    this.bitmap = result;
+    return true;
+  }
+
+  /**
+   * Returns the index that returns the candidate entries
+   */
+  public CompactRangeIndex getIndex() {
+    return this.indexes.get(0);
+  }
+
+  /**
+   * Returns the condition evaluated by the index returning the candidates
+   */
+  public CompiledValue getDrivingCondition() {
+    return this.conditions.get(0);
+  }
+
+  /**
+   * Returns true if the given condition is satisfied by all candidates
+   */
+  public boolean isConsumed(Object condition) {
+    return this.conditions.contains(condition);
+  }
+
+  /**
+   * Returns the conditions satisfied by all candidates
+   */
+  public List<CompiledValue> getConsumedConditions() {
+    return Collections.unmodifiableList(this.conditions);
+  }
+
+  /**
+   * Returns the conditions other than the driving one. These need to be
+   * applied again to entries that were updated while the query ran.
+   */
+  public List<CompiledValue> getOtherConditions() {
+    return Collections.unmodifiableList(this.conditions.subList(1,
+        this.conditions.size()));
+  }
+
+  /**
+   * Returns true if the given index key is the one of the driving condition
+   */
+  boolean isDrivenBy(CompactRangeIndex index, Object key) {
+    if (this.bitmap == null || index != getIndex()) {
+      return false;
+    }
+    try {
+      return TypeUtils.getExtendedNumericComparator().compare(
+          this.keys.get(0), key) == 0;
+    } catch (ClassCastException e) {
+      return false;
+    }
+  }
+
+  EntryBitmap getBitmap() {
+    return this.bitmap;
+  }
+
+  /**
+   * Returns true if the entry with the given ordinal is currently mapped to
+   * the keys of all conditions but the driving one
+   */
+  boolean matches(int ordinal) {
+    for (int i = 1; i < this.stores.size(); i++) {
+      if (!this.stores.get(i).isMappedTo(ordinal, this.keys.get(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if the bitmaps of all conditions are still kept
+   */
+  boolean isValid() {
+    for (BitmapIndexStore store : this.stores) {
+      if (!store.isBitmapEnabled()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  void setApplied() {
+    this.applied = true;
+  }
+
+  /**
+   * Returns true if the driving index returned the candidates, so that all
+   * conditions were evaluated by it
+   */
+  public boolean isApplied() {
+    return this.applied;
+  }
+}
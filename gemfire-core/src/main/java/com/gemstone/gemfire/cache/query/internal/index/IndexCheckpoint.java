@@ -0,0 +1,454 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.cache.query.internal.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.logging.log4j.Logger;
+
+import com.gemstone.gemfire.DataSerializer;
+import com.gemstone.gemfire.cache.query.Index;
+import com.gemstone.gemfire.cache.query.QueryService;
+import com.gemstone.gemfire.internal.InternalDataSerializer;
+import com.gemstone.gemfire.internal.cache.DiskRegion;
+import com.gemstone.gemfire.internal.cache.LocalRegion;
+import com.gemstone.gemfire.internal.cache.RegionEntry;
+import com.gemstone.gemfire.internal.cache.RegionMap;
+import com.gemstone.gemfire.internal.cache.versions.RegionVersionVector;
+import com.gemstone.gemfire.internal.cache.versions.VersionSource;
+import com.gemstone.gemfire.internal.logging.LogService;
+import com.gemstone.gemfire.pdx.internal.PdxString;
+
+/**
+ * The contents of the compact range indexes of a persistent region, written
+ * to the first directory of its disk store when the region is closed. When
+ * the region is recovered from disk the indexes are loaded from the
+ * checkpoint instead of being rebuilt from the recovered values, provided
+ * the region version vector recovered from the oplogs is the one the
+ * checkpoint was written with. The file is removed once it was read, so a
+ * checkpoint is never used twice.
+ * <p>
+ * Only regions with synchronous disk writes and concurrency checks are
+ * checkpointed, as only their disk version vector is guaranteed to match the
+ * index contents.
+ *
+ * @since 9.0
+ */
+public class IndexCheckpoint {
+
+  private static final Logger logger = LogService.getLogger();
+
+  /**
+   * Whether index contents are written on close and loaded on recovery. Not
+   * final so that tests can change it.
+   */
+  public static boolean ENABLED = Boolean
+      .getBoolean("gemfire.index.PERSIST_INDEXES");
+
+  private static final int MAGIC = 0x4F514C49;
+
+  private static final byte VERSION = 1;
+
+  private static final byte END_OF_INDEX = 0;
+
+  private static final byte KEY_NULL = 1;
+
+  private static final byte KEY_UNDEFINED = 2;
+
+  private static final byte KEY_PDX_STRING = 3;
+
+  private static final byte KEY_OBJECT = 4;
+
+  private final LocalRegion region;
+
+  private final File file;
+
+  private IndexCheckpoint(LocalRegion region, File file) {
+    this.region = region;
+    this.file = file;
+  }
+
+  /**
+   * Returns true if the indexes of the region can be checkpointed
+   */
+  public static boolean isSupported(LocalRegion region) {
+    DiskRegion dr = region.getDiskRegion();
+    return ENABLED && dr != null && dr.isBackup() && dr.isSync()
+        && region.getConcurrencyChecksEnabled()
+        && dr.getRegionVersionVector() != null;
+  }
+
+  static File getFile(DiskRegion dr) {
+    return new File(dr.getDiskStore().getDiskDirs()[0], "OQLIDX"
+        + dr.getDiskStore().getName() + "_" + dr.getId() + ".idx");
+  }
+
+  /**
+   * Removes the checkpoint of the disk region, if any
+   */
+  public static void delete(DiskRegion dr) {
+    File file = getFile(dr);
+    if (file.exists() && !file.delete()) {
+      logger.warn("Could not delete index checkpoint {}", file);
+    }
+  }
+
+  /**
+   * Writes the contents of the given indexes. Must be called while no
+   * updates are applied to the region and its indexes.
+   */
+  static void write(LocalRegion region, Collection<CompactRangeIndex> indexes) {
+    DiskRegion dr = region.getDiskRegion();
+    File file = getFile(dr);
+    File tmpFile = new File(file.getPath() + ".tmp");
+    boolean written = false;
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(tmpFile), 64 * 1024));
+      try {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        InternalDataSerializer.invokeToData(dr.getRegionVersionVector()
+            .getCloneForTransmission(), out);
+        Writer writer = new Writer(out);
+        for (CompactRangeIndex index : indexes) {
+          writer.writeIndex(index);
+        }
+        out.writeUTF("");
+      } finally {
+        out.close();
+      }
+      if (file.exists() && !file.delete()) {
+        throw new IOException("Could not delete " + file);
+      }
+      written = tmpFile.renameTo(file);
+      if (!written) {
+        throw new IOException("Could not rename " + tmpFile + " to " + file);
+      }
+      if (logger.isDebugEnabled()) {
+        logger.debug("Wrote index checkpoint {} for region {}", file,
+            region.getFullPath());
+      }
+    } catch (IOException e) {
+      logger.warn("Could not write the index checkpoint of region {}: {}",
+          region.getFullPath(), e.getMessage(), e);
+    } finally {
+      if (!written) {
+        tmpFile.delete();
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * Returns the checkpoint of a region just recovered from disk, or null if
+   * there is none or it does not match the recovered data. A checkpoint not
+   * matching is removed.
+   */
+  public static IndexCheckpoint recover(LocalRegion region) {
+    if (!isSupported(region)) {
+      return null;
+    }
+    File file = getFile(region.getDiskRegion());
+    if (!file.exists()) {
+      return null;
+    }
+    IndexCheckpoint checkpoint = new IndexCheckpoint(region, file);
+    boolean valid = false;
+    try {
+      DataInputStream in = checkpoint.open();
+      try {
+        valid = in != null;
+      } finally {
+        if (in != null) {
+          in.close();
+        }
+      }
+    } catch (IOException e) {
+      logger.info("Could not read the index checkpoint of region {}: {}",
+          region.getFullPath(), e.getMessage());
+    } catch (ClassNotFoundException e) {
+      logger.info("Could not read the index checkpoint of region {}: {}",
+          region.getFullPath(), e.getMessage());
+    }
+    if (!valid) {
+      checkpoint.delete();
+      return null;
+    }
+    return checkpoint;
+  }
+
+  /**
+   * Opens the file and reads the header
+   *
+   * @return the stream positioned after the header or null if the
+   *         checkpoint does not match the recovered version vector
+   */
+  private DataInputStream open() throws IOException, ClassNotFoundException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(this.file), 64 * 1024));
+    boolean matches = false;
+    try {
+      if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+        return null;
+      }
+      RegionVersionVector saved = RegionVersionVector.create(true, in);
+      RegionVersionVector recovered = this.region.getDiskRegion()
+          .getRegionVersionVector().getCloneForTransmission();
+      matches = sameVersions(saved, recovered);
+      if (!matches && logger.isDebugEnabled()) {
+        logger.debug("Index checkpoint {} was written with {} but the recovered version vector is {}",
+            this.file, saved.fullToString(), recovered.fullToString());
+      }
+    } finally {
+      if (!matches) {
+        in.close();
+      }
+    }
+    return matches ? in : null;
+  }
+
+  private static boolean sameVersions(RegionVersionVector saved,
+      RegionVersionVector recovered) {
+    VersionSource owner = (VersionSource)saved.getOwnerId();
+    return owner != null && owner.equals(recovered.getOwnerId())
+        && saved.sameAs(recovered)
+        && saved.getLocalExceptions().sameAs(recovered.getLocalExceptions())
+        && saved.getGCVersion(owner) == recovered.getGCVersion(owner);
+  }
+
+  private void delete() {
+    if (!this.file.delete() && this.file.exists()) {
+      logger.warn("Could not delete index checkpoint {}", this.file);
+    }
+  }
+
+  /**
+   * Loads the mappings of the checkpoint into the matching empty indexes of
+   * the given ones and removes the checkpoint. An index is only loaded if
+   * all entries it maps are still in the region. Must be called while no
+   * updates are applied to the region and its indexes.
+   *
+   * @return the indexes loaded
+   */
+  Set<Index> load(Collection<Index> indexSet) {
+    Set<Index> loaded = new HashSet<Index>();
+    try {
+      DataInputStream in = open();
+      if (in == null) {
+        return loaded;
+      }
+      try {
+        Reader reader = new Reader(in, this.region.getRegionMap());
+        while (true) {
+          String name = in.readUTF();
+          if (name.length() == 0) {
+            break;
+          }
+          CompactRangeIndex index = findIndex(indexSet, name,
+              in.readUTF(), in.readUTF());
+          if (reader.loadIndex(index)) {
+            loaded.add(index);
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } catch (Exception e) {
+      // The indexes loaded so far are complete, the others are populated
+      // from the region
+      logger.info("Could not read the index checkpoint of region {}: {}",
+          this.region.getFullPath(), e.getMessage(), e);
+    } finally {
+      delete();
+    }
+    if (!loaded.isEmpty()) {
+      logger.info("Loaded indexes {} of region {} from checkpoint", loaded,
+          this.region.getFullPath());
+    }
+    return loaded;
+  }
+
+  private static CompactRangeIndex findIndex(Collection<Index> indexSet,
+      String name, String indexedExpression, String fromClause) {
+    for (Index index : indexSet) {
+      if (index.getClass() == CompactRangeIndex.class
+          && name.equals(index.getName())) {
+        CompactRangeIndex crIndex = (CompactRangeIndex)index;
+        if (!crIndex.isPopulated() && crIndex.isEmpty()
+            && indexedExpression.equals(crIndex
+                .getCanonicalizedIndexedExpression())
+            && fromClause.equals(crIndex.getCanonicalizedFromClause())) {
+          return crIndex;
+        }
+        return null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Writes the mappings of indexes. A mapping is written as the index key
+   * followed by the keys of the region entries it maps to.
+   */
+  static final class Writer {
+    private final DataOutputStream out;
+
+    Writer(DataOutputStream out) {
+      this.out = out;
+    }
+
+    void writeIndex(CompactRangeIndex index) throws IOException {
+      this.out.writeUTF(index.getName());
+      this.out.writeUTF(index.getCanonicalizedIndexedExpression());
+      this.out.writeUTF(index.getCanonicalizedFromClause());
+      if (!index.writeMappings(this)) {
+        throw new IOException("Index " + index.getName()
+            + " can not be checkpointed");
+      }
+      this.out.writeByte(END_OF_INDEX);
+    }
+
+    /**
+     * Writes the entries mapped to the index key
+     *
+     * @param values
+     *          a RegionEntry or a Collection of them
+     */
+    void writeMapping(Object indexKey, Object values) throws IOException {
+      if (values == null) {
+        return;
+      }
+      if (!(values instanceof RegionEntry) && !(values instanceof Collection)) {
+        throw new IOException("Unexpected index value " + values);
+      }
+      if (indexKey == IndexManager.NULL) {
+        this.out.writeByte(KEY_NULL);
+      }
+      else if (indexKey == QueryService.UNDEFINED) {
+        this.out.writeByte(KEY_UNDEFINED);
+      }
+      else if (indexKey instanceof PdxString) {
+        this.out.writeByte(KEY_PDX_STRING);
+        DataSerializer.writeString(indexKey.toString(), this.out);
+      }
+      else {
+        this.out.writeByte(KEY_OBJECT);
+        DataSerializer.writeObject(indexKey, this.out);
+      }
+      if (values instanceof RegionEntry) {
+        this.out.writeInt(1);
+        DataSerializer.writeObject(((RegionEntry)values).getKey(), this.out);
+      }
+      else {
+        Object[] entries = ((Collection)values).toArray();
+        this.out.writeInt(entries.length);
+        for (Object entry : entries) {
+          DataSerializer.writeObject(((RegionEntry)entry).getKey(), this.out);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the mappings of indexes and resolves the region keys to the
+   * recovered entries
+   */
+  private static final class Reader {
+    private final DataInputStream in;
+
+    private final RegionMap regionMap;
+
+    private Object[] keys = new Object[1024];
+
+    private RegionEntry[] entries = new RegionEntry[1024];
+
+    Reader(DataInputStream in, RegionMap regionMap) {
+      this.in = in;
+      this.regionMap = regionMap;
+    }
+
+    /**
+     * Reads the mappings of the next index and adds them to the given index
+     * unless it is null or one of the entries is missing
+     */
+    boolean loadIndex(CompactRangeIndex index) throws Exception {
+      boolean valid = index != null;
+      int count = 0;
+      while (true) {
+        byte tag = this.in.readByte();
+        if (tag == END_OF_INDEX) {
+          break;
+        }
+        Object indexKey = readIndexKey(tag);
+        int numEntries = this.in.readInt();
+        for (int i = 0; i < numEntries; i++) {
+          Object regionKey = DataSerializer.readObject(this.in);
+          if (!valid) {
+            continue;
+          }
+          RegionEntry entry = this.regionMap.getEntry(regionKey);
+          if (entry == null || entry.isDestroyedOrRemoved()) {
+            valid = false;
+            continue;
+          }
+          if (count == this.keys.length) {
+            this.keys = Arrays.copyOf(this.keys, count * 2);
+            this.entries = Arrays.copyOf(this.entries, count * 2);
+          }
+          this.keys[count] = indexKey;
+          this.entries[count] = entry;
+          count++;
+        }
+      }
+      if (valid) {
+        long start = System.nanoTime();
+        index.populateStarted();
+        try {
+          for (int i = 0; i < count && !index.isIndexedPdxKeysFlagSet; i++) {
+            index.setPdxStringFlag(this.keys[i]);
+          }
+          index.addMappings(this.keys, this.entries, count);
+          index.incPopulatedEntries(count);
+        } finally {
+          index.populateEnded(System.nanoTime() - start);
+        }
+      }
+      Arrays.fill(this.keys, 0, count, null);
+      Arrays.fill(this.entries, 0, count, null);
+      return valid;
+    }
+
+    private Object readIndexKey(byte tag) throws IOException,
+        ClassNotFoundException {
+      switch (tag) {
+      case KEY_NULL:
+        return IndexManager.NULL;
+      case KEY_UNDEFINED:
+        return QueryService.UNDEFINED;
+      case KEY_PDX_STRING:
+        return new PdxString(DataSerializer.readString(this.in));
+      case KEY_OBJECT:
+        return DataSerializer.readObject(this.in);
+      default:
+        throw new IOException("Unexpected key tag " + tag);
+      }
+    }
+  }
+}
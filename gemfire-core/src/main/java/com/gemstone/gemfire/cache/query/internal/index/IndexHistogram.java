@@ -0,0 +1,265 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.cache.query.internal.index;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import com.gemstone.gemfire.cache.query.internal.types.TypeUtils;
+
+/**
+ * An equi-depth histogram over the keys of a sorted index. Each bucket holds
+ * roughly the same number of index values, so skewed key distributions get
+ * finer buckets where the data is dense. The histogram is an immutable
+ * snapshot; indexes rebuild it in the background once enough updates have
+ * been applied since it was taken.
+ *
+ * It is used by the query engine to estimate the number of values matching a
+ * range condition, replacing the linear interpolation between the first and
+ * last index key that assumes a uniform distribution.
+ *
+ * @since 9.0
+ */
+public class IndexHistogram {
+
+  /** Number of buckets a histogram is built with */
+  public static final int NUM_BUCKETS = Integer.getInteger(
+      "gemfire.index.HISTOGRAM_BUCKETS", 64).intValue();
+
+  /**
+   * Fraction of the index values that need to have been updated before the
+   * histogram is considered stale
+   */
+  public static final float REBUILD_THRESHOLD = Float.parseFloat(System
+      .getProperty("gemfire.index.HISTOGRAM_REBUILD_THRESHOLD", "0.1"));
+
+  private final Comparator comparator;
+
+  /** Smallest key in the index */
+  private final Object minKey;
+
+  /** Inclusive upper bound key of each bucket */
+  private final Object[] upperBounds;
+
+  /** Number of values in buckets 0 to i, inclusive */
+  private final long[] cumulativeCounts;
+
+  private final long numValues;
+
+  private final long numDistinctKeys;
+
+  /** Number of index updates at the time the histogram was built */
+  private final long updateCount;
+
+  private IndexHistogram(Comparator comparator, Object minKey,
+      Object[] upperBounds, long[] cumulativeCounts, long numDistinctKeys,
+      long updateCount) {
+    this.comparator = comparator;
+    this.minKey = minKey;
+    this.upperBounds = upperBounds;
+    this.cumulativeCounts = cumulativeCounts;
+    this.numValues = cumulativeCounts.length == 0 ? 0
+        : cumulativeCounts[cumulativeCounts.length - 1];
+    this.numDistinctKeys = numDistinctKeys;
+    this.updateCount = updateCount;
+  }
+
+  public long getNumValues() {
+    return this.numValues;
+  }
+
+  public long getNumDistinctKeys() {
+    return this.numDistinctKeys;
+  }
+
+  public int getNumBuckets() {
+    return this.upperBounds.length;
+  }
+
+  long getUpdateCount() {
+    return this.updateCount;
+  }
+
+  /**
+   * Returns true if the given number of index updates have been applied since
+   * this histogram was built, relative to its size, to warrant a rebuild.
+   */
+  boolean isStale(long currentUpdateCount) {
+    long changed = currentUpdateCount - this.updateCount;
+    return changed > Math.max(NUM_BUCKETS, this.numValues * REBUILD_THRESHOLD);
+  }
+
+  /**
+   * Returns the average number of values mapped to a single key
+   */
+  public long estimateEqual() {
+    if (this.numDistinctKeys == 0) {
+      return 0;
+    }
+    return Math.max(1, this.numValues / this.numDistinctKeys);
+  }
+
+  /**
+   * Estimates the number of values whose key is less than (or equal to, if
+   * inclusive) the given key.
+   *
+   * @return the estimate, or -1 if the key is not comparable with the keys of
+   *         the index
+   */
+  public long estimateLessThan(Object key, boolean inclusive) {
+    if (this.upperBounds.length == 0) {
+      return 0;
+    }
+    try {
+      int cmp = this.comparator.compare(key, this.minKey);
+      if (cmp < 0 || (cmp == 0 && !inclusive)) {
+        return 0;
+      }
+      int bucket = findBucket(key);
+      if (bucket == this.upperBounds.length) {
+        return this.numValues;
+      }
+      long below = bucket == 0 ? 0 : this.cumulativeCounts[bucket - 1];
+      long inBucket = this.cumulativeCounts[bucket] - below;
+      if (inclusive
+          && this.comparator.compare(key, this.upperBounds[bucket]) == 0) {
+        return this.cumulativeCounts[bucket];
+      }
+      Object low = bucket == 0 ? this.minKey : this.upperBounds[bucket - 1];
+      return below
+          + (long)(inBucket * fractionOf(key, low, this.upperBounds[bucket]));
+    }
+    catch (ClassCastException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Estimates the number of values whose key is greater than (or equal to, if
+   * inclusive) the given key.
+   *
+   * @return the estimate, or -1 if the key is not comparable with the keys of
+   *         the index
+   */
+  public long estimateGreaterThan(Object key, boolean inclusive) {
+    long lessThan = estimateLessThan(key, !inclusive);
+    if (lessThan < 0) {
+      return lessThan;
+    }
+    return Math.max(0, this.numValues - lessThan);
+  }
+
+  /**
+   * Returns the index of the first bucket whose upper bound is not smaller
+   * than the key, or the number of buckets if the key is beyond the last one.
+   */
+  private int findBucket(Object key) {
+    int low = 0;
+    int high = this.upperBounds.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = this.comparator.compare(this.upperBounds[mid], key);
+      if (cmp < 0) {
+        low = mid + 1;
+      }
+      else if (cmp > 0) {
+        high = mid - 1;
+      }
+      else {
+        return mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Returns the position of the key between the bucket bounds. Only numeric
+   * keys can be interpolated, for everything else the key is assumed to be in
+   * the middle of the bucket.
+   */
+  private static double fractionOf(Object key, Object low, Object high) {
+    if (key instanceof Number && low instanceof Number
+        && high instanceof Number) {
+      double k = ((Number)key).doubleValue();
+      double l = ((Number)low).doubleValue();
+      double h = ((Number)high).doubleValue();
+      if (h > l) {
+        return Math.min(1.0d, Math.max(0.0d, (k - l) / (h - l)));
+      }
+    }
+    return 0.5d;
+  }
+
+  @Override
+  public String toString() {
+    return "IndexHistogram[buckets=" + this.upperBounds.length + "; values="
+        + this.numValues + "; distinctKeys=" + this.numDistinctKeys + "]";
+  }
+
+  /**
+   * Builds an {@link IndexHistogram} from index keys supplied in ascending
+   * order together with the number of values mapped to each of them.
+   */
+  public static class Builder {
+    private final long targetDepth;
+    private final long updateCount;
+    private final List bounds = new ArrayList(NUM_BUCKETS + 1);
+    private final List<Long> counts = new ArrayList<Long>(NUM_BUCKETS + 1);
+    private Object minKey;
+    private Object lastKey;
+    private long total;
+    private long totalAtLastBound;
+    private long numKeys;
+
+    /**
+     * @param expectedValues
+     *          the number of values in the index, used to size the buckets
+     * @param updateCount
+     *          the number of updates the index has seen so far
+     */
+    public Builder(long expectedValues, long updateCount) {
+      this.targetDepth = Math.max(1, expectedValues / NUM_BUCKETS);
+      this.updateCount = updateCount;
+    }
+
+    public void add(Object key, int count) {
+      if (count <= 0) {
+        return;
+      }
+      if (this.minKey == null) {
+        this.minKey = key;
+      }
+      this.lastKey = key;
+      this.total += count;
+      this.numKeys++;
+      if (this.total - this.totalAtLastBound >= this.targetDepth) {
+        closeBucket();
+      }
+    }
+
+    private void closeBucket() {
+      this.bounds.add(this.lastKey);
+      this.counts.add(Long.valueOf(this.total));
+      this.totalAtLastBound = this.total;
+    }
+
+    public IndexHistogram create() {
+      if (this.total > this.totalAtLastBound) {
+        closeBucket();
+      }
+      long[] cumulative = new long[this.counts.size()];
+      for (int i = 0; i < cumulative.length; i++) {
+        cumulative[i] = this.counts.get(i).longValue();
+      }
+      return new IndexHistogram(TypeUtils.getExtendedNumericComparator(),
+          this.minKey, this.bounds.toArray(), cumulative, this.numKeys,
+          this.updateCount);
+    }
+  }
+}
@@ -16,9 +16,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
@@ -31,6 +33,7 @@ import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.logging.log4j.Logger;
 
+import com.gemstone.gemfire.CancelException;
 import com.gemstone.gemfire.SystemFailure;
 import com.gemstone.gemfire.cache.Region;
 import com.gemstone.gemfire.cache.query.AmbiguousNameException;
@@ -101,6 +104,9 @@ public class IndexManager  {
   private ConcurrentMap canonicalizedIteratorNameMap = new ConcurrentHashMap();
   private IndexUpdaterThread updater;
 
+  /** Entry ordinals shared by the bitmaps of the indexes, created lazily */
+  private EntryOrdinals entryOrdinals;
+
   // Threshold for Queue.
   private final int INDEX_MAINTENANCE_BUFFER = Integer.getInteger("gemfire.AsynchIndexMaintenanceThreshold", -1).intValue();
 
@@ -129,6 +135,35 @@ public class IndexManager  {
 
   /** For test purpose only */
   public static boolean TEST_RANGEINDEX_ONLY = false;
+
+  /**
+   * System property to keep the keys of compact range indexes on numeric and
+   * date fields in a primitive key tree instead of a skip list.
+   */
+  public static final boolean PRIMITIVE_KEY_INDEX_STORE =
+    Boolean.valueOf(System.getProperty("gemfire.index.PRIMITIVE_KEY_INDEX_STORE", "false")).booleanValue();
+
+  /** For test purpose only */
+  public static boolean TEST_PRIMITIVE_KEY_INDEX_STORE = false;
+
+  /**
+   * System property for the maximum number of queued updates the
+   * asynchronous index maintenance thread takes off its queue at a time.
+   */
+  static final int ASYNC_UPDATE_BATCH_SIZE = Math.max(1, Integer.getInteger(
+      "gemfire.index.ASYNC_UPDATE_BATCH_SIZE", 100).intValue());
+
+  /**
+   * System property for the number of threads populating the defined indexes
+   * of a region. Defaults to the number of processors.
+   */
+  public static final int INDEX_POPULATION_THREADS = Integer.getInteger(
+      "gemfire.index.POPULATION_THREADS",
+      Runtime.getRuntime().availableProcessors()).intValue();
+
+  /** Number of entries handed to an index population thread at a time */
+  private static final int INDEX_POPULATION_BATCH_SIZE = 1000;
+
   public static final String INDEX_ELEMARRAY_THRESHOLD_PROP = "index_elemarray_threshold";
   public static final String INDEX_ELEMARRAY_SIZE_PROP = "index_elemarray_size";
   public static final int INDEX_ELEMARRAY_THRESHOLD = Integer.parseInt(System.getProperty(INDEX_ELEMARRAY_THRESHOLD_PROP,"100"));
@@ -241,6 +276,17 @@ public class IndexManager  {
     return region;
   }
 
+  /**
+   * Returns the entry ordinals shared by the bitmap index stores of this
+   * region
+   */
+  public synchronized EntryOrdinals getEntryOrdinals() {
+    if (this.entryOrdinals == null) {
+      this.entryOrdinals = new EntryOrdinals();
+    }
+    return this.entryOrdinals;
+  }
+
   /**
    * Used by tests to access the updater thread to determine its progress
    */
@@ -897,62 +943,220 @@ public class IndexManager  {
    * populates all the indexes in the region
    */
   public void populateIndexes(Collection<Index> indexSet) throws MultiIndexCreationException {
+    populateIndexes(indexSet, INDEX_POPULATION_THREADS);
+  }
+
+  /**
+   * Populates the given indexes of the region. The entries are handed in
+   * batches to up to the given number of threads, unless the region is too
+   * small for that to pay off. Compact range indexes that are empty collect
+   * the mappings and build their store at once after all entries are
+   * evaluated if their store supports it.
+   */
+  public void populateIndexes(Collection<Index> indexSet, int numThreads)
+      throws MultiIndexCreationException {
     waitBeforeUpdate();
     if(region.getCache().getLogger().infoEnabled()) {
       region.getCache().getLogger().info("Populating indexes for region " + region.getName());
     }
-    boolean throwException = false;
-    HashMap<String, Exception> exceptionsMap = new HashMap<String, Exception>();
+    long startTime = System.nanoTime();
+    Map<String, Exception> exceptionsMap = new ConcurrentHashMap<String, Exception>();
+    List<AbstractIndex> indexes = new ArrayList<AbstractIndex>(indexSet.size());
+    for (Index ind : indexSet) {
+      AbstractIndex index = (AbstractIndex) ind;
+      if (!index.isPopulated() && index.getType() != IndexType.PRIMARY_KEY) {
+        indexes.add(index);
+        index.populateStarted();
+        if (index instanceof CompactRangeIndex) {
+          ((CompactRangeIndex) index).startBulkLoad();
+        }
+      }
+    }
     try {
-      Iterator entryIter = ((LocalRegion) region).getBestIterator(true);
-      while (entryIter.hasNext()) {
-        RegionEntry entry = (RegionEntry) entryIter.next();
-        if (entry == null || entry.isInvalidOrRemoved()) {
-          continue;
+      if (numThreads > 1 && region.size() >= INDEX_POPULATION_BATCH_SIZE * 2) {
+        populateInParallel(indexes, numThreads, exceptionsMap);
+      }
+      else {
+        List<RegionEntry> batch = new ArrayList<RegionEntry>(INDEX_POPULATION_BATCH_SIZE);
+        Iterator entryIter = ((LocalRegion) region).getBestIterator(true);
+        while (entryIter.hasNext()) {
+          batch.add((RegionEntry) entryIter.next());
+          if (batch.size() == INDEX_POPULATION_BATCH_SIZE) {
+            populateBatch(batch, indexes, exceptionsMap);
+            batch.clear();
+          }
         }
-        // Fault in the value once before index update so that every index
-        // update does not have
-        // to read the value from disk every time.
-        // TODO OFFHEAP: this optimization (calling getValue to make sure it is faulted in to disk) has a performance problem.
-        // It also decompresses and deserializes the value and then throws that away. In the case of a heap region the deserialized
-        // value would be cached in a VMCachedDeserializable. But for compression and/or off-heap the decompression and/or deserialization
-        // this call does is lost and has to be done again. We could just add a method to RegionEntry that faults the value in without returning it.
-        // Even better (but more work): could we create a wrapper around RegionEntry that we create here to wrap "entry" and pass the wrapper to addIndexMapping?
-        // Any indexes that store a reference to the RegionEntry would need to ask the wrapper for the real one but any of them
-        // that want the value could get it from the wrapper. The first time the wrapper is asked for the value it could get it from
-        // the real RegionEntry it wraps and cache a reference to that value. I think that gives us the best of both worlds.
-        entry.getValue((LocalRegion)this.region);
-        Iterator<Index> indexSetIterator = indexSet.iterator();
-        while(indexSetIterator.hasNext()) {
-          AbstractIndex index = (AbstractIndex) indexSetIterator.next();
-          if (!index.isPopulated() && index.getType() != IndexType.PRIMARY_KEY) {
-            if (logger.isDebugEnabled()) {
-              logger.debug("Adding to index :{}{} value :{}", index.getName(), this.region.getFullPath(), entry.getKey());
-            }
-            long start = ((AbstractIndex) index).updateIndexUpdateStats();
-            try {
-              index.addIndexMapping(entry);
-            } catch (IMQException e) {
-              if(logger.isDebugEnabled()) {
-                logger.debug("Adding to index failed for: {}, {}", index.getName(), e.getMessage(), e);
-              }
-              exceptionsMap.put(index.indexName, e);
-              indexSetIterator.remove();
-              throwException = true;
+        populateBatch(batch, indexes, exceptionsMap);
+      }
+      for (AbstractIndex index : indexes) {
+        if (index instanceof CompactRangeIndex
+            && !exceptionsMap.containsKey(index.indexName)) {
+          try {
+            ((CompactRangeIndex) index).finishBulkLoad();
+          } catch (IMQException e) {
+            if(logger.isDebugEnabled()) {
+              logger.debug("Adding to index failed for: {}, {}", index.getName(), e.getMessage(), e);
             }
-            ((AbstractIndex) index).updateIndexUpdateStats(start);
+            exceptionsMap.put(index.indexName, e);
           }
         }
       }
+      Iterator<Index> indexSetIterator = indexSet.iterator();
+      while (indexSetIterator.hasNext()) {
+        if (exceptionsMap.containsKey(((AbstractIndex) indexSetIterator.next()).indexName)) {
+          indexSetIterator.remove();
+        }
+      }
       setPopulateFlagForIndexes(indexSet);
-      if (throwException) {
-        throw new MultiIndexCreationException(exceptionsMap);
+      if (!exceptionsMap.isEmpty()) {
+        throw new MultiIndexCreationException(new HashMap<String, Exception>(exceptionsMap));
       }
     } finally {
+      long time = System.nanoTime() - startTime;
+      for (AbstractIndex index : indexes) {
+        if (index instanceof CompactRangeIndex) {
+          ((CompactRangeIndex) index).abortBulkLoad();
+        }
+        index.populateEnded(time);
+      }
       notifyAfterUpdate();
     }
   }
-  
+
+  /**
+   * Iterates over the entries of the region and hands them in batches to a
+   * pool of threads
+   */
+  private void populateInParallel(final List<AbstractIndex> indexes,
+      int numThreads, final Map<String, Exception> exceptionsMap) {
+    IndexPopulationPool pool = new IndexPopulationPool(region.getFullPath(),
+        numThreads);
+    try {
+      Iterator entryIter = ((LocalRegion) region).getBestIterator(true);
+      while (entryIter.hasNext() && !pool.hasFailed()) {
+        final List<RegionEntry> batch = new ArrayList<RegionEntry>(INDEX_POPULATION_BATCH_SIZE);
+        while (entryIter.hasNext() && batch.size() < INDEX_POPULATION_BATCH_SIZE) {
+          batch.add((RegionEntry) entryIter.next());
+        }
+        pool.execute(new Runnable() {
+          public void run() {
+            populateBatch(batch, indexes, exceptionsMap);
+          }
+        });
+      }
+    } finally {
+      pool.shutdownAndWait();
+    }
+  }
+
+  /**
+   * Adds the given entries to the indexes that have not failed yet
+   */
+  private void populateBatch(List<RegionEntry> batch,
+      List<AbstractIndex> indexes, Map<String, Exception> exceptionsMap) {
+    int populated = 0;
+    for (RegionEntry entry : batch) {
+      if (entry == null || entry.isInvalidOrRemoved()) {
+        continue;
+      }
+      ((LocalRegion) getRegion()).getCancelCriterion()
+          .checkCancelInProgress(null);
+      populated++;
+      // Fault in the value once before index update so that every index
+      // update does not have
+      // to read the value from disk every time.
+      // TODO OFFHEAP: this optimization (calling getValue to make sure it is faulted in to disk) has a performance problem.
+      // It also decompresses and deserializes the value and then throws that away. In the case of a heap region the deserialized
+      // value would be cached in a VMCachedDeserializable. But for compression and/or off-heap the decompression and/or deserialization
+      // this call does is lost and has to be done again. We could just add a method to RegionEntry that faults the value in without returning it.
+      // Even better (but more work): could we create a wrapper around RegionEntry that we create here to wrap "entry" and pass the wrapper to addIndexMapping?
+      // Any indexes that store a reference to the RegionEntry would need to ask the wrapper for the real one but any of them
+      // that want the value could get it from the wrapper. The first time the wrapper is asked for the value it could get it from
+      // the real RegionEntry it wraps and cache a reference to that value. I think that gives us the best of both worlds.
+      entry.getValue((LocalRegion)this.region);
+      for (AbstractIndex index : indexes) {
+        if (exceptionsMap.containsKey(index.indexName)) {
+          continue;
+        }
+        if (logger.isDebugEnabled()) {
+          logger.debug("Adding to index :{}{} value :{}", index.getName(), this.region.getFullPath(), entry.getKey());
+        }
+        long start = index.updateIndexUpdateStats();
+        try {
+          index.addIndexMapping(entry);
+        } catch (IMQException e) {
+          if(logger.isDebugEnabled()) {
+            logger.debug("Adding to index failed for: {}, {}", index.getName(), e.getMessage(), e);
+          }
+          exceptionsMap.put(index.indexName, e);
+        }
+        index.updateIndexUpdateStats(start);
+      }
+    }
+    if (populated > 0) {
+      for (AbstractIndex index : indexes) {
+        index.incPopulatedEntries(populated);
+      }
+    }
+  }
+
+  /**
+   * Writes the contents of the compact range indexes of this persistent
+   * region to an {@link IndexCheckpoint}, so that they need not be rebuilt
+   * when the region is recovered. Called when the region is closed.
+   */
+  public void writeIndexCheckpoint() {
+    LocalRegion localRegion = (LocalRegion) this.region;
+    if (!IndexCheckpoint.isSupported(localRegion)) {
+      return;
+    }
+    List<CompactRangeIndex> crIndexes = new ArrayList<CompactRangeIndex>();
+    for (Object ind : this.indexes.values()) {
+      if (ind.getClass() == CompactRangeIndex.class
+          && ((CompactRangeIndex) ind).isPopulated()) {
+        crIndexes.add((CompactRangeIndex) ind);
+      }
+    }
+    if (crIndexes.isEmpty()) {
+      IndexCheckpoint.delete(localRegion.getDiskRegion());
+      return;
+    }
+    try {
+      waitBeforeUpdate();
+    } catch (CancelException e) {
+      // updates are still in progress while the cache closes
+      IndexCheckpoint.delete(localRegion.getDiskRegion());
+      return;
+    }
+    try {
+      IndexCheckpoint.write(localRegion, crIndexes);
+    } finally {
+      notifyAfterUpdate();
+    }
+  }
+
+  /**
+   * Loads the given indexes of this region, just recovered from disk, from
+   * the checkpoint written when the region was closed, and marks them as
+   * populated.
+   *
+   * @return the indexes that were not loaded and still need to be populated
+   */
+  public Set<Index> loadIndexCheckpoint(IndexCheckpoint checkpoint,
+      Collection<Index> indexSet) {
+    Set<Index> loaded;
+    waitBeforeUpdate();
+    try {
+      loaded = checkpoint.load(indexSet);
+      setPopulateFlagForIndexes(loaded);
+    } finally {
+      notifyAfterUpdate();
+    }
+    Set<Index> remaining = new HashSet<Index>(indexSet);
+    remaining.removeAll(loaded);
+    return remaining;
+  }
+
   /**
    * Sets the {@link AbstractIndex#isPopulated} after 
    * populating all the indexes in this region
@@ -1398,6 +1602,13 @@ public class IndexManager  {
 
     private volatile BlockingQueue pendingTasks;
 
+    /**
+     * The tasks taken off the queue that are being applied. Only this thread
+     * changes it, and it does so while synchronized on this thread so that
+     * {@link #isDone} sees its current state.
+     */
+    private final List batch = new ArrayList(ASYNC_UPDATE_BATCH_SIZE);
+
     /**
      * Creates instance of IndexUpdaterThread
      * @param updateThreshold
@@ -1455,10 +1666,14 @@ public class IndexManager  {
           }
           try {
             Object[] task = (Object[])pendingTasks.take();
+            synchronized (this) {
+              this.batch.add(task);
+              pendingTasks.drainTo(this.batch, ASYNC_UPDATE_BATCH_SIZE - 1);
+            }
             if (this.shutdownRequested) {
               break;
             }
-            updateIndexes(task);
+            processBatch();
           }
           catch (InterruptedException ignore) {
             return; // give up (exit the thread)
@@ -1470,6 +1685,44 @@ public class IndexManager  {
       }
     }
 
+    /**
+     * Applies the tasks taken off the queue. An update of an entry is
+     * evaluated against the current value of the entry, so it is skipped if
+     * the next task pair updates the same entry again.
+     */
+    private void processBatch() {
+      try {
+        int size = this.batch.size();
+        for (int i = 0; i < size && !this.shutdownRequested; i++) {
+          Object[] task = (Object[])this.batch.get(i);
+          if (i + 3 < size && isUpdatePair(task, (Object[])this.batch.get(i + 1))
+              && isUpdatePair((Object[])this.batch.get(i + 2),
+                  (Object[])this.batch.get(i + 3))
+              && task[1] == ((Object[])this.batch.get(i + 2))[1]) {
+            i++;
+            continue;
+          }
+          updateIndexes(task);
+        }
+      } finally {
+        synchronized (this) {
+          this.batch.clear();
+        }
+      }
+    }
+
+    /**
+     * Returns true if the two tasks are the before and after halves of the
+     * same entry update.
+     */
+    private boolean isUpdatePair(Object[] before, Object[] after) {
+      return before[1] != null && before[1] == after[1]
+          && ((Integer)before[0]).intValue() == REMOVE_ENTRY
+          && ((Integer)before[2]).intValue() == IndexProtocol.BEFORE_UPDATE_OP
+          && ((Integer)after[0]).intValue() == UPDATE_ENTRY
+          && ((Integer)after[2]).intValue() == IndexProtocol.AFTER_UPDATE_OP;
+    }
+
     private void updateIndexes(Object[] task) {
       int action = ((Integer)task[0]).intValue();
       RegionEntry entry = (RegionEntry)task[1];
@@ -1498,11 +1751,12 @@ public class IndexManager  {
 
     /**
      * Used by tests to determine if the updater thread has finished updating
-     * its indexes. The list is cleared without synchronization, which makes
-     * this methods somewhat unsafe from a threading point of view.
+     * its indexes. A task that has just been taken off the queue but not yet
+     * added to the batch is missed, which makes this method somewhat unsafe
+     * from a threading point of view.
      */
     public synchronized boolean isDone() {
-      return this.pendingTasks.size() == 0;
+      return this.pendingTasks.size() == 0 && this.batch.isEmpty();
     }
 
   }
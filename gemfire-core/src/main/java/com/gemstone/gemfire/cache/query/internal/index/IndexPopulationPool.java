@@ -0,0 +1,119 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.cache.query.internal.index;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.logging.log4j.Logger;
+
+import com.gemstone.gemfire.SystemFailure;
+import com.gemstone.gemfire.internal.logging.LogService;
+import com.gemstone.gemfire.internal.logging.LoggingThreadGroup;
+
+/**
+ * Threads populating indexes in parallel. A pool is used for a single
+ * population and shut down afterwards. Once all threads are busy the
+ * submitting thread runs the next task itself, which keeps the number of
+ * pending tasks bounded.
+ *
+ * @since 9.0
+ */
+public class IndexPopulationPool {
+
+  private static final Logger logger = LogService.getLogger();
+
+  private final ThreadPoolExecutor executor;
+
+  private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+  public IndexPopulationPool(final String name, int numThreads) {
+    final LoggingThreadGroup group = LoggingThreadGroup.createThreadGroup(
+        "Index Population Threads", logger);
+    ThreadFactory threadFactory = new ThreadFactory() {
+      private final AtomicInteger threadId = new AtomicInteger();
+
+      public Thread newThread(Runnable command) {
+        Thread thread = new Thread(group, command, "Index Population Thread "
+            + threadId.incrementAndGet() + " for " + name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    this.executor = new ThreadPoolExecutor(numThreads, numThreads, 60,
+        TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(numThreads),
+        threadFactory, new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  /**
+   * Runs the task in one of the threads, or in the calling thread if all of
+   * them are busy
+   */
+  public void execute(final Runnable task) {
+    this.executor.execute(new Runnable() {
+      public void run() {
+        try {
+          task.run();
+        } catch (VirtualMachineError err) {
+          SystemFailure.initiateFailure(err);
+          // If this ever returns, rethrow the error. We're poisoned
+          // now, so don't let this thread continue.
+          throw err;
+        } catch (Throwable t) {
+          // Whenever you catch Error or Throwable, you must also
+          // catch VirtualMachineError (see above). However, there is
+          // _still_ a possibility that you are dealing with a cascading
+          // error condition, so you also need to check to see if the JVM
+          // is still usable:
+          SystemFailure.checkFailure();
+          failure.compareAndSet(null, t);
+        }
+      }
+    });
+  }
+
+  /**
+   * Returns true if a task failed. No more tasks need to be submitted then.
+   */
+  public boolean hasFailed() {
+    return this.failure.get() != null;
+  }
+
+  /**
+   * Waits for all tasks to complete and shuts the threads down. Rethrows the
+   * first exception thrown by a task.
+   */
+  public void shutdownAndWait() {
+    this.executor.shutdown();
+    boolean interrupted = Thread.interrupted();
+    try {
+      while (!this.executor.isTerminated()) {
+        try {
+          this.executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    Throwable t = this.failure.get();
+    if (t instanceof RuntimeException) {
+      throw (RuntimeException)t;
+    }
+    else if (t instanceof Error) {
+      throw (Error)t;
+    }
+  }
+}
@@ -33,6 +33,11 @@ public class IndexStats {
   private static final int readLockCountId;
   private static final int numMapIndexKeysId;
   private static final int numBucketIndexesId;
+  private static final int numHistogramBuildsId;
+  private static final int histogramBuildTimeId;
+  private static final int populatesInProgressId;
+  private static final int numPopulatedEntriesId;
+  private static final int populateTimeId;
 
   /** The Statistics object that we delegate most behavior to */
   private final Statistics stats;
@@ -63,6 +68,11 @@ public class IndexStats {
         f.createIntGauge("readLockCount", "Current number of read locks taken.", "uses"),
         f.createLongGauge("numMapIndexKeys", "Number of keys in this Map index", "keys"),
         f.createIntGauge("numBucketIndexes", "Number of bucket indexes in the partitioned region", "indexes"),
+        f.createLongCounter("numHistogramBuilds", "Number of times the key distribution histogram of this index has been built", "operations"),
+        f.createLongCounter("histogramBuildTime", "Total time spent building the key distribution histogram of this index", "nanoseconds"),
+        f.createIntGauge("populatesInProgress", "Current number of populations of this index in progress.", "operations"),
+        f.createLongCounter("numPopulatedEntries", "Number of region entries added to this index while it was being populated", "entries"),
+        f.createLongCounter("populateTime", "Total time spent populating this index", "nanoseconds"),
       }
     );
 
@@ -78,6 +88,11 @@ public class IndexStats {
     readLockCountId = type.nameToId("readLockCount");
     numMapIndexKeysId = type.nameToId("numMapIndexKeys");
     numBucketIndexesId = type.nameToId("numBucketIndexes");
+    numHistogramBuildsId = type.nameToId("numHistogramBuilds");
+    histogramBuildTimeId = type.nameToId("histogramBuildTime");
+    populatesInProgressId = type.nameToId("populatesInProgress");
+    numPopulatedEntriesId = type.nameToId("numPopulatedEntries");
+    populateTimeId = type.nameToId("populateTime");
   }
   
   ////////////////////////  Constructors  ////////////////////////
@@ -128,6 +143,26 @@ public class IndexStats {
      return stats.getInt(numBucketIndexesId);
    }
 
+   public long getNumHistogramBuilds() {
+     return stats.getLong(numHistogramBuildsId);
+   }
+
+   public long getHistogramBuildTime() {
+     return CachePerfStats.enableClockStats? stats.getLong(histogramBuildTimeId) : 0;
+   }
+
+   public int getPopulatesInProgress() {
+     return stats.getInt(populatesInProgressId);
+   }
+
+   public long getNumPopulatedEntries() {
+     return stats.getLong(numPopulatedEntriesId);
+   }
+
+   public long getPopulateTime() {
+     return CachePerfStats.enableClockStats? stats.getLong(populateTimeId) : 0;
+   }
+
   //////////////////////  Updating Stats  //////////////////////
   
    public void incNumUpdates() {
@@ -179,6 +214,27 @@ public class IndexStats {
    public void incNumBucketIndexes(int delta) {
      this.stats.incInt(numBucketIndexesId, delta);
    }   
+
+   public void incHistogramBuilds(long buildTime) {
+     this.stats.incLong(numHistogramBuildsId, 1);
+     if (CachePerfStats.enableClockStats) {
+       this.stats.incLong(histogramBuildTimeId, buildTime);
+     }
+   }
+
+   public void incPopulatesInProgress(int delta) {
+     this.stats.incInt(populatesInProgressId, delta);
+   }
+
+   public void incPopulatedEntries(long delta) {
+     this.stats.incLong(numPopulatedEntriesId, delta);
+   }
+
+   public void incPopulateTime(long delta) {
+     if (CachePerfStats.enableClockStats) {
+       this.stats.incLong(populateTimeId, delta);
+     }
+   }
   ////// Special Instance Methods /////
 
   /**
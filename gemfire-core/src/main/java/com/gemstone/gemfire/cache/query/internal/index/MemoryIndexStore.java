@@ -7,6 +7,7 @@
  */
 package com.gemstone.gemfire.cache.query.internal.index;
 
+import java.io.IOException;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.Collection;
 import java.util.Iterator;
@@ -564,6 +565,41 @@ public class MemoryIndexStore implements IndexStore {
     return numIndexKeys.get();
   }
 
+  /**
+   * Feeds every index key, in ascending order, along with the number of
+   * entries mapped to it into the given histogram builder. Null and undefined
+   * keys are skipped as they never take part in range lookups.
+   */
+  void populateHistogram(IndexHistogram.Builder builder) {
+    Iterator<Map.Entry> iterator = this.valueToEntriesMap.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry mapEntry = iterator.next();
+      Object key = mapEntry.getKey();
+      if (key == QueryService.UNDEFINED || key == IndexManager.NULL) {
+        continue;
+      }
+      Object values = mapEntry.getValue();
+      if (values instanceof RegionEntry) {
+        builder.add(key, 1);
+      }
+      else if (values != TRANSITIONING_TOKEN && values instanceof Collection) {
+        builder.add(key, ((Collection)values).size());
+      }
+    }
+  }
+
+  /**
+   * Writes every index key along with the entries mapped to it to the given
+   * checkpoint. Must be called while no updates are applied to the index.
+   */
+  void writeMappings(IndexCheckpoint.Writer writer) throws IOException {
+    Iterator<Map.Entry> iterator = this.valueToEntriesMap.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry mapEntry = iterator.next();
+      writer.writeMapping(mapEntry.getKey(), mapEntry.getValue());
+    }
+  }
+
   /**
    * A bi-directional iterator over the CSL. Iterates over the entries of CSL
    * where entry is a mapping (value -> Collection) as well as over the
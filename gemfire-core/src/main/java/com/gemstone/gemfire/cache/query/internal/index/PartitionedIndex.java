@@ -474,6 +474,18 @@ public class PartitionedIndex extends AbstractIndex
     public void incReadLockCount(int delta) {
       this.vsdStats.incReadLockCount(delta);
     }
+
+    public void incPopulatesInProgress(int delta) {
+      this.vsdStats.incPopulatesInProgress(delta);
+    }
+
+    public void incPopulatedEntries(long delta) {
+      this.vsdStats.incPopulatedEntries(delta);
+    }
+
+    public void incPopulateTime(long delta) {
+      this.vsdStats.incPopulateTime(delta);
+    }
     public void incNumBucketIndexes(int delta) {
       this.vsdStats.incNumBucketIndexes(delta);
     }   
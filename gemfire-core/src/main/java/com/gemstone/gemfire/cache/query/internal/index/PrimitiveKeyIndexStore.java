@@ -0,0 +1,1852 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.cache.query.internal.index;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.gemstone.gemfire.cache.Region;
+import com.gemstone.gemfire.cache.query.QueryService;
+import com.gemstone.gemfire.cache.query.TypeMismatchException;
+import com.gemstone.gemfire.cache.query.internal.DefaultQuery;
+import com.gemstone.gemfire.cache.query.internal.NullToken;
+import com.gemstone.gemfire.cache.query.internal.Undefined;
+import com.gemstone.gemfire.cache.query.internal.index.AbstractIndex.InternalIndexStatistics;
+import com.gemstone.gemfire.cache.query.internal.parse.OQLLexerTokenTypes;
+import com.gemstone.gemfire.cache.query.internal.types.TypeUtils;
+import com.gemstone.gemfire.internal.cache.GemFireCacheImpl;
+import com.gemstone.gemfire.internal.cache.RegionEntry;
+import com.gemstone.gemfire.internal.cache.Token;
+import com.gemstone.gemfire.internal.cache.persistence.query.CloseableIterator;
+
+/**
+ * An index store for keys of a single numeric, date or timestamp type. Keys
+ * are encoded as order preserving longs and kept in the sorted arrays of a
+ * B+tree, which avoids a boxed key and a skip list node per distinct key.
+ * Values use the
+ * same RegionEntry, IndexElemArray and IndexConcurrentHashSet representation
+ * as {@link MemoryIndexStore}.
+ *
+ * The key type is fixed by the first non null key added. Once a key of any
+ * other type is added, all mappings are moved into a {@link MemoryIndexStore}
+ * and every later call is delegated to it.
+ *
+ * Writers are serialized on a read-write lock. Iterators copy one leaf at a
+ * time under the read lock and are weakly consistent, like the iterators of
+ * the concurrent skip list used by {@link MemoryIndexStore}.
+ *
+ * @since 9.0
+ */
+public class PrimitiveKeyIndexStore implements IndexStore {
+
+  /** Maximum number of keys in a tree node */
+  static final int NODE_SIZE = Math.max(8, Integer.getInteger(
+      "gemfire.index.PRIMITIVE_KEY_NODE_SIZE", 64).intValue());
+
+  /** Leaves with fewer keys are merged with their right sibling if possible */
+  private static final int MERGE_THRESHOLD = NODE_SIZE / 4;
+
+  /** Returned by {@link #removeValue} if the entry was not mapped */
+  private static final Object NOT_FOUND = new Object();
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * Store used for the target object lookups and for all the mappings once a
+   * key that can not be encoded has been added.
+   */
+  private final MemoryIndexStore genericStore;
+
+  private final InternalIndexStatistics internalIndexStats;
+
+  /** False once all mappings have been moved to the generic store */
+  private volatile boolean primitiveMode = true;
+
+  /** Type of the keys in the tree, null until the first key is added */
+  private KeyType keyType;
+
+  private Node root = new Leaf();
+
+  /** Entries mapped to IndexManager.NULL and QueryService.UNDEFINED */
+  private Object nullValues;
+
+  private Object undefinedValues;
+
+  private volatile int numKeys;
+
+  private long numValues;
+
+  /** Set by {@link #insert} if the key was not present in the tree */
+  private boolean insertedNewKey;
+
+  /** Set by {@link #remove} if the entry was found */
+  private boolean removeFound;
+
+  /** Set by {@link #remove} if the last entry of a key was removed */
+  private boolean removedKey;
+
+  // Map for RegionEntries=>value of indexedExpression (reverse map)
+  private ConcurrentMap entryToValuesMap;
+
+  public PrimitiveKeyIndexStore(Region region,
+      InternalIndexStatistics internalIndexStats) {
+    this.genericStore = new MemoryIndexStore(region, internalIndexStats);
+    this.internalIndexStats = internalIndexStats;
+    if (IndexManager.isObjectModificationInplace()) {
+      this.entryToValuesMap = new ConcurrentHashMap();
+    }
+  }
+
+  /**
+   * Returns true as long as the keys are kept in the primitive key tree
+   */
+  public boolean isPrimitiveMode() {
+    return this.primitiveMode;
+  }
+
+  @Override
+  public void addMapping(Object indexKey, RegionEntry re) throws IMQException {
+    // for add, oldkey is null
+    updateMapping(indexKey, null, re, null);
+  }
+
+  @Override
+  public void updateMapping(Object newKey, Object oldKey, RegionEntry entry,
+      Object oldValue) throws IMQException {
+    if (!this.primitiveMode) {
+      this.genericStore.updateMapping(newKey, oldKey, entry, oldValue);
+      return;
+    }
+    if (DefaultQuery.testHook != null) {
+      DefaultQuery.testHook.doTestHook(3);
+    }
+    Object indexKey;
+    try {
+      indexKey = TypeUtils.indexKeyFor(newKey);
+    } catch (TypeMismatchException ex) {
+      throw new IMQException("Could not add object of type "
+          + newKey.getClass().getName(), ex);
+    }
+    // Evaluate the target object outside of the lock as it may need to
+    // deserialize the value.
+    Object targetObject = null;
+    if (indexKey instanceof Undefined) {
+      targetObject = this.genericStore.getTargetObjectForUpdate(entry);
+    }
+    boolean inplaceUpdate = !IndexManager.isObjectModificationInplace()
+        && oldValue != null
+        && oldValue == this.genericStore.getTargetObjectInVM(entry);
+
+    boolean delegate = false;
+    this.lock.writeLock().lock();
+    try {
+      if (!this.primitiveMode) {
+        delegate = true;
+      }
+      else if (!isSlotKey(indexKey) && !accepts(indexKey)) {
+        switchToGenericStore();
+        delegate = true;
+      }
+      else {
+        if (IndexManager.isObjectModificationInplace()) {
+          Object key = this.entryToValuesMap.get(entry);
+          if (key != null) {
+            oldKey = key;
+          }
+        }
+        else if (inplaceUpdate) {
+          oldKey = getOldKey(indexKey, entry);
+        }
+        // No need to update the map if new and old index key are same.
+        if (oldKey != null && oldKey.equals(indexKey)) {
+          return;
+        }
+        if (targetObject != null && Token.isInvalidOrRemoved(targetObject)) {
+          if (oldKey != null) {
+            basicRemoveMapping(oldKey, entry, false);
+          }
+          return;
+        }
+        addLocked(indexKey, entry);
+        // oldKey is not null only for an update
+        if (oldKey != null) {
+          basicRemoveMapping(oldKey, entry, false);
+        }
+        if (IndexManager.isObjectModificationInplace()) {
+          this.entryToValuesMap.put(entry, indexKey);
+        }
+      }
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+    if (delegate) {
+      this.genericStore.updateMapping(newKey, oldKey, entry, oldValue);
+    }
+  }
+
+  @Override
+  public void removeMapping(Object indexKey, RegionEntry re)
+      throws IMQException {
+    if (!this.primitiveMode) {
+      this.genericStore.removeMapping(indexKey, re);
+      return;
+    }
+    boolean delegate = false;
+    this.lock.writeLock().lock();
+    try {
+      if (!this.primitiveMode) {
+        delegate = true;
+      }
+      else {
+        boolean found = basicRemoveMapping(indexKey, re, true);
+        if (found && IndexManager.isObjectModificationInplace()) {
+          this.entryToValuesMap.remove(re);
+        }
+      }
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+    if (delegate) {
+      this.genericStore.removeMapping(indexKey, re);
+    }
+  }
+
+  /**
+   * Removes the mapping, looking up the key the entry is really mapped to if
+   * the value has been modified in place. Must be called with the write lock
+   * held.
+   */
+  private boolean basicRemoveMapping(Object key, RegionEntry entry,
+      boolean findOldKey) throws IMQException {
+    Object indexKey = null;
+    if (IndexManager.isObjectModificationInplace()) {
+      indexKey = this.entryToValuesMap.get(entry);
+    }
+    try {
+      if (indexKey == null) {
+        indexKey = TypeUtils.indexKeyFor(key);
+      }
+    } catch (TypeMismatchException ex) {
+      throw new IMQException("Could not add object of type "
+          + key.getClass().getName(), ex);
+    }
+    boolean found = indexKey != null && removeLocked(indexKey, entry);
+    if (!found && findOldKey && key != null
+        && !IndexManager.isObjectModificationInplace()) {
+      // if there is an inplace-modification find old key by iterating
+      // over the keys and then remove the mapping
+      Object oldKey = getOldKey(indexKey, entry);
+      if (oldKey != indexKey) {
+        found = removeLocked(oldKey, entry);
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Finds the key the entry is mapped to, other than the given one, by
+   * scanning the whole store. Used when the old value was modified in place
+   * and is no longer available. Must be called with the write lock held.
+   *
+   * @return the old key or the given key if the entry is not mapped to any
+   *         other key
+   */
+  private Object getOldKey(Object newKey, RegionEntry entry) {
+    if (!(newKey instanceof NullToken) && containsValue(this.nullValues, entry)) {
+      return IndexManager.NULL;
+    }
+    if (!(newKey instanceof Undefined)
+        && containsValue(this.undefinedValues, entry)) {
+      return QueryService.UNDEFINED;
+    }
+    boolean compareKey = this.keyType != null && accepts(newKey);
+    long encodedNewKey = compareKey ? this.keyType.encode(newKey) : 0;
+    for (Leaf leaf = firstLeaf(); leaf != null; leaf = leaf.next) {
+      for (int i = 0; i < leaf.size; i++) {
+        if (compareKey && leaf.keys[i] == encodedNewKey) {
+          continue;
+        }
+        if (containsValue(leaf.values[i], entry)) {
+          return this.keyType.decode(leaf.keys[i]);
+        }
+      }
+    }
+    return newKey;
+  }
+
+  private static boolean isSlotKey(Object indexKey) {
+    return indexKey instanceof NullToken || indexKey instanceof Undefined;
+  }
+
+  /**
+   * Returns true if the key can be stored in the tree. Must be called with a
+   * lock held.
+   */
+  private boolean accepts(Object indexKey) {
+    if (this.keyType == null) {
+      return KeyType.forKey(indexKey) != null;
+    }
+    return this.keyType.accepts(indexKey);
+  }
+
+  /** Must be called with the write lock held */
+  private void addLocked(Object indexKey, RegionEntry entry) {
+    boolean newKey;
+    if (indexKey instanceof NullToken) {
+      newKey = this.nullValues == null;
+      this.nullValues = addValue(this.nullValues, entry);
+    }
+    else if (indexKey instanceof Undefined) {
+      newKey = this.undefinedValues == null;
+      this.undefinedValues = addValue(this.undefinedValues, entry);
+    }
+    else {
+      if (this.keyType == null) {
+        this.keyType = KeyType.forKey(indexKey);
+      }
+      Node split = insert(this.root, this.keyType.encode(indexKey), entry);
+      if (split != null) {
+        Inner newRoot = new Inner();
+        newRoot.keys[0] = this.root.keys[0];
+        newRoot.children[0] = this.root;
+        newRoot.keys[1] = split.keys[0];
+        newRoot.children[1] = split;
+        newRoot.size = 2;
+        this.root = newRoot;
+      }
+      newKey = this.insertedNewKey;
+    }
+    if (newKey) {
+      this.numKeys++;
+      this.internalIndexStats.incNumKeys(1);
+    }
+    this.numValues++;
+    this.internalIndexStats.incNumValues(1);
+  }
+
+  /** Must be called with the write lock held */
+  private boolean removeLocked(Object indexKey, RegionEntry entry) {
+    boolean found;
+    boolean keyRemoved = false;
+    if (indexKey instanceof NullToken) {
+      Object remaining = removeValue(this.nullValues, entry);
+      found = remaining != NOT_FOUND;
+      if (found) {
+        this.nullValues = remaining;
+        keyRemoved = remaining == null;
+      }
+    }
+    else if (indexKey instanceof Undefined) {
+      Object remaining = removeValue(this.undefinedValues, entry);
+      found = remaining != NOT_FOUND;
+      if (found) {
+        this.undefinedValues = remaining;
+        keyRemoved = remaining == null;
+      }
+    }
+    else if (this.keyType == null || !accepts(indexKey)) {
+      found = false;
+    }
+    else {
+      this.removeFound = false;
+      this.removedKey = false;
+      if (remove(this.root, this.keyType.encode(indexKey), entry)) {
+        this.root = new Leaf();
+      }
+      while (this.root instanceof Inner && this.root.size == 1) {
+        this.root = ((Inner)this.root).children[0];
+      }
+      found = this.removeFound;
+      keyRemoved = this.removedKey;
+    }
+    if (keyRemoved) {
+      this.numKeys--;
+      this.internalIndexStats.incNumKeys(-1);
+    }
+    if (found) {
+      this.numValues--;
+      this.internalIndexStats.incNumValues(-1);
+    }
+    return found;
+  }
+
+  /**
+   * Moves all mappings into the generic store. Must be called with the write
+   * lock held.
+   */
+  private void switchToGenericStore() throws IMQException {
+    // The generic store accounts for the keys and values again as they are
+    // added to it.
+    this.internalIndexStats.incNumKeys(-this.numKeys);
+    this.internalIndexStats.incNumValues((int)-this.numValues);
+    addAllToGenericStore(IndexManager.NULL, this.nullValues);
+    addAllToGenericStore(QueryService.UNDEFINED, this.undefinedValues);
+    for (Leaf leaf = firstLeaf(); leaf != null; leaf = leaf.next) {
+      for (int i = 0; i < leaf.size; i++) {
+        addAllToGenericStore(this.keyType.decode(leaf.keys[i]),
+            leaf.values[i]);
+      }
+    }
+    this.primitiveMode = false;
+    this.root = new Leaf();
+    this.nullValues = null;
+    this.undefinedValues = null;
+    this.numKeys = 0;
+    this.numValues = 0;
+    if (this.entryToValuesMap != null) {
+      this.entryToValuesMap.clear();
+    }
+  }
+
+  private void addAllToGenericStore(Object indexKey, Object values)
+      throws IMQException {
+    if (values instanceof RegionEntry) {
+      this.genericStore.addMapping(indexKey, (RegionEntry)values);
+    }
+    else if (values != null) {
+      for (Object entry : ((Collection)values).toArray()) {
+        this.genericStore.addMapping(indexKey, (RegionEntry)entry);
+      }
+    }
+  }
+
+  /**
+   * Adds the given mappings to an empty store at once. The keys are sorted
+   * once and the tree is built bottom up from full nodes, instead of
+   * inserting and splitting for every key. Falls back to adding the mappings
+   * one by one if the store is not empty or the keys are not all of one
+   * primitive type.
+   */
+  void bulkLoad(Object[] keys, RegionEntry[] entries, int count)
+      throws IMQException {
+    KeyType type = null;
+    Mapping[] mappings = new Mapping[count];
+    int numMappings = 0;
+    boolean bulk = this.primitiveMode
+        && !IndexManager.isObjectModificationInplace();
+    for (int i = 0; bulk && i < count; i++) {
+      Object indexKey;
+      try {
+        indexKey = TypeUtils.indexKeyFor(keys[i]);
+      } catch (TypeMismatchException ex) {
+        throw new IMQException("Could not add object of type "
+            + keys[i].getClass().getName(), ex);
+      }
+      if (isSlotKey(indexKey)) {
+        continue;
+      }
+      if (type == null) {
+        type = KeyType.forKey(indexKey);
+      }
+      if (type == null || !type.accepts(indexKey)) {
+        bulk = false;
+      }
+      else {
+        mappings[numMappings++] = new Mapping(type.encode(indexKey),
+            entries[i]);
+      }
+    }
+    if (bulk && numMappings > 0) {
+      Arrays.sort(mappings, 0, numMappings, new Comparator<Mapping>() {
+        public int compare(Mapping m1, Mapping m2) {
+          return m1.key < m2.key ? -1 : (m1.key == m2.key ? 0 : 1);
+        }
+      });
+      this.lock.writeLock().lock();
+      try {
+        bulk = this.primitiveMode && this.root.size == 0
+            && (this.keyType == null || this.keyType == type);
+        if (bulk) {
+          buildTree(mappings, numMappings);
+          this.keyType = type;
+        }
+      } finally {
+        this.lock.writeLock().unlock();
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      // add the null and undefined keys, or all keys if the tree could not
+      // be built at once
+      if (!bulk || isSlotKey(keys[i])) {
+        addMapping(keys[i], entries[i]);
+      }
+    }
+  }
+
+  /**
+   * Replaces the empty tree by one holding the given mappings sorted by key.
+   * Must be called with the write lock held.
+   */
+  private void buildTree(Mapping[] mappings, int count) {
+    long[] distinctKeys = new long[count];
+    Object[] values = new Object[count];
+    int numDistinct = 0;
+    for (int i = 0; i < count; i++) {
+      if (numDistinct == 0 || distinctKeys[numDistinct - 1] != mappings[i].key) {
+        distinctKeys[numDistinct++] = mappings[i].key;
+      }
+      values[numDistinct - 1] = addValue(values[numDistinct - 1],
+          mappings[i].entry);
+    }
+    // Spread the keys evenly so that no node is left almost empty
+    int numLeaves = (numDistinct + NODE_SIZE - 1) / NODE_SIZE;
+    Node[] level = new Node[numLeaves];
+    Leaf previous = null;
+    int pos = 0;
+    for (int i = 0; i < numLeaves; i++) {
+      Leaf leaf = new Leaf();
+      leaf.size = nodeSize(numDistinct, numLeaves, i);
+      System.arraycopy(distinctKeys, pos, leaf.keys, 0, leaf.size);
+      System.arraycopy(values, pos, leaf.values, 0, leaf.size);
+      pos += leaf.size;
+      leaf.prev = previous;
+      if (previous != null) {
+        previous.next = leaf;
+      }
+      previous = leaf;
+      level[i] = leaf;
+    }
+    while (level.length > 1) {
+      int numParents = (level.length + NODE_SIZE - 1) / NODE_SIZE;
+      Node[] parents = new Node[numParents];
+      pos = 0;
+      for (int i = 0; i < numParents; i++) {
+        Inner inner = new Inner();
+        inner.size = nodeSize(level.length, numParents, i);
+        for (int j = 0; j < inner.size; j++) {
+          inner.children[j] = level[pos];
+          inner.keys[j] = level[pos].keys[0];
+          pos++;
+        }
+        parents[i] = inner;
+      }
+      level = parents;
+    }
+    this.root = level[0];
+    this.numKeys += numDistinct;
+    this.numValues += count;
+    this.internalIndexStats.incNumKeys(numDistinct);
+    this.internalIndexStats.incNumValues(count);
+  }
+
+  /** Returns the size of the given node when spreading items over nodes */
+  private static int nodeSize(int items, int nodes, int node) {
+    return items / nodes + (node < items % nodes ? 1 : 0);
+  }
+
+  private static final class Mapping {
+    final long key;
+
+    final RegionEntry entry;
+
+    Mapping(long key, RegionEntry entry) {
+      this.key = key;
+      this.entry = entry;
+    }
+  }
+
+  // ---------------------------------------------------------------------
+  // Values of a single key
+  // ---------------------------------------------------------------------
+
+  private static Object addValue(Object values, RegionEntry entry) {
+    if (values == null) {
+      return entry;
+    }
+    if (values instanceof RegionEntry) {
+      IndexElemArray elemArray = new IndexElemArray();
+      elemArray.add(values);
+      elemArray.add(entry);
+      return elemArray;
+    }
+    if (values instanceof IndexElemArray) {
+      IndexElemArray elemArray = (IndexElemArray)values;
+      if (elemArray.size() >= IndexManager.INDEX_ELEMARRAY_THRESHOLD) {
+        IndexConcurrentHashSet set = new IndexConcurrentHashSet(
+            IndexManager.INDEX_ELEMARRAY_THRESHOLD + 20, 0.75f, 1);
+        set.addAll(elemArray);
+        set.add(entry);
+        return set;
+      }
+      elemArray.add(entry);
+      return elemArray;
+    }
+    ((Collection)values).add(entry);
+    return values;
+  }
+
+  /**
+   * @return the remaining values, null if no value remains or
+   *         {@link #NOT_FOUND} if the entry was not mapped
+   */
+  private static Object removeValue(Object values, RegionEntry entry) {
+    if (values == entry) {
+      return null;
+    }
+    if (values instanceof Collection) {
+      Collection entries = (Collection)values;
+      if (!entries.remove(entry)) {
+        return NOT_FOUND;
+      }
+      return entries.isEmpty() ? null : entries;
+    }
+    return NOT_FOUND;
+  }
+
+  private static boolean containsValue(Object values, RegionEntry entry) {
+    if (values instanceof Collection) {
+      return ((Collection)values).contains(entry);
+    }
+    return values == entry;
+  }
+
+  private static int valueCount(Object values) {
+    if (values == null) {
+      return 0;
+    }
+    return values instanceof RegionEntry ? 1 : ((Collection)values).size();
+  }
+
+  /**
+   * Returns the values as a RegionEntry or a copied array that stays valid
+   * after the lock is released. Must be called with a lock held.
+   */
+  private static Object snapshot(Object values) {
+    if (values instanceof Collection) {
+      return ((Collection)values).toArray();
+    }
+    return values;
+  }
+
+  // ---------------------------------------------------------------------
+  // B+tree
+  // ---------------------------------------------------------------------
+
+  private static abstract class Node {
+    /**
+     * Sorted keys. For inner nodes keys[i] is a lower bound of the keys in
+     * child i and greater than all keys in child i - 1.
+     */
+    final long[] keys = new long[NODE_SIZE];
+
+    int size;
+  }
+
+  private static final class Leaf extends Node {
+    final Object[] values = new Object[NODE_SIZE];
+
+    Leaf prev;
+
+    Leaf next;
+  }
+
+  private static final class Inner extends Node {
+    final Node[] children = new Node[NODE_SIZE];
+  }
+
+  /** Returns the position of the child that may contain the key */
+  private static int childIndex(Inner inner, long key) {
+    int low = 1;
+    int high = inner.size - 1;
+    int result = 0;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (inner.keys[mid] <= key) {
+        result = mid;
+        low = mid + 1;
+      }
+      else {
+        high = mid - 1;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the leaf that holds the key if it is present. The smallest key
+   * greater than the given one is in this leaf or one of the following ones,
+   * the largest smaller key in this leaf or one of the preceding ones.
+   */
+  private Leaf findLeaf(long key) {
+    Node node = this.root;
+    while (node instanceof Inner) {
+      Inner inner = (Inner)node;
+      node = inner.children[childIndex(inner, key)];
+    }
+    return (Leaf)node;
+  }
+
+  private Leaf firstLeaf() {
+    Node node = this.root;
+    while (node instanceof Inner) {
+      node = ((Inner)node).children[0];
+    }
+    return (Leaf)node;
+  }
+
+  /**
+   * Inserts the entry under the given key into the subtree.
+   *
+   * @return the new right sibling if the node had to be split, otherwise null
+   */
+  private Node insert(Node node, long key, RegionEntry entry) {
+    if (node instanceof Leaf) {
+      Leaf leaf = (Leaf)node;
+      int pos = Arrays.binarySearch(leaf.keys, 0, leaf.size, key);
+      if (pos >= 0) {
+        leaf.values[pos] = addValue(leaf.values[pos], entry);
+        this.insertedNewKey = false;
+        return null;
+      }
+      this.insertedNewKey = true;
+      pos = -pos - 1;
+      if (leaf.size < NODE_SIZE) {
+        insertIntoLeaf(leaf, pos, key, entry);
+        return null;
+      }
+      Leaf right = new Leaf();
+      int half = leaf.size / 2;
+      right.size = leaf.size - half;
+      System.arraycopy(leaf.keys, half, right.keys, 0, right.size);
+      System.arraycopy(leaf.values, half, right.values, 0, right.size);
+      Arrays.fill(leaf.values, half, leaf.size, null);
+      leaf.size = half;
+      right.next = leaf.next;
+      if (right.next != null) {
+        right.next.prev = right;
+      }
+      right.prev = leaf;
+      leaf.next = right;
+      if (pos < half) {
+        insertIntoLeaf(leaf, pos, key, entry);
+      }
+      else {
+        insertIntoLeaf(right, pos - half, key, entry);
+      }
+      return right;
+    }
+
+    Inner inner = (Inner)node;
+    int index = childIndex(inner, key);
+    Node split = insert(inner.children[index], key, entry);
+    if (split == null) {
+      return null;
+    }
+    int pos = index + 1;
+    if (inner.size < NODE_SIZE) {
+      insertIntoInner(inner, pos, split);
+      return null;
+    }
+    Inner right = new Inner();
+    int half = inner.size / 2;
+    right.size = inner.size - half;
+    System.arraycopy(inner.keys, half, right.keys, 0, right.size);
+    System.arraycopy(inner.children, half, right.children, 0, right.size);
+    Arrays.fill(inner.children, half, inner.size, null);
+    inner.size = half;
+    if (pos <= half) {
+      insertIntoInner(inner, pos, split);
+    }
+    else {
+      insertIntoInner(right, pos - half, split);
+    }
+    return right;
+  }
+
+  private static void insertIntoLeaf(Leaf leaf, int pos, long key,
+      RegionEntry entry) {
+    int moved = leaf.size - pos;
+    if (moved > 0) {
+      System.arraycopy(leaf.keys, pos, leaf.keys, pos + 1, moved);
+      System.arraycopy(leaf.values, pos, leaf.values, pos + 1, moved);
+    }
+    leaf.keys[pos] = key;
+    leaf.values[pos] = entry;
+    leaf.size++;
+  }
+
+  private static void insertIntoInner(Inner inner, int pos, Node child) {
+    int moved = inner.size - pos;
+    if (moved > 0) {
+      System.arraycopy(inner.keys, pos, inner.keys, pos + 1, moved);
+      System.arraycopy(inner.children, pos, inner.children, pos + 1, moved);
+    }
+    inner.keys[pos] = child.keys[0];
+    inner.children[pos] = child;
+    inner.size++;
+  }
+
+  private static void removeFromInner(Inner inner, int pos) {
+    int moved = inner.size - pos - 1;
+    if (moved > 0) {
+      System.arraycopy(inner.keys, pos + 1, inner.keys, pos, moved);
+      System.arraycopy(inner.children, pos + 1, inner.children, pos, moved);
+    }
+    inner.size--;
+    inner.children[inner.size] = null;
+  }
+
+  private static void unlink(Leaf leaf) {
+    if (leaf.prev != null) {
+      leaf.prev.next = leaf.next;
+    }
+    if (leaf.next != null) {
+      leaf.next.prev = leaf.prev;
+    }
+  }
+
+  /**
+   * Removes the entry mapped to the given key from the subtree. Empty nodes
+   * are removed and small leaves are merged with their right sibling.
+   *
+   * @return true if the node is empty and has to be removed from its parent
+   */
+  private boolean remove(Node node, long key, RegionEntry entry) {
+    if (node instanceof Leaf) {
+      Leaf leaf = (Leaf)node;
+      int pos = Arrays.binarySearch(leaf.keys, 0, leaf.size, key);
+      if (pos < 0) {
+        return false;
+      }
+      Object remaining = removeValue(leaf.values[pos], entry);
+      if (remaining == NOT_FOUND) {
+        return false;
+      }
+      this.removeFound = true;
+      if (remaining != null) {
+        leaf.values[pos] = remaining;
+        return false;
+      }
+      this.removedKey = true;
+      int moved = leaf.size - pos - 1;
+      if (moved > 0) {
+        System.arraycopy(leaf.keys, pos + 1, leaf.keys, pos, moved);
+        System.arraycopy(leaf.values, pos + 1, leaf.values, pos, moved);
+      }
+      leaf.size--;
+      leaf.values[leaf.size] = null;
+      if (leaf.size == 0) {
+        unlink(leaf);
+        return true;
+      }
+      return false;
+    }
+
+    Inner inner = (Inner)node;
+    int index = childIndex(inner, key);
+    Node child = inner.children[index];
+    if (remove(child, key, entry)) {
+      removeFromInner(inner, index);
+    }
+    else if (child instanceof Leaf && child.size < MERGE_THRESHOLD
+        && index + 1 < inner.size) {
+      Leaf leaf = (Leaf)child;
+      Leaf sibling = (Leaf)inner.children[index + 1];
+      if (leaf.size + sibling.size <= NODE_SIZE / 2) {
+        System.arraycopy(sibling.keys, 0, leaf.keys, leaf.size, sibling.size);
+        System.arraycopy(sibling.values, 0, leaf.values, leaf.size,
+            sibling.size);
+        leaf.size += sibling.size;
+        unlink(sibling);
+        removeFromInner(inner, index + 1);
+      }
+    }
+    return inner.size == 0;
+  }
+
+  /**
+   * Copies up to keys.length keys starting at the given one in ascending
+   * order, stopping after the given last key. Must be called with a lock
+   * held.
+   */
+  private int copyAscending(long from, boolean inclusive, long last,
+      long[] keys, Object[] values) {
+    Leaf leaf = findLeaf(from);
+    int pos = Arrays.binarySearch(leaf.keys, 0, leaf.size, from);
+    if (pos >= 0) {
+      if (!inclusive) {
+        pos++;
+      }
+    }
+    else {
+      pos = -pos - 1;
+    }
+    int count = 0;
+    while (leaf != null && count < keys.length) {
+      if (pos >= leaf.size) {
+        leaf = leaf.next;
+        pos = 0;
+        continue;
+      }
+      long key = leaf.keys[pos];
+      if (key > last) {
+        break;
+      }
+      keys[count] = key;
+      values[count] = snapshot(leaf.values[pos]);
+      count++;
+      pos++;
+    }
+    return count;
+  }
+
+  /**
+   * Copies up to keys.length keys starting at the given one in descending
+   * order, stopping after the given last key. Must be called with a lock
+   * held.
+   */
+  private int copyDescending(long from, boolean inclusive, long last,
+      long[] keys, Object[] values) {
+    Leaf leaf = findLeaf(from);
+    int pos = Arrays.binarySearch(leaf.keys, 0, leaf.size, from);
+    if (pos >= 0) {
+      if (!inclusive) {
+        pos--;
+      }
+    }
+    else {
+      pos = -pos - 2;
+    }
+    int count = 0;
+    while (leaf != null && count < keys.length) {
+      if (pos < 0) {
+        leaf = leaf.prev;
+        if (leaf != null) {
+          pos = leaf.size - 1;
+        }
+        continue;
+      }
+      long key = leaf.keys[pos];
+      if (key < last) {
+        break;
+      }
+      keys[count] = key;
+      values[count] = snapshot(leaf.values[pos]);
+      count++;
+      pos--;
+    }
+    return count;
+  }
+
+  // ---------------------------------------------------------------------
+  // Lookups
+  // ---------------------------------------------------------------------
+
+  @Override
+  public CloseableIterator<IndexStoreEntry> get(Object indexKey) {
+    if (!this.primitiveMode) {
+      return this.genericStore.get(indexKey);
+    }
+    if (isSlotKey(indexKey)) {
+      Object values;
+      this.lock.readLock().lock();
+      try {
+        if (!this.primitiveMode) {
+          return this.genericStore.get(indexKey);
+        }
+        values = snapshot(indexKey instanceof NullToken ? this.nullValues
+            : this.undefinedValues);
+      } finally {
+        this.lock.readLock().unlock();
+      }
+      return new SnapshotIterator(indexKey, values);
+    }
+    return new PrimitiveKeyIndexStoreIterator(false, indexKey, true, indexKey,
+        true, null);
+  }
+
+  @Override
+  public CloseableIterator<IndexStoreEntry> iterator(Object start,
+      boolean startInclusive, Object end, boolean endInclusive,
+      Collection keysToRemove) {
+    if (!this.primitiveMode) {
+      return this.genericStore.iterator(start, startInclusive, end,
+          endInclusive, keysToRemove);
+    }
+    return new PrimitiveKeyIndexStoreIterator(false, start, startInclusive,
+        end, endInclusive, keysToRemove);
+  }
+
+  @Override
+  public CloseableIterator<IndexStoreEntry> iterator(Object start,
+      boolean startInclusive, Collection keysToRemove) {
+    if (!this.primitiveMode) {
+      return this.genericStore.iterator(start, startInclusive, keysToRemove);
+    }
+    return new PrimitiveKeyIndexStoreIterator(false, start, startInclusive,
+        null, false, keysToRemove);
+  }
+
+  @Override
+  public CloseableIterator<IndexStoreEntry> iterator(Collection keysToRemove) {
+    if (!this.primitiveMode) {
+      return this.genericStore.iterator(keysToRemove);
+    }
+    return new PrimitiveKeyIndexStoreIterator(false, null, false, null, false,
+        keysToRemove);
+  }
+
+  @Override
+  public CloseableIterator<IndexStoreEntry> descendingIterator(Object start,
+      boolean startInclusive, Object end, boolean endInclusive,
+      Collection keysToRemove) {
+    if (!this.primitiveMode) {
+      return this.genericStore.descendingIterator(start, startInclusive, end,
+          endInclusive, keysToRemove);
+    }
+    return new PrimitiveKeyIndexStoreIterator(true, start, startInclusive,
+        end, endInclusive, keysToRemove);
+  }
+
+  @Override
+  public CloseableIterator<IndexStoreEntry> descendingIterator(Object start,
+      boolean startInclusive, Collection keysToRemove) {
+    if (!this.primitiveMode) {
+      return this.genericStore.descendingIterator(start, startInclusive,
+          keysToRemove);
+    }
+    return new PrimitiveKeyIndexStoreIterator(true, start, startInclusive,
+        null, false, keysToRemove);
+  }
+
+  @Override
+  public CloseableIterator<IndexStoreEntry> descendingIterator(
+      Collection keysToRemove) {
+    if (!this.primitiveMode) {
+      return this.genericStore.descendingIterator(keysToRemove);
+    }
+    return new PrimitiveKeyIndexStoreIterator(true, null, false, null, false,
+        keysToRemove);
+  }
+
+  @Override
+  public int size(Object key) {
+    if (!this.primitiveMode) {
+      return this.genericStore.size(key);
+    }
+    this.lock.readLock().lock();
+    try {
+      if (!this.primitiveMode) {
+        return this.genericStore.size(key);
+      }
+      if (key instanceof NullToken) {
+        return valueCount(this.nullValues);
+      }
+      if (key instanceof Undefined) {
+        return valueCount(this.undefinedValues);
+      }
+      if (this.keyType != null && accepts(key)) {
+        long encoded = this.keyType.encode(key);
+        Leaf leaf = findLeaf(encoded);
+        int pos = Arrays.binarySearch(leaf.keys, 0, leaf.size, encoded);
+        return pos < 0 ? 0 : valueCount(leaf.values[pos]);
+      }
+    } finally {
+      this.lock.readLock().unlock();
+    }
+    // The key is of another type but may still compare equal to an index key
+    int size = 0;
+    CloseableIterator<IndexStoreEntry> iterator = get(key);
+    while (iterator.hasNext()) {
+      iterator.next();
+      size++;
+    }
+    return size;
+  }
+
+  @Override
+  public int size() {
+    if (!this.primitiveMode) {
+      return this.genericStore.size();
+    }
+    return this.numKeys;
+  }
+
+  @Override
+  public boolean clear() {
+    this.lock.writeLock().lock();
+    try {
+      this.root = new Leaf();
+      this.keyType = null;
+      this.nullValues = null;
+      this.undefinedValues = null;
+      this.numKeys = 0;
+      this.numValues = 0;
+      if (this.entryToValuesMap != null) {
+        this.entryToValuesMap.clear();
+      }
+      return this.genericStore.clear();
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Feeds every index key, in ascending order, along with the number of
+   * entries mapped to it into the given histogram builder. Null and undefined
+   * keys are skipped as they never take part in range lookups.
+   */
+  void populateHistogram(IndexHistogram.Builder builder) {
+    long[] keys = new long[NODE_SIZE];
+    Object[] values = new Object[NODE_SIZE];
+    long cursor = Long.MIN_VALUE;
+    boolean inclusive = true;
+    while (true) {
+      KeyType type;
+      int count;
+      this.lock.readLock().lock();
+      try {
+        if (!this.primitiveMode) {
+          // Only use the generic store if the store switched before any key
+          // was read, the histogram is approximate anyway
+          if (inclusive) {
+            this.genericStore.populateHistogram(builder);
+          }
+          return;
+        }
+        type = this.keyType;
+        if (type == null) {
+          return;
+        }
+        count = copyAscending(cursor, inclusive, Long.MAX_VALUE, keys, values);
+      } finally {
+        this.lock.readLock().unlock();
+      }
+      for (int i = 0; i < count; i++) {
+        builder.add(type.decode(keys[i]), values[i] instanceof Object[]
+            ? ((Object[])values[i]).length : 1);
+        values[i] = null;
+      }
+      if (count < keys.length) {
+        return;
+      }
+      cursor = keys[count - 1];
+      inclusive = false;
+    }
+  }
+
+  /**
+   * Writes every index key along with the entries mapped to it to the given
+   * checkpoint. Must be called while no updates are applied to the index.
+   */
+  void writeMappings(IndexCheckpoint.Writer writer) throws IOException {
+    this.lock.readLock().lock();
+    try {
+      if (!this.primitiveMode) {
+        this.genericStore.writeMappings(writer);
+        return;
+      }
+      writer.writeMapping(IndexManager.NULL, this.nullValues);
+      writer.writeMapping(QueryService.UNDEFINED, this.undefinedValues);
+      for (Leaf leaf = firstLeaf(); leaf != null; leaf = leaf.next) {
+        for (int i = 0; i < leaf.size; i++) {
+          writer.writeMapping(this.keyType.decode(leaf.keys[i]),
+              leaf.values[i]);
+        }
+      }
+    } finally {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean isIndexOnRegionKeys() {
+    return this.genericStore.isIndexOnRegionKeys();
+  }
+
+  @Override
+  public void setIndexOnRegionKeys(boolean indexOnRegionKeys) {
+    this.genericStore.setIndexOnRegionKeys(indexOnRegionKeys);
+  }
+
+  @Override
+  public boolean isIndexOnValues() {
+    return this.genericStore.isIndexOnValues();
+  }
+
+  @Override
+  public void setIndexOnValues(boolean indexOnValues) {
+    this.genericStore.setIndexOnValues(indexOnValues);
+  }
+
+  @Override
+  public Object getTargetObject(RegionEntry entry) {
+    return this.genericStore.getTargetObject(entry);
+  }
+
+  @Override
+  public Object getTargetObjectInVM(RegionEntry entry) {
+    return this.genericStore.getTargetObjectInVM(entry);
+  }
+
+  @Override
+  public String printAll() {
+    if (!this.primitiveMode) {
+      return this.genericStore.printAll();
+    }
+    StringBuffer sb = new StringBuffer();
+    this.lock.readLock().lock();
+    try {
+      printValues(sb, IndexManager.NULL, this.nullValues);
+      printValues(sb, QueryService.UNDEFINED, this.undefinedValues);
+      for (Leaf leaf = firstLeaf(); leaf != null; leaf = leaf.next) {
+        for (int i = 0; i < leaf.size; i++) {
+          printValues(sb, this.keyType.decode(leaf.keys[i]), leaf.values[i]);
+        }
+      }
+    } finally {
+      this.lock.readLock().unlock();
+    }
+    return sb.toString();
+  }
+
+  private void printValues(StringBuffer sb, Object key, Object values) {
+    if (values == null) {
+      return;
+    }
+    sb.append("Key: " + key);
+    if (values instanceof Collection) {
+      Iterator entriesIterator = ((Collection)values).iterator();
+      while (entriesIterator.hasNext()) {
+        sb.append(" Value:"
+            + getTargetObject((RegionEntry)entriesIterator.next()));
+      }
+    }
+    else {
+      sb.append(" Value:" + getTargetObject((RegionEntry)values));
+    }
+    sb.append("\n");
+  }
+
+  private static boolean removeFromKeysToRemove(Collection keysToRemove,
+      Object key) {
+    Iterator iterator = keysToRemove.iterator();
+    while (iterator.hasNext()) {
+      try {
+        if (TypeUtils.compare(key, iterator.next(), OQLLexerTokenTypes.TOK_EQ)
+            .equals(Boolean.TRUE)) {
+          iterator.remove();
+          return true;
+        }
+      } catch (TypeMismatchException e) {
+        // they are not equals, so we just continue iterating
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Iterates over the entries of one key, either a RegionEntry or an array of
+   * them copied under the lock.
+   */
+  private class SnapshotIterator implements CloseableIterator<IndexStoreEntry> {
+    private final Object key;
+    private final Object[] entries;
+    private int position;
+    private final PrimitiveKeyIndexStoreEntry currentEntry = new PrimitiveKeyIndexStoreEntry(
+        GemFireCacheImpl.getInstance().cacheTimeMillis());
+
+    SnapshotIterator(Object key, Object values) {
+      this.key = key;
+      if (values == null) {
+        this.entries = new Object[0];
+      }
+      else if (values instanceof RegionEntry) {
+        this.entries = new Object[] { values };
+      }
+      else {
+        this.entries = (Object[])values;
+      }
+    }
+
+    public boolean hasNext() {
+      return this.position < this.entries.length;
+    }
+
+    public IndexStoreEntry next() {
+      if (this.position >= this.entries.length) {
+        throw new NoSuchElementException();
+      }
+      this.currentEntry.setEntry(this.key,
+          (RegionEntry)this.entries[this.position++]);
+      return this.currentEntry;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+      // do nothing
+    }
+  }
+
+  /**
+   * Iterates over a range of the tree one batch of keys at a time. Bounds that
+   * are not of the key type of the tree are only used to find a conservative
+   * starting point, the keys are then checked with the same comparator the
+   * {@link MemoryIndexStore} uses. If the store switches to the generic store
+   * while iterating, iteration continues there after the last returned key.
+   */
+  private class PrimitiveKeyIndexStoreIterator implements
+      CloseableIterator<IndexStoreEntry> {
+    private final boolean descending;
+
+    /** Bound iteration starts from, the upper one if descending */
+    private final Object startKey;
+
+    private final boolean startInclusive;
+
+    private final Object endKey;
+
+    private final boolean endInclusive;
+
+    private final Collection keysToRemove;
+
+    private final Comparator comparator = TypeUtils
+        .getExtendedNumericComparator();
+
+    private final long iteratorStartTime = GemFireCacheImpl.getInstance()
+        .cacheTimeMillis();
+
+    private final PrimitiveKeyIndexStoreEntry currentEntry = new PrimitiveKeyIndexStoreEntry(
+        this.iteratorStartTime);
+
+    private KeyType type;
+
+    private boolean initialized;
+
+    /** Start bound still has to be checked with the comparator */
+    private boolean checkStart;
+
+    /** End bound has to be checked with the comparator */
+    private boolean checkEnd;
+
+    private long cursor;
+
+    private boolean cursorInclusive = true;
+
+    private long last;
+
+    private boolean copiedAny;
+
+    private boolean exhausted;
+
+    private final long[] batchKeys = new long[NODE_SIZE];
+
+    private final Object[] batchValues = new Object[NODE_SIZE];
+
+    private int batchSize;
+
+    private int batchPosition;
+
+    /** Values of the current key */
+    private Object currentValues;
+
+    private Object currentKey;
+
+    private int valuePosition;
+
+    /** Iterator over the generic store once the store has switched */
+    private CloseableIterator<IndexStoreEntry> delegate;
+
+    PrimitiveKeyIndexStoreIterator(boolean descending, Object lowKey,
+        boolean lowInclusive, Object highKey, boolean highInclusive,
+        Collection keysToRemove) {
+      this.descending = descending;
+      this.startKey = descending ? highKey : lowKey;
+      this.startInclusive = descending ? highInclusive : lowInclusive;
+      this.endKey = descending ? lowKey : highKey;
+      this.endInclusive = descending ? lowInclusive : highInclusive;
+      this.keysToRemove = keysToRemove;
+    }
+
+    /**
+     * Computes the encoded bounds of the iteration. Must be called with a lock
+     * held.
+     */
+    private boolean initialize() {
+      this.initialized = true;
+      this.type = keyType;
+      if (this.type == null) {
+        return false;
+      }
+      this.cursor = this.descending ? Long.MAX_VALUE : Long.MIN_VALUE;
+      this.last = this.descending ? Long.MIN_VALUE : Long.MAX_VALUE;
+      if (this.startKey != null) {
+        if (this.type.isExact(this.startKey)) {
+          this.cursor = this.type.encodeExact(this.startKey);
+          this.cursorInclusive = this.startInclusive;
+        }
+        else {
+          this.cursor = this.type.hint(this.startKey, !this.descending);
+          this.checkStart = true;
+        }
+      }
+      if (this.endKey != null) {
+        if (this.type.isExact(this.endKey)) {
+          long end = this.type.encodeExact(this.endKey);
+          if (!this.endInclusive) {
+            if (end == (this.descending ? Long.MAX_VALUE : Long.MIN_VALUE)) {
+              return false;
+            }
+            end = this.descending ? end + 1 : end - 1;
+          }
+          this.last = end;
+        }
+        else {
+          this.last = this.type.hint(this.endKey, this.descending);
+          this.checkEnd = true;
+        }
+      }
+      return true;
+    }
+
+    /** Returns false if no more keys could be copied */
+    private boolean fillBatch() {
+      lock.readLock().lock();
+      try {
+        if (!primitiveMode) {
+          this.delegate = continueInGenericStore();
+          return false;
+        }
+        if (!this.initialized && !initialize()) {
+          this.exhausted = true;
+          return false;
+        }
+        if (this.descending) {
+          this.batchSize = copyDescending(this.cursor, this.cursorInclusive,
+              this.last, this.batchKeys, this.batchValues);
+        }
+        else {
+          this.batchSize = copyAscending(this.cursor, this.cursorInclusive,
+              this.last, this.batchKeys, this.batchValues);
+        }
+      } finally {
+        lock.readLock().unlock();
+      }
+      this.batchPosition = 0;
+      if (this.batchSize < this.batchKeys.length) {
+        this.exhausted = true;
+      }
+      if (this.batchSize > 0) {
+        this.copiedAny = true;
+        this.cursor = this.batchKeys[this.batchSize - 1];
+        this.cursorInclusive = false;
+      }
+      return this.batchSize > 0;
+    }
+
+    /**
+     * Creates an iterator over the generic store for the part of the range
+     * that has not been returned yet.
+     */
+    private CloseableIterator<IndexStoreEntry> continueInGenericStore() {
+      Object from = this.startKey;
+      boolean fromInclusive = this.startInclusive;
+      if (this.copiedAny && !this.checkStart) {
+        from = this.type.decode(this.cursor);
+        fromInclusive = false;
+      }
+      Object low = this.descending ? this.endKey : from;
+      boolean lowInclusive = this.descending ? this.endInclusive
+          : fromInclusive;
+      Object high = this.descending ? from : this.endKey;
+      boolean highInclusive = this.descending ? fromInclusive
+          : this.endInclusive;
+      if (this.descending) {
+        if (high == null) {
+          return low == null ? genericStore
+              .descendingIterator(this.keysToRemove) : genericStore
+              .descendingIterator(low, lowInclusive, this.keysToRemove);
+        }
+        return genericStore.descendingIterator(low, lowInclusive, high,
+            highInclusive, this.keysToRemove);
+      }
+      if (high == null) {
+        return low == null ? genericStore.iterator(this.keysToRemove)
+            : genericStore.iterator(low, lowInclusive, this.keysToRemove);
+      }
+      return genericStore.iterator(low, lowInclusive, high, highInclusive,
+          this.keysToRemove);
+    }
+
+    public boolean hasNext() {
+      if (this.delegate != null) {
+        return this.delegate.hasNext();
+      }
+      while (true) {
+        if (this.currentValues instanceof Object[]
+            && this.valuePosition < ((Object[])this.currentValues).length) {
+          return true;
+        }
+        if (this.currentValues instanceof RegionEntry) {
+          return true;
+        }
+        this.currentValues = null;
+        if (this.batchPosition >= this.batchSize) {
+          if (this.exhausted || !fillBatch()) {
+            if (this.delegate != null) {
+              return this.delegate.hasNext();
+            }
+            this.exhausted = true;
+            return false;
+          }
+        }
+        Object key = this.type.decode(this.batchKeys[this.batchPosition]);
+        Object values = this.batchValues[this.batchPosition];
+        this.batchValues[this.batchPosition] = null;
+        this.batchPosition++;
+        if (this.checkStart) {
+          int cmp = this.comparator.compare(key, this.startKey);
+          if (this.descending ? cmp > 0 : cmp < 0) {
+            continue;
+          }
+          if (cmp == 0 && !this.startInclusive) {
+            continue;
+          }
+          this.checkStart = false;
+        }
+        if (this.checkEnd) {
+          int cmp = this.comparator.compare(key, this.endKey);
+          if ((this.descending ? cmp < 0 : cmp > 0)
+              || (cmp == 0 && !this.endInclusive)) {
+            this.exhausted = true;
+            this.batchSize = 0;
+            return false;
+          }
+        }
+        if (this.keysToRemove != null
+            && removeFromKeysToRemove(this.keysToRemove, key)) {
+          continue;
+        }
+        this.currentKey = key;
+        this.currentValues = values;
+        this.valuePosition = 0;
+      }
+    }
+
+    public IndexStoreEntry next() {
+      if (this.delegate != null) {
+        return this.delegate.next();
+      }
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      if (this.delegate != null) {
+        return this.delegate.next();
+      }
+      RegionEntry re;
+      if (this.currentValues instanceof RegionEntry) {
+        re = (RegionEntry)this.currentValues;
+        this.currentValues = null;
+      }
+      else {
+        re = (RegionEntry)((Object[])this.currentValues)[this.valuePosition++];
+      }
+      this.currentEntry.setEntry(this.currentKey, re);
+      return this.currentEntry;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+      if (this.delegate != null) {
+        this.delegate.close();
+      }
+    }
+  }
+
+  /**
+   * A wrapper over a key and one of the entries mapped to it
+   */
+  class PrimitiveKeyIndexStoreEntry implements IndexStoreEntry {
+    private Object deserializedIndexKey;
+    private RegionEntry regionEntry;
+    private boolean updateInProgress;
+    private Object value;
+    private final long iteratorStartTime;
+
+    private PrimitiveKeyIndexStoreEntry(long iteratorStartTime) {
+      this.iteratorStartTime = iteratorStartTime;
+    }
+
+    void setEntry(Object deserializedIndexKey, RegionEntry regionEntry) {
+      this.deserializedIndexKey = deserializedIndexKey;
+      this.regionEntry = regionEntry;
+      this.updateInProgress = regionEntry.isUpdateInProgress();
+      this.value = getTargetObject(regionEntry);
+    }
+
+    @Override
+    public Object getDeserializedKey() {
+      return this.deserializedIndexKey;
+    }
+
+    @Override
+    public Object getDeserializedValue() {
+      return this.value;
+    }
+
+    @Override
+    public Object getDeserializedRegionKey() {
+      return this.regionEntry.getKey();
+    }
+
+    public RegionEntry getRegionEntry() {
+      return this.regionEntry;
+    }
+
+    @Override
+    public boolean isUpdateInProgress() {
+      return this.updateInProgress
+          || this.regionEntry.isUpdateInProgress()
+          // The index update could have started just before the iterator was
+          // created. The entry still needs to be re-evaluated in this case.
+          || IndexManager.needsRecalculation(this.iteratorStartTime,
+              this.regionEntry.getLastModified());
+    }
+  }
+
+  /**
+   * The supported key types and their order preserving encoding as longs.
+   */
+  enum KeyType {
+    INTEGER(Integer.class) {
+      @Override
+      long encode(Object key) {
+        return ((Integer)key).intValue();
+      }
+
+      @Override
+      Object decode(long encoded) {
+        return Integer.valueOf((int)encoded);
+      }
+    },
+    LONG(Long.class) {
+      @Override
+      long encode(Object key) {
+        return ((Long)key).longValue();
+      }
+
+      @Override
+      Object decode(long encoded) {
+        return Long.valueOf(encoded);
+      }
+    },
+    FLOAT(Float.class) {
+      @Override
+      long encode(Object key) {
+        return encodeDouble(((Float)key).floatValue());
+      }
+
+      @Override
+      Object decode(long encoded) {
+        return Float.valueOf((float)decodeDouble(encoded));
+      }
+    },
+    DOUBLE(Double.class) {
+      @Override
+      long encode(Object key) {
+        return encodeDouble(((Double)key).doubleValue());
+      }
+
+      @Override
+      Object decode(long encoded) {
+        return Double.valueOf(decodeDouble(encoded));
+      }
+    },
+    DATE(Date.class) {
+      @Override
+      long encode(Object key) {
+        return ((Date)key).getTime();
+      }
+
+      @Override
+      Object decode(long encoded) {
+        return new Date(encoded);
+      }
+    },
+    /**
+     * Timestamps are encoded as nanoseconds since the epoch, the whole
+     * seconds of {@link Date#getTime} plus {@link Timestamp#getNanos}. This
+     * covers the years 1678 to 2261, a store with a timestamp outside of this
+     * range is moved to the generic store.
+     */
+    TIMESTAMP(Timestamp.class) {
+      @Override
+      boolean canEncode(Object key) {
+        long seconds = floorDiv(((Timestamp)key).getTime(), 1000);
+        return seconds > MIN_TIMESTAMP_SECONDS
+            && seconds < MAX_TIMESTAMP_SECONDS;
+      }
+
+      @Override
+      long encode(Object key) {
+        Timestamp ts = (Timestamp)key;
+        return floorDiv(ts.getTime(), 1000) * NANOS_PER_SECOND + ts.getNanos();
+      }
+
+      @Override
+      Object decode(long encoded) {
+        long seconds = floorDiv(encoded, NANOS_PER_SECOND);
+        Timestamp ts = new Timestamp(seconds * 1000);
+        ts.setNanos((int)(encoded - seconds * NANOS_PER_SECOND));
+        return ts;
+      }
+    };
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private static final long MIN_TIMESTAMP_SECONDS = Long.MIN_VALUE
+        / NANOS_PER_SECOND;
+
+    private static final long MAX_TIMESTAMP_SECONDS = Long.MAX_VALUE
+        / NANOS_PER_SECOND;
+
+    final Class keyClass;
+
+    private KeyType(Class keyClass) {
+      this.keyClass = keyClass;
+    }
+
+    /**
+     * Returns true if the key, which must be of the key class, can be
+     * encoded
+     */
+    boolean canEncode(Object key) {
+      return true;
+    }
+
+    abstract long encode(Object key);
+
+    abstract Object decode(long encoded);
+
+    static KeyType forKey(Object key) {
+      if (key == null) {
+        return null;
+      }
+      Class c = key.getClass();
+      for (KeyType type : values()) {
+        if (type.keyClass == c) {
+          return type.canEncode(key) ? type : null;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Returns true if the key is of the key class and can be encoded
+     */
+    boolean accepts(Object key) {
+      return key != null && key.getClass() == this.keyClass && canEncode(key);
+    }
+
+    private boolean isIntegral() {
+      return this == INTEGER || this == LONG;
+    }
+
+    /**
+     * Returns true if the search key compares to the keys of this type exactly
+     * like its encoding does.
+     */
+    boolean isExact(Object searchKey) {
+      if (isIntegral()) {
+        return searchKey instanceof Integer || searchKey instanceof Long
+            || searchKey instanceof Short || searchKey instanceof Byte;
+      }
+      return accepts(searchKey);
+    }
+
+    long encodeExact(Object searchKey) {
+      if (isIntegral()) {
+        return ((Number)searchKey).longValue();
+      }
+      return encode(searchKey);
+    }
+
+    /**
+     * Returns an encoded key that is smaller (or larger, if upper) than any
+     * key that compares greater (or smaller) than the search key. Numbers of
+     * other types are compared after a conversion that may round, so the
+     * bound is widened by a margin.
+     */
+    long hint(Object searchKey, boolean lower) {
+      long unbounded = lower ? Long.MIN_VALUE : Long.MAX_VALUE;
+      if (this == DATE) {
+        if (searchKey instanceof Date) {
+          long time = ((Date)searchKey).getTime();
+          return lower ? time - 1 : time + 1;
+        }
+        return unbounded;
+      }
+      if (this == TIMESTAMP) {
+        // A Date or Timestamp may compare by milliseconds only, so the bound
+        // covers every timestamp within the millisecond of the search key
+        if (searchKey instanceof Date) {
+          long time = ((Date)searchKey).getTime();
+          long seconds = floorDiv(time, 1000);
+          if (seconds <= MIN_TIMESTAMP_SECONDS + 1
+              || seconds >= MAX_TIMESTAMP_SECONDS - 1) {
+            return unbounded;
+          }
+          long millis = seconds * NANOS_PER_SECOND
+              + (time - seconds * 1000) * 1000000L;
+          return lower ? millis - 1 : millis + 1000000L;
+        }
+        return unbounded;
+      }
+      if (!(searchKey instanceof Number)) {
+        return unbounded;
+      }
+      double d = ((Number)searchKey).doubleValue();
+      if (Double.isNaN(d) || Double.isInfinite(d)) {
+        return unbounded;
+      }
+      double margin = Math.abs(d) * 1.0E-6d + 1.0E-40d;
+      double bound = lower ? d - margin : d + margin;
+      if (isIntegral()) {
+        if (Math.abs(bound) > 4.0E18d) {
+          return unbounded;
+        }
+        return lower ? (long)Math.floor(bound) - 1 : (long)Math.ceil(bound) + 1;
+      }
+      return encodeDouble(bound);
+    }
+
+    /**
+     * Encodes a double so that the encoded values sort like
+     * {@link Double#compareTo}.
+     */
+    static long encodeDouble(double d) {
+      long bits = Double.doubleToLongBits(d);
+      return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    static double decodeDouble(long encoded) {
+      return Double.longBitsToDouble(encoded
+          ^ ((encoded >> 63) & Long.MAX_VALUE));
+    }
+
+    private static long floorDiv(long x, long y) {
+      long q = x / y;
+      return (x % y != 0 && (x ^ y) < 0) ? q - 1 : q;
+    }
+  }
+}
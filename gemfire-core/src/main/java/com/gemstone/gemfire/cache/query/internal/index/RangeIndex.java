@@ -1595,6 +1595,18 @@ public String dump() {
       this.vsdStats.incReadLockCount(delta);
     }
 
+    public void incPopulatesInProgress(int delta) {
+      this.vsdStats.incPopulatesInProgress(delta);
+    }
+
+    public void incPopulatedEntries(long delta) {
+      this.vsdStats.incPopulatedEntries(delta);
+    }
+
+    public void incPopulateTime(long delta) {
+      this.vsdStats.incPopulateTime(delta);
+    }
+
     public long getUseTime() {
       return this.vsdStats.getUseTime();
     }
@@ -144,6 +144,18 @@ public interface DMStats {
   public void incBatchCopyTime(long start);
   public void incBatchWaitTime(long start);
   public void incBatchFlushTime(long start);
+  /**
+   * Increments the number of coalesced writes on shared connections and the
+   * number of messages they carried.
+   * @since 9.0
+   */
+  public void incCoalescedWrites(int messages);
+  /**
+   * Increments the time senders spent waiting for their coalesced messages
+   * to be written.
+   * @since 9.0
+   */
+  public void incCoalesceWaitTime(long start);
   /**
    * Increments the total number of nanoseconds spent scheduling messages to be processed.
    */
@@ -556,6 +568,54 @@ public interface DMStats {
    * @since 5.0.2.4 
    */
   public void incSenderBufferSize(int inc, boolean direct);
+  /**
+   * @since 9.0
+   */
+  public void incBufferPoolHits();
+  /**
+   * @since 9.0
+   */
+  public void incBufferPoolAllocations();
+  /**
+   * @since 9.0
+   */
+  public void incBufferPoolFreeSize(int inc);
+  /**
+   * @return the timestamp that marks the start of compressing a message chunk
+   * @since 9.0
+   */
+  public long startCompression();
+  /**
+   * Records a message chunk of the given size that was compressed to the
+   * given number of bytes.
+   * @since 9.0
+   */
+  public void endCompression(long start, int inputBytes, int outputBytes);
+  /**
+   * @return the timestamp that marks the start of decompressing a message chunk
+   * @since 9.0
+   */
+  public long startDecompression();
+  /**
+   * @since 9.0
+   */
+  public void endDecompression(long start);
+  /**
+   * Records how long sending a message of the given class took.
+   * @since 9.0
+   */
+  public void recordMessageSendTime(Class<?> messageClass, long nanos);
+  /**
+   * Records how long processing a message of the given class took.
+   * @since 9.0
+   */
+  public void recordMessageProcessTime(Class<?> messageClass, long nanos);
+  /**
+   * Records how long the sender of a message of the given class waited for
+   * its replies.
+   * @since 9.0
+   */
+  public void recordReplyWaitTime(Class<?> messageClass, long nanos);
   /**
    * @since 5.0.2.4 
    */
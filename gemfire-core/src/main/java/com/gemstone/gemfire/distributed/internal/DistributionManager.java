@@ -174,6 +174,22 @@ public class DistributionManager
   public static final int MAX_FE_THREADS = Integer.getInteger("DistributionManager.MAX_FE_THREADS", Math.max(Runtime.getRuntime().availableProcessors()*4, 16)).intValue();
   //    Integer.getInteger("DistributionManager.MAX_THREADS", max(Runtime.getRuntime().availableProcessors()*2, 2)).intValue();
 
+  /**
+   * Whether to run the messages handed to the waiting, partitioned region
+   * and function execution pools on virtual threads instead of on a bounded
+   * set of platform threads. Ignored, with a warning, before Java 24, see
+   * {@link VirtualThreads}.
+   * @since 9.0
+   */
+  public static final boolean VIRTUAL_THREADS = Boolean.getBoolean("DistributionManager.VIRTUAL_THREADS");
+
+  /**
+   * How long, in milliseconds, an idle virtual thread of the pools waits for
+   * another message before it ends
+   * @since 9.0
+   */
+  public static final int VIRTUAL_THREAD_KEEP_ALIVE = Integer.getInteger("DistributionManager.VIRTUAL_THREAD_KEEP_ALIVE", 60000).intValue();
+
   public static final int INCOMING_QUEUE_LIMIT =
     Integer.getInteger("DistributionManager.INCOMING_QUEUE_LIMIT", 80000).intValue();
   public static final int INCOMING_QUEUE_THROTTLE =
@@ -420,6 +436,12 @@ public class DistributionManager
 
   /** The group of distribution manager threads */
   protected LoggingThreadGroup threadGroup;
+
+  /**
+   * True if {@link #VIRTUAL_THREADS} is set and this JVM has virtual threads
+   * @since 9.0
+   */
+  private final boolean useVirtualThreads;
   
   /** Message processing thread pool */
   private ThreadPoolExecutor threadPool;
@@ -687,6 +709,21 @@ public class DistributionManager
     }
   }
 
+  /**
+   * Returns a new thread for one of the pools that may run on virtual
+   * threads: a virtual thread if {@link #useVirtualThreads}, otherwise a
+   * daemon thread in the given group. The group also handles the exceptions
+   * a virtual thread does not catch.
+   */
+  private Thread newProcessorThread(LoggingThreadGroup group, Runnable r, String name) {
+    if (this.useVirtualThreads) {
+      return VirtualThreads.newThread(r, name, group);
+    }
+    Thread thread = new Thread(group, r, name);
+    thread.setDaemon(true);
+    return thread;
+  }
+
   void runUntilShutdown(Runnable r) {
     try {
       r.run();
@@ -821,6 +858,7 @@ public class DistributionManager
     this.myid = null;
     this.description = null;
     this.dmType = 0;
+    this.useVirtualThreads = false;
     throw new IllegalAccessError("this constructor should never be invoked");
   }
 
@@ -859,6 +897,11 @@ public class DistributionManager
     final LoggingThreadGroup group =
       LoggingThreadGroup.createThreadGroup("DistributionManager Threads", logger);
     this.threadGroup = group;
+
+    this.useVirtualThreads = VIRTUAL_THREADS && VirtualThreads.isSupported();
+    if (VIRTUAL_THREADS && !this.useVirtualThreads) {
+      logger.warn("DistributionManager.VIRTUAL_THREADS is ignored because virtual threads are only used from Java " + VirtualThreads.MIN_JAVA_VERSION + " on");
+    }
     
     boolean finishedConstructor = false;
     try {
@@ -1033,10 +1076,8 @@ public class DistributionManager
                   }
                 }
               };
-            Thread thread = new Thread(group, r, 
-                                       LocalizedStrings.DistributionManager_POOLED_WAITING_MESSAGE_PROCESSOR.toLocalizedString() + (next++));
-            thread.setDaemon(true);
-            return thread;
+            return newProcessorThread(group, r,
+                LocalizedStrings.DistributionManager_POOLED_WAITING_MESSAGE_PROCESSOR.toLocalizedString() + (next++));
           }
         };
       BlockingQueue poolQueue;
@@ -1046,10 +1087,13 @@ public class DistributionManager
       } else {
         poolQueue = new OverflowQueueWithDMStats(this.stats.getWaitingQueueHelper());
       }
-      this.waitingPool = new PooledExecutorWithDMStats(poolQueue,
-                                                       MAX_WAITING_THREADS,
-                                                       this.stats.getWaitingPoolHelper(),
-                                                       tf);
+      if (useVirtualThreads) {
+        this.waitingPool = new PooledExecutorWithDMStats(poolQueue,
+            Integer.MAX_VALUE, this.stats.getWaitingPoolHelper(), tf, VIRTUAL_THREAD_KEEP_ALIVE);
+      } else {
+        this.waitingPool = new PooledExecutorWithDMStats(poolQueue,
+            MAX_WAITING_THREADS, this.stats.getWaitingPoolHelper(), tf);
+      }
     }
     
     {
@@ -1110,13 +1154,14 @@ public class DistributionManager
                 }
               }
             };
-          Thread thread = new Thread(group, r, 
-                                     "PartitionedRegion Message Processor" + (next++));
-          thread.setDaemon(true);
-          return thread;
+          return newProcessorThread(group, r,
+              "PartitionedRegion Message Processor" + (next++));
         }
       };
-      if (MAX_PR_THREADS > 1) {
+      if (MAX_PR_THREADS > 1 && useVirtualThreads) {
+        this.partitionedRegionPool = new PooledExecutorWithDMStats(poolQueue, 
+            Integer.MAX_VALUE, this.stats.getPartitionedRegionPoolHelper(), tf, VIRTUAL_THREAD_KEEP_ALIVE);
+      } else if (MAX_PR_THREADS > 1) {
         this.partitionedRegionPool = new PooledExecutorWithDMStats(poolQueue, 
             MAX_PR_THREADS, this.stats.getPartitionedRegionPoolHelper(), tf);
       } else {
@@ -1153,14 +1198,15 @@ public class DistributionManager
                 }
               }
             };
-          Thread thread = new Thread(group, r, 
-                                     "Function Execution Processor" + (next++));
-          thread.setDaemon(true);
-          return thread;
+          return newProcessorThread(group, r,
+              "Function Execution Processor" + (next++));
         }
       };
       
-      if(MAX_FE_THREADS > 1){
+      if (MAX_FE_THREADS > 1 && useVirtualThreads) {
+        this.functionExecutionPool = new FunctionExecutionPooledExecutor(poolQueue, 
+            Integer.MAX_VALUE, this.stats.getFunctionExecutionPoolHelper(), tf, VIRTUAL_THREAD_KEEP_ALIVE, true /*for fn exec*/);
+      } else if(MAX_FE_THREADS > 1){
         this.functionExecutionPool = new FunctionExecutionPooledExecutor(poolQueue, 
             MAX_FE_THREADS, this.stats.getFunctionExecutionPoolHelper(), tf,true /*for fn exec*/);
       } else {
@@ -3786,6 +3832,12 @@ public class DistributionManager
     if (DistributionStats.enableClockStats) {
       stats.incSentMessagesTime(endTime-startTime);
       stats.incDistributeMessageTime(endTime - message.getTimestamp());
+      stats.recordMessageSendTime(message.getClass(), endTime-startTime);
+      // let the processor time its reply wait against this message class
+      ReplyProcessor21 processor = message.getReplyProcessor();
+      if (processor != null) {
+        processor.setMessageClass(message.getClass());
+      }
     }
     
     return result;
@@ -108,6 +108,13 @@ public abstract class DistributionMessage
    * True if the P2P reader that received this message is a SHARED reader.
    */
   private transient boolean sharedReceiver;
+
+  /**
+   * The processor that waits for the replies to this message, handed over
+   * by the sender so the reply wait can be timed against this message class.
+   * @since 9.0
+   */
+  private transient ReplyProcessor21 replyProcessor;
   
   //////////////////////  Constructors  //////////////////////
 
@@ -400,6 +407,8 @@ public abstract class DistributionMessage
       dm.getStats().incProcessedMessages(1L);
       if (DistributionStats.enableClockStats) {
         dm.getStats().incProcessedMessagesTime(time);
+        dm.getStats().recordMessageProcessTime(getClass(),
+            DistributionStats.getStatTime() - time);
       }
       Breadcrumbs.clearBreadcrumb();
       MessageDependencyMonitor.doneProcessing(this);
@@ -647,6 +656,30 @@ public abstract class DistributionMessage
   public int getProcessorId() {
     return 0;
   }
+
+  /**
+   * Hands this message the processor that waits for its replies. Only used
+   * on the sending side, for statistics.
+   * @since 9.0
+   */
+  public void setReplyProcessor(ReplyProcessor21 processor) {
+    this.replyProcessor = processor;
+  }
+
+  /**
+   * Returns the processor that waits for the replies to this message, if
+   * the sender handed it over and it still goes with the processor id of
+   * this message
+   * @since 9.0
+   */
+  public ReplyProcessor21 getReplyProcessor() {
+    ReplyProcessor21 processor = this.replyProcessor;
+    if (processor != null && processor.getProcessorId() != getProcessorId()) {
+      // the message was given another processor id since
+      return null;
+    }
+    return processor;
+  }
   
   /**
    * Severe alert processing enables suspect processing at the ack-wait-threshold
@@ -7,6 +7,10 @@
  */
 package com.gemstone.gemfire.distributed.internal;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.apache.logging.log4j.Logger;
 
 import com.gemstone.gemfire.StatisticDescriptor;
@@ -17,6 +21,7 @@ import com.gemstone.gemfire.StatisticsTypeFactory;
 import com.gemstone.gemfire.i18n.LogWriterI18n;
 import com.gemstone.gemfire.internal.NanoTimer;
 import com.gemstone.gemfire.internal.StatisticsTypeFactoryImpl;
+import com.gemstone.gemfire.internal.SystemTimer;
 import com.gemstone.gemfire.internal.logging.LogService;
 //import java.io.*;
 import com.gemstone.gemfire.internal.tcp.Buffers;
@@ -35,6 +40,14 @@ public class DistributionStats implements DMStats {
   
   public static boolean enableClockStats = false;
 
+  /**
+   * True unless the latency histograms of each message class, which are
+   * kept while time statistics are enabled, have been turned off.
+   * @since 9.0
+   */
+  public static final boolean LATENCY_HISTOGRAMS = !Boolean.getBoolean(
+      "gemfire.DistributionStats.DISABLE_LATENCY_HISTOGRAMS");
+
 
   //////////////////  Statistic "Id" Fields  //////////////////
 
@@ -141,6 +154,10 @@ public class DistributionStats implements DMStats {
   private final static int batchWaitTimeId;
   private final static int batchFlushTimeId;
 
+  private final static int coalescedWritesId;
+  private final static int coalescedMessagesId;
+  private final static int coalesceWaitTimeId;
+
   private final static int ucastFlushesId;
   private final static int ucastFlushTimeId;
 
@@ -220,6 +237,16 @@ public class DistributionStats implements DMStats {
   private static final int receiverHeapBufferSizeId;
   private static final int senderDirectBufferSizeId;
   private static final int senderHeapBufferSizeId;
+  private static final int bufferPoolHitsId;
+  private static final int bufferPoolAllocationsId;
+  private static final int bufferPoolFreeSizeId;
+
+  private static final int compressedChunksId;
+  private static final int compressionInputBytesId;
+  private static final int compressionOutputBytesId;
+  private static final int compressionTimeId;
+  private static final int decompressedChunksId;
+  private static final int decompressionTimeId;
 
   private static final int messagesBeingReceivedId;
   private static final int messageBytesBeingReceivedId;
@@ -453,6 +480,10 @@ public class DistributionStats implements DMStats {
         f.createLongCounter("batchCopyTime", "Total amount of time, in nanoseconds, spent copying messages for batched transmission", "nanoseconds"),
         f.createLongCounter("batchFlushTime", "Total amount of time, in nanoseconds, spent flushing batched messages to the network", "nanoseconds"),
 
+        f.createLongCounter("coalescedWrites", "Total number of socket writes that carried messages coalesced on a shared connection", "writes"),
+        f.createLongCounter("coalescedMessages", "Total number of messages sent in coalesced writes. Divided by coalescedWrites this is the average batch size.", "messages"),
+        f.createLongCounter("coalesceWaitTime", "Total amount of time, in nanoseconds, spent by senders waiting for their coalesced messages to be written", "nanoseconds"),
+
         f.createIntCounter("ucastFlushes", "Total number of flushes of the unicast datagram protocol, prior to sending a multicast message", "flushes"),
         f.createLongCounter("ucastFlushTime", "Total amount of time, in nanoseconds, spent waiting for acknowledgements for outstanding unicast datagram messages", "nanoseconds"),
 
@@ -551,6 +582,15 @@ public class DistributionStats implements DMStats {
         f.createLongGauge("receiverHeapBufferSize", receiverHeapBufferSizeDesc, "bytes"),
         f.createLongGauge("senderDirectBufferSize", senderDirectBufferSizeDesc, "bytes"),
         f.createLongGauge("senderHeapBufferSize", senderHeapBufferSizeDesc, "bytes"),
+        f.createLongCounter("bufferPoolHits", "Total number of direct network buffers acquired from the buffer pool without allocating memory.", "buffers"),
+        f.createLongCounter("bufferPoolAllocations", "Total number of direct memory allocations, of slabs or of single buffers, made by the buffer pool.", "allocations"),
+        f.createLongGauge("bufferPoolFreeSize", "Current number of bytes of direct network buffers in the buffer pool that are not in use.", "bytes"),
+        f.createLongCounter("compressedChunks", "Total number of message chunks compressed before being sent on P2P connections.", "chunks"),
+        f.createLongCounter("compressionInputBytes", "Total number of bytes of message chunks that were compressed.", "bytes"),
+        f.createLongCounter("compressionOutputBytes", "Total number of bytes the compressed message chunks were reduced to. Divided by compressionInputBytes this is the compression ratio.", "bytes"),
+        f.createLongCounter("compressionTime", "Total amount of time, in nanoseconds, spent compressing message chunks.", "nanoseconds"),
+        f.createLongCounter("decompressedChunks", "Total number of compressed message chunks received on P2P connections.", "chunks"),
+        f.createLongCounter("decompressionTime", "Total amount of time, in nanoseconds, spent decompressing message chunks.", "nanoseconds"),
         f.createIntGauge("socketLocksInProgress", "Current number of threads waiting to lock a socket", "threads", false),
         f.createIntCounter("socketLocks", "Total number of times a socket has been locked.", "locks"),
         f.createLongCounter("socketLockTime", "Total amount of time, in nanoseconds, spent locking a socket", "nanoseconds", false),
@@ -688,6 +728,10 @@ public class DistributionStats implements DMStats {
     batchWaitTimeId = type.nameToId("batchWaitTime");
     batchFlushTimeId = type.nameToId("batchFlushTime");
 
+    coalescedWritesId = type.nameToId("coalescedWrites");
+    coalescedMessagesId = type.nameToId("coalescedMessages");
+    coalesceWaitTimeId = type.nameToId("coalesceWaitTime");
+
     ucastFlushesId = type.nameToId("ucastFlushes");
     ucastFlushTimeId = type.nameToId("ucastFlushTime");
 
@@ -758,6 +802,16 @@ public class DistributionStats implements DMStats {
     receiverHeapBufferSizeId = type.nameToId("receiverHeapBufferSize");
     senderDirectBufferSizeId = type.nameToId("senderDirectBufferSize");
     senderHeapBufferSizeId = type.nameToId("senderHeapBufferSize");
+    bufferPoolHitsId = type.nameToId("bufferPoolHits");
+    bufferPoolAllocationsId = type.nameToId("bufferPoolAllocations");
+    bufferPoolFreeSizeId = type.nameToId("bufferPoolFreeSize");
+
+    compressedChunksId = type.nameToId("compressedChunks");
+    compressionInputBytesId = type.nameToId("compressionInputBytes");
+    compressionOutputBytesId = type.nameToId("compressionOutputBytes");
+    compressionTimeId = type.nameToId("compressionTime");
+    decompressedChunksId = type.nameToId("decompressedChunks");
+    decompressionTimeId = type.nameToId("decompressionTime");
 
     socketLocksInProgressId = type.nameToId("socketLocksInProgress");
     socketLocksId = type.nameToId("socketLocks");
@@ -800,6 +854,25 @@ public class DistributionStats implements DMStats {
 //  private final HistogramStats replyHandoffHistogram;
 //  private final HistogramStats replyWaitHistogram;
 
+  /**
+   * The system the latency statistics of message classes are created in,
+   * or null if this instance does not keep them
+   */
+  private final InternalDistributedSystem system;
+
+  /** The latency statistics of each message class that has been timed */
+  private final ConcurrentHashMap<Class<?>, MessageLatencyStats> latencyStats =
+    new ConcurrentHashMap<Class<?>, MessageLatencyStats>();
+
+  /**
+   * Samples the latency statistics once they exist
+   * @guarded.By {@link #latencyStats}
+   */
+  private SystemTimer latencyTimer;
+
+  /** @guarded.By {@link #latencyStats} */
+  private boolean closed;
+
   ////////////////////////  Constructors  ////////////////////////
 
   /**
@@ -808,6 +881,8 @@ public class DistributionStats implements DMStats {
    */
   public DistributionStats(StatisticsFactory f, long statId) {
     this.stats = f.createAtomicStatistics(type, "distributionStats", statId);
+    this.system = f instanceof InternalDistributedSystem
+        ? (InternalDistributedSystem)f : null;
 //    this.replyHandoffHistogram = new HistogramStats("ReplyHandOff", "nanoseconds", f,
 //        new long[] {100000, 200000, 300000, 400000, 500000, 600000, 700000, 800000, 900000, 1000000}, false);
 //    this.replyWaitHistogram = new HistogramStats("ReplyWait", "nanoseconds", f,
@@ -819,6 +894,7 @@ public class DistributionStats implements DMStats {
    */
   public DistributionStats(Statistics stats) {
     this.stats = stats;
+    this.system = null;
 //    this.replyHandoffHistogram = null;
 //    this.replyWaitHistogram = null;
   }
@@ -834,6 +910,15 @@ public class DistributionStats implements DMStats {
   //////////////////////  Instance Methods  //////////////////////
 
   public void close() {
+    synchronized (this.latencyStats) {
+      this.closed = true;
+      if (this.latencyTimer != null) {
+        this.latencyTimer.cancel();
+      }
+      for (MessageLatencyStats mls : this.latencyStats.values()) {
+        mls.close();
+      }
+    }
     this.stats.close();
   }
 
@@ -1770,6 +1855,21 @@ public class DistributionStats implements DMStats {
       stats.incLong(batchFlushTimeId, getStatTime()-start);
     }
   }
+  public void incCoalescedWrites(int messages) {
+    stats.incLong(coalescedWritesId, 1);
+    stats.incLong(coalescedMessagesId, messages);
+  }
+  public void incCoalesceWaitTime(long start) {
+    if (enableClockStats) {
+      stats.incLong(coalesceWaitTimeId, getStatTime()-start);
+    }
+  }
+  public long getCoalescedWrites() {
+    return stats.getLong(coalescedWritesId);
+  }
+  public long getCoalescedMessages() {
+    return stats.getLong(coalescedMessagesId);
+  }
   public void incUcastRetransmits() {
     stats.incInt(ucastRetransmitsId, 1);
   }
@@ -1978,6 +2078,128 @@ public class DistributionStats implements DMStats {
       stats.incLong(senderHeapBufferSizeId, inc);
     }
   }
+  /**
+   * @since 9.0
+   */
+  public void incBufferPoolHits() {
+    stats.incLong(bufferPoolHitsId, 1);
+  }
+  /**
+   * @since 9.0
+   */
+  public void incBufferPoolAllocations() {
+    stats.incLong(bufferPoolAllocationsId, 1);
+  }
+  /**
+   * @since 9.0
+   */
+  public void incBufferPoolFreeSize(int inc) {
+    stats.incLong(bufferPoolFreeSizeId, inc);
+  }
+  /**
+   * @since 9.0
+   */
+  public long startCompression() {
+    return getStatTime();
+  }
+  /**
+   * @since 9.0
+   */
+  public void endCompression(long start, int inputBytes, int outputBytes) {
+    stats.incLong(compressedChunksId, 1);
+    stats.incLong(compressionInputBytesId, inputBytes);
+    stats.incLong(compressionOutputBytesId, outputBytes);
+    if (enableClockStats) {
+      stats.incLong(compressionTimeId, getStatTime()-start);
+    }
+  }
+  /**
+   * @since 9.0
+   */
+  public long startDecompression() {
+    return getStatTime();
+  }
+  /**
+   * @since 9.0
+   */
+  public void endDecompression(long start) {
+    stats.incLong(decompressedChunksId, 1);
+    if (enableClockStats) {
+      stats.incLong(decompressionTimeId, getStatTime()-start);
+    }
+  }
+  /**
+   * @since 9.0
+   */
+  public void recordMessageSendTime(Class<?> messageClass, long nanos) {
+    recordLatency(messageClass, MessageLatencyStats.SEND, nanos);
+  }
+  /**
+   * @since 9.0
+   */
+  public void recordMessageProcessTime(Class<?> messageClass, long nanos) {
+    recordLatency(messageClass, MessageLatencyStats.PROCESS, nanos);
+  }
+  /**
+   * @since 9.0
+   */
+  public void recordReplyWaitTime(Class<?> messageClass, long nanos) {
+    recordLatency(messageClass, MessageLatencyStats.REPLY_WAIT, nanos);
+  }
+
+  private void recordLatency(Class<?> messageClass, int kind, long nanos) {
+    if (!enableClockStats || !LATENCY_HISTOGRAMS || this.system == null) {
+      return;
+    }
+    MessageLatencyStats mls = this.latencyStats.get(messageClass);
+    if (mls == null) {
+      mls = createLatencyStats(messageClass);
+      if (mls == null) {
+        return;
+      }
+    }
+    mls.record(kind, nanos);
+  }
+
+  private MessageLatencyStats createLatencyStats(Class<?> messageClass) {
+    synchronized (this.latencyStats) {
+      if (this.closed) {
+        return null;
+      }
+      MessageLatencyStats mls = this.latencyStats.get(messageClass);
+      if (mls == null) {
+        if (this.latencyTimer == null) {
+          long rate = this.system.getConfig().getStatisticSampleRate();
+          this.latencyTimer = new SystemTimer("Message latency sampler",
+              this.system, true);
+          this.latencyTimer.scheduleAtFixedRate(new SystemTimer.SystemTimerTask() {
+            @Override
+            public void run2() {
+              for (MessageLatencyStats s : latencyStats.values()) {
+                s.sample();
+              }
+            }
+          }, rate, rate);
+        }
+        mls = new MessageLatencyStats(this.system, messageClass);
+        this.latencyStats.put(messageClass, mls);
+      }
+      return mls;
+    }
+  }
+
+  /**
+   * Returns a line with the latency percentiles of the last sample interval
+   * for each message class and kind of latency that has been timed.
+   * @since 9.0
+   */
+  public List<String> describeMessageLatencies() {
+    List<String> lines = new ArrayList<String>();
+    for (MessageLatencyStats mls : this.latencyStats.values()) {
+      mls.describe(lines);
+    }
+    return lines;
+  }
   public void incMessagesBeingReceived(boolean newMsg, int bytes) {
     if (newMsg) {
       stats.incInt(messagesBeingReceivedId, 1);
@@ -374,6 +374,8 @@ public class LonerDistributionManager implements DM {
     public void incBatchCopyTime(long start) {}
     public void incBatchWaitTime(long start) {}
     public void incBatchFlushTime(long start) {}
+    public void incCoalescedWrites(int messages) {}
+    public void incCoalesceWaitTime(long start) {}
     public long startUcastWrite() { return 0; }
     public void endUcastWrite(long start, int bytesWritten) {}
     public void incUcastWrites(int bytesWritten) {}
@@ -474,6 +476,16 @@ public class LonerDistributionManager implements DM {
     public void incThreadOwnedReceivers(long value) {}
     public void incReceiverBufferSize(int inc, boolean direct) {}
     public void incSenderBufferSize(int inc, boolean direct) {}
+    public void incBufferPoolHits() {}
+    public void incBufferPoolAllocations() {}
+    public void incBufferPoolFreeSize(int inc) {}
+    public long startCompression() { return 0; }
+    public void endCompression(long start, int inputBytes, int outputBytes) {}
+    public long startDecompression() { return 0; }
+    public void endDecompression(long start) {}
+    public void recordMessageSendTime(Class<?> messageClass, long nanos) {}
+    public void recordMessageProcessTime(Class<?> messageClass, long nanos) {}
+    public void recordReplyWaitTime(Class<?> messageClass, long nanos) {}
     public long startSocketLock() {return 0;}
     public void endSocketLock(long start) {}
     public long startBufferAcquire() {return 0;}
@@ -0,0 +1,162 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.distributed.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.gemstone.gemfire.StatisticDescriptor;
+import com.gemstone.gemfire.Statistics;
+import com.gemstone.gemfire.StatisticsFactory;
+import com.gemstone.gemfire.StatisticsType;
+import com.gemstone.gemfire.StatisticsTypeFactory;
+import com.gemstone.gemfire.internal.LatencyHistogram;
+import com.gemstone.gemfire.internal.StatisticsTypeFactoryImpl;
+
+/**
+ * The latencies of one class of distribution message: how long sending it
+ * took, how long processing it took, and how long its sender waited for
+ * replies to it.
+ * <p>
+ * Each latency is recorded in a {@link LatencyHistogram}. Every sample
+ * interval the histograms are drained into gauges holding the median, the
+ * 99th, 99.9th and 99.99th percentiles and the maximum of the interval, so
+ * the statistics archive and JMX see the tail of each interval rather than
+ * an average since startup.
+ *
+ * @since 9.0
+ */
+public final class MessageLatencyStats {
+
+  /** the index of the time spent sending a message */
+  public static final int SEND = 0;
+  /** the index of the time spent processing a message */
+  public static final int PROCESS = 1;
+  /** the index of the time spent waiting for replies to a message */
+  public static final int REPLY_WAIT = 2;
+
+  private static final String[] KINDS = { "send", "process", "replyWait" };
+
+  private static final String[] KIND_DESCS = { "sending", "processing",
+      "waiting for replies to" };
+
+  private static final double[] PERCENTILES = { 50, 99, 99.9, 99.99 };
+
+  private static final String[] PERCENTILE_NAMES = { "P50", "P99", "P999",
+      "P9999" };
+
+  private static final String[] PERCENTILE_LABELS = { "50", "99", "99.9",
+      "99.99" };
+
+  private static final StatisticsType type;
+
+  private static final int[] countIds = new int[KINDS.length];
+  private static final int[] maxIds = new int[KINDS.length];
+  private static final int[][] percentileIds = new int[KINDS.length][PERCENTILES.length];
+
+  static {
+    String statName = "MessageLatencyStats";
+    String statDescription = "Latency percentiles of one class of distribution message over the last sample interval";
+
+    StatisticsTypeFactory f = StatisticsTypeFactoryImpl.singleton();
+
+    List<StatisticDescriptor> descriptors = new ArrayList<StatisticDescriptor>();
+    for (int k = 0; k < KINDS.length; k++) {
+      descriptors.add(f.createLongCounter(KINDS[k] + "s",
+          "The number of times " + KIND_DESCS[k] + " a message of this class was timed.",
+          "operations"));
+      descriptors.add(f.createLongGauge(KINDS[k] + "TimeMax",
+          "The longest time spent " + KIND_DESCS[k] + " a message of this class in the last sample interval.",
+          "nanoseconds", false));
+      for (int p = 0; p < PERCENTILES.length; p++) {
+        descriptors.add(f.createLongGauge(KINDS[k] + "Time" + PERCENTILE_NAMES[p],
+            "The " + PERCENTILE_LABELS[p] + "th percentile of the time spent " + KIND_DESCS[k] + " a message of this class in the last sample interval.",
+            "nanoseconds", false));
+      }
+    }
+    type = f.createType(statName, statDescription,
+        descriptors.toArray(new StatisticDescriptor[descriptors.size()]));
+
+    for (int k = 0; k < KINDS.length; k++) {
+      countIds[k] = type.nameToId(KINDS[k] + "s");
+      maxIds[k] = type.nameToId(KINDS[k] + "TimeMax");
+      for (int p = 0; p < PERCENTILES.length; p++) {
+        percentileIds[k][p] = type.nameToId(KINDS[k] + "Time" + PERCENTILE_NAMES[p]);
+      }
+    }
+  }
+
+  private final String messageClassName;
+
+  private final Statistics stats;
+
+  private final LatencyHistogram[] histograms = new LatencyHistogram[KINDS.length];
+
+  /** the drained counts of a histogram; guarded by this */
+  private final long[] drained = new long[LatencyHistogram.BUCKETS];
+
+  MessageLatencyStats(StatisticsFactory f, Class<?> messageClass) {
+    this.messageClassName = messageClass.getName();
+    this.stats = f.createAtomicStatistics(type, messageClass.getSimpleName());
+    for (int k = 0; k < KINDS.length; k++) {
+      this.histograms[k] = new LatencyHistogram();
+    }
+  }
+
+  /**
+   * Records one latency of the given kind.
+   *
+   * @param kind {@link #SEND}, {@link #PROCESS} or {@link #REPLY_WAIT}
+   */
+  void record(int kind, long nanos) {
+    this.histograms[kind].record(nanos);
+    this.stats.incLong(countIds[kind], 1);
+  }
+
+  /**
+   * Sets the gauges to the latencies recorded since the last call.
+   */
+  synchronized void sample() {
+    for (int k = 0; k < KINDS.length; k++) {
+      long total = this.histograms[k].drainTo(this.drained);
+      long max = this.histograms[k].drainMax();
+      this.stats.setLong(maxIds[k], max);
+      for (int p = 0; p < PERCENTILES.length; p++) {
+        // a bucket's largest value may be beyond anything recorded
+        this.stats.setLong(percentileIds[k][p], Math.min(max, LatencyHistogram
+            .valueAtPercentile(this.drained, total, PERCENTILES[p])));
+      }
+    }
+  }
+
+  /**
+   * Describes the latencies of the last sample interval, one line for each
+   * kind that has been recorded at all.
+   */
+  void describe(List<String> lines) {
+    for (int k = 0; k < KINDS.length; k++) {
+      if (this.stats.getLong(countIds[k]) == 0) {
+        continue;
+      }
+      StringBuilder sb = new StringBuilder(this.messageClassName);
+      sb.append(' ').append(KINDS[k]);
+      sb.append(" count=").append(this.stats.getLong(countIds[k]));
+      for (int p = 0; p < PERCENTILES.length; p++) {
+        sb.append(" p").append(PERCENTILE_LABELS[p]).append('=')
+            .append(this.stats.getLong(percentileIds[k][p]));
+      }
+      sb.append(" max=").append(this.stats.getLong(maxIds[k]));
+      sb.append(" nanoseconds");
+      lines.add(sb.toString());
+    }
+  }
+
+  void close() {
+    this.stats.close();
+  }
+}
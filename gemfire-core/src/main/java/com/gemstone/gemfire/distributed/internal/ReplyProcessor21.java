@@ -15,6 +15,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import org.apache.logging.log4j.Logger;
 
@@ -96,6 +97,13 @@ public class ReplyProcessor21
    */
   protected final InternalDistributedMember[] members;
 
+  /**
+   * The number of non-null cells in {@link #members}, so that the check made
+   * for each reply does not have to scan them. Only changed while holding
+   * the lock on {@link #members}.
+   */
+  private volatile int remaining;
+
   /**
    * Set to true in preWait, set to false in postWait. Used to avoid removing
    * membership listener in Runnable in postWait if we've called waitForReplies
@@ -112,8 +120,11 @@ public class ReplyProcessor21
    * @see ReplyMessage#getException */
   protected volatile ReplyException exception;
 
-  /** Have we heard back from everyone? */
-  private volatile boolean done;
+  /** Have we heard back from everyone? 1 if so */
+  private volatile int done;
+
+  private static final AtomicIntegerFieldUpdater<ReplyProcessor21> doneUpdater
+    = AtomicIntegerFieldUpdater.newUpdater(ReplyProcessor21.class, "done");
 
   protected boolean keeperCleanedUp;
 
@@ -136,6 +147,12 @@ public class ReplyProcessor21
   /** Start time for replyWait stat, in nanos */
   protected long statStart;
 
+  /**
+   * The class of the message whose replies this processor waits for, if
+   * it is known, for the reply wait latency of that class
+   */
+  private volatile Class<?> messageClass;
+
   /** Start time for ack-wait-threshold, in millis */
   protected long initTime;
 
@@ -341,7 +358,8 @@ public class ReplyProcessor21
         this.members[i] = (InternalDistributedMember)it.next();
       }
     }
-    this.done = false;
+    this.remaining = sz;
+    this.done = 0;
     this.shutdown = false;
     this.exception = null;
     if(register) {
@@ -600,6 +618,11 @@ public class ReplyProcessor21
     removeListener();
     final DM mgr = getDistributionManager();
     mgr.getStats().endReplyWait(this.statStart, this.initTime);
+    Class<?> mc = this.messageClass;
+    if (mc != null && DistributionStats.enableClockStats) {
+      mgr.getStats().recordReplyWaitTime(mc,
+          DistributionStats.getStatTime() - this.statStart);
+    }
 
     // Make sure that a cancellation check occurs.
     // TODO there may be a more elegant place to put this...
@@ -962,15 +985,12 @@ public class ReplyProcessor21
 
   /** do processing required when finished */
   protected final void finished() {
-    boolean isDone = false;
-    synchronized (this) {
-      if (!this.done) { // make sure only called once
-        this.done = true;
-        isDone = true;
-        // getSync().release(); // notifies threads in waitForReplies
-        getLatch().countDown();
-      }
-    } // synchronized
+    // make sure only called once
+    boolean isDone = doneUpdater.compareAndSet(this, 0, 1);
+    if (isDone) {
+      // getSync().release(); // notifies threads in waitForReplies
+      getLatch().countDown();
+    }
 
     // ensure that postFinish is invoked only once
     if (isDone) {
@@ -1009,40 +1029,63 @@ public class ReplyProcessor21
    * @return true if it was in our list of members
    */
   protected boolean removeMember(InternalDistributedMember m, boolean departed) {
+    if (this.remaining == 0) {
+      // members are never added back, so there is nothing to remove
+      return false;
+    }
     boolean removed = false;
     synchronized (this.members) {
       int cells = this.members.length;
+      if (cells == 1) {
+        // the common case of a message sent to one member
+        InternalDistributedMember e = this.members[0];
+        if (e != null && e.equals(m)) {
+          this.members[0] = null;
+          this.remaining = 0;
+          return true;
+        }
+        return false;
+      }
+      int left = this.remaining;
       for (int i=0; i<cells; i++) {
         InternalDistributedMember e = this.members[i];
         if (e != null && e.equals(m)) {
           this.members[i] = null;
+          left--;
           // we may be expecting more than one response from a member.  so,
           // unless the member left, we only scrub the first occurrence of
           // the member id from the responder list
           if (!departed) {
+            this.remaining = left;
             return true;
           }
           removed = true;
         }
       }
+      this.remaining = left;
     } // synchronized
     return removed;
   }
 
+  /**
+   * Notes the class of the message this processor waits for replies to.
+   * Only the first class is kept.
+   * @since 9.0
+   */
+  public void setMessageClass(Class<?> messageClass) {
+    if (this.messageClass == null) {
+      this.messageClass = messageClass;
+    }
+  }
+
   protected int numMembers() {
-    int sz = 0;
-    synchronized (this.members) {
-      int cells = this.members.length;
-      for (int i=0; i<cells; i++) {
-        if (this.members[i] != null) {
-          sz++;
-        }
-      }
-    } // synchronized
-    return sz;
+    return this.remaining;
   }
 
   protected boolean waitingOnMember(InternalDistributedMember id) {
+    if (this.remaining == 0) {
+      return false;
+    }
     synchronized (this.members) {
       int cells = this.members.length;
       for (int i=0; i<cells; i++) {
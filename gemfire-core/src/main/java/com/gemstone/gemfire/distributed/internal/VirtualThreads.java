@@ -0,0 +1,89 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.distributed.internal;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads on JVMs that have them. The product is built for
+ * older JVMs, so the virtual thread factory is looked up reflectively once.
+ * <p>
+ * Before Java 24 a virtual thread that blocks in a synchronized block or in
+ * Object.wait pins its carrier thread, and the product blocks this way
+ * throughout messaging. A few such messages could then occupy every carrier
+ * thread and stall all virtual threads, so virtual threads are only used
+ * from Java 24 on; on an older JVM {@link #isSupported} returns false.
+ *
+ * @since 9.0
+ */
+final class VirtualThreads {
+
+  /**
+   * The first Java release whose virtual threads do not pin their carrier
+   * while blocked in synchronized blocks or Object.wait
+   */
+  static final int MIN_JAVA_VERSION = 24;
+
+  /** Thread.ofVirtual().factory(), or null if virtual threads are not used */
+  private static final ThreadFactory factory = isSupportedVersion(System
+      .getProperty("java.specification.version")) ? createFactory() : null;
+
+  private VirtualThreads() {
+  }
+
+  static boolean isSupported() {
+    return factory != null;
+  }
+
+  /**
+   * Returns true if the given java.specification.version is
+   * {@link #MIN_JAVA_VERSION} or later
+   */
+  static boolean isSupportedVersion(String specVersion) {
+    if (specVersion == null || specVersion.startsWith("1.")) {
+      return false;
+    }
+    int end = 0;
+    while (end < specVersion.length()
+        && Character.isDigit(specVersion.charAt(end))) {
+      end++;
+    }
+    if (end == 0) {
+      return false;
+    }
+    try {
+      return Integer.parseInt(specVersion.substring(0, end)) >= MIN_JAVA_VERSION;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns a new, unstarted virtual thread that runs the given task. Virtual
+   * threads all belong to one thread group of the JVM, so exceptions they do
+   * not catch go to the given handler instead of to a product thread group.
+   */
+  static Thread newThread(Runnable task, String name,
+      Thread.UncaughtExceptionHandler handler) {
+    Thread thread = factory.newThread(task);
+    thread.setName(name);
+    thread.setUncaughtExceptionHandler(handler);
+    return thread;
+  }
+
+  private static ThreadFactory createFactory() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      return (ThreadFactory)Class.forName("java.lang.Thread$Builder")
+          .getMethod("factory").invoke(builder);
+    } catch (Exception e) {
+      // no virtual threads, or only as a preview feature that is not enabled
+      return null;
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies that uses a fixed amount of memory and records
+ * without locking.
+ * <p>
+ * Values are counted in buckets whose width grows with the value: each power
+ * of two range is split into {@link #SUB_BUCKETS} buckets of equal width, so
+ * a percentile read from the histogram is within about 6% of the recorded
+ * value. Values larger than {@link #MAX_VALUE} are counted in the last
+ * bucket.
+ * <p>
+ * The histogram holds the values recorded since it was last drained, so that
+ * the percentiles of each sample interval can be reported on their own
+ * instead of being buried under everything recorded since startup.
+ *
+ * @since 9.0
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+
+  /** the number of buckets each power of two range is split into */
+  public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private static final int MAX_EXPONENT = 36;
+
+  /** the largest value, about 137 seconds in nanoseconds, that is counted exactly */
+  public static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+  /** the number of buckets of every histogram */
+  public static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2)
+      * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Counts one occurrence of the given value. Negative values count as zero.
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    this.counts.incrementAndGet(bucketOf(value));
+    long m = this.max.get();
+    while (value > m) {
+      if (this.max.compareAndSet(m, value)) {
+        break;
+      }
+      m = this.max.get();
+    }
+  }
+
+  /**
+   * Moves the counts recorded since the last drain into the given array,
+   * which must have {@link #BUCKETS} elements. Values recorded while this
+   * runs end up in this drain or in the next one.
+   *
+   * @return the number of values drained
+   */
+  public long drainTo(long[] into) {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      long c = this.counts.getAndSet(i, 0);
+      into[i] = c;
+      total += c;
+    }
+    return total;
+  }
+
+  /**
+   * Returns the largest value recorded since the last call and starts over.
+   */
+  public long drainMax() {
+    return this.max.getAndSet(0);
+  }
+
+  /**
+   * Returns the value at the given percentile of the drained counts, that
+   * is the largest value of the bucket that holds it.
+   *
+   * @param counts counts filled in by {@link #drainTo}
+   * @param total the number of values in counts
+   * @param percentile a percentile between 0 and 100
+   * @return the value, or 0 if there are no values
+   */
+  public static long valueAtPercentile(long[] counts, long total,
+      double percentile) {
+    if (total <= 0) {
+      return 0;
+    }
+    long rank = (long)Math.ceil(total * percentile / 100.0);
+    if (rank < 1) {
+      rank = 1;
+    }
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return highestValueOf(i);
+      }
+    }
+    return highestValueOf(BUCKETS - 1);
+  }
+
+  static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int)value;
+    }
+    if (value > MAX_VALUE) {
+      return BUCKETS - 1;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int sub = (int)(value >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + sub;
+  }
+
+  static long highestValueOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    int sub = bucket % SUB_BUCKETS;
+    long lowest = (long)(SUB_BUCKETS + sub) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
@@ -730,6 +730,57 @@ public abstract class AbstractLRURegionMap extends AbstractRegionMap {
     }    
   }
   
+  /**
+   * With {@link InitialImageOperation#DIRECT_TO_DISK}, moves the value that
+   * an initial image just gave an entry of an overflow region to disk right
+   * away. Values of persistent regions have already been written to the
+   * oplog by then, so only the key and its disk id stay in memory, and the
+   * image does not fill the heap only to be evicted afterwards. The value
+   * was never in the working set, so this is not counted as an eviction.
+   */
+  @Override
+  protected final void lruEntryInitialImagePut(RegionEntry re) {
+    if (!InitialImageOperation.DIRECT_TO_DISK
+        || !_getCCHelper().getEvictionAction().isOverflowToDisk()) {
+      return;
+    }
+    LocalRegion owner = _getOwner();
+    // index maintenance would fault the value right back in
+    if (owner.isInitialized() || owner.getIndexUpdater() != null
+        || owner.getIndexManager() != null) {
+      return;
+    }
+    try {
+      moveInitialImageValueToDisk((LRUEntry)re);
+    } catch (RegionClearedException e) {
+      // the region was cleared during the image, the entry will go away
+    }
+  }
+
+  /**
+   * Moves the value of the entry to disk like {@link #evictEntry} does for
+   * overflow, keeping the disk statistics and the entry size counter in
+   * step, but without touching the eviction statistics. The entry stays in
+   * the LRU list marked evicted, so the clock hand skips it. Called while
+   * synchronized on the entry.
+   */
+  private void moveInitialImageValueToDisk(LRUEntry entry)
+      throws RegionClearedException {
+    if (entry.isInUseByTransaction() || entry.isInvalidOrRemoved()) {
+      return;
+    }
+    LocalRegion region = _getOwner();
+    entry.setEvicted();
+    int change = DiskEntry.Helper.overflowToDisk((DiskEntry)entry, region,
+        _getCCHelper());
+    if (change < 0) {
+      if (region instanceof BucketRegion) {
+        ((BucketRegion)region).updateCounter(change);
+      }
+      _getLruList().stats().updateCounter(change);
+    }
+  }
+
   @Override
   protected final void lruEntryUpdate(RegionEntry re ) {
     final LRUEntry e = (LRUEntry)re;
@@ -710,6 +710,17 @@ abstract class AbstractRegionMap implements RegionMap {
     // do nothing by default
   }
 
+  /**
+   * Tell an LRU that an initial image has given an entry a new value.
+   * Called while synchronized on the entry, after lruEntryCreate or
+   * lruEntryUpdate.
+   * @since 9.0
+   */
+  protected void lruEntryInitialImagePut(RegionEntry e)
+  {
+    // do nothing by default
+  }
+
   @Override
   public void decTxRefCount(RegionEntry e)
   {
@@ -1137,6 +1148,7 @@ abstract class AbstractRegionMap implements RegionMap {
                         owner.updateSizeOnCreate(key, newSize);
                       }
                       EntryLogger.logInitialImagePut(_getOwnerObject(), key, newValue);
+                      lruEntryInitialImagePut(oldRe);
                     }
                   }
                   if (owner.getIndexManager() != null) {
@@ -1185,6 +1197,7 @@ abstract class AbstractRegionMap implements RegionMap {
                   owner.updateSizeOnCreate(key, owner.calculateRegionEntryValueSize(newRe));
                   EntryLogger.logInitialImagePut(_getOwnerObject(), key, newValue);
                   lruEntryCreate(newRe);
+                  lruEntryInitialImagePut(newRe);
                 }
                 incEntryCount(1);
               }
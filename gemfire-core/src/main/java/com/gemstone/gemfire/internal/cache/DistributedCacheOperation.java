@@ -132,7 +132,7 @@ public abstract class DistributedCacheOperation {
         // fromData will call readObject which will deserialize to object form.
         out.write(vBytes);
       } else {
-        DataSerializer.writeByteArray(vBytes, out);
+        InternalDataSerializer.writeUnmodifiableByteArray(vBytes, out);
       }
     }    
   }
@@ -803,6 +803,7 @@ public abstract class DistributedCacheOperation {
     msg.regionPath = getRegion().getFullPath();
     msg.processorId = p == null ? 0 : p.getProcessorId();
     msg.processor = p;
+    msg.setReplyProcessor(p);
     if (this.event.getOperation().isEntry()) {
       EntryEventImpl entryEvent = getEvent();
       msg.callbackArg = entryEvent.getRawCallbackArgument();
@@ -10,6 +10,7 @@ package com.gemstone.gemfire.internal.cache;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -36,6 +37,8 @@ import com.gemstone.gemfire.cache.Operation;
 import com.gemstone.gemfire.cache.Region;
 import com.gemstone.gemfire.cache.SerializedCacheValue;
 import com.gemstone.gemfire.cache.query.internal.CqStateImpl;
+import com.gemstone.gemfire.cache.query.internal.DefaultQuery;
+import com.gemstone.gemfire.cache.query.internal.cq.CqPredicateIndex;
 import com.gemstone.gemfire.cache.query.internal.cq.CqService;
 import com.gemstone.gemfire.cache.query.internal.cq.CqServiceProvider;
 import com.gemstone.gemfire.cache.query.internal.cq.ServerCQ;
@@ -136,6 +139,15 @@ public class FilterProfile implements DataSerializableFixedID {
   private  Map<Object, Map<Object, Pattern>> patternsOfInterest;
 
   private  Map<Object, Map<Object, Pattern>> patternsOfInterestInv;
+
+  /**
+   * Matchers built from patternsOfInterest and patternsOfInterestInv. Both
+   * maps are replaced on every change, so a matcher is rebuilt lazily when
+   * the map it was built from is no longer current.
+   */
+  private transient volatile InterestPatternMatcher patternMatcher;
+
+  private transient volatile InterestPatternMatcher patternMatcherInv;
   
  /**
    * The filtering classes in which clients are interested. This is a map
@@ -180,6 +192,13 @@ public class FilterProfile implements DataSerializableFixedID {
   /** CQs that are registered on the remote node **/
   private volatile Map cqs = Collections.EMPTY_MAP;
 
+  /**
+   * Index of the WHERE clauses of the CQs, used to skip the CQs an event
+   * cannot match. It is updated before cqs when a CQ is added and after it
+   * when one is removed, so that it always covers all CQs in cqs.
+   */
+  private volatile CqPredicateIndex cqIndex = CqPredicateIndex.EMPTY;
+
   /* the ID of the member that this profile describes */
   private DistributedMember memberID;
   
@@ -1026,6 +1045,7 @@ public class FilterProfile implements DataSerializableFixedID {
     if (logger.isDebugEnabled()) {
       logger.debug("Adding CQ {} to this members FilterProfile.", cq.getServerCqName()); 
     }
+    this.cqIndex = this.cqIndex.add(cq.getServerCqName(), cq.getQueryString());
     Map newCqs = new HashMap(this.cqs);
     newCqs.put(cq.getServerCqName(), cq);
     this.cqs = newCqs;
@@ -1078,6 +1098,7 @@ public class FilterProfile implements DataSerializableFixedID {
       logger.debug("Adding CQ to remote members FilterProfile using name: {}", serverCqName);
     }
     if (addToCqMap) {
+      this.cqIndex = this.cqIndex.add(serverCqName, cq.getQueryString());
       Map newCqs = new HashMap(this.cqs);
       newCqs.put(serverCqName, cq);
       this.cqs = newCqs;
@@ -1107,6 +1128,7 @@ public class FilterProfile implements DataSerializableFixedID {
       Map newCqs = new HashMap(cqs);
       newCqs.remove(serverCqName);
       this.cqs = newCqs;
+      this.cqIndex = this.cqIndex.remove(serverCqName);
       cq.getCqBaseRegion().getFilterProfile().decCqCount();
     }
   }
@@ -1148,6 +1170,7 @@ public class FilterProfile implements DataSerializableFixedID {
     Map newCqs = new HashMap(this.cqs);
     newCqs.remove(serverCqName);
     this.cqs = newCqs;
+    this.cqIndex = this.cqIndex.remove(serverCqName);
     if (this.cqMap != null) {
       this.cqMap.removeIDMapping(cq.getFilterID());
     }
@@ -1368,8 +1391,26 @@ public class FilterProfile implements DataSerializableFixedID {
     CqService cqService = getCqService(event.getRegion());
     if (cqService != null) {
       try {
-        Profile local = processLocalProfile? this.localProfile : null;
-        cqService.processEvents(event, local, peerProfiles, frInfo);
+        // the values of the event are read once for all profiles
+        CqEventValues values = new CqEventValues(event);
+        Profile local = processLocalProfile && mayMatchCqs(values)? this.localProfile : null;
+        Profile[] profiles = peerProfiles;
+        if (peerProfiles.length > 0) {
+          List<Profile> matching = new ArrayList<Profile>(peerProfiles.length);
+          for (Profile profile : peerProfiles) {
+            FilterProfile fp = ((CacheProfile)profile).filterProfile;
+            if (fp == null || fp.mayMatchCqs(values)) {
+              matching.add(profile);
+            }
+          }
+          if (matching.size() < peerProfiles.length) {
+            profiles = matching.toArray(new Profile[matching.size()]);
+          }
+        }
+        if (local == null && profiles.length == 0) {
+          return;
+        }
+        cqService.processEvents(event, local, profiles, frInfo);
       } catch (VirtualMachineError err) {
         SystemFailure.initiateFailure(err);
         // If this ever returns, re-throw the error.  We're poisoned
@@ -1382,6 +1423,91 @@ public class FilterProfile implements DataSerializableFixedID {
     }
   }
 
+  /**
+   * Returns false if none of the CQs of this profile can be satisfied by the
+   * old or the new value of the event
+   */
+  private boolean mayMatchCqs(CqEventValues values) {
+    CqPredicateIndex index = this.cqIndex;
+    if (!index.isSelective() || !values.isUsable()) {
+      return true;
+    }
+    Set<String> result = new HashSet<String>();
+    if (values.hasNewValue) {
+      index.addCandidates(values.newValue, result);
+    }
+    if (values.hasOldValue) {
+      index.addCandidates(values.oldValue, result);
+    }
+    return !result.isEmpty();
+  }
+
+  /**
+   * The old and new value of an entry event as CQs see them, read the first
+   * time a profile with a selective {@link CqPredicateIndex} needs them and
+   * then shared by all the profiles the event is routed to. PDX values stay
+   * in serialized form so their fields are read without deserializing them.
+   */
+  private static final class CqEventValues {
+    private final CacheEvent event;
+    private boolean read;
+    private boolean usable;
+    boolean hasNewValue;
+    Object newValue;
+    boolean hasOldValue;
+    Object oldValue;
+
+    CqEventValues(CacheEvent event) {
+      this.event = event;
+    }
+
+    /**
+     * Returns false if the values of the event do not tell which CQs it can
+     * match, in which case all of them have to be evaluated
+     */
+    boolean isUsable() {
+      if (!this.read) {
+        this.read = true;
+        this.usable = readValues();
+      }
+      return this.usable;
+    }
+
+    private boolean readValues() {
+      if (!(this.event instanceof EntryEventImpl)) {
+        return false;
+      }
+      EntryEventImpl entryEvent = (EntryEventImpl)this.event;
+      Operation op = entryEvent.getOperation();
+      boolean readSerialized = DefaultQuery.getPdxReadSerialized();
+      DefaultQuery.setPdxReadSerialized(true);
+      try {
+        if (!op.isDestroy() && !op.isInvalidate()) {
+          if (!entryEvent.hasNewValue()) {
+            return false;
+          }
+          this.newValue = entryEvent.getNewValue();
+          this.hasNewValue = true;
+        }
+        if (entryEvent.hasOldValue()) {
+          this.oldValue = entryEvent.getOldValue();
+          this.hasOldValue = true;
+        } else if (!op.isCreate()) {
+          // the old value may have matched a CQ
+          return false;
+        }
+        return true;
+      } catch (RuntimeException e) {
+        if (logger.isDebugEnabled()) {
+          logger.debug("Unable to look up the CQs matching {}", this.event, e);
+        }
+        return false;
+      } finally {
+        DefaultQuery.setPdxReadSerialized(readSerialized);
+      }
+    }
+  }
+
    private CqService getCqService(Region region) {
     return ((InternalCache) region.getRegionService()).getCqService();
   }
@@ -1639,21 +1765,18 @@ public class FilterProfile implements DataSerializableFixedID {
       }
     }
     if (pats != null && (event.getKey() instanceof String)) {
-      for (Iterator it=pats.entrySet().iterator(); it.hasNext(); ) {
-        Map.Entry entry = (Map.Entry)it.next();
-        String stringKey = (String)event.getKey();
-        Map<Object, Pattern> interestList = (Map<Object, Pattern>)entry.getValue();
-        for (Pattern keyPattern: interestList.values()) {
-          if (keyPattern.matcher(stringKey).matches()) {
-            Object clientID = entry.getKey();
-            if (result == null) result = new HashSet();
-            result.add(clientID);
-            if (logger.isDebugEnabled()) {
-              logger.debug("client {} matched for pattern ({})", clientID, pats.get(clientID));
-            }
-            break;
+      Set matched = getInterestPatternMatcher(pats).addMatchingClients((String)event.getKey(), null);
+      if (matched != null) {
+        if (logger.isDebugEnabled()) {
+          for (Object clientID: matched) {
+            logger.debug("client {} matched for pattern ({})", clientID, pats.get(clientID));
           }
         }
+        if (result == null) {
+          result = matched;
+        } else {
+          result.addAll(matched);
+        }
       }
     }
     if (foi != null && foi.size() > 0) {
@@ -1718,6 +1841,7 @@ public class FilterProfile implements DataSerializableFixedID {
     int numCQs = InternalDataSerializer.readArrayLength(in);
     if (numCQs > 0) {
       Map theCQs = new HashMap(numCQs);
+      CqPredicateIndex theIndex = CqPredicateIndex.EMPTY;
       int oldLevel = LocalRegion.setThreadInitLevelRequirement(LocalRegion.ANY_INIT); // do this before CacheFactory.getInstance for bug 33471
       try {
         for (int i=0; i < numCQs; i++){
@@ -1725,8 +1849,10 @@ public class FilterProfile implements DataSerializableFixedID {
           ServerCQ cq = CqServiceProvider.readCq(in);
           processRegisterCq(serverCqName, cq, false);
           theCQs.put(serverCqName, cq);
+          theIndex = theIndex.add(serverCqName, cq.getQueryString());
         } 
       } finally {
+        this.cqIndex = theIndex;
         this.cqs = theCQs;
         LocalRegion.setThreadInitLevelRequirement(oldLevel);
       }
@@ -1794,6 +1920,28 @@ public class FilterProfile implements DataSerializableFixedID {
     this.keysOfInterestInv = keysOfInterestInv;
   }
 
+  /**
+   * Returns the matcher for the given map of patterns of this profile,
+   * building a new one if the map has changed since the last one was built.
+   */
+  private InterestPatternMatcher getInterestPatternMatcher(Map<Object, Map<Object, Pattern>> pats) {
+    InterestPatternMatcher matcher = this.patternMatcher;
+    if (matcher != null && matcher.isFor(pats)) {
+      return matcher;
+    }
+    matcher = this.patternMatcherInv;
+    if (matcher != null && matcher.isFor(pats)) {
+      return matcher;
+    }
+    matcher = new InterestPatternMatcher(pats);
+    if (pats == this.patternsOfInterestInv) {
+      this.patternMatcherInv = matcher;
+    } else {
+      this.patternMatcher = matcher;
+    }
+    return matcher;
+  }
+
   /**
    * @return the patternsOfInterest
    */
@@ -186,7 +186,6 @@ import com.gemstone.gemfire.internal.cache.partitioned.RedundancyAlreadyMetExcep
 import com.gemstone.gemfire.internal.cache.persistence.BackupManager;
 import com.gemstone.gemfire.internal.cache.persistence.PersistentMemberID;
 import com.gemstone.gemfire.internal.cache.persistence.PersistentMemberManager;
-import com.gemstone.gemfire.internal.cache.persistence.query.TemporaryResultSetFactory;
 import com.gemstone.gemfire.internal.cache.snapshot.CacheSnapshotServiceImpl;
 import com.gemstone.gemfire.internal.cache.tier.sockets.AcceptorImpl;
 import com.gemstone.gemfire.internal.cache.tier.sockets.CacheClientNotifier;
@@ -5316,11 +5315,6 @@ public class GemFireCacheImpl implements InternalCache, ClientCache, HasCachePer
   private Declarable initializer;
   private Properties initializerProps;
 
-  /**
-   * A factory for temporary result sets than can overflow to disk.
-   */
-  private TemporaryResultSetFactory resultSetFactory;
-
   public Declarable getInitializer() {
     return this.initializer;
   }
@@ -5400,10 +5394,6 @@ public class GemFireCacheImpl implements InternalCache, ClientCache, HasCachePer
   }
   
   
-  public TemporaryResultSetFactory getResultSetFactory() {
-    return this.resultSetFactory;
-  }
-
   public MemoryAllocator getOffHeapStore() {
     return this.getSystem().getOffHeapStore();
   }
@@ -26,6 +26,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -90,6 +91,7 @@ import com.gemstone.gemfire.internal.offheap.annotations.Released;
 import com.gemstone.gemfire.internal.offheap.annotations.Retained;
 import com.gemstone.gemfire.internal.sequencelog.EntryLogger;
 import com.gemstone.gemfire.internal.sequencelog.RegionLogger;
+import com.gemstone.gemfire.internal.util.BlobHelper;
 import com.gemstone.gemfire.internal.util.ObjectIntProcedure;
 
 /**
@@ -128,6 +130,23 @@ public class InitialImageOperation  {
    */
   public static int MAX_PARALLEL_GIIS =
     Integer.getInteger("gemfire.GetInitialImage.MAX_PARALLEL_GIIS", 5).intValue();
+
+  /**
+   * Maximum number of replicas that each send a segment of a full image in
+   * parallel. One (the default) gets the whole image from a single replica.
+   * @since 9.0
+   */
+  public static int MAX_IMAGE_SOURCES =
+    Integer.getInteger("gemfire.GetInitialImage.MAX_IMAGE_SOURCES", 1).intValue();
+
+  /**
+   * If true, the values an initial image puts in a region that overflows to
+   * disk are moved to disk as they are received, instead of staying in
+   * memory until they are evicted.
+   * @since 9.0
+   */
+  public static boolean DIRECT_TO_DISK =
+    Boolean.getBoolean("gemfire.GetInitialImage.DIRECT_TO_DISK");
   
   /**
    * the region we are fetching
@@ -274,6 +293,9 @@ public class InitialImageOperation  {
       }
     }
     long giiStart = this.region.getCachePerfStats().startGetInitialImage();
+    // cleared if an image requested in segments fails, so that the
+    // remaining attempts each get the whole image from one provider
+    boolean allowSegments = true;
     
     for (Iterator itr = recipients.iterator(); !this.gotImage && itr.hasNext();) {
       // if we got a partial image from the previous recipient, then clear it
@@ -469,8 +491,20 @@ public class InitialImageOperation  {
         }
       }
 
-      ImageProcessor processor = new ImageProcessor(this.region.getSystem(),
-                                                    recipient);
+      List<InternalDistributedMember> otherSources = Collections.emptyList();
+      if (m.versionVector == null && allowSegments) {
+        otherSources = selectOtherImageSources(dm, recipient, recipients,
+            advice, targetReinitialized, received_rvv);
+      }
+      ImageProcessor processor;
+      if (otherSources.isEmpty()) {
+        processor = new ImageProcessor(this.region.getSystem(), recipient);
+      } else {
+        Set<InternalDistributedMember> sources = new HashSet<InternalDistributedMember>(otherSources);
+        sources.add(recipient);
+        processor = new ImageProcessor(this.region.getSystem(), recipient, sources);
+        m.numSegments = sources.size();
+      }
       dm.acquireGIIPermitUninterruptibly();
       try {
         m.processorId = processor.getProcessorId();
@@ -486,6 +520,13 @@ public class InitialImageOperation  {
             new Object[] { this.region.getName(), recipient }));
 
         dm.putOutgoing(m);
+        for (int i = 0; i < otherSources.size(); i++) {
+          InternalDistributedMember source = otherSources.get(i);
+          logger.info(LocalizedMessage.create(
+              LocalizedStrings.InitialImageOperation_REGION_0_REQUESTING_INITIAL_IMAGE_FROM_1,
+              new Object[] { this.region.getName(), source }));
+          dm.putOutgoing(m.forSegment(source, i + 1, received_rvv));
+        }
         this.region.cache.getCancelCriterion().checkCancelInProgress(null);
         if (internalAfterSentRequestImage != null && internalAfterSentRequestImage.getRegionName().equals(this.region.getName())) {
           internalAfterSentRequestImage.run();
@@ -554,6 +595,12 @@ public class InitialImageOperation  {
             // TODO add localizedString
             logger.info("{} failed to get image from {}", this.region.getName(), recipient);
           }
+          if (!otherSources.isEmpty()) {
+            processor.logSourceThroughput();
+            if (!this.gotImage) {
+              allowSegments = false;
+            }
+          }
           if (this.region.dataPolicy.withPersistence()) {
             logger.info(LocalizedMessage.create(
                     LocalizedStrings.InitialImageOperation_REGION_0_INITIALIZED_PERSISTENT_REGION_WITH_ID_1_FROM_2,
@@ -1036,6 +1083,102 @@ public class InitialImageOperation  {
     }
   }
                 
+  /**
+   * Chooses up to {@link #MAX_IMAGE_SOURCES} - 1 replicas, besides the given
+   * image provider, that will each send a segment of a full image in
+   * parallel with it. A replica is only used if, once the operations in
+   * flight to it have been flushed, its version vector dominates the one
+   * received from the provider. Every segment is then at least as current
+   * as the provider's version vector, which has already been applied to
+   * this region. Each replica checks this again when it is asked for its
+   * segment, see {@link RequestImageMessage#baseVersionVector}.
+   *
+   * @return the other image providers, possibly none
+   */
+  private List<InternalDistributedMember> selectOtherImageSources(
+      DistributionManager dm, InternalDistributedMember provider,
+      List candidates, CacheDistributionAdvisor.InitialImageAdvice advice,
+      boolean targetReinitialized, RegionVersionVector providerRVV) {
+    if (MAX_IMAGE_SOURCES <= 1 || advice == null
+        || this.region instanceof HARegion
+        || this.region instanceof BucketRegionQueue
+        || this.region.isUsedForSerialGatewaySenderQueue()
+        || this.region.keyRequiresRegionContext()
+        || provider.getVersionObject().compareTo(Version.GFE_90) < 0
+        || (this.region.concurrencyChecksEnabled && providerRVV == null)) {
+      return Collections.emptyList();
+    }
+    final boolean isDebugEnabled = logger.isDebugEnabled();
+    Boolean inhibitFlush = (Boolean)inhibitStateFlush.get();
+    boolean flush = !inhibitFlush.booleanValue() && !this.region.doesNotDistribute();
+    List<InternalDistributedMember> sources = new ArrayList<InternalDistributedMember>();
+    for (Iterator it = candidates.iterator(); it.hasNext()
+        && sources.size() < MAX_IMAGE_SOURCES - 1;) {
+      InternalDistributedMember candidate = (InternalDistributedMember)it.next();
+      if (candidate.equals(provider) || !advice.replicates.contains(candidate)
+          || candidate.getVersionObject().compareTo(Version.GFE_90) < 0) {
+        continue;
+      }
+      if (flush) {
+        final Set<InternalDistributedMember> r = new HashSet<InternalDistributedMember>();
+        r.addAll(advice.replicates);
+        r.addAll(advice.preloaded);
+        r.addAll(advice.others);
+        r.addAll(advice.empties);
+        r.addAll(advice.uninitialized);
+        int processorType = targetReinitialized ? DistributionManager.WAITING_POOL_EXECUTOR
+            : DistributionManager.HIGH_PRIORITY_EXECUTOR;
+        try {
+          if (!new StateFlushOperation(this.region).flush(r, candidate, processorType, false)) {
+            continue;
+          }
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          this.region.getCancelCriterion().checkCancelInProgress(ie);
+          break;
+        }
+      }
+      if (this.region.concurrencyChecksEnabled) {
+        RegionVersionVector rvv = getRVVFromProvider(dm, candidate, targetReinitialized);
+        if (rvv == null || !rvv.dominates(providerRVV)) {
+          if (isDebugEnabled) {
+            logger.debug("Region {} will not get a segment of its image from {} because its version vector {} does not dominate {}",
+                this.region.getFullPath(), candidate, rvv, providerRVV);
+          }
+          continue;
+        }
+      }
+      sources.add(candidate);
+    }
+    return sources;
+  }
+
+  /**
+   * Returns the segment, out of the given number of segments of a full
+   * image, that contains the given key. Every image provider must put a key
+   * in the same segment, so only keys whose classes define their hash code
+   * by value are hashed directly. Any other key, e.g. an enum or a class
+   * that inherits the identity hash code, is hashed by its serialized form.
+   */
+  static int segmentOf(Object key, int numSegments) {
+    int hash;
+    if (key instanceof String || key instanceof Integer || key instanceof Long
+        || key instanceof Short || key instanceof Byte
+        || key instanceof Character || key instanceof Boolean
+        || key instanceof Double || key instanceof Float
+        || key instanceof java.util.Date) {
+      hash = key.hashCode();
+    } else {
+      try {
+        hash = Arrays.hashCode(BlobHelper.serializeToBlob(key));
+      } catch (IOException e) {
+        // a key that can not be serialized fails the same way everywhere
+        hash = 0;
+      }
+    }
+    return (hash & 0x7fffffff) % numSegments;
+  }
+
   protected RegionVersionVector getRVVFromProvider(final DistributionManager dm, InternalDistributedMember recipient,
       boolean targetReinitialized) {
     RegionVersionVector received_rvv = null;
@@ -1172,6 +1315,22 @@ public class InitialImageOperation  {
      * number of outstanding executors currently in-flight on this request
      */
     private final AtomicInteger msgsBeingProcessed = new AtomicInteger();
+
+    /**
+     * number of image providers that have not yet sent all of their chunks;
+     * the image is complete when this reaches zero
+     */
+    private final AtomicInteger sourcesRemaining;
+
+    /**
+     * the image provider whose version vector was applied to the region. The
+     * tombstone GC versions of the other providers of a segmented image are
+     * not applied since they may be ahead of that version vector.
+     */
+    private final InternalDistributedMember provider;
+
+    /** when the image was requested, for reporting throughput */
+    private final long startTime = System.nanoTime();
     
     @Override
     public boolean isSevereAlertProcessingEnabled() {
@@ -1231,9 +1390,20 @@ public class InitialImageOperation  {
        * Have we received all of the chunked messages from the provider?
        */
       boolean allChunksReceived;
+
+      /** number of entries received from the provider */
+      long entriesReceived;
+
+      /** number of bytes of chunks received from the provider */
+      long bytesReceived;
+
+      /** when the last chunk was received, zero until then */
+      long finishTime;
       
       /** Return true if this is the very last reply for this member */
       protected synchronized boolean trackMessage(ImageReplyMessage m) {
+        this.entriesReceived += m.entries.size();
+        this.bytesReceived += m.getBytesRead();
         if (this.msgsProcessed == null) {
           this.msgsProcessed = new int[m.numSeries];
         }
@@ -1256,6 +1426,9 @@ public class InitialImageOperation  {
         // cannot be true until sometime after we've received the
         // lastInSeries for a given series.
         this.allChunksReceived = Arrays.equals(this.msgsProcessed, this.numInSeries);
+        if (this.allChunksReceived) {
+          this.finishTime = System.nanoTime();
+        }
         return(this.allChunksReceived);
       }
     }
@@ -1264,11 +1437,20 @@ public class InitialImageOperation  {
     public ImageProcessor(final InternalDistributedSystem system,
                           InternalDistributedMember member) {
       super(system, member);
+      this.provider = member;
+      this.sourcesRemaining = new AtomicInteger(1);
     }
 
+    /**
+     * Creates a processor for an image sent in segments by all of the given
+     * members, one of which is the image provider whose version vector has
+     * been applied to the region
+     */
     public ImageProcessor(InternalDistributedSystem system,
-                          Set members) {
+                          InternalDistributedMember provider, Set members) {
       super(system, members); 
+      this.provider = provider;
+      this.sourcesRemaining = new AtomicInteger(members.size());
     }
     
     @Override
@@ -1331,7 +1513,8 @@ public class InitialImageOperation  {
                   InitialImageOperation.this.gotImage = false;
                   logger.debug("processChunk is aborted for region {}, rvv is {}. Do full gii next time.",
                       InitialImageOperation.this.region.getFullPath(), InitialImageOperation.this.region.getVersionVector());
-                } else {
+                } else if (this.sourcesRemaining.decrementAndGet() == 0) {
+                  // every image provider has sent all of its segment
                   InitialImageOperation.this.gotImage = true;
                 }
                 if (m.isDeltaGII) {
@@ -1375,7 +1558,7 @@ public class InitialImageOperation  {
             InitialImageOperation.this.rcvd_holderToSync = m.holderToSend;
           }
           
-          if(m.gcVersions != null) {
+          if(m.gcVersions != null && m.getSender().equals(this.provider)) {
             InitialImageOperation.this.gcVersions = m.gcVersions;
           }
         }
@@ -1463,6 +1646,29 @@ public class InitialImageOperation  {
     private boolean trackMessage(ImageReplyMessage m) {
       return getStatus(m.getSender()).trackMessage(m);
     }
+
+    /**
+     * Logs how many entries and bytes each image provider sent, and how fast
+     */
+    synchronized void logSourceThroughput() {
+      long now = System.nanoTime();
+      for (Iterator it = this.statusMap.entrySet().iterator(); it.hasNext();) {
+        Map.Entry me = (Map.Entry)it.next();
+        Status status = (Status)me.getValue();
+        long entries;
+        long bytes;
+        long end;
+        synchronized (status) {
+          entries = status.entriesReceived;
+          bytes = status.bytesReceived;
+          end = status.finishTime == 0 ? now : status.finishTime;
+        }
+        long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - this.startTime));
+        logger.info("{} received {} entries ({} bytes) of its image from {} in {} ms: {} entries/s, {} KB/s",
+            region.getName(), entries, bytes, me.getKey(), millis,
+            entries * 1000 / millis, bytes * 1000 / 1024 / millis);
+      }
+    }
         
   }
   
@@ -1586,15 +1792,54 @@ public class InitialImageOperation  {
     /* key list for unfinished operations */
     protected Set unfinishedKeys;
 
+    /**
+     * if more than one, the requester gets a full image in this many
+     * segments, each from a different provider, and this provider sends
+     * only the keys in {@link #segment}
+     */
+    protected int numSegments;
+
+    /** the segment of the image to send, see {@link #numSegments} */
+    protected int segment;
+
+    /**
+     * the version vector that the requester received from the provider of
+     * the first segment and applied to its region. The providers of the
+     * other segments only send their segment if their version vector still
+     * dominates it, so that none of the data they send is older than the
+     * requester's version vector claims.
+     */
+    protected RegionVersionVector baseVersionVector;
+
     /** The versions in which this message was modified */
     private static final Version[] dsfidVersions = new Version[] {
-          Version.GFE_80 };
+          Version.GFE_80, Version.GFE_90 };
 
     @Override  
     public int getProcessorId() {
       return this.processorId;
     }
 
+    /**
+     * Returns a copy of this full image request that asks the given provider
+     * for another segment of the image
+     */
+    RequestImageMessage forSegment(InternalDistributedMember provider,
+        int segment, RegionVersionVector baseVersionVector) {
+      RequestImageMessage m = new RequestImageMessage();
+      m.regionPath = this.regionPath;
+      m.processorId = this.processorId;
+      m.keysOnly = this.keysOnly;
+      m.targetReinitialized = this.targetReinitialized;
+      m.checkTombstoneVersions = this.checkTombstoneVersions;
+      m.severeAlertEnabled = this.severeAlertEnabled;
+      m.numSegments = this.numSegments;
+      m.segment = segment;
+      m.baseVersionVector = baseVersionVector;
+      m.setRecipient(provider);
+      return m;
+    }
+
     @Override  
     final public int getProcessorType() {
       return this.targetReinitialized ? DistributionManager.WAITING_POOL_EXECUTOR :
@@ -1678,6 +1923,17 @@ public class InitialImageOperation  {
           }
         }
 
+        if (this.baseVersionVector != null
+            && (rgn.getVersionVector() == null
+                || !rgn.getVersionVector().dominates(this.baseVersionVector))) {
+          // the requester will fail this attempt and retry with one provider
+          if (isGiiDebugEnabled) {
+            logger.trace(LogMarker.GII, "not sending segment {} because the region's version vector {} does not dominate {}",
+                this.segment, rgn.getVersionVector(), this.baseVersionVector);
+          }
+          return;
+        }
+
         final int numSeries = 1; // @todo ericz parallelize using series
         final int seriesNum = 0;
         
@@ -1932,6 +2188,10 @@ public class InitialImageOperation  {
             if (rgn.checkEntryNotValid(mapEntry)) { // entry was just removed
               continue;
             }
+            if (this.numSegments > 1 && segmentOf(key, this.numSegments) != this.segment) {
+              // another provider is sending this key
+              continue;
+            }
             if (logger.isDebugEnabled()) {
               Object v = mapEntry.getValueInVM(rgn); // OFFHEAP: noop
               if (v instanceof Conflatable) {
@@ -2016,7 +2276,8 @@ public class InitialImageOperation  {
           // if this region is destroyed while we are sending data, then abort.
         } while (keepGoing && it.hasNext());
 
-        if (foundIds.size() > 0) {
+        // when sending a segment the ids of the other segments were not found
+        if (foundIds.size() > 0 && this.numSegments <= 1) {
           RegionVersionVector vv = rgn.getVersionVector(); 
           if (vv != null) {
             vv.removeOldMembers(foundIds);
@@ -2074,6 +2335,13 @@ public class InitialImageOperation  {
 
     @Override  
     public void fromData(DataInput in) throws IOException, ClassNotFoundException {
+      fromDataPre_GFE_9_0_0_0(in);
+      this.numSegments = in.readInt();
+      this.segment = in.readInt();
+      this.baseVersionVector = (RegionVersionVector)DataSerializer.readObject(in);
+    }
+
+    public void fromDataPre_GFE_9_0_0_0(DataInput in) throws IOException, ClassNotFoundException {
       fromDataPre_GFE_8_0_0_0(in);
       this.unfinishedKeys = (Set)DataSerializer.readObject(in);
     }
@@ -2092,6 +2360,13 @@ public class InitialImageOperation  {
     
     @Override  
     public void toData(DataOutput out) throws IOException {
+      toDataPre_GFE_9_0_0_0(out);
+      out.writeInt(this.numSegments);
+      out.writeInt(this.segment);
+      DataSerializer.writeObject(this.baseVersionVector, out);
+    }
+
+    public void toDataPre_GFE_9_0_0_0(DataOutput out) throws IOException {
       toDataPre_GFE_8_0_0_0(out);
       DataSerializer.writeObject(this.unfinishedKeys, out);
     }
@@ -2136,6 +2411,9 @@ public class InitialImageOperation  {
       }
       buff.append("; versionVector=").append(versionVector);
       buff.append("; unfinished keys=").append(unfinishedKeys);
+      if (this.numSegments > 1) {
+        buff.append("; segment=").append(this.segment).append('/').append(this.numSegments);
+      }
       buff.append(")");
       return buff.toString();
     }
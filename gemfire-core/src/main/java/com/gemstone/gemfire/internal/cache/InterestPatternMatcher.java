@@ -0,0 +1,202 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the clients whose regular expression interest matches a key in one
+ * pass over the key instead of running every registered pattern.
+ *
+ * Patterns without meta characters are kept in a map from the key they
+ * match. Patterns that are a literal prefix followed by <code>.*</code>,
+ * by far the most common kind of regex interest, are kept in a trie of
+ * their prefixes, so the clients interested in a key are found by walking
+ * the trie along the key. Only the remaining patterns are matched one by
+ * one, and only for clients that did not match already.
+ *
+ * A matcher is immutable and built from one version of the copy-on-write
+ * map of patterns in a FilterProfile; the profile builds a new one when
+ * that map is replaced.
+ *
+ * @since 9.0
+ */
+final class InterestPatternMatcher {
+
+  /** The map of client IDs to their patterns this matcher was built from */
+  private final Map<Object, Map<Object, Pattern>> patterns;
+
+  /** Clients per key of the literal patterns */
+  private final Map<String, Set<Object>> literals = new HashMap<String, Set<Object>>();
+
+  /** Clients per prefix of the "prefix.*" patterns */
+  private final Node prefixes = new Node();
+
+  /** The remaining patterns, as pairs of client ID and pattern */
+  private final List<Object> others = new ArrayList<Object>();
+
+  InterestPatternMatcher(Map<Object, Map<Object, Pattern>> patterns) {
+    this.patterns = patterns;
+    if (patterns == null) {
+      return;
+    }
+    for (Map.Entry<Object, Map<Object, Pattern>> entry : patterns.entrySet()) {
+      Object clientID = entry.getKey();
+      for (Pattern pattern : entry.getValue().values()) {
+        add(clientID, pattern);
+      }
+    }
+  }
+
+  /**
+   * Returns true if this matcher was built from the given map of patterns
+   */
+  boolean isFor(Map<Object, Map<Object, Pattern>> patterns) {
+    return this.patterns == patterns;
+  }
+
+  /**
+   * Adds the IDs of the clients that have a pattern matching the given key
+   * to the given set.
+   *
+   * @return the given set, or a new one if it was null and a client matched
+   */
+  Set addMatchingClients(String key, Set result) {
+    Set<Object> clients = this.literals.get(key);
+    if (clients != null) {
+      result = addAll(result, clients);
+    }
+    // ".*" does not match line terminators, so the prefix matches of such
+    // keys have to be confirmed by their patterns
+    boolean confirm = hasLineTerminator(key);
+    Node node = this.prefixes;
+    for (int i = 0; node != null; i++) {
+      if (!node.clients.isEmpty()) {
+        if (confirm) {
+          for (Map.Entry<Object, Pattern> entry : node.clients.entrySet()) {
+            if ((result == null || !result.contains(entry.getKey()))
+                && entry.getValue().matcher(key).matches()) {
+              result = addAll(result, Collections.singleton(entry.getKey()));
+            }
+          }
+        } else {
+          result = addAll(result, node.clients.keySet());
+        }
+      }
+      node = i < key.length() ? node.children.get(key.charAt(i)) : null;
+    }
+    for (int i = 0; i < this.others.size(); i += 2) {
+      Object clientID = this.others.get(i);
+      if ((result == null || !result.contains(clientID))
+          && ((Pattern)this.others.get(i + 1)).matcher(key).matches()) {
+        result = addAll(result, Collections.singleton(clientID));
+      }
+    }
+    return result;
+  }
+
+  private void add(Object clientID, Pattern pattern) {
+    String regex = pattern.pattern();
+    StringBuilder literal = new StringBuilder();
+    int end = literalPrefix(regex, literal);
+    if (end == regex.length()) {
+      Set<Object> clients = this.literals.get(literal.toString());
+      if (clients == null) {
+        clients = new HashSet<Object>();
+        this.literals.put(literal.toString(), clients);
+      }
+      clients.add(clientID);
+    } else if (end == regex.length() - 2 && regex.endsWith(".*")) {
+      Node node = this.prefixes;
+      for (int i = 0; i < literal.length(); i++) {
+        Node child = node.children.get(literal.charAt(i));
+        if (child == null) {
+          child = new Node();
+          node.children.put(literal.charAt(i), child);
+        }
+        node = child;
+      }
+      // a client with several patterns for the prefix only needs one
+      node.clients.put(clientID, pattern);
+    } else {
+      this.others.add(clientID);
+      this.others.add(pattern);
+    }
+  }
+
+  /**
+   * Appends the characters the start of the given regular expression
+   * matches literally to the given builder.
+   *
+   * @return the index of the first character that is not part of the
+   *         literal prefix, or -1 if a quantifier applies to its last
+   *         character
+   */
+  static int literalPrefix(String regex, StringBuilder literal) {
+    int i = 0;
+    while (i < regex.length()) {
+      char c = regex.charAt(i);
+      if (c == '\\') {
+        // only escaped punctuation is a literal, letters and digits
+        // are character classes, back references or quotes
+        if (i + 1 == regex.length()
+            || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+          return i;
+        }
+        literal.append(regex.charAt(i + 1));
+        i += 2;
+      } else if (".[]{}()*+?^$|".indexOf(c) >= 0) {
+        // a quantifier applies to the last literal character
+        if (c == '*' || c == '+' || c == '?' || c == '{') {
+          return -1;
+        }
+        return i;
+      } else if (Character.isSurrogate(c)) {
+        // the regex matches code points, not chars
+        return -1;
+      } else {
+        literal.append(c);
+        i++;
+      }
+    }
+    return i;
+  }
+
+  private static boolean hasLineTerminator(String key) {
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028'
+          || c == '\u2029') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static Set addAll(Set result, Set<Object> clients) {
+    if (result == null) {
+      result = new HashSet();
+    }
+    result.addAll(clients);
+    return result;
+  }
+
+  private static final class Node {
+    final Map<Character, Node> children = new HashMap<Character, Node>(4);
+
+    /** The clients whose prefix ends here, with one of their patterns */
+    final Map<Object, Pattern> clients = new HashMap<Object, Pattern>(2);
+  }
+}
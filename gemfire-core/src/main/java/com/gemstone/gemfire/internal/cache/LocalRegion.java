@@ -130,6 +130,7 @@ import com.gemstone.gemfire.cache.query.internal.DefaultQueryService;
 import com.gemstone.gemfire.cache.query.internal.ExecutionContext;
 import com.gemstone.gemfire.cache.query.internal.IndexUpdater;
 import com.gemstone.gemfire.cache.query.internal.cq.CqService;
+import com.gemstone.gemfire.cache.query.internal.index.IndexCheckpoint;
 import com.gemstone.gemfire.cache.query.internal.index.IndexCreationData;
 import com.gemstone.gemfire.cache.query.internal.index.IndexManager;
 import com.gemstone.gemfire.cache.query.internal.index.IndexProtocol;
@@ -2637,15 +2638,21 @@ public class LocalRegion extends AbstractRegion
     int initLevel = 0;
     DiskRegion dr = this.getDiskRegion();
     boolean isOverflowToDisk = false;
+    IndexCheckpoint checkpoint = null;
     if(dr != null) {
       isOverflowToDisk = dr.isOverflowEnabled();
-      if(recoverFromDisk && !isOverflowToDisk) {
+      if (recoverFromDisk) {
+        checkpoint = IndexCheckpoint.recover(this);
+      }
+      if(recoverFromDisk && !isOverflowToDisk && checkpoint == null) {
         // Refer bug #44119
         // For disk regions, index creation should wait for async value creation to complete before it starts its iteration
         // In case of disk overflow regions the waitForAsyncRecovery is done in populateOQLIndexes method via getBestIterator() 
         dr.waitForAsyncRecovery();
       }
     }
+    // Indexes loaded from a checkpoint are created empty and loaded afterwards
+    boolean loadEntries = !isOverflowToDisk && checkpoint == null;
     try {
       // Release the initialization latch for index creation.
       initLevel = LocalRegion.setThreadInitLevelRequirement(ANY_INIT);
@@ -2664,7 +2671,7 @@ public class LocalRegion extends AbstractRegion
             //load entries during initialization only for non overflow regions
             indexes.add(this.indexManager.createIndex(icd.getIndexName(), icd.getIndexType(), 
                 icd.getIndexExpression(), icd.getIndexFromClause(), 
-                icd.getIndexImportString(), externalContext, icd.getPartitionedIndex(), !isOverflowToDisk));
+                icd.getIndexImportString(), externalContext, icd.getPartitionedIndex(), loadEntries));
             prIndexes.add(icd.getPartitionedIndex());
           } else {
             if (logger.isDebugEnabled()) {
@@ -2673,7 +2680,7 @@ public class LocalRegion extends AbstractRegion
             DefaultQueryService qs = (DefaultQueryService) this.getGemFireCache().getLocalQueryService();
             String fromClause = (icd.getIndexType() == IndexType.FUNCTIONAL || icd.getIndexType() == IndexType.HASH)? icd.getIndexFromClause() : this.getFullPath();
             //load entries during initialization only for non overflow regions
-            indexes.add(qs.createIndex(icd.getIndexName(), icd.getIndexType(), icd.getIndexExpression(), fromClause, icd.getIndexImportString(), !isOverflowToDisk));
+            indexes.add(qs.createIndex(icd.getIndexName(), icd.getIndexType(), icd.getIndexExpression(), fromClause, icd.getIndexImportString(), loadEntries));
           }
 
         } catch (Exception ex) {
@@ -2692,10 +2699,18 @@ public class LocalRegion extends AbstractRegion
       // Reset the initialization lock.
       LocalRegion.setThreadInitLevelRequirement(initLevel);
     }
-    // Load data into OQL indexes in case of disk recovery and disk overflow
-    if(isOverflowToDisk){
+    // Load data into OQL indexes in case of disk recovery with disk overflow or an index checkpoint
+    if(!loadEntries){
       if(recoverFromDisk) {
-        populateOQLIndexes(indexes);
+        if (checkpoint != null) {
+          indexes = this.indexManager.loadIndexCheckpoint(checkpoint, indexes);
+          if (!isOverflowToDisk && !indexes.isEmpty()) {
+            dr.waitForAsyncRecovery();
+          }
+        }
+        if (!indexes.isEmpty()) {
+          populateOQLIndexes(indexes);
+        }
       } else {
         // Empty indexes are created for overflow regions but not populated at this stage
         // since this is not recovery.
@@ -2890,6 +2905,9 @@ public class LocalRegion extends AbstractRegion
       try {
         if (this.indexManager != null) {
           try {
+            if (isClose && this.diskRegion != null) {
+              this.indexManager.writeIndexCheckpoint();
+            }
             if (this instanceof BucketRegion) {
               this.indexManager.removeBucketIndexes(getPartitionedRegion());
             }
@@ -7091,6 +7109,7 @@ public class LocalRegion extends AbstractRegion
   {
     if (this.diskRegion != null) {
       if (destroyDiskRegion) {
+        IndexCheckpoint.delete(this.diskRegion);
         this.diskRegion.endDestroy(this);
       }
       else {
@@ -128,6 +128,7 @@ import com.gemstone.gemfire.cache.query.internal.ResultsSet;
 import com.gemstone.gemfire.cache.query.internal.index.AbstractIndex;
 import com.gemstone.gemfire.cache.query.internal.index.IndexCreationData;
 import com.gemstone.gemfire.cache.query.internal.index.IndexManager;
+import com.gemstone.gemfire.cache.query.internal.index.IndexPopulationPool;
 import com.gemstone.gemfire.cache.query.internal.index.IndexUtils;
 import com.gemstone.gemfire.cache.query.internal.index.PartitionedIndex;
 import com.gemstone.gemfire.cache.query.internal.types.ObjectTypeImpl;
@@ -9424,30 +9425,46 @@ public class PartitionedRegion extends LocalRegion implements
     }
   }
  
-  private boolean populateEmptyIndexes(Set<Index> indexes,
+  /**
+   * Populates the indexes of the local buckets. The buckets are populated in
+   * parallel, each of them by a single thread.
+   */
+  private boolean populateEmptyIndexes(final Set<Index> indexes,
       HashMap<String, Exception> exceptionsMap) {
-    boolean throwException = false;
+    final AtomicBoolean throwException = new AtomicBoolean();
+    final Map<String, Exception> bucketExceptions = new ConcurrentHashMap<String, Exception>();
     if (getDataStore() != null && indexes.size() > 0) {
       Set localBuckets = getDataStore().getAllLocalBuckets();
-      Iterator it = localBuckets.iterator();
-      while (it.hasNext()) {
-        Map.Entry entry = (Map.Entry) it.next();
-        Region bucket = (Region) entry.getValue();
+      IndexPopulationPool pool = new IndexPopulationPool(getFullPath(),
+          IndexManager.INDEX_POPULATION_THREADS);
+      try {
+        Iterator it = localBuckets.iterator();
+        while (it.hasNext() && !pool.hasFailed()) {
+          Map.Entry entry = (Map.Entry) it.next();
+          final Region bucket = (Region) entry.getValue();
 
-        if (bucket == null) {
-          continue;
-        }
-        IndexManager bucketIndexManager = IndexUtils.getIndexManager(bucket, true);
-        Set<Index> bucketIndexes = getBucketIndexesForPRIndexes(bucket, indexes);
-        try {
-          bucketIndexManager.populateIndexes(bucketIndexes);
-        } catch (MultiIndexCreationException ex) {
-          exceptionsMap.putAll(ex.getExceptionsMap());
-          throwException = true;
+          if (bucket == null) {
+            continue;
+          }
+          pool.execute(new Runnable() {
+            public void run() {
+              IndexManager bucketIndexManager = IndexUtils.getIndexManager(bucket, true);
+              Set<Index> bucketIndexes = getBucketIndexesForPRIndexes(bucket, indexes);
+              try {
+                bucketIndexManager.populateIndexes(bucketIndexes, 1);
+              } catch (MultiIndexCreationException ex) {
+                bucketExceptions.putAll(ex.getExceptionsMap());
+                throwException.set(true);
+              }
+            }
+          });
         }
+      } finally {
+        pool.shutdownAndWait();
       }
     }
-    return throwException;
+    exceptionsMap.putAll(bucketExceptions);
+    return throwException.get();
  }
   
   private Set<Index> getBucketIndexesForPRIndexes(Region bucket, Set<Index> indexes) {
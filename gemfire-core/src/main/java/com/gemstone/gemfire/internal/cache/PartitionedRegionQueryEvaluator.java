@@ -59,6 +59,7 @@ import com.gemstone.gemfire.cache.query.internal.OrderByComparator;
 import com.gemstone.gemfire.cache.query.internal.PRQueryTraceInfo;
 import com.gemstone.gemfire.cache.query.internal.QueryExecutionContext;
 import com.gemstone.gemfire.cache.query.internal.QueryMonitor;
+import com.gemstone.gemfire.cache.query.internal.QueryPlan;
 import com.gemstone.gemfire.cache.query.internal.ResultsBag;
 import com.gemstone.gemfire.cache.query.internal.ResultsSet;
 import com.gemstone.gemfire.cache.query.internal.RuntimeIterator;
@@ -200,7 +201,7 @@ public class PartitionedRegionQueryEvaluator extends StreamingPartitionOperation
     this.successfulBuckets = new IntOpenHashSet(this.bucketsToQuery.size());
     this.resultsPerMember = new ConcurrentHashMap<InternalDistributedMember, Collection<Collection>>();
     this.node2bucketIds = Collections.emptyMap();
-    if (query != null && query.isTraced()) {
+    if (query != null && (query.isTraced() || query.getQueryPlan() != null)) {
       prQueryTraceInfoList = new ConcurrentLinkedQueue();
     }
   }
@@ -603,7 +604,28 @@ public class PartitionedRegionQueryEvaluator extends StreamingPartitionOperation
       */
     }
 
-    return addResultsToResultSet();
+    QueryPlan queryPlan = this.query == null ? null : this.query.getQueryPlan();
+    if (queryPlan == null) {
+      return addResultsToResultSet();
+    }
+    // the plan of each member is sent along with its trace info
+    for (PRQueryTraceInfo queryTraceInfo : prQueryTraceInfoList) {
+      if (queryTraceInfo.getQueryPlan() != null) {
+        queryPlan.addChild(queryTraceInfo.getQueryPlan());
+      }
+    }
+    int rowsIn = 0;
+    for (Collection<Collection> memberResults : this.resultsPerMember.values()) {
+      for (Object results : memberResults) {
+        rowsIn += results instanceof Collection ? ((Collection)results).size() : 1;
+      }
+    }
+    long startTime = NanoTimer.getTime();
+    SelectResults results = addResultsToResultSet();
+    QueryPlan merge = new QueryPlan(QueryPlan.MERGE, null);
+    merge.recordExecution(NanoTimer.getTime() - startTime, rowsIn, results.size());
+    queryPlan.addChild(merge);
+    return results;
   }
   
   /**
@@ -1123,7 +1145,8 @@ public class PartitionedRegionQueryEvaluator extends StreamingPartitionOperation
   private boolean executeQueryOnLocalNode() throws QueryException, InterruptedException
   {
     long startTime = 0;
-    if (query.isTraced()) {
+    QueryPlan queryPlan = query.getQueryPlan();
+    if (query.isTraced() || queryPlan != null) {
       startTime = NanoTimer.getTime();
     }
     if (Thread.interrupted()) {
@@ -1146,7 +1169,19 @@ public class PartitionedRegionQueryEvaluator extends StreamingPartitionOperation
         MemberResultsList resultCollector = new MemberResultsList();
         
         // Execute Query.
-        qp.executeQuery(resultCollector);
+        QueryPlan memberPlan = null;
+        if (queryPlan != null) {
+          // record the local executions the way a remote member does
+          memberPlan = new QueryPlan(QueryPlan.MEMBER, me.toString());
+          query.setQueryPlan(memberPlan);
+        }
+        try {
+          qp.executeQuery(resultCollector);
+        } finally {
+          if (queryPlan != null) {
+            query.setQueryPlan(queryPlan);
+          }
+        }
         
         //Only wrap/copy results when copy on read is set and an index is used on a local query
         //This is because when an index is used, the results are actual references to values in the cache
@@ -1177,7 +1212,7 @@ public class PartitionedRegionQueryEvaluator extends StreamingPartitionOperation
         }
       
         //Adds a query trace info object to the results list
-        if (query.isTraced() && prQueryTraceInfoList != null) {
+        if ((query.isTraced() || memberPlan != null) && prQueryTraceInfoList != null) {
           if (DefaultQuery.testHook != null) {
             DefaultQuery.testHook.doTestHook("Create PR Query Trace Info From Local Node");
           }
@@ -1185,6 +1220,11 @@ public class PartitionedRegionQueryEvaluator extends StreamingPartitionOperation
           queryTraceInfo.setNumResults(queryTraceInfo.calculateNumberOfResults(resultCollector));
           queryTraceInfo.setTimeInMillis((NanoTimer.getTime() - startTime) / 1.0e6f);
           queryTraceInfo.setSender(me);
+          if (memberPlan != null) {
+            memberPlan.recordExecution(NanoTimer.getTime() - startTime, 0,
+                queryTraceInfo.calculateNumberOfResults(resultCollector));
+            queryTraceInfo.setQueryPlan(memberPlan);
+          }
           //Due to the way trace info is populated, we will rely on the query execution logging
           //index usage for us.
           prQueryTraceInfoList.add(queryTraceInfo);        
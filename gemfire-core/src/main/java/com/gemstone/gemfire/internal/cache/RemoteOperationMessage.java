@@ -86,6 +86,7 @@ public abstract class RemoteOperationMessage extends DistributionMessage impleme
     setRecipient(recipient);
     this.regionPath = regionPath;
     this.processorId = processor==null? 0 : processor.getProcessorId();
+    setReplyProcessor(processor);
     if (processor != null && this.isSevereAlertCompatible()) {
       processor.enableSevereAlertProcessing();
     }
@@ -101,6 +102,7 @@ public abstract class RemoteOperationMessage extends DistributionMessage impleme
     setRecipients(recipients);
     this.regionPath = regionPath;
     this.processorId = processor==null? 0 : processor.getProcessorId();
+    setReplyProcessor(processor);
     if (processor != null && this.isSevereAlertCompatible()) {
       processor.enableSevereAlertProcessing();
     }
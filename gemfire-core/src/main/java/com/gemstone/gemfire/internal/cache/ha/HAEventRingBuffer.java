@@ -0,0 +1,235 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.cache.ha;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The events of an HARegionQueue, indexed by their position counter. The
+ * counters handed out by the queue only grow and events are mostly removed
+ * in the order they were added, so the live positions form a window that is
+ * kept in a power of two sized array. Putting, getting and removing an event
+ * are a few array accesses instead of a region operation.
+ *
+ * The buffer only holds references: an HAEventWrapper stays a key into the
+ * HAContainer, which holds (and may overflow) the message itself.
+ *
+ * An event that stays in the queue while many later ones come and go, like
+ * the event of a stuck dispatcher, would make the window grow without bound.
+ * Once the window would span more than {@link #MAX_CAPACITY} positions, the
+ * events furthest behind are moved to a sorted map and looked up there.
+ *
+ * @since 9.0
+ */
+final class HAEventRingBuffer {
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  /**
+   * The most positions the array spans, a power of two. Not final so that
+   * tests can lower it.
+   */
+  static int MAX_CAPACITY = 1 << 20;
+
+  private Object[] slots = new Object[INITIAL_CAPACITY];
+
+  /** The lowest position that may be in the buffer */
+  private long head;
+
+  /** The highest position that may be in the buffer */
+  private long tail;
+
+  /** The number of events in the array */
+  private int size;
+
+  /**
+   * The events too far behind the newest one to be kept in the array, null
+   * if there are none. Their positions are never in the array.
+   */
+  private TreeMap<Long, Object> stragglers;
+
+  /**
+   * Stores the event at the given position. Positions need not arrive in
+   * order, since concurrent puts get their counters before they get here.
+   */
+  synchronized void put(long position, Object event) {
+    if (this.stragglers != null
+        && this.stragglers.containsKey(Long.valueOf(position))) {
+      this.stragglers.put(Long.valueOf(position), event);
+      return;
+    }
+    if (this.size == 0) {
+      this.head = position;
+      this.tail = position;
+    }
+    long low = Math.min(this.head, position);
+    long high = Math.max(this.tail, position);
+    if (high - low >= MAX_CAPACITY) {
+      if (position < this.head) {
+        // too late for the window
+        addStraggler(position, event);
+        return;
+      }
+      // make room by moving the oldest events out of the window
+      moveToStragglers(high - MAX_CAPACITY + 1);
+      if (this.size == 0) {
+        this.head = position;
+        this.tail = position;
+      }
+      low = this.head;
+    }
+    if (high - low >= this.slots.length) {
+      resize(high - low + 1);
+    }
+    this.head = low;
+    this.tail = high;
+    int index = index(position);
+    if (this.slots[index] == null) {
+      this.size++;
+    }
+    this.slots[index] = event;
+  }
+
+  /**
+   * @return the event at the given position or null if there is none
+   */
+  synchronized Object get(long position) {
+    if (this.stragglers != null) {
+      Object event = this.stragglers.get(Long.valueOf(position));
+      if (event != null) {
+        return event;
+      }
+    }
+    return getFromWindow(position);
+  }
+
+  private Object getFromWindow(long position) {
+    if (this.size == 0 || position < this.head || position > this.tail) {
+      return null;
+    }
+    return this.slots[index(position)];
+  }
+
+  /**
+   * Removes the event at the given position.
+   *
+   * @return the event that was removed or null if there was none
+   */
+  synchronized Object remove(long position) {
+    if (this.stragglers != null) {
+      Object event = this.stragglers.remove(Long.valueOf(position));
+      if (event != null) {
+        if (this.stragglers.isEmpty()) {
+          this.stragglers = null;
+        }
+        return event;
+      }
+    }
+    Object event = getFromWindow(position);
+    if (event == null) {
+      return null;
+    }
+    this.slots[index(position)] = null;
+    if (--this.size == 0) {
+      if (this.slots.length > INITIAL_CAPACITY) {
+        // don't hold on to the array of a burst
+        this.slots = new Object[INITIAL_CAPACITY];
+      }
+    }
+    else if (position == this.head) {
+      while (this.slots[index(this.head)] == null) {
+        this.head++;
+      }
+    }
+    else if (position == this.tail) {
+      while (this.slots[index(this.tail)] == null) {
+        this.tail--;
+      }
+    }
+    return event;
+  }
+
+  synchronized int size() {
+    return this.stragglers == null ? this.size
+        : this.size + this.stragglers.size();
+  }
+
+  synchronized void clear() {
+    this.slots = new Object[INITIAL_CAPACITY];
+    this.size = 0;
+    this.stragglers = null;
+  }
+
+  /**
+   * Copies the events in the buffer, keyed by their position, to the given
+   * map.
+   */
+  synchronized void copyTo(Map<Long, Object> target) {
+    if (this.stragglers != null) {
+      target.putAll(this.stragglers);
+    }
+    if (this.size == 0) {
+      return;
+    }
+    for (long position = this.head; position <= this.tail; position++) {
+      Object event = this.slots[index(position)];
+      if (event != null) {
+        target.put(Long.valueOf(position), event);
+      }
+    }
+  }
+
+  private int index(long position) {
+    return (int)position & (this.slots.length - 1);
+  }
+
+  private void addStraggler(long position, Object event) {
+    if (this.stragglers == null) {
+      this.stragglers = new TreeMap<Long, Object>();
+    }
+    this.stragglers.put(Long.valueOf(position), event);
+  }
+
+  /**
+   * Moves the events at positions below the given one from the array to
+   * the stragglers.
+   */
+  private void moveToStragglers(long newHead) {
+    while (this.size > 0 && this.head < newHead) {
+      int index = index(this.head);
+      Object event = this.slots[index];
+      if (event != null) {
+        addStraggler(this.head, event);
+        this.slots[index] = null;
+        this.size--;
+      }
+      this.head++;
+    }
+    if (this.size > 0) {
+      while (this.slots[index(this.head)] == null) {
+        this.head++;
+      }
+    }
+  }
+
+  /** minCapacity is at most MAX_CAPACITY */
+  private void resize(long minCapacity) {
+    int capacity = this.slots.length;
+    while (capacity < minCapacity) {
+      capacity <<= 1;
+    }
+    Object[] newSlots = new Object[capacity];
+    if (this.size > 0) {
+      for (long position = this.head; position <= this.tail; position++) {
+        newSlots[(int)position & (capacity - 1)] = this.slots[index(position)];
+      }
+    }
+    this.slots = newSlots;
+  }
+}
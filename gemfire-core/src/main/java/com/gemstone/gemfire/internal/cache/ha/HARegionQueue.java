@@ -74,7 +74,9 @@ import com.gemstone.gemfire.internal.cache.EventID;
 import com.gemstone.gemfire.internal.cache.GemFireCacheImpl;
 import com.gemstone.gemfire.internal.cache.HARegion;
 import com.gemstone.gemfire.internal.cache.RegionQueue;
+import com.gemstone.gemfire.internal.cache.lru.Sizeable;
 import com.gemstone.gemfire.internal.cache.tier.sockets.CacheClientNotifier;
+import com.gemstone.gemfire.internal.cache.tier.sockets.CacheClientProxy;
 import com.gemstone.gemfire.internal.cache.tier.sockets.ClientMarkerMessageImpl;
 import com.gemstone.gemfire.internal.cache.tier.sockets.ClientProxyMembershipID;
 import com.gemstone.gemfire.internal.cache.tier.sockets.ClientUpdateMessage;
@@ -237,6 +239,30 @@ public class HARegionQueue implements RegionQueue
 
   /** queue to hold events during GII transfer so we do not modify the queue during chunking */
   private Queue giiQueue = new ConcurrentLinkedQueue();
+
+  /**
+   * Whether the events queued while a queue is primary are kept in an
+   * {@link HAEventRingBuffer} instead of the HARegion. Secondary queues
+   * always use the region since their events expire through it. Not final
+   * so that tests can set it; it is read when a queue is created.
+   * 
+   * @since 9.0
+   */
+  static boolean USE_RING_BUFFER = Boolean
+      .getBoolean("gemfire.HARegionQueue.USE_RING_BUFFER");
+
+  /**
+   * the events put while this queue is primary if {@link #USE_RING_BUFFER} is
+   * set, otherwise null
+   */
+  private final HAEventRingBuffer events = USE_RING_BUFFER ? new HAEventRingBuffer()
+      : null;
+
+  /**
+   * positions of the events copied from the ring buffer into the HARegion
+   * while a GII image is being served, guarded by the giiLock
+   */
+  private Set<Long> eventsCopiedForGII;
   
   /**
    * Constant used to indicate the instance of BlockingHARegionQueue. The static
@@ -308,6 +334,28 @@ public class HARegionQueue implements RegionQueue
    * @since 6.0
    */
   public boolean isClientSlowReciever = false;
+
+  /**
+   * The size in bytes of the events in this queue, maintained only if
+   * {@link CacheClientProxy#MAX_QUEUE_MEMORY} is set
+   * 
+   * @since 9.0
+   */
+  private final AtomicLong queuedBytes = new AtomicLong();
+
+  /**
+   * The number of threads waiting in {@link #waitForQueuedBytes} to be
+   * notified when events are removed
+   */
+  private volatile int queuedBytesWaiters;
+
+  /**
+   * When true, updates are conflated regardless of the conflation the client
+   * asked for, since the queue is using too much memory
+   * 
+   * @since 9.0
+   */
+  private volatile boolean conflateForMemory;
   
   /**
    * initialization flag - when true the queue has fully initialized
@@ -420,6 +468,15 @@ public class HARegionQueue implements RegionQueue
     GemFireCacheImpl cache = this.region.getCache();
     String regionName = this.region.getName();
     this.region.destroyRegion();
+    if (this.events != null) {
+      this.events.clear();
+    }
+    // the events are gone, those put back by putGIIDataInRegion are counted again
+    this.queuedBytes.set(0);
+    this.conflateForMemory = false;
+    synchronized (this.queuedBytes) {
+      this.queuedBytes.notifyAll();
+    }
     Exception problem = null;
     try {
       createHARegion(regionName, cache);
@@ -587,7 +644,9 @@ public class HARegionQueue implements RegionQueue
     if (event instanceof ClientMarkerMessageImpl) {
       return retVal;
     }
-    switch (this.clientConflation) {
+    byte conflation = this.conflateForMemory ? HandShake.CONFLATION_ON
+        : this.clientConflation;
+    switch (conflation) {
     case HandShake.CONFLATION_OFF:
       return false; // always disable
     case HandShake.CONFLATION_ON:
@@ -748,11 +807,17 @@ public class HARegionQueue implements RegionQueue
    */
   public void startGiiQueueing() {
     this.giiLock.writeLock().lock();
-    this.giiCount++;
-    if (logger.isDebugEnabled()) {
-      logger.debug("{}: startGiiQueueing count is now {}", this.region.getName(), this.giiCount);
+    try {
+      this.giiCount++;
+      if (logger.isDebugEnabled()) {
+        logger.debug("{}: startGiiQueueing count is now {}", this.region.getName(), this.giiCount);
+      }
+      if (this.events != null && this.eventsCopiedForGII == null) {
+        copyEventsIntoRegion();
+      }
+    } finally {
+      this.giiLock.writeLock().unlock();
     }
-    this.giiLock.writeLock().unlock();
     // slow GII serving for debugging #43609
 //    try {Thread.sleep(5000);} catch (InterruptedException e) { Thread.currentThread().interrupt(); }
   }
@@ -832,6 +897,9 @@ public class HARegionQueue implements RegionQueue
           this.region.getCache().getCancelCriterion().checkCancelInProgress(new InterruptedException());
           Thread.currentThread().interrupt();
         }
+        if (this.eventsCopiedForGII != null) {
+          removeEventsCopiedIntoRegion();
+        }
       }
     } catch (RuntimeException t) {
       logger.fatal("endGiiQueueing terminating due to uncaught runtime exception", t);
@@ -847,7 +915,42 @@ public class HARegionQueue implements RegionQueue
     }
   }
 
-  
+
+  /**
+   * The image of an HARegion is made of its entries, so the events in the
+   * ring buffer are copied into the region for as long as GII requests are
+   * served. Puts are queued in the giiQueue meanwhile, so the copies only
+   * have to be removed again once the last request is done.
+   * Caller must hold the write lock of the giiLock.
+   */
+  private void copyEventsIntoRegion() {
+    Map<Long, Object> copies = new TreeMap<Long, Object>();
+    this.events.copyTo(copies);
+    for (Map.Entry<Long, Object> entry : copies.entrySet()) {
+      this.region.put(entry.getKey(), entry.getValue());
+    }
+    this.eventsCopiedForGII = copies.keySet();
+    if (logger.isDebugEnabled()) {
+      logger.debug("{}: copied {} events into the region for GII", this.region.getName(), copies.size());
+    }
+  }
+
+  /**
+   * Caller must hold the write lock of the giiLock.
+   */
+  private void removeEventsCopiedIntoRegion() {
+    for (Long position : this.eventsCopiedForGII) {
+      try {
+        this.region.localDestroy(position);
+      } catch (EntryNotFoundException e) {
+        // destroyed by expiry or a removal that missed the ring buffer
+      } catch (RegionDestroyedException e) {
+        break;
+      }
+    }
+    this.eventsCopiedForGII = null;
+  }
+
   /**
    * this method is for transmission of DACE information with initial image state
    * in HARegions.  It should not be used for other purposes.  The map contains
@@ -1202,10 +1305,48 @@ public class HARegionQueue implements RegionQueue
    * @param position
    */
   private void destroyFromQueue(Object key) {    
-    Object event = this.region.get(key);
-    this.region.localDestroy(key);
+    Object event = null;
+    if (this.events != null && key instanceof Long) {
+      event = this.events.remove(((Long)key).longValue());
+    }
+    if (event == null) {
+      event = this.region.get(key);
+      this.region.localDestroy(key);
+    }
     
     maintainCqStats(event, -1);
+    addQueuedBytes(event, -1);
+  }
+
+  /**
+   * Returns the event at the given position, or null if there is none. The
+   * event may be in the ring buffer, if one is used, or in the HARegion.
+   * 
+   * @since 9.0
+   */
+  protected Object getEventAt(Long position) {
+    if (this.events != null) {
+      Object event = this.events.get(position.longValue());
+      if (event != null) {
+        return event;
+      }
+    }
+    return this.region.get(position);
+  }
+
+  /**
+   * Puts the event at the given position into the ring buffer if this is a
+   * primary queue using one, otherwise into the HARegion.
+   * 
+   * @since 9.0
+   */
+  private void putEventAt(Long position, Object event) {
+    if (this.events != null && this.isPrimary) {
+      this.events.put(position.longValue(), event);
+    }
+    else {
+      this.region.put(position, event);
+    }
   }
 
   /** Returns the <code>toString</code> for this RegionQueue object */
@@ -1305,7 +1446,7 @@ public class HARegionQueue implements RegionQueue
     Conflatable object = null;
     Long next = null;
     if ((next = this.getAndRemoveNextAvailableID()) != null) {
-      object = (Conflatable)this.region.get(next);
+      object = (Conflatable)this.getEventAt(next);
       Assert.assertTrue(object != null);
 
       object = this.getAndRemoveFromHAContainer(object);
@@ -1399,7 +1540,7 @@ public class HARegionQueue implements RegionQueue
     for (Iterator iter = peekedIds.iterator(); iter.hasNext();) {
       Long counter = (Long)iter.next();
 
-      Conflatable event = (Conflatable)this.region.get(counter);
+      Conflatable event = (Conflatable)this.getEventAt(counter);
       if (event != null) {
         EventID eventid = event.getEventId();
         long sequenceId = eventid.getSequenceID();
@@ -1491,7 +1632,7 @@ public class HARegionQueue implements RegionQueue
       catch (TimeoutException te) {
         throw new InterruptedException();
       }
-      object = (Conflatable)this.region.get(next);
+      object = (Conflatable)this.getEventAt(next);
       if (object != null) {
         // peeked a object, so add the correponding counter to thread-context
         object = (object instanceof HAEventWrapper) ? (Conflatable)this.haContainer
@@ -1655,7 +1796,7 @@ public class HARegionQueue implements RegionQueue
     }
     for (int i = 0; i < limit; i++) {
       Long counter = (Long)itr.next();
-      event = this.region.get(counter);
+      event = this.getEventAt(counter);
       event = (event instanceof HAEventWrapper) ? this.haContainer
           .get(event) : event;
       //Since this method is invoked in a readlock , the entry in HARegion
@@ -2258,7 +2399,7 @@ public class HARegionQueue implements RegionQueue
       Object event = null;
       for (int i = 0; i < currSize; i++) {
         Long counter = (Long)availableIds[i];
-        event = this.region.get(counter);
+        event = this.getEventAt(counter);
         HAEventWrapper wrapper = null;
         if (event instanceof HAEventWrapper) {
           wrapper = (HAEventWrapper) event;
@@ -3310,8 +3451,8 @@ protected boolean checkEventForRemoval(Long counter, ThreadIdentifier threadid,
       // Remove the old conflated position
       if (oldPosition != null) {
         // Obtain the DispatchedAndCurrentEvents object
-        Conflatable old = (Conflatable)owningQueue.region
-            .get(oldPosition);
+        Conflatable old = (Conflatable)owningQueue
+            .getEventAt(oldPosition);
         if (old != null) {
           ThreadIdentifier oldTi = HARegionQueue.getThreadIdentifier(old
               .getEventId());
@@ -3342,8 +3483,8 @@ protected boolean checkEventForRemoval(Long counter, ThreadIdentifier threadid,
         throws CacheException, InterruptedException
     {
       synchronized (this) {
-        Conflatable conflatable = (Conflatable)owningQueue.region
-            .get(oldPosition);
+        Conflatable conflatable = (Conflatable)owningQueue
+            .getEventAt(oldPosition);
         if (owningQueue.destroyFromAvailableIDsAndRegion(oldPosition)) {
           if (this.counters != null) {
             this.counters.remove(oldPosition);
@@ -3508,8 +3649,8 @@ protected boolean checkEventForRemoval(Long counter, ThreadIdentifier threadid,
         if (countersCopy != null) {
         for (int i=0; i < countersCopy.length; i++) {
           Long counter = countersCopy[i];
-          Conflatable event = (Conflatable)owningQueue.region
-              .get(counter);
+          Conflatable event = (Conflatable)owningQueue
+              .getEventAt(counter);
           if (event == null) {
 //            this.destroy(counter); event already destroyed?
             continue;
@@ -3586,7 +3727,7 @@ protected boolean checkEventForRemoval(Long counter, ThreadIdentifier threadid,
         Long counter = info.counter;
         Object key = info.key;
         String r = info.regionName;
-        Conflatable wrapper = (Conflatable)owningQueue.region.get(counter);
+        Conflatable wrapper = (Conflatable)owningQueue.getEventAt(counter);
         if (owningQueue.destroyFromAvailableIDsAndRegion(counter)) {
           if (key != null) {
             this.destroy(counter, key, r);
@@ -3794,11 +3935,13 @@ protected boolean checkEventForRemoval(Long counter, ThreadIdentifier threadid,
 //      }
       // Put the reference to the HAEventWrapper instance into the
       // HA queue.
-      this.region.put(position, haEventWrapper);
+      putEventAt(position, haEventWrapper);
+      addQueuedBytes(haEventWrapper, 1);
 //      logger.info(LocalizedStrings.DEBUG, "added message at position " + position);
     }
     else { // (event instanceof ClientMarkerMessageImpl OR ConflatableObject OR ClientInstantiatorMessage)
-      this.region.put(position, event);
+      putEventAt(position, event);
+      addQueuedBytes(event, 1);
 //      logger.info(LocalizedStrings.DEBUG, "added non-msg at position " + position);
     }
   }
@@ -3921,7 +4064,7 @@ protected boolean checkEventForRemoval(Long counter, ThreadIdentifier threadid,
         final Set wrapperSet = new HashSet();
 
         for(int i=0; i<wrapperArray.length; i++) {
-          wrapperSet.add(this.region.get(wrapperArray[i]));
+          wrapperSet.add(this.getEventAt((Long)wrapperArray[i]));
         }
         // Start a new thread which will update the clientMessagesRegion for
         // each of the HAEventWrapper instances present in the wrapperSet
@@ -4013,7 +4156,10 @@ protected boolean checkEventForRemoval(Long counter, ThreadIdentifier threadid,
           if (logger.isDebugEnabled()) {
             logger.debug("Removing event from {}: {}", this.region.getFullPath(), wrapper.getEventId());
           }
-          HARegionQueue.this.haContainer.remove(wrapper);
+          Object msg = HARegionQueue.this.haContainer.remove(wrapper);
+          if (msg instanceof ClientUpdateMessageImpl) {
+            ((ClientUpdateMessageImpl)msg).releaseSharedParts();
+          }
         }
       }
     }
@@ -4104,6 +4250,91 @@ protected boolean checkEventForRemoval(Long counter, ThreadIdentifier threadid,
     return isClientSlowReciever;
   }
 
+  /**
+   * Returns the size in bytes of the events in this queue. It is only
+   * maintained if {@link CacheClientProxy#MAX_QUEUE_MEMORY} is set, otherwise
+   * it is zero.
+   * 
+   * @since 9.0
+   */
+  public long getQueuedBytes() {
+    return this.queuedBytes.get();
+  }
+
+  /**
+   * Sets whether updates are conflated regardless of the conflation the
+   * client asked for.
+   * 
+   * @since 9.0
+   */
+  public void setConflateForMemory(boolean flag) {
+    this.conflateForMemory = flag;
+  }
+
+  public boolean getConflateForMemory() {
+    return this.conflateForMemory;
+  }
+
+  /**
+   * Waits until the events in this queue use no more than the given number of
+   * bytes, or until the given time has passed.
+   * 
+   * @return true if the queue is within the limit
+   * @since 9.0
+   */
+  public boolean waitForQueuedBytes(long limit, long maxWaitMillis)
+      throws InterruptedException {
+    if (this.queuedBytes.get() <= limit) {
+      return true;
+    }
+    long end = System.currentTimeMillis() + maxWaitMillis;
+    synchronized (this.queuedBytes) {
+      this.queuedBytesWaiters++;
+      try {
+        while (this.queuedBytes.get() > limit) {
+          this.region.checkReadiness();
+          long remaining = end - System.currentTimeMillis();
+          if (remaining <= 0) {
+            return false;
+          }
+          this.queuedBytes.wait(remaining);
+        }
+        return true;
+      } finally {
+        this.queuedBytesWaiters--;
+      }
+    }
+  }
+
+  private void addQueuedBytes(Object event, int sign) {
+    if (CacheClientProxy.MAX_QUEUE_MEMORY <= 0 || event == null) {
+      return;
+    }
+    int size;
+    if (event instanceof HAEventWrapper) {
+      HAEventWrapper wrapper = (HAEventWrapper)event;
+      size = wrapper.getMessageSize();
+      if (size < 0) {
+        Object message = wrapper.getClientUpdateMessage();
+        if (message == null) {
+          message = this.haContainer.get(wrapper);
+        }
+        size = message instanceof Sizeable ? ((Sizeable)message)
+            .getSizeInBytes() : 0;
+        wrapper.setMessageSize(size);
+      }
+    }
+    else {
+      size = event instanceof Sizeable ? ((Sizeable)event).getSizeInBytes() : 0;
+    }
+    this.queuedBytes.addAndGet(sign * size);
+    if (sign < 0 && this.queuedBytesWaiters > 0) {
+      synchronized (this.queuedBytes) {
+        this.queuedBytes.notifyAll();
+      }
+    }
+  }
+
   @Override
   public void close() {
     Region r = getRegion();
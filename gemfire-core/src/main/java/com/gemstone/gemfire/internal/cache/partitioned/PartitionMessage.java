@@ -127,6 +127,7 @@ public abstract class PartitionMessage extends DistributionMessage implements
     setRecipient(recipient);
     this.regionId = regionId;
     this.processorId = processor==null? 0 : processor.getProcessorId();
+    setReplyProcessor(processor);
     if (processor != null && this.isSevereAlertCompatible()) {
       processor.enableSevereAlertProcessing();
     }
@@ -138,6 +139,7 @@ public abstract class PartitionMessage extends DistributionMessage implements
     setRecipients(recipients);
     this.regionId = regionId;
     this.processorId = processor==null? 0 : processor.getProcessorId();
+    setReplyProcessor(processor);
     if (processor != null && this.isSevereAlertCompatible()) {
       processor.enableSevereAlertProcessing();
     }
@@ -430,6 +432,7 @@ public abstract class PartitionMessage extends DistributionMessage implements
       EntryEventImpl event, PartitionedRegion r, DirectReplyProcessor processor)
   {
     this.processorId = processor == null? 0 : processor.getProcessorId();
+    setReplyProcessor(processor);
     this.notificationOnly = true;
         
     //Set sqlfAsyncListenerRecepients = r.getRegionAdvisor().adviseSqlfAsyncEventListenerHub();
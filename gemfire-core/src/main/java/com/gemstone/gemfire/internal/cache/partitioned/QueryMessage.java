@@ -28,6 +28,7 @@ import com.gemstone.gemfire.cache.query.internal.IndexTrackingQueryObserver;
 import com.gemstone.gemfire.cache.query.internal.PRQueryTraceInfo;
 import com.gemstone.gemfire.cache.query.internal.QueryMonitor;
 import com.gemstone.gemfire.cache.query.internal.QueryObserver;
+import com.gemstone.gemfire.cache.query.internal.QueryPlan;
 import com.gemstone.gemfire.cache.query.internal.types.ObjectTypeImpl;
 import com.gemstone.gemfire.cache.query.types.ObjectType;
 import com.gemstone.gemfire.distributed.internal.DM;
@@ -36,6 +37,7 @@ import com.gemstone.gemfire.distributed.internal.ReplyException;
 import com.gemstone.gemfire.distributed.internal.ReplyProcessor21;
 import com.gemstone.gemfire.distributed.internal.membership.InternalDistributedMember;
 import com.gemstone.gemfire.distributed.internal.streaming.StreamingOperation.StreamingReplyMessage;
+import com.gemstone.gemfire.internal.InternalDataSerializer;
 import com.gemstone.gemfire.internal.NanoTimer;
 import com.gemstone.gemfire.internal.Version;
 import com.gemstone.gemfire.internal.cache.ForceReattemptException;
@@ -57,6 +59,7 @@ public final class QueryMessage extends StreamingPartitionOperation.StreamingPar
   private volatile List buckets;
   private volatile boolean isPdxSerialized;
   private volatile boolean traceOn;
+  private volatile boolean explainAnalyze;
 
 //  private transient PRQueryResultCollector resultCollector = new PRQueryResultCollector();
   private transient List<Collection> resultCollector = new ArrayList<Collection>();
@@ -79,6 +82,7 @@ public final class QueryMessage extends StreamingPartitionOperation.StreamingPar
     this.parameters = parameters;
     this.cqQuery = query.isCqQuery();
     this.traceOn = query.isTraced() || DefaultQuery.QUERY_VERBOSE;
+    this.explainAnalyze = query.getQueryPlan() != null;
   }
 
 
@@ -138,7 +142,7 @@ public final class QueryMessage extends StreamingPartitionOperation.StreamingPar
     //this is because the start time is only set if enableClock stats is on
     //in this case we still want to see trace time even if clock is not enabled
     long traceStartTime = 0;
-    if (this.traceOn) {
+    if (this.traceOn || this.explainAnalyze) {
       traceStartTime = NanoTimer.getTime();
     }
     PRQueryTraceInfo queryTraceInfo = null; 
@@ -165,6 +169,9 @@ public final class QueryMessage extends StreamingPartitionOperation.StreamingPar
     // In case of "select *" queries we can keep the results in serialized
     // form and send
     query.setRemoteQuery(true);
+    if (this.explainAnalyze) {
+      query.setQueryPlan(new QueryPlan(QueryPlan.MEMBER, dm.getId().toString()));
+    }
     QueryObserver indexObserver = query.startTrace();
     boolean isQueryTraced = false;
     try {
@@ -175,7 +182,7 @@ public final class QueryMessage extends StreamingPartitionOperation.StreamingPar
       if (logger.isDebugEnabled()) {
         logger.debug("Started executing query from remote node: {}", query.getQueryString());
       }
-      isQueryTraced = query.isTraced() && this.sender.getVersionObject().compareTo(Version.GFE_81) >= 0;
+      isQueryTraced = (query.isTraced() || this.explainAnalyze) && this.sender.getVersionObject().compareTo(Version.GFE_81) >= 0;
       // Adds a query trace info object to the results list for remote queries
       if (isQueryTraced) {
         this.isTraceInfoIteration = true;
@@ -211,6 +218,11 @@ public final class QueryMessage extends StreamingPartitionOperation.StreamingPar
         traceSize -= 1; // subtract the query trace info object
         queryTraceInfo.setTimeInMillis((NanoTimer.getTime() - traceStartTime) / 1.0e6f);
         queryTraceInfo.setNumResults(traceSize);
+        QueryPlan queryPlan = query.getQueryPlan();
+        if (queryPlan != null) {
+          queryPlan.recordExecution(NanoTimer.getTime() - traceStartTime, 0, traceSize);
+          queryTraceInfo.setQueryPlan(queryPlan);
+        }
         // created the indexes used string
         if (indexObserver instanceof IndexTrackingQueryObserver) {
           Map indexesUsed = ((IndexTrackingQueryObserver) indexObserver).getUsedIndexes();
@@ -300,6 +312,9 @@ public final class QueryMessage extends StreamingPartitionOperation.StreamingPar
     this.cqQuery = DataSerializer.readBoolean(in);
     this.isPdxSerialized = DataSerializer.readBoolean(in);
     this.traceOn = DataSerializer.readBoolean(in);
+    if (InternalDataSerializer.getVersionForDataStream(in).compareTo(Version.GFE_90) >= 0) {
+      this.explainAnalyze = DataSerializer.readBoolean(in);
+    }
   }
 
   @Override
@@ -312,6 +327,9 @@ public final class QueryMessage extends StreamingPartitionOperation.StreamingPar
     DataSerializer.writeBoolean(this.cqQuery, out);
     DataSerializer.writeBoolean(true, out);
     DataSerializer.writeBoolean(this.traceOn, out);
+    if (InternalDataSerializer.getVersionForDataStream(out).compareTo(Version.GFE_90) >= 0) {
+      DataSerializer.writeBoolean(this.explainAnalyze, out);
+    }
   }
   
 }
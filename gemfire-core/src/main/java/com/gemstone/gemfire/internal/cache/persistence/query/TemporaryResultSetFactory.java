@@ -7,20 +7,70 @@
  */
 package com.gemstone.gemfire.internal.cache.persistence.query;
 
-import com.gemstone.gemfire.internal.cache.persistence.query.mock.ResultListImpl;
-import com.gemstone.gemfire.internal.cache.persistence.query.mock.SortedResultBagImpl;
-import com.gemstone.gemfire.internal.cache.persistence.query.mock.SortedResultSetImpl;
+import java.io.File;
+import java.util.Comparator;
+
+import com.gemstone.gemfire.internal.cache.persistence.query.overflow.ExternalSortedResults;
+import com.gemstone.gemfire.internal.cache.persistence.query.overflow.MemoryBudget;
+import com.gemstone.gemfire.internal.cache.persistence.query.overflow.OverflowResultList;
 
 /**
  * This is a factory for temporary result sets that overflow to disk.
  * 
  * The result sets will not be recovered when the member restarts.
- * Any temporary results still on disk when a member restarts will be deleted.
+ * The files of a result set are deleted when the result set is closed.
+ * 
+ * All of the result sets obtained from one factory share a memory budget,
+ * so a query should use a single factory for its temporary results. Once
+ * the budget is exceeded the results are written to sorted runs in the
+ * temporary directory and merged when they are iterated. Each query
+ * execution gets its own factory from its ExecutionContext.
  * @author dsmith
  *
  */
 public class TemporaryResultSetFactory {
   
+  /**
+   * The number of bytes of heap the temporary results of a factory may use
+   * before they are written to disk.
+   */
+  public static long DEFAULT_MEMORY_BUDGET = Long.getLong(
+      "gemfire.Query.TEMPORARY_RESULTS_MEMORY_BUDGET", 64L * 1024 * 1024);
+  
+  /**
+   * The directory the temporary results are written to.
+   */
+  public static String DEFAULT_DIRECTORY = System.getProperty(
+      "gemfire.Query.TEMPORARY_RESULTS_DIRECTORY",
+      System.getProperty("java.io.tmpdir"));
+
+  /**
+   * If true, the rows of an ORDER BY query with a LIMIT, and the rows
+   * grouped by a GROUP BY query, are sorted in temporary results that
+   * overflow to disk instead of in memory. The rows must be serializable.
+   */
+  public static boolean SPILL_QUERY_RESULTS = Boolean.getBoolean(
+      "gemfire.Query.SPILL_QUERY_RESULTS");
+  
+  private final MemoryBudget budget;
+  
+  private final File directory;
+  
+  public TemporaryResultSetFactory() {
+    this(new File(DEFAULT_DIRECTORY), DEFAULT_MEMORY_BUDGET);
+  }
+  
+  public TemporaryResultSetFactory(File directory, long memoryBudget) {
+    this.directory = directory;
+    this.budget = new MemoryBudget(memoryBudget);
+  }
+  
+  /**
+   * Returns the budget shared by the result sets of this factory.
+   */
+  public MemoryBudget getMemoryBudget() {
+    return this.budget;
+  }
   
   /**
    * Get a result set that is sorted. The result set will be overflowed
@@ -31,7 +81,16 @@ public class TemporaryResultSetFactory {
    * @param reverse - true to reverse the natural order of the keys
    */
   public ResultSet getSortedResultSet(SortKeyExtractor extractor, boolean reverse) {
-    return new SortedResultSetImpl(extractor, reverse);
+    return new ExternalSortedResults(extractor, reverse, true, this.budget, this.directory);
+  }
+
+  /**
+   * Get a result set, or bag if distinct is false, sorted by the given
+   * comparator. Elements the comparator finds equal are duplicates.
+   */
+  public ExternalSortedResults getSortedResults(Comparator<?> comparator,
+      boolean distinct) {
+    return new ExternalSortedResults(comparator, distinct, this.budget, this.directory);
   }
   
   /**
@@ -43,7 +102,7 @@ public class TemporaryResultSetFactory {
    * @param reverse - true to reverse the natural order of the keys
    */
   public ResultBag getSortedResultBag(SortKeyExtractor extractor, boolean reverse) {
-    return new SortedResultBagImpl(extractor, reverse);
+    return new ExternalSortedResults(extractor, reverse, false, this.budget, this.directory);
   }
   
   /**
@@ -56,7 +115,7 @@ public class TemporaryResultSetFactory {
    * @param reverse - true to reverse the natural order of the keys
    */
   public ResultSet getUnsortedResultSet(boolean reverse) {
-    return new SortedResultSetImpl(null, reverse);
+    return new ExternalSortedResults(null, reverse, true, this.budget, this.directory);
   }
   
   /**
@@ -65,6 +124,6 @@ public class TemporaryResultSetFactory {
    * 
    */
   public ResultList getResultList() {
-    return new ResultListImpl();
+    return new OverflowResultList(this.budget, this.directory);
   }
 }
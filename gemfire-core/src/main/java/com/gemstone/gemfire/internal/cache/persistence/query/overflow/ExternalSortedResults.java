@@ -0,0 +1,449 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.cache.persistence.query.overflow;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import com.gemstone.gemfire.internal.cache.CachedDeserializable;
+import com.gemstone.gemfire.internal.cache.CachedDeserializableFactory;
+import com.gemstone.gemfire.internal.cache.PreferBytesCachedDeserializable;
+import com.gemstone.gemfire.internal.cache.persistence.query.CloseableIterator;
+import com.gemstone.gemfire.internal.cache.persistence.query.IdentityExtractor;
+import com.gemstone.gemfire.internal.cache.persistence.query.ResultBag;
+import com.gemstone.gemfire.internal.cache.persistence.query.ResultSet;
+import com.gemstone.gemfire.internal.cache.persistence.query.SortKeyExtractor;
+
+/**
+ * A sorted set or bag of temporary results that is written to disk once
+ * the memory budget it shares with the other results of the query is
+ * exceeded.
+ *
+ * Added elements are kept serialized in an in memory buffer. When the
+ * budget is exceeded the buffer is sorted and written out as a sorted run.
+ * Iterators merge the runs and the buffer. Once there are too many runs
+ * they are merged into a single one, so an iterator never has to keep more
+ * than {@link #MERGE_FAN_IN} files open.
+ *
+ * Elements with equal sort keys are returned in the order they were added.
+ * If the results are distinct only the element added last is returned, as
+ * if it replaced the earlier ones. The sort keys are compared by their
+ * natural order, or by a comparator given to the constructor.
+ *
+ * @since 9.0
+ */
+public class ExternalSortedResults implements ResultSet, ResultBag {
+
+  /**
+   * The maximum number of runs that are merged at once.
+   */
+  static final int MERGE_FAN_IN = Math.max(2, Integer.getInteger(
+      "gemfire.Query.TEMPORARY_RESULTS_MERGE_FAN_IN", 64).intValue());
+
+  /**
+   * Estimate of the heap used for an element in addition to its serialized
+   * form: the record, the list slot and the sort key reference.
+   */
+  private static final int RECORD_OVERHEAD = 48;
+
+  private static final Comparator<Object> NATURAL_ORDER = new Comparator<Object>() {
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public int compare(Object o1, Object o2) {
+      if (o1 == o2) {
+        return 0;
+      }
+      if (o1 == null) {
+        return -1;
+      }
+      if (o2 == null) {
+        return 1;
+      }
+      return ((Comparable)o1).compareTo(o2);
+    }
+  };
+
+  private final SortKeyExtractor extractor;
+
+  private final Comparator<Object> keyComparator;
+
+  private final boolean reverse;
+
+  private final boolean distinct;
+
+  private final MemoryBudget budget;
+
+  private final File directory;
+
+  private final Comparator<Record> recordComparator = new Comparator<Record>() {
+    public int compare(Record r1, Record r2) {
+      int result = compareKeys(r1, r2);
+      if (result == 0) {
+        result = r1.sequence < r2.sequence ? -1
+            : (r1.sequence == r2.sequence ? 0 : 1);
+      }
+      return result;
+    }
+  };
+
+  private ArrayList<Record> buffer = new ArrayList<Record>();
+
+  private boolean bufferSorted = true;
+
+  private long bufferBytes;
+
+  private final List<RunFile> runs = new ArrayList<RunFile>();
+
+  /** Runs that could not be deleted while an iterator was still reading them */
+  private final List<RunFile> undeletedRuns = new ArrayList<RunFile>();
+
+  private long sequence;
+
+  public ExternalSortedResults(SortKeyExtractor extractor, boolean reverse,
+      boolean distinct, MemoryBudget budget, File directory) {
+    this(extractor, NATURAL_ORDER, reverse, distinct, budget, directory);
+  }
+
+  /**
+   * Creates results sorted by the given comparator, which is passed the
+   * elements themselves.
+   */
+  @SuppressWarnings("unchecked")
+  public ExternalSortedResults(Comparator<?> comparator, boolean distinct,
+      MemoryBudget budget, File directory) {
+    this(null, (Comparator<Object>)comparator, false, distinct, budget,
+        directory);
+  }
+
+  private ExternalSortedResults(SortKeyExtractor extractor,
+      Comparator<Object> keyComparator, boolean reverse, boolean distinct,
+      MemoryBudget budget, File directory) {
+    this.extractor = extractor == null ? new IdentityExtractor() : extractor;
+    this.keyComparator = keyComparator;
+    this.reverse = reverse;
+    this.distinct = distinct;
+    this.budget = budget;
+    this.directory = directory;
+  }
+
+  @Override
+  public synchronized void add(Object e) {
+    CachedDeserializable value;
+    Object element;
+    if (e instanceof CachedDeserializable) {
+      value = (CachedDeserializable)e;
+      element = value.getDeserializedForReading();
+    } else {
+      value = new PreferBytesCachedDeserializable(e);
+      element = e;
+    }
+    this.buffer.add(new Record(value, getSortKey(element), this.sequence++));
+    this.bufferSorted = false;
+    int size = value.getSizeInBytes() + RECORD_OVERHEAD;
+    this.bufferBytes += size;
+    if (this.budget.reserve(size)) {
+      spill();
+    }
+  }
+
+  @Override
+  public synchronized CloseableIterator<CachedDeserializable> iterator() {
+    sortBuffer();
+    List<Source> sources = new ArrayList<Source>(this.runs.size() + 1);
+    try {
+      for (RunFile run : this.runs) {
+        sources.add(new RunSource(run));
+      }
+    } catch (RuntimeException e) {
+      for (Source source : sources) {
+        source.close();
+      }
+      throw e;
+    }
+    if (!this.buffer.isEmpty()) {
+      sources.add(new BufferSource(new ArrayList<Record>(this.buffer)));
+    }
+    return new MergeIterator(sources);
+  }
+
+  @Override
+  public synchronized void close() {
+    this.budget.release(this.bufferBytes);
+    this.bufferBytes = 0;
+    this.buffer = new ArrayList<Record>();
+    for (RunFile run : this.runs) {
+      deleteRun(run);
+    }
+    this.runs.clear();
+    for (RunFile run : new ArrayList<RunFile>(this.undeletedRuns)) {
+      if (run.delete()) {
+        this.undeletedRuns.remove(run);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of sorted runs currently on disk
+   */
+  synchronized int getRunCount() {
+    return this.runs.size();
+  }
+
+  private Object getSortKey(Object element) {
+    Object key = this.extractor.getSortKey(element);
+    if (key instanceof CachedDeserializable) {
+      key = ((CachedDeserializable)key).getDeserializedForReading();
+    }
+    return key;
+  }
+
+  private int compareKeys(Record r1, Record r2) {
+    int result = this.keyComparator.compare(r1.key, r2.key);
+    return this.reverse ? -result : result;
+  }
+
+  private void sortBuffer() {
+    if (!this.bufferSorted) {
+      Collections.sort(this.buffer, this.recordComparator);
+      this.bufferSorted = true;
+    }
+  }
+
+  /**
+   * Writes the buffer out as a new sorted run and gives its memory back to
+   * the budget.
+   */
+  private void spill() {
+    if (this.buffer.isEmpty()) {
+      return;
+    }
+    sortBuffer();
+    RunFile run = new RunFile(this.directory);
+    try {
+      Record pending = null;
+      for (Record record : this.buffer) {
+        if (pending != null
+            && !(this.distinct && compareKeys(pending, record) == 0)) {
+          run.write(pending.value.getSerializedValue(), pending.sequence);
+        }
+        pending = record;
+      }
+      run.write(pending.value.getSerializedValue(), pending.sequence);
+      run.finish();
+    } catch (RuntimeException e) {
+      run.delete();
+      throw e;
+    }
+    this.runs.add(run);
+    this.buffer = new ArrayList<Record>();
+    this.budget.release(this.bufferBytes);
+    this.bufferBytes = 0;
+    if (this.runs.size() >= MERGE_FAN_IN) {
+      mergeRuns();
+    }
+  }
+
+  /**
+   * Merges all of the runs into a single one.
+   */
+  private void mergeRuns() {
+    List<Source> sources = new ArrayList<Source>(this.runs.size());
+    for (RunFile run : this.runs) {
+      sources.add(new RunSource(run));
+    }
+    MergeIterator iterator = new MergeIterator(sources);
+    RunFile merged = new RunFile(this.directory);
+    try {
+      while (iterator.hasNext()) {
+        Record record = iterator.nextRecord();
+        merged.write(record.value.getSerializedValue(), record.sequence);
+      }
+      merged.finish();
+    } catch (RuntimeException e) {
+      merged.delete();
+      throw e;
+    } finally {
+      iterator.close();
+    }
+    for (RunFile run : this.runs) {
+      deleteRun(run);
+    }
+    this.runs.clear();
+    this.runs.add(merged);
+  }
+
+  private void deleteRun(RunFile run) {
+    if (!run.delete()) {
+      this.undeletedRuns.add(run);
+    }
+  }
+
+  private static class Record {
+    final CachedDeserializable value;
+
+    final Object key;
+
+    final long sequence;
+
+    Record(CachedDeserializable value, Object key, long sequence) {
+      this.value = value;
+      this.key = key;
+      this.sequence = sequence;
+    }
+  }
+
+  /**
+   * A sorted stream of records taking part in a merge
+   */
+  private interface Source {
+    /**
+     * Moves to the next record, returns false at the end
+     */
+    boolean advance();
+
+    Record current();
+
+    void close();
+  }
+
+  private static class BufferSource implements Source {
+    private final List<Record> records;
+
+    private int index = -1;
+
+    BufferSource(List<Record> records) {
+      this.records = records;
+    }
+
+    public boolean advance() {
+      return ++this.index < this.records.size();
+    }
+
+    public Record current() {
+      return this.records.get(this.index);
+    }
+
+    public void close() {
+    }
+  }
+
+  private class RunSource implements Source {
+    private final RunFile.Reader reader;
+
+    private Record current;
+
+    RunSource(RunFile run) {
+      this.reader = run.openReader();
+    }
+
+    public boolean advance() {
+      if (!this.reader.next()) {
+        this.current = null;
+        return false;
+      }
+      CachedDeserializable value = CachedDeserializableFactory
+          .create(this.reader.getBytes());
+      this.current = new Record(value,
+          getSortKey(value.getDeserializedForReading()),
+          this.reader.getSequence());
+      return true;
+    }
+
+    public Record current() {
+      return this.current;
+    }
+
+    public void close() {
+      this.reader.close();
+    }
+  }
+
+  /**
+   * Merges sorted sources, dropping superseded elements if the results are
+   * distinct.
+   */
+  private class MergeIterator implements CloseableIterator<CachedDeserializable> {
+    private final PriorityQueue<Source> queue;
+
+    MergeIterator(List<Source> sources) {
+      this.queue = new PriorityQueue<Source>(Math.max(1, sources.size()),
+          new Comparator<Source>() {
+            public int compare(Source s1, Source s2) {
+              return recordComparator.compare(s1.current(), s2.current());
+            }
+          });
+      try {
+        for (Source source : sources) {
+          if (source.advance()) {
+            this.queue.add(source);
+          } else {
+            source.close();
+          }
+        }
+      } catch (RuntimeException e) {
+        for (Source source : sources) {
+          source.close();
+        }
+        throw e;
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !this.queue.isEmpty();
+    }
+
+    @Override
+    public CachedDeserializable next() {
+      return nextRecord().value;
+    }
+
+    Record nextRecord() {
+      if (this.queue.isEmpty()) {
+        throw new NoSuchElementException();
+      }
+      Record record = poll();
+      if (distinct) {
+        // equal keys are ordered by sequence, so the last one wins
+        while (!this.queue.isEmpty()
+            && compareKeys(this.queue.peek().current(), record) == 0) {
+          record = poll();
+        }
+      }
+      return record;
+    }
+
+    private Record poll() {
+      Source source = this.queue.poll();
+      Record record = source.current();
+      if (source.advance()) {
+        this.queue.add(source);
+      } else {
+        source.close();
+      }
+      return record;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+      Source source;
+      while ((source = this.queue.poll()) != null) {
+        source.close();
+      }
+    }
+  }
+}
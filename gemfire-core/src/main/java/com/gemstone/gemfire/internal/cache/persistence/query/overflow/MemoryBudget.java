@@ -0,0 +1,50 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.cache.persistence.query.overflow;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The amount of heap that the temporary results created by one
+ * factory, usually all of the temporary results of one query, may use
+ * before they start writing to disk. The budget is shared, so whichever
+ * structure pushes the total over the limit spills its own buffer.
+ *
+ * @since 9.0
+ */
+public class MemoryBudget {
+
+  private final long limit;
+
+  private final AtomicLong used = new AtomicLong();
+
+  public MemoryBudget(long limit) {
+    this.limit = limit;
+  }
+
+  /**
+   * Account for the given number of bytes.
+   *
+   * @return true if the budget is now exceeded and the caller should spill
+   */
+  public boolean reserve(long bytes) {
+    return this.used.addAndGet(bytes) > this.limit;
+  }
+
+  public void release(long bytes) {
+    this.used.addAndGet(-bytes);
+  }
+
+  public long getLimit() {
+    return this.limit;
+  }
+
+  public long getUsed() {
+    return this.used.get();
+  }
+}
@@ -0,0 +1,178 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.cache.persistence.query.overflow;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.gemstone.gemfire.internal.cache.CachedDeserializable;
+import com.gemstone.gemfire.internal.cache.CachedDeserializableFactory;
+import com.gemstone.gemfire.internal.cache.PreferBytesCachedDeserializable;
+import com.gemstone.gemfire.internal.cache.persistence.query.CloseableIterator;
+import com.gemstone.gemfire.internal.cache.persistence.query.ResultList;
+
+/**
+ * A list of temporary results that appends its oldest elements to a file
+ * once the memory budget it shares with the other results of the query is
+ * exceeded. The head of the list is on disk and the tail in memory.
+ *
+ * @since 9.0
+ */
+public class OverflowResultList implements ResultList {
+
+  /**
+   * Estimate of the heap used for an element in addition to its serialized
+   * form.
+   */
+  private static final int ELEMENT_OVERHEAD = 8;
+
+  private final MemoryBudget budget;
+
+  private final File directory;
+
+  private ArrayList<CachedDeserializable> buffer = new ArrayList<CachedDeserializable>();
+
+  private long bufferBytes;
+
+  private RunFile spilled;
+
+  public OverflowResultList(MemoryBudget budget, File directory) {
+    this.budget = budget;
+    this.directory = directory;
+  }
+
+  @Override
+  public synchronized void add(Object e) {
+    CachedDeserializable value = e instanceof CachedDeserializable ? (CachedDeserializable)e
+        : new PreferBytesCachedDeserializable(e);
+    this.buffer.add(value);
+    int size = value.getSizeInBytes() + ELEMENT_OVERHEAD;
+    this.bufferBytes += size;
+    if (this.budget.reserve(size)) {
+      spill();
+    }
+  }
+
+  @Override
+  public CloseableIterator<CachedDeserializable> iterator() {
+    return iterator(0);
+  }
+
+  @Override
+  public synchronized CloseableIterator<CachedDeserializable> iterator(long start) {
+    RunFile.Reader reader = null;
+    if (this.spilled != null && this.spilled.getCount() > 0) {
+      reader = this.spilled.openReader();
+    }
+    return new Itr(reader, new ArrayList<CachedDeserializable>(this.buffer), start);
+  }
+
+  @Override
+  public synchronized void close() {
+    this.budget.release(this.bufferBytes);
+    this.bufferBytes = 0;
+    this.buffer = new ArrayList<CachedDeserializable>();
+    if (this.spilled != null) {
+      this.spilled.delete();
+      this.spilled = null;
+    }
+  }
+
+  /**
+   * Returns the number of elements that have been written to disk
+   */
+  synchronized long getSpilledCount() {
+    return this.spilled == null ? 0 : this.spilled.getCount();
+  }
+
+  /**
+   * Appends the buffer to the file and gives its memory back to the budget.
+   */
+  private void spill() {
+    if (this.spilled == null) {
+      this.spilled = new RunFile(this.directory);
+    }
+    long index = this.spilled.getCount();
+    for (CachedDeserializable value : this.buffer) {
+      this.spilled.write(value.getSerializedValue(), index++);
+    }
+    this.buffer = new ArrayList<CachedDeserializable>();
+    this.budget.release(this.bufferBytes);
+    this.bufferBytes = 0;
+  }
+
+  private static class Itr implements CloseableIterator<CachedDeserializable> {
+
+    private RunFile.Reader reader;
+
+    private final List<CachedDeserializable> tail;
+
+    private int tailIndex;
+
+    private CachedDeserializable next;
+
+    Itr(RunFile.Reader reader, List<CachedDeserializable> tail, long start) {
+      this.reader = reader;
+      this.tail = tail;
+      while (start > 0 && this.reader != null) {
+        if (this.reader.skip()) {
+          start--;
+        } else {
+          closeReader();
+        }
+      }
+      this.tailIndex = (int)Math.min(start, tail.size());
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (this.next == null) {
+        if (this.reader != null) {
+          if (this.reader.next()) {
+            this.next = CachedDeserializableFactory.create(this.reader.getBytes());
+            return true;
+          }
+          closeReader();
+        }
+        if (this.tailIndex < this.tail.size()) {
+          this.next = this.tail.get(this.tailIndex++);
+        }
+      }
+      return this.next != null;
+    }
+
+    @Override
+    public CachedDeserializable next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      CachedDeserializable result = this.next;
+      this.next = null;
+      return result;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+      closeReader();
+    }
+
+    private void closeReader() {
+      if (this.reader != null) {
+        this.reader.close();
+        this.reader = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,192 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.cache.persistence.query.overflow;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import com.gemstone.gemfire.cache.DiskAccessException;
+
+/**
+ * A temporary file of serialized elements, each followed by a sequence
+ * number. The file is only appended to. Readers see the records that were
+ * written when they were opened.
+ *
+ * The file is not meant to survive the member, it is deleted when the
+ * owning result structure is closed.
+ *
+ * @since 9.0
+ */
+class RunFile {
+
+  private static final int BUFFER_SIZE = 32 * 1024;
+
+  private final File file;
+
+  private DataOutputStream out;
+
+  private long count;
+
+  RunFile(File dir) {
+    try {
+      this.file = File.createTempFile("gemfire-query-", ".run", dir);
+      this.out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(this.file), BUFFER_SIZE));
+    } catch (IOException e) {
+      throw new DiskAccessException(
+          "Could not create a temporary query result file in " + dir, e);
+    }
+  }
+
+  void write(byte[] bytes, long sequence) {
+    try {
+      this.out.writeInt(bytes.length);
+      this.out.write(bytes);
+      this.out.writeLong(sequence);
+      this.count++;
+    } catch (IOException e) {
+      throw new DiskAccessException("Could not write to " + this.file, e);
+    }
+  }
+
+  long getCount() {
+    return this.count;
+  }
+
+  /**
+   * Closes the output once no more records will be written.
+   */
+  void finish() {
+    if (this.out != null) {
+      try {
+        this.out.close();
+      } catch (IOException e) {
+        throw new DiskAccessException("Could not write to " + this.file, e);
+      } finally {
+        this.out = null;
+      }
+    }
+  }
+
+  /**
+   * Opens a reader over the records written so far.
+   */
+  Reader openReader() {
+    try {
+      if (this.out != null) {
+        this.out.flush();
+      }
+      return new Reader(new DataInputStream(new BufferedInputStream(
+          new FileInputStream(this.file), BUFFER_SIZE)), this.count);
+    } catch (IOException e) {
+      throw new DiskAccessException("Could not read " + this.file, e);
+    }
+  }
+
+  /**
+   * Closes the output and removes the file.
+   *
+   * @return false if the file could not be removed, for example because a
+   *         reader still has it open on a platform that does not allow
+   *         that.
+   */
+  boolean delete() {
+    try {
+      finish();
+    } catch (DiskAccessException ignore) {
+      // the contents are no longer needed
+    }
+    return !this.file.exists() || this.file.delete();
+  }
+
+  File getFile() {
+    return this.file;
+  }
+
+  @Override
+  public String toString() {
+    return "RunFile[" + this.file + ", count=" + this.count + "]";
+  }
+
+  /**
+   * Reads the records of a run in the order they were written. The current
+   * record is available through {@link #getBytes()} and
+   * {@link #getSequence()} after {@link #next()} returned true.
+   */
+  class Reader {
+
+    private final DataInputStream in;
+
+    private long remaining;
+
+    private byte[] bytes;
+
+    private long sequence;
+
+    private Reader(DataInputStream in, long count) {
+      this.in = in;
+      this.remaining = count;
+    }
+
+    boolean next() {
+      if (this.remaining == 0) {
+        this.bytes = null;
+        return false;
+      }
+      try {
+        byte[] bytes = new byte[this.in.readInt()];
+        this.in.readFully(bytes);
+        this.bytes = bytes;
+        this.sequence = this.in.readLong();
+        this.remaining--;
+        return true;
+      } catch (IOException e) {
+        throw new DiskAccessException("Could not read " + file, e);
+      }
+    }
+
+    /**
+     * Moves past the next record without reading its bytes.
+     */
+    boolean skip() {
+      if (this.remaining == 0) {
+        return false;
+      }
+      try {
+        int length = this.in.readInt();
+        this.in.skipBytes(length + 8);
+        this.remaining--;
+        return true;
+      } catch (IOException e) {
+        throw new DiskAccessException("Could not read " + file, e);
+      }
+    }
+
+    byte[] getBytes() {
+      return this.bytes;
+    }
+
+    long getSequence() {
+      return this.sequence;
+    }
+
+    void close() {
+      try {
+        this.in.close();
+      } catch (IOException ignore) {
+        // nothing was written
+      }
+    }
+  }
+}
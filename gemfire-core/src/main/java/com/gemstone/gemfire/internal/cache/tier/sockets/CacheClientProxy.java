@@ -186,6 +186,12 @@ public class CacheClientProxy implements ClientSession {
    */
   private boolean markerEnqueued = false;
 
+  /**
+   * The number of events delivered while the queue exceeded
+   * {@link #MAX_QUEUE_MEMORY}, used to limit the logging
+   */
+  private long queueMemoryLimitHitCount = 0;
+
   /**
    * The number of times to peek on shutdown before giving up and shutting down
    */
@@ -223,6 +229,35 @@ public class CacheClientProxy implements ClientSession {
   protected static final boolean LOG_DROPPED_MSGS = !Boolean
       .getBoolean("gemfire.disableNotificationWarnings");
 
+  /**
+   * The number of bytes the events in the queue of a client may use before
+   * the {@link #QUEUE_MEMORY_POLICY} is applied. Zero, the default, disables
+   * the limit.
+   * 
+   * @since 9.0
+   */
+  public static long MAX_QUEUE_MEMORY = Long.getLong(
+      "gemfire.CacheClientProxy.MAX_QUEUE_MEMORY", 0).longValue();
+
+  /** Blocks the threads delivering events for a while, see #51400 */
+  public static final String QUEUE_MEMORY_POLICY_THROTTLE = "throttle";
+
+  /** Conflates all updates, whatever conflation the client asked for */
+  public static final String QUEUE_MEMORY_POLICY_CONFLATE = "conflate";
+
+  /** Disconnects the client like a slow receiver */
+  public static final String QUEUE_MEMORY_POLICY_DISCONNECT = "disconnect";
+
+  /**
+   * What to do when a client queue exceeds {@link #MAX_QUEUE_MEMORY}: one of
+   * "throttle" (the default), "conflate" or "disconnect".
+   * 
+   * @since 9.0
+   */
+  public static String QUEUE_MEMORY_POLICY = System.getProperty(
+      "gemfire.CacheClientProxy.QUEUE_MEMORY_POLICY",
+      QUEUE_MEMORY_POLICY_THROTTLE);
+
   /**
    * for testing purposes, delays the start of the dispatcher thread
    */
@@ -1637,6 +1672,9 @@ public class CacheClientProxy implements ClientSession {
       }
       
       if (this._messageDispatcher != null) {
+        if (MAX_QUEUE_MEMORY > 0) {
+          applyQueueMemoryPolicy(this._messageDispatcher._messageQueue);
+        }
         this._messageDispatcher.enqueueMessage(conflatable);
       } else {
         this._statistics.incMessagesFailedQueued();
@@ -1649,6 +1687,65 @@ public class CacheClientProxy implements ClientSession {
     }
   }
 
+  /**
+   * Applies the {@link #QUEUE_MEMORY_POLICY} if the events in the given queue
+   * use more than {@link #MAX_QUEUE_MEMORY} bytes. Only primary queues are
+   * limited; the events in a secondary queue are removed as the primary
+   * dispatches them.
+   */
+  private void applyQueueMemoryPolicy(HARegionQueue queue) {
+    if (queue == null || !queue.isPrimary()) {
+      return;
+    }
+    long queuedBytes = queue.getQueuedBytes();
+    // unsynchronized, a lost increment only changes when the next warning is logged
+    if (queuedBytes > MAX_QUEUE_MEMORY
+        && (this.queueMemoryLimitHitCount++ % this._cacheClientNotifier.getLogFrequency()) == 0) {
+      logger.warn("The queue for client {} holds {} bytes of events, more than the {} bytes allowed by gemfire.CacheClientProxy.MAX_QUEUE_MEMORY. Applying the {} policy.",
+          this.proxyID, queuedBytes, MAX_QUEUE_MEMORY, QUEUE_MEMORY_POLICY);
+    }
+    try {
+      applyQueueMemoryPolicy(queue, MAX_QUEUE_MEMORY, QUEUE_MEMORY_POLICY,
+          CacheClientNotifier.eventEnqueueWaitTime);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      this._cache.getCancelCriterion().checkCancelInProgress(e);
+    }
+  }
+
+  /**
+   * Applies the given policy if the events in the given queue use more than
+   * the given number of bytes, and turns conflation for memory back off once
+   * the queue has drained to half of them.
+   * 
+   * @param maxWaitMillis how long the throttle policy waits for the queue to
+   *          drain
+   * @return true if the queue was over the limit
+   */
+  static boolean applyQueueMemoryPolicy(HARegionQueue queue, long limit,
+      String policy, long maxWaitMillis) throws InterruptedException {
+    long queuedBytes = queue.getQueuedBytes();
+    if (queuedBytes <= limit) {
+      if (queue.getConflateForMemory() && queuedBytes <= limit / 2) {
+        queue.setConflateForMemory(false);
+      }
+      return false;
+    }
+    if (QUEUE_MEMORY_POLICY_CONFLATE.equalsIgnoreCase(policy)) {
+      // stays on until the queue has drained to half the limit
+      queue.setConflateForMemory(true);
+    }
+    else if (QUEUE_MEMORY_POLICY_DISCONNECT.equalsIgnoreCase(policy)) {
+      // the CacheClientNotifier blacklists and closes the proxy
+      queue.isClientSlowReciever = true;
+    }
+    else {
+      queue.waitForQueuedBytes(limit, maxWaitMillis);
+    }
+    return true;
+  }
+
   protected void sendMessageDirectly(ClientMessage message) {
     // Send the message directly if the connection exists
     // (do not go through the queue).
@@ -2833,6 +2930,9 @@ public class CacheClientProxy implements ClientSession {
       isDispatched = true;
      }
      else {
+       if (message != null) {
+         message.clearParts();
+       }
        if (logger.isDebugEnabled()) {
          logger.debug("Message Dispatcher of a Paused CCProxy is trying to dispatch message");
        }
@@ -2854,6 +2954,9 @@ public class CacheClientProxy implements ClientSession {
         getProxy().resetPingCounter();
       } finally {
         this.socketWriteLock.unlock();
+        // releases any value buffer shared with other clients, even if the
+        // send failed
+        message.clearParts();
       }
     }
 
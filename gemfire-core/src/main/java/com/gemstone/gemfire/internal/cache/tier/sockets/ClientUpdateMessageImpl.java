@@ -25,10 +25,12 @@ import org.apache.logging.log4j.Logger;
 import com.gemstone.gemfire.DataSerializer;
 import com.gemstone.gemfire.GemFireIOException;
 import com.gemstone.gemfire.InternalGemFireError;
+import com.gemstone.gemfire.SerializationException;
 import com.gemstone.gemfire.cache.query.CqQuery;
 import com.gemstone.gemfire.cache.query.internal.cq.InternalCqQuery;
 import com.gemstone.gemfire.cache.util.ObjectSizer;
 import com.gemstone.gemfire.internal.DSCODE;
+import com.gemstone.gemfire.internal.HeapDataOutputStream;
 import com.gemstone.gemfire.internal.InternalDataSerializer;
 import com.gemstone.gemfire.internal.Sendable;
 import com.gemstone.gemfire.internal.Version;
@@ -48,6 +50,7 @@ import com.gemstone.gemfire.internal.cache.tier.MessageType;
 import com.gemstone.gemfire.internal.cache.versions.VersionTag;
 import com.gemstone.gemfire.internal.logging.LogService;
 import com.gemstone.gemfire.internal.offheap.SimpleMemoryAllocatorImpl;
+import com.gemstone.gemfire.internal.util.BlobHelper;
 
 /**
  * Class <code>ClientUpdateMessageImpl</code> is a message representing a cache
@@ -146,6 +149,40 @@ public class ClientUpdateMessageImpl implements ClientUpdateMessage, Sizeable, N
 
   private VersionTag versionTag;
 
+  /**
+   * Values of at least this many bytes are copied once into a direct buffer
+   * that is written to the socket of every client without copying it again,
+   * see {@link SharedBuffer}. -1 disables this.
+   * 
+   * @since 9.0
+   */
+  static int SHARED_VALUE_THRESHOLD = Integer.getInteger(
+      "gemfire.ClientUpdateMessage.SHARED_VALUE_THRESHOLD", 64 * 1024).intValue();
+
+  /**
+   * The parts of the message to a client that do not depend on the client,
+   * serialized once for all the clients of the same version.
+   * 
+   * @since 9.0
+   */
+  private transient volatile SharedParts sharedParts;
+
+  /**
+   * The value in a direct buffer, see {@link #SHARED_VALUE_THRESHOLD}. This
+   * message holds one reference to it. Guarded by this message.
+   * 
+   * @since 9.0
+   */
+  private transient SharedBuffer sharedValue;
+
+  /**
+   * Whether {@link #releaseSharedParts} has been called, after which the
+   * value is no longer shared. Guarded by this message.
+   * 
+   * @since 9.0
+   */
+  private transient boolean sharedPartsReleased;
+
   /* added up all constants and form single value */
   private static final int CONSTANT_MEMORY_OVERHEAD;
 
@@ -880,11 +917,87 @@ public class ClientUpdateMessageImpl implements ClientUpdateMessage, Sizeable, N
   }
 
 
+  /**
+   * Returns the parts shared by the messages to all clients of the given
+   * version, serializing them if this is the first such client.
+   */
+  private SharedParts getSharedParts(CacheClientProxy proxy, Version clientVersion) {
+    SharedParts shared = this.sharedParts;
+    if (shared == null || shared.version != clientVersion) {
+      if (this.versionTag != null) {
+        this.versionTag.setCanonicalIDs(proxy.getCache().getDistributionManager());
+      }
+      shared = new SharedParts(clientVersion, this._regionName,
+          this._keyOfInterest, this._callbackArgument, this.versionTag);
+      this.sharedParts = shared;
+    }
+    return shared;
+  }
+
+  /**
+   * Adds the serialized value to the message, from a direct buffer shared by
+   * all clients if it is big enough.
+   */
+  private void addValuePart(Message message, byte[] value) {
+    boolean isObject = (this._valueIsObject == 0x01);
+    SharedBuffer shared = null;
+    if (SHARED_VALUE_THRESHOLD >= 0 && value != null && value.length > 0
+        && value.length >= SHARED_VALUE_THRESHOLD) {
+      shared = retainSharedValue(value);
+    }
+    if (shared != null) {
+      message.addRawPart(shared, isObject);
+    } else {
+      message.addRawPart(value, isObject);
+    }
+  }
+
+  /**
+   * Returns the shared copy of the given value with a reference retained for
+   * the caller, copying the value if it has not been copied yet. Returns
+   * null if the shared parts have already been released.
+   */
+  private synchronized SharedBuffer retainSharedValue(byte[] value) {
+    if (this.sharedPartsReleased) {
+      return null;
+    }
+    SharedBuffer shared = this.sharedValue;
+    if (shared == null || !shared.isCopyOf(value)) {
+      if (shared != null) {
+        // messages still sending the old value keep their own references
+        shared.release();
+      }
+      shared = SharedBuffer.create(value);
+      this.sharedValue = shared;
+    }
+    shared.retain();
+    return shared;
+  }
+
+  /**
+   * Drops the serialized forms shared by the messages to the clients. Called
+   * when the last queue holding this message has removed it. A shared value
+   * goes back to the pool once the messages still sending it are cleared.
+   */
+  public void releaseSharedParts() {
+    this.sharedParts = null;
+    SharedBuffer shared;
+    synchronized (this) {
+      this.sharedPartsReleased = true;
+      shared = this.sharedValue;
+      this.sharedValue = null;
+    }
+    if (shared != null) {
+      shared.release();
+    }
+  }
+
   protected Message getGFE70Message(CacheClientProxy proxy, 
       byte[] p_latestValue, boolean conflation, Version clientVersion) throws IOException {
       byte[] latestValue = p_latestValue;
       Message message = null;
       ClientProxyMembershipID proxyId = proxy.getProxyID();
+      SharedParts shared = getSharedParts(proxy, clientVersion);
 
       // Add CQ info.
       int cqMsgParts = 0;
@@ -904,24 +1017,24 @@ public class ClientUpdateMessageImpl implements ClientUpdateMessage, Sizeable, N
 
           message = new Message(7 + cqMsgParts, clientVersion);
           message.setMessageType(MessageType.LOCAL_INVALIDATE);
-          message.addStringPart(this._regionName);
-          message.addStringOrObjPart(this._keyOfInterest);
+          shared.addRegionName(message);
+          shared.addKey(message);
         }
         else {
           // Notify by subscription - send the value
           message = new Message(9 + cqMsgParts, clientVersion);
           if (isCreate()) {
             message.setMessageType(MessageType.LOCAL_CREATE);
-            message.addStringPart(this._regionName);
-            message.addStringOrObjPart(this._keyOfInterest);
+            shared.addRegionName(message);
+            shared.addKey(message);
             message.addObjPart(Boolean.FALSE); // NO delta
             // Add the value (which has already been serialized)
-            message.addRawPart(latestValue, (this._valueIsObject == 0x01));
+            addValuePart(message, latestValue);
           }
           else {
             message.setMessageType(MessageType.LOCAL_UPDATE);
-            message.addStringPart(this._regionName);
-            message.addStringOrObjPart(this._keyOfInterest);
+            shared.addRegionName(message);
+            shared.addKey(message);
 
             if (this.deltaBytes != null
                 && !conflation
@@ -941,16 +1054,13 @@ public class ClientUpdateMessageImpl implements ClientUpdateMessage, Sizeable, N
                 latestValue = (byte[])this._value;
               }
               // Add the value (which has already been serialized)
-              message.addRawPart(latestValue, (this._valueIsObject == 0x01));
+              addValuePart(message, latestValue);
             }
           }
         }
         
-        message.addObjPart(this._callbackArgument);
-        if (this.versionTag != null) {
-          this.versionTag.setCanonicalIDs(proxy.getCache().getDistributionManager());
-        }
-        message.addObjPart(this.versionTag);
+        shared.addCallbackArgument(message);
+        shared.addVersionTag(message);
         message.addObjPart(Boolean.valueOf(isClientInterested(proxyId)));
         message.addObjPart(Boolean.valueOf(clientHasCq));
 
@@ -974,10 +1084,10 @@ public class ClientUpdateMessageImpl implements ClientUpdateMessage, Sizeable, N
           message = new Message(7 + cqMsgParts, clientVersion);
           message.setMessageType(MessageType.LOCAL_INVALIDATE);
         }
-        message.addStringPart(this._regionName);
-        message.addStringOrObjPart(this._keyOfInterest);
-        message.addObjPart(this._callbackArgument);
-        message.addObjPart(this.versionTag);
+        shared.addRegionName(message);
+        shared.addKey(message);
+        shared.addCallbackArgument(message);
+        shared.addVersionTag(message);
         message.addObjPart(Boolean.valueOf(isClientInterested(proxyId)));
       message.addObjPart(Boolean.valueOf(clientHasCq));
 
@@ -993,8 +1103,8 @@ public class ClientUpdateMessageImpl implements ClientUpdateMessage, Sizeable, N
       else if (isDestroyRegion()) {
         message = new Message(4 + cqMsgParts, clientVersion);
         message.setMessageType(MessageType.LOCAL_DESTROY_REGION);
-        message.addStringPart(this._regionName);
-        message.addObjPart(this._callbackArgument);
+        shared.addRegionName(message);
+        shared.addCallbackArgument(message);
         message.addObjPart(Boolean.valueOf(clientHasCq));
 
         if (clientHasCq) {
@@ -1004,8 +1114,8 @@ public class ClientUpdateMessageImpl implements ClientUpdateMessage, Sizeable, N
       else if (isClearRegion()) {
         message = new Message(4 + cqMsgParts, clientVersion);
         message.setMessageType(MessageType.CLEAR_REGION);
-        message.addStringPart(this._regionName);
-        message.addObjPart(this._callbackArgument);
+        shared.addRegionName(message);
+        shared.addCallbackArgument(message);
         message.addObjPart(Boolean.valueOf(clientHasCq));
 
         if (clientHasCq) {
@@ -1015,8 +1125,8 @@ public class ClientUpdateMessageImpl implements ClientUpdateMessage, Sizeable, N
     else if (isInvalidateRegion()) {
       message = new Message(4 + cqMsgParts, clientVersion);
       message.setMessageType(MessageType.INVALIDATE_REGION);
-      message.addStringPart(this._regionName);
-      message.addObjPart(this._callbackArgument);
+      shared.addRegionName(message);
+      shared.addCallbackArgument(message);
 
       // Add CQ status.
       message.addObjPart(Boolean.valueOf(clientHasCq));
@@ -1149,6 +1259,7 @@ public class ClientUpdateMessageImpl implements ClientUpdateMessage, Sizeable, N
   public void setRegionName(String regionName)
   {
     this._regionName = regionName;
+    this.sharedParts = null;
   }
 
   /**
@@ -1536,6 +1647,74 @@ public class ClientUpdateMessageImpl implements ClientUpdateMessage, Sizeable, N
       super(16, 1.0f, 1);
     }
   }
+  /**
+   * The region name, key, callback argument and version tag parts of the
+   * messages to the clients of one version. They are the same for all
+   * clients, so they are serialized once instead of once per client.
+   * 
+   * @since 9.0
+   */
+  static final class SharedParts {
+    final Version version;
+    private final byte[] regionName;
+    private final byte[] key;
+    private final boolean keyIsObject;
+    private final byte[] callbackArgument;
+    private final boolean callbackArgumentIsObject;
+    private final byte[] versionTag;
+
+    SharedParts(Version version, String regionName, Object key,
+        Object callbackArgument, VersionTag versionTag) {
+      this.version = version;
+      this.regionName = regionName == null ? null : new HeapDataOutputStream(
+          regionName).toByteArray();
+      // the same encodings as Message.addStringOrObjPart and addObjPart
+      if (key instanceof String || key == null) {
+        this.key = key == null ? null : new HeapDataOutputStream(
+            (String)key).toByteArray();
+        this.keyIsObject = false;
+      } else {
+        this.key = serialize(key, version);
+        this.keyIsObject = true;
+      }
+      if (callbackArgument == null || callbackArgument instanceof byte[]) {
+        this.callbackArgument = (byte[])callbackArgument;
+        this.callbackArgumentIsObject = false;
+      } else {
+        this.callbackArgument = serialize(callbackArgument, version);
+        this.callbackArgumentIsObject = true;
+      }
+      this.versionTag = versionTag == null ? null : serialize(versionTag, version);
+    }
+
+    void addRegionName(Message message) {
+      message.addRawPart(this.regionName, false);
+    }
+
+    void addKey(Message message) {
+      message.addRawPart(this.key, this.keyIsObject);
+    }
+
+    void addCallbackArgument(Message message) {
+      message.addRawPart(this.callbackArgument, this.callbackArgumentIsObject);
+    }
+
+    void addVersionTag(Message message) {
+      message.addRawPart(this.versionTag, this.versionTag != null);
+    }
+
+    private static byte[] serialize(Object o, Version version) {
+      HeapDataOutputStream hdos = new HeapDataOutputStream(
+          Version.CURRENT.equals(version) ? null : version);
+      try {
+        BlobHelper.serializeTo(o, hdos);
+      } catch (IOException ex) {
+        throw new SerializationException("failed serializing object", ex);
+      }
+      return hdos.toByteArray();
+    }
+  }
+
   /**
    * Replaces what used to be a HashMap<String, Integer>.
    */
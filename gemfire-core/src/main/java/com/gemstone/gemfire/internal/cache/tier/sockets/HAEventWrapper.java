@@ -97,6 +97,14 @@ public class HAEventWrapper implements Conflatable, DataSerializableFixedID, Siz
    */
   private transient boolean isRefFromHAContainer = false;
 
+  /**
+   * The size of the wrapped message as counted by the HARegionQueues holding
+   * this instance, or -1 if it has not been computed yet. It is kept here
+   * since the message may be gone from the haContainer by the time a queue
+   * removes this instance.
+   */
+  private transient volatile int messageSize = -1;
+
   /**
    * A reference to its <code>ClientUpdateMessage</code> instance.
    */
@@ -228,6 +236,14 @@ public class HAEventWrapper implements Conflatable, DataSerializableFixedID, Siz
     return this.isRefFromHAContainer;
   }
 
+  public int getMessageSize() {
+    return this.messageSize;
+  }
+
+  public void setMessageSize(int size) {
+    this.messageSize = size;
+  }
+
   public void setHAContainer(Map container) {
     this.haContainer = container;
   }
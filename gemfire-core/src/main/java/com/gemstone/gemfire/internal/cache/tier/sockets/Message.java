@@ -428,6 +428,20 @@ public class Message  {
     this.currentPart++;
   }
 
+  /**
+   * Adds a part whose payload is a buffer shared with other messages. The
+   * message takes over a reference the caller has retained and releases it
+   * when its parts are cleared. The buffer is not copied into the comm
+   * buffer when it does not fit in it.
+   * @since 9.0
+   */
+  void addRawPart(SharedBuffer newPart, boolean isObject) {
+    this.messageModified = true;
+    Part part = partsList[this.currentPart];
+    part.setPartState(newPart, isObject);
+    this.currentPart++;
+  }
+
   public int getMessageType() {
     return this.msgType;
   }
@@ -613,6 +627,15 @@ public class Message  {
           cb.put(part.getTypeCode());
           if (partLen <= cb.remaining()) {
             part.sendTo(cb);
+          } else if (this.sockCh != null && part.isSharedBuffer()) {
+            // write what is buffered and the part in one call
+            int buffered = cb.position();
+            cb.flip();
+            part.sendWithGatheringWrite(this.sockCh, cb);
+            cb.clear();
+            if (this.msgStats != null) {
+              this.msgStats.incSentBytes(buffered + partLen);
+            }
           } else {
             flushBuffer();
             // send partBytes
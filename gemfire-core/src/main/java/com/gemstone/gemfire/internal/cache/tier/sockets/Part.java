@@ -42,7 +42,8 @@ public class Part {
   private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
 
   /** The payload of this part.
-   * Could be null, a byte[] or a HeapDataOutputStream on the send side.
+   * Could be null, a byte[], a HeapDataOutputStream or a SharedBuffer
+   * shared with other messages on the send side.
    * Could be null, or a byte[] on the receiver side.
    */
   private Object part;
@@ -66,6 +67,9 @@ public class Part {
 //   }
 
   public void clear() {
+    if (this.part instanceof SharedBuffer) {
+      ((SharedBuffer)this.part).release();
+    }
     this.part = null;
     this.typeCode = BYTE_CODE;
   }
@@ -114,6 +118,26 @@ public class Part {
       this.part = os;
     }
   }
+  /**
+   * Sets the payload to a buffer shared by the messages to many clients.
+   * The part takes over a reference to the buffer that the caller has
+   * retained, and releases it when the part is cleared. The buffer is never
+   * modified, each send works on a duplicate of it.
+   * @since 9.0
+   */
+  void setPartState(SharedBuffer sb, boolean isObject) {
+    clear();
+    this.typeCode = isObject ? OBJECT_CODE : BYTE_CODE;
+    this.part = sb;
+  }
+  /**
+   * Returns true if the payload is a shared buffer that can be written to a
+   * channel without being copied.
+   * @since 9.0
+   */
+  public boolean isSharedBuffer() {
+    return this.part instanceof SharedBuffer;
+  }
   public void setPartState(StoredObject so, boolean isObject) {
     if (isObject) {
       this.typeCode = OBJECT_CODE;
@@ -144,6 +168,8 @@ public class Part {
       return ((byte[])this.part).length;
     } else if (this.part instanceof Chunk) {
       return ((Chunk) this.part).getValueSizeInBytes();
+    } else if (this.part instanceof SharedBuffer) {
+      return ((SharedBuffer) this.part).length();
     } else {
       return ((HeapDataOutputStream)this.part).size();
     }
@@ -302,6 +328,9 @@ public class Part {
             bytesToSend--;
           }
         }
+      } else if (this.part instanceof SharedBuffer) {
+        HeapDataOutputStream.writeByteBufferToStream(out, buf,
+            ((SharedBuffer) this.part).duplicate());
       } else {
         HeapDataOutputStream hdos = (HeapDataOutputStream)this.part;
         hdos.sendTo(out, buf);
@@ -332,6 +361,8 @@ public class Part {
             bytesToSend--;
           }
         }
+      } else if (this.part instanceof SharedBuffer) {
+        buf.put(((SharedBuffer) this.part).duplicate());
       } else {
         HeapDataOutputStream hdos = (HeapDataOutputStream)this.part;
         hdos.sendTo(buf);
@@ -399,6 +430,10 @@ public class Part {
             buf.clear();
           }
         }
+      } else if (this.part instanceof SharedBuffer) {
+        buf.flip();
+        sendWithGatheringWrite(sc, buf);
+        buf.clear();
       } else {
         HeapDataOutputStream hdos = (HeapDataOutputStream)this.part;
         hdos.sendTo(sc, buf);
@@ -406,6 +441,21 @@ public class Part {
       }
     }
   }
+
+  /**
+   * Writes the remaining bytes of the given buffer followed by the shared
+   * buffer payload of this part to the channel, without copying the payload.
+   * Precondition: {@link #isSharedBuffer()} and buf is ready to be written
+   * @since 9.0
+   */
+  public final void sendWithGatheringWrite(SocketChannel sc, ByteBuffer buf)
+      throws IOException {
+    ByteBuffer[] buffers = new ByteBuffer[] { buf,
+        ((SharedBuffer) this.part).duplicate() };
+    while (buffers[1].remaining() > 0) {
+      sc.write(buffers);
+    }
+  }
   
   static private String typeCodeToString(byte c) {
     switch (c) {
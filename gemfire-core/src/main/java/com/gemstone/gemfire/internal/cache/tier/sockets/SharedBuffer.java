@@ -0,0 +1,179 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.cache.tier.sockets;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A serialized value copied once into a direct buffer so that the messages
+ * to many clients can write it to their sockets without copying it again.
+ * <p>
+ * The buffer is reference counted. The {@link ClientUpdateMessageImpl} that
+ * created it holds one reference, and every {@link Part} that will send it
+ * holds another until the part is cleared. The direct memory goes back to a
+ * small pool only when the last reference is released, so it is never
+ * reused while a dispatcher may still be writing it. A reference that is
+ * never released only keeps the memory out of the pool until the buffer is
+ * garbage collected.
+ *
+ * @since 9.0
+ */
+final class SharedBuffer {
+
+  /**
+   * The most direct memory, in bytes, kept in the pool for later values
+   */
+  static long MAX_POOLED_BYTES = Long.getLong(
+      "gemfire.ClientUpdateMessage.MAX_POOLED_SHARED_BYTES", 16 * 1024 * 1024).longValue();
+
+  /** the log2 of the largest buffer that is pooled */
+  private static final int MAX_POOLED_INDEX = 30;
+
+  /** free buffers by the log2 of their capacity, which is a power of two */
+  private static final Queue<ByteBuffer>[] pool = createPool();
+
+  private static final AtomicLong pooledBytes = new AtomicLong();
+
+  /** the value the buffer was copied from */
+  private final byte[] bytes;
+
+  /** the copy of the value; null once the last reference is released */
+  private volatile ByteBuffer buffer;
+
+  private final AtomicInteger refCount = new AtomicInteger(1);
+
+  /**
+   * Returns a buffer holding a copy of the given value, with one reference
+   * held by the caller.
+   */
+  static SharedBuffer create(byte[] bytes) {
+    return new SharedBuffer(bytes);
+  }
+
+  private SharedBuffer(byte[] bytes) {
+    this.bytes = bytes;
+    ByteBuffer bb = allocate(bytes.length);
+    bb.put(bytes);
+    bb.flip();
+    this.buffer = bb;
+  }
+
+  /**
+   * Returns true if this is a copy of the given value
+   */
+  boolean isCopyOf(byte[] value) {
+    return this.bytes == value;
+  }
+
+  /**
+   * Adds a reference to the buffer. Returns false, and adds none, if the
+   * last reference has already been released.
+   */
+  boolean retain() {
+    for (;;) {
+      int count = this.refCount.get();
+      if (count <= 0) {
+        return false;
+      }
+      if (this.refCount.compareAndSet(count, count + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Releases a reference to the buffer, giving the memory back to the pool
+   * if it was the last one.
+   */
+  void release() {
+    if (this.refCount.decrementAndGet() == 0) {
+      ByteBuffer bb = this.buffer;
+      this.buffer = null;
+      free(bb);
+    }
+  }
+
+  int getRefCount() {
+    return this.refCount.get();
+  }
+
+  int length() {
+    return this.bytes.length;
+  }
+
+  /**
+   * Returns a read-only view of the value with its own position. Only
+   * called by a holder of a reference.
+   */
+  ByteBuffer duplicate() {
+    return this.buffer.asReadOnlyBuffer();
+  }
+
+  private static ByteBuffer allocate(int size) {
+    int index = indexOf(size);
+    if (index > MAX_POOLED_INDEX) {
+      return ByteBuffer.allocateDirect(size);
+    }
+    ByteBuffer bb = pool[index].poll();
+    if (bb != null) {
+      pooledBytes.addAndGet(-bb.capacity());
+      bb.clear();
+      bb.limit(size);
+      return bb;
+    }
+    bb = ByteBuffer.allocateDirect(1 << index);
+    bb.limit(size);
+    return bb;
+  }
+
+  private static void free(ByteBuffer bb) {
+    int capacity = bb.capacity();
+    if (Integer.bitCount(capacity) != 1 || indexOf(capacity) > MAX_POOLED_INDEX) {
+      // not from the pool, left to the garbage collector
+      return;
+    }
+    if (pooledBytes.addAndGet(capacity) <= MAX_POOLED_BYTES) {
+      pool[indexOf(capacity)].offer(bb);
+    } else {
+      // the pool is full, left to the garbage collector
+      pooledBytes.addAndGet(-capacity);
+    }
+  }
+
+  /** Returns the log2 of the smallest power of two that holds size bytes */
+  private static int indexOf(int size) {
+    return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+  }
+
+  static long getPooledBytes() {
+    return pooledBytes.get();
+  }
+
+  /**
+   * Empties the pool, for tests
+   */
+  static void clearPool() {
+    for (Queue<ByteBuffer> q : pool) {
+      q.clear();
+    }
+    pooledBytes.set(0);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Queue<ByteBuffer>[] createPool() {
+    Queue<ByteBuffer>[] result = new Queue[32];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+    }
+    return result;
+  }
+}
@@ -7,25 +7,124 @@
  */
 package com.gemstone.gemfire.internal.tcp;
 
-import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
-import java.util.IdentityHashMap;
+import java.util.ArrayDeque;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.gemstone.gemfire.distributed.internal.DMStats;
-import com.gemstone.gemfire.internal.Assert;
 
 /**
+ * Pools the direct buffers used to send and receive messages.
+ * <p>
+ * Buffers come in power of two size classes, and a request gets a buffer of
+ * the smallest class that holds it, with its limit set to the requested
+ * size. The buffers of the smaller classes are cut from slabs of direct
+ * memory, so one allocation provides many of them. The buffers of the larger
+ * classes are slabs of their own. Buffers larger than the largest class are
+ * allocated for each use. Unlike soft references, none of this depends on
+ * what the garbage collector decides to clear.
+ * <p>
+ * The pool records the slab every buffer it hands out was cut from, and only
+ * takes back those buffers; a buffer it did not hand out is left to the
+ * garbage collector. Once every buffer of a slab has been released the slab
+ * is dropped, unless the size class would be left with too few free buffers.
+ * <p>
+ * Each thread keeps the send buffer it released last of each size class, up
+ * to {@link #MAX_THREAD_CACHED_BYTES}, since the thread that sends a message
+ * is usually about to send another. The pooled threads of the distribution
+ * manager return their buffers when they are done, through
+ * {@link ConnectionTable#releaseThreadsSockets}, and the buffers kept by any
+ * other thread that has terminated are returned to the pool before the pool
+ * allocates more memory. Virtual threads are cheap, numerous and short lived,
+ * so they keep no buffers.
+ *
  * @author dsmith
  *
  */
 public class Buffers {
   /**
-   * A list of soft references to byte buffers.
+   * The capacity of the smallest size class
+   */
+  private static final int MIN_POOLED_SIZE = 4 * 1024;
+
+  /**
+   * The capacity of the largest size class. Larger direct buffers are not
+   * pooled.
+   */
+  static final int MAX_POOLED_SIZE = roundUp(Math.max(MIN_POOLED_SIZE,
+      Integer.getInteger("p2p.maxPooledBufferSize", 16 * 1024 * 1024).intValue()));
+
+  /**
+   * The size of the slabs the buffers of the size classes up to half of it
+   * are cut from
+   */
+  static final int SLAB_SIZE = roundUp(Math.max(MIN_POOLED_SIZE,
+      Integer.getInteger("p2p.bufferSlabSize", 1024 * 1024).intValue()));
+
+  /**
+   * The number of free buffers the pool keeps of each size class that is not
+   * cut from slabs
+   */
+  private static final int MAX_FREE_UNSLABBED = Integer.getInteger(
+      "p2p.maxFreeBuffersPerSize", 8).intValue();
+
+  /**
+   * The number of bytes of send buffers each thread may keep for itself
+   */
+  static final int MAX_THREAD_CACHED_BYTES = Integer.getInteger(
+      "p2p.maxThreadCachedBufferBytes", SLAB_SIZE).intValue();
+
+  private static final SizeClass[] sizeClasses;
+  static {
+    int count = Integer.numberOfTrailingZeros(MAX_POOLED_SIZE / MIN_POOLED_SIZE) + 1;
+    sizeClasses = new SizeClass[count];
+    for (int i = 0; i < count; i++) {
+      sizeClasses[i] = new SizeClass(i, MIN_POOLED_SIZE << i);
+    }
+  }
+
+  /**
+   * The slice of every direct buffer handed out by the pool and not yet
+   * dropped, by identity of the buffer
+   */
+  private static final ConcurrentHashMap<BufferKey, Slice> owners = new ConcurrentHashMap<BufferKey, Slice>();
+
+  /**
+   * The send buffers kept by each thread, {@link #NO_THREAD_CACHE} for a
+   * thread that keeps none
+   */
+  private static final ThreadLocal<ThreadCache> threadSendBuffers = new ThreadLocal<ThreadCache>();
+
+  /**
+   * Marks the threads that keep no send buffers
+   */
+  private static final ThreadCache NO_THREAD_CACHE = new ThreadCache(null);
+
+  /**
+   * Thread.isVirtual, or null on JVMs without virtual threads
+   */
+  private static final Method isVirtual = getIsVirtualMethod();
+
+  /**
+   * Every thread cache, so that the buffers of a terminated thread can be
+   * returned to the pool
+   */
+  private static final ConcurrentLinkedQueue<ThreadCache> threadCaches = new ConcurrentLinkedQueue<ThreadCache>();
+
+  /**
+   * Bytes of direct memory allocated for sending and for receiving; a new
+   * DMStats starts from these
    */
-  private static final ConcurrentLinkedQueue bufferQueue = new ConcurrentLinkedQueue();
-  
+  private static final AtomicLong senderDirectBytes = new AtomicLong();
+  private static final AtomicLong receiverDirectBytes = new AtomicLong();
+  private static final AtomicLong freeBytes = new AtomicLong();
+
   /**
    * Should only be called by threads that have currently acquired send permission.
    * @return a byte buffer to be used for sending on this connection.
@@ -33,128 +132,485 @@ public class Buffers {
   static ByteBuffer acquireSenderBuffer(int size, DMStats stats) {
     return acquireBuffer(size, stats, true);
   }
-  
+
   static ByteBuffer acquireReceiveBuffer(int size, DMStats stats) {
     return acquireBuffer(size, stats, false);
   }
 
   static ByteBuffer acquireBuffer(int size, DMStats stats, boolean send) {
-    ByteBuffer result;
-    if (TCPConduit.useDirectBuffers) {
-      IdentityHashMap<BBSoftReference, BBSoftReference> alreadySeen = null; // keys are used like a set
-      BBSoftReference ref = (BBSoftReference)bufferQueue.poll();
-      while (ref != null) {
-        ByteBuffer bb = ref.getBB();
-        if (bb == null) {
-          // it was garbage collected
-          int refSize = ref.consumeSize();
-          if (refSize > 0) {
-            if (ref.getSend()) { // fix bug 46773
-              stats.incSenderBufferSize(-refSize, true);
-            } else {
-              stats.incReceiverBufferSize(-refSize, true);
-            }
-          }
-        } else if (bb.capacity() >= size) {
-          bb.rewind();
-          bb.limit(size);
-          return bb;
-        } else {
-          // wasn't big enough so put it back in the queue
-          Assert.assertTrue(bufferQueue.offer(ref));
-          if (alreadySeen == null) {
-            alreadySeen = new IdentityHashMap<BBSoftReference, BBSoftReference>();
-          }
-          if (alreadySeen.put(ref, ref) != null) {
-            // if it returns non-null then we have already seen this item
-            // so we have worked all the way through the queue once.
-            // So it is time to give up and allocate a new buffer.
-            break;
-          }
-        }
-        ref = (BBSoftReference)bufferQueue.poll();
-      }
-      result = ByteBuffer.allocateDirect(size);
-    } else {
+    if (!TCPConduit.useDirectBuffers) {
       // if we are using heap buffers then don't bother with keeping them around
-      result = ByteBuffer.allocate(size);
+      ByteBuffer result = ByteBuffer.allocate(size);
+      if(send) {
+        stats.incSenderBufferSize(size, false);
+      } else {
+        stats.incReceiverBufferSize(size, false);
+      }
+      return result;
+    }
+    SizeClass sizeClass = sizeClassFor(size);
+    if (sizeClass == null) {
+      Slab slab = new Slab(null, size, send);
+      incDirectBytes(stats, size, send);
+      return slab.slices[0].bb;
+    }
+    ByteBuffer bb = null;
+    if (send) {
+      ThreadCache cache = threadSendBuffers.get();
+      if (cache != null) {
+        bb = cache.poll(sizeClass);
+      }
+    }
+    if (bb == null) {
+      bb = sizeClass.poll(stats);
     }
-    if(send) {
-      stats.incSenderBufferSize(size, TCPConduit.useDirectBuffers);
+    if (bb == null) {
+      releaseTerminatedThreadCaches(stats);
+      bb = sizeClass.poll(stats);
+    }
+    if (bb != null) {
+      stats.incBufferPoolHits();
     } else {
-      stats.incReceiverBufferSize(size, TCPConduit.useDirectBuffers);
+      bb = sizeClass.allocate(stats, send);
     }
-    return result;
+    bb.clear();
+    bb.limit(size);
+    return bb;
   }
-  
+
   static void releaseSenderBuffer(ByteBuffer bb, DMStats stats) {
     releaseBuffer(bb, stats, true);
   }
-  
+
   static void releaseReceiveBuffer(ByteBuffer bb, DMStats stats) {
     releaseBuffer(bb, stats, false);
   }
-  
+
   /**
-   * Releases a previously acquired buffer.
+   * Releases a previously acquired buffer. A buffer that was not acquired
+   * from this pool is ignored.
    */
   static void releaseBuffer(ByteBuffer bb, DMStats stats, boolean send) {
-    if (TCPConduit.useDirectBuffers) {
-      BBSoftReference bbRef = new BBSoftReference(bb, send);
-      bufferQueue.offer(bbRef);
-    } else {
+    if (!TCPConduit.useDirectBuffers) {
       if(send) {
         stats.incSenderBufferSize(-bb.capacity(), false);
       } else {
         stats.incReceiverBufferSize(-bb.capacity(), false);
       }
+      return;
     }
+    Slice slice = bb.isDirect() ? owners.get(new BufferKey(bb)) : null;
+    if (slice == null) {
+      // not handed out by the pool, or already dropped
+      return;
+    }
+    SizeClass sizeClass = slice.slab.sizeClass;
+    if (sizeClass == null) {
+      // allocated for this use only; the collector frees it
+      if (owners.remove(slice.key) != null) {
+        incDirectBytes(stats, -slice.slab.bytes, slice.slab.send);
+      }
+      return;
+    }
+    if (send && getThreadCache().offer(slice)) {
+      return;
+    }
+    sizeClass.release(slice, stats);
   }
-  
+
   public static void initBufferStats(DMStats stats) { // fixes 46773
     if (TCPConduit.useDirectBuffers) {
-      @SuppressWarnings("unchecked")
-      Iterator<BBSoftReference> it = (Iterator<BBSoftReference>)bufferQueue.iterator();
-      while (it.hasNext()) {
-        BBSoftReference ref = it.next();
-        if (ref.getBB() != null) {
-          if(ref.getSend()) { // fix bug 46773
-            stats.incSenderBufferSize(ref.getSize(), true);
-          } else {
-            stats.incReceiverBufferSize(ref.getSize(), true);
-          }
-        }
+      stats.incSenderBufferSize((int)senderDirectBytes.get(), true);
+      stats.incReceiverBufferSize((int)receiverDirectBytes.get(), true);
+      stats.incBufferPoolFreeSize((int)freeBytes.get());
+    }
+  }
+
+  /**
+   * Returns the send buffers kept by the calling thread to the pool. The
+   * thread starts keeping buffers again when it next releases one.
+   */
+  static void releaseThreadBuffers(DMStats stats) {
+    ThreadCache cache = threadSendBuffers.get();
+    if (cache == null || cache == NO_THREAD_CACHE) {
+      return;
+    }
+    threadSendBuffers.remove();
+    if (threadCaches.remove(cache)) {
+      cache.releaseAll(stats);
+    }
+  }
+
+  /**
+   * Returns the send buffers kept by the calling thread, creating them if the
+   * thread keeps any
+   */
+  private static ThreadCache getThreadCache() {
+    ThreadCache cache = threadSendBuffers.get();
+    if (cache == null) {
+      Thread thread = Thread.currentThread();
+      if (isVirtual(thread)) {
+        cache = NO_THREAD_CACHE;
+      } else {
+        cache = new ThreadCache(thread);
+        threadCaches.add(cache);
+      }
+      threadSendBuffers.set(cache);
+    }
+    return cache;
+  }
+
+  private static boolean isVirtual(Thread thread) {
+    if (isVirtual == null) {
+      return false;
+    }
+    try {
+      return ((Boolean)isVirtual.invoke(thread)).booleanValue();
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  private static Method getIsVirtualMethod() {
+    try {
+      return Thread.class.getMethod("isVirtual");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the number of threads that keep send buffers. Only used by
+   * tests.
+   */
+  static int getThreadCacheCount() {
+    return threadCaches.size();
+  }
+
+  /**
+   * Returns the buffers kept by threads that have terminated to the pool
+   */
+  private static void releaseTerminatedThreadCaches(DMStats stats) {
+    for (ThreadCache cache : threadCaches) {
+      Thread owner = cache.owner.get();
+      // only the thread that removes the cache releases its buffers
+      if ((owner == null || !owner.isAlive()) && threadCaches.remove(cache)) {
+        cache.releaseAll(stats);
       }
     }
   }
 
+  private static void incDirectBytes(DMStats stats, int inc, boolean send) {
+    if (send) {
+      senderDirectBytes.addAndGet(inc);
+      stats.incSenderBufferSize(inc, true);
+    } else {
+      receiverDirectBytes.addAndGet(inc);
+      stats.incReceiverBufferSize(inc, true);
+    }
+  }
+
+  /**
+   * Returns the bytes of direct memory currently held by the pool, for both
+   * the buffers in use and the free ones
+   */
+  static long getDirectBytes() {
+    return senderDirectBytes.get() + receiverDirectBytes.get();
+  }
+
+  /**
+   * Returns the bytes of the free buffers in the pool
+   */
+  static long getFreeBytes() {
+    return freeBytes.get();
+  }
+
+  /**
+   * Forgets every buffer of the pool, so that buffers handed out before are
+   * ignored when released. Only used by tests.
+   */
+  static void clearPool() {
+    for (ThreadCache cache : threadCaches) {
+      cache.clear();
+    }
+    for (SizeClass sizeClass : sizeClasses) {
+      sizeClass.clear();
+    }
+    owners.clear();
+    senderDirectBytes.set(0);
+    receiverDirectBytes.set(0);
+    freeBytes.set(0);
+  }
+
+  /**
+   * Returns the smallest size class that holds the given number of bytes, or
+   * null if they are too many to be pooled.
+   */
+  private static SizeClass sizeClassFor(int size) {
+    if (size > MAX_POOLED_SIZE) {
+      return null;
+    }
+    if (size <= MIN_POOLED_SIZE) {
+      return sizeClasses[0];
+    }
+    return sizeClasses[Integer.numberOfTrailingZeros(roundUp(size) / MIN_POOLED_SIZE)];
+  }
+
+  /**
+   * Returns the smallest power of two that is not less than the given size.
+   */
+  private static int roundUp(int size) {
+    int highest = Integer.highestOneBit(size);
+    return highest == size ? size : highest << 1;
+  }
+
+  /**
+   * Compares buffers by identity, as ByteBuffer.equals compares content
+   */
+  private static final class BufferKey {
+    final ByteBuffer bb;
+
+    BufferKey(ByteBuffer bb) {
+      this.bb = bb;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(this.bb);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof BufferKey && ((BufferKey)o).bb == this.bb;
+    }
+  }
+
+  /**
+   * One buffer of a slab
+   */
+  private static final class Slice {
+    final Slab slab;
+    final ByteBuffer bb;
+    final BufferKey key;
+    /** true while the buffer is in the free buffers of its size class */
+    boolean free;
+
+    Slice(Slab slab, ByteBuffer bb) {
+      this.slab = slab;
+      this.bb = bb;
+      this.key = new BufferKey(bb);
+    }
+  }
+
   /**
-   * A soft reference that remembers the size of the byte buffer it refers to.
-   * TODO Dan - I really think this should be a weak reference. The JVM
-   * doesn't seem to clear soft references if it is getting low on direct
-   * memory.
+   * One allocation of direct memory and the buffers cut from it
    */
-  private static class BBSoftReference extends SoftReference<ByteBuffer> {
-    private int size;
-    private final boolean send;
-    public BBSoftReference(ByteBuffer bb, boolean send) {
-      super(bb);
-      this.size = bb.capacity();
+  private static final class Slab {
+    /** the size class of the buffers, null for a buffer allocated for one use */
+    final SizeClass sizeClass;
+    final int bytes;
+    /** true if the memory is accounted for as send buffers */
+    final boolean send;
+    final Slice[] slices;
+    /** the free buffers of this slab, guarded by the size class */
+    final ArrayDeque<Slice> free;
+
+    Slab(SizeClass sizeClass, int bytes, boolean send) {
+      this.sizeClass = sizeClass;
+      this.bytes = bytes;
       this.send = send;
+      ByteBuffer memory = ByteBuffer.allocateDirect(bytes);
+      int capacity = sizeClass == null ? bytes : sizeClass.capacity;
+      this.slices = new Slice[bytes / capacity];
+      for (int i = 0; i < this.slices.length; i++) {
+        ByteBuffer bb;
+        if (this.slices.length == 1) {
+          bb = memory;
+        } else {
+          memory.clear();
+          memory.position(i * capacity);
+          memory.limit((i + 1) * capacity);
+          bb = memory.slice();
+        }
+        this.slices[i] = new Slice(this, bb);
+        owners.put(this.slices[i].key, this.slices[i]);
+      }
+      this.free = new ArrayDeque<Slice>(this.slices.length);
     }
-    public int getSize() {
-      return this.size;
+  }
+
+  /**
+   * The send buffers kept by one thread, at most one of each size class
+   */
+  private static final class ThreadCache {
+    final WeakReference<Thread> owner;
+    private final Slice[] slices = new Slice[sizeClasses.length];
+    private int bytes;
+
+    ThreadCache(Thread owner) {
+      this.owner = new WeakReference<Thread>(owner);
     }
-    public synchronized int consumeSize() {
-      int result = this.size;
-      this.size = 0;
-      return result;
+
+    ByteBuffer poll(SizeClass sizeClass) {
+      Slice slice = this.slices[sizeClass.index];
+      if (slice == null) {
+        return null;
+      }
+      this.slices[sizeClass.index] = null;
+      this.bytes -= sizeClass.capacity;
+      return slice.bb;
+    }
+
+    /**
+     * @return false if the thread does not keep the buffer
+     */
+    boolean offer(Slice slice) {
+      if (this == NO_THREAD_CACHE) {
+        return false;
+      }
+      SizeClass sizeClass = slice.slab.sizeClass;
+      if (this.slices[sizeClass.index] != null
+          || this.bytes + sizeClass.capacity > MAX_THREAD_CACHED_BYTES) {
+        return false;
+      }
+      this.slices[sizeClass.index] = slice;
+      this.bytes += sizeClass.capacity;
+      return true;
+    }
+
+    /**
+     * Releases the kept buffers. Must be called by the owning thread, or once
+     * it has terminated.
+     */
+    void releaseAll(DMStats stats) {
+      for (int i = 0; i < this.slices.length; i++) {
+        Slice slice = this.slices[i];
+        if (slice != null) {
+          this.slices[i] = null;
+          slice.slab.sizeClass.release(slice, stats);
+        }
+      }
+      this.bytes = 0;
+    }
+
+    void clear() {
+      for (int i = 0; i < this.slices.length; i++) {
+        this.slices[i] = null;
+      }
+      this.bytes = 0;
     }
-    public boolean getSend() {
-      return this.send;
+  }
+
+  /**
+   * The slabs and free buffers of one capacity.
+   */
+  private static final class SizeClass {
+    final int index;
+    final int capacity;
+    /** the number of bytes allocated for each slab of this class */
+    final int slabSize;
+    /**
+     * A slab whose buffers are all free is dropped if this many other
+     * buffers of the class are free
+     */
+    final int keepFree;
+    /** slabs with free buffers, in the order they were allocated */
+    private final LinkedHashSet<Slab> partial = new LinkedHashSet<Slab>();
+    private int freeCount;
+
+    SizeClass(int index, int capacity) {
+      this.index = index;
+      this.capacity = capacity;
+      boolean slabbed = capacity <= SLAB_SIZE / 2;
+      this.slabSize = slabbed ? SLAB_SIZE : capacity;
+      this.keepFree = slabbed ? SLAB_SIZE / capacity : MAX_FREE_UNSLABBED;
+    }
+
+    /**
+     * Takes a free buffer from the oldest slab that has one, so that the
+     * newer slabs are the first to become free again and be dropped.
+     */
+    synchronized ByteBuffer poll(DMStats stats) {
+      Iterator<Slab> it = this.partial.iterator();
+      if (!it.hasNext()) {
+        return null;
+      }
+      Slab slab = it.next();
+      Slice slice = slab.free.pop();
+      if (slab.free.isEmpty()) {
+        it.remove();
+      }
+      slice.free = false;
+      this.freeCount--;
+      freeBytes.addAndGet(-this.capacity);
+      stats.incBufferPoolFreeSize(-this.capacity);
+      return slice.bb;
     }
-    public ByteBuffer getBB() {
-      return (ByteBuffer)super.get();
+
+    /**
+     * Adds a released buffer to the free buffers of this class, and drops its
+     * slab if all of its buffers are free and enough others are.
+     */
+    synchronized void release(Slice slice, DMStats stats) {
+      Slab slab = slice.slab;
+      if (slice.free || owners.get(slice.key) != slice) {
+        // released twice, or the slab has been dropped
+        return;
+      }
+      slice.free = true;
+      slab.free.push(slice);
+      if (slab.free.size() == 1) {
+        this.partial.add(slab);
+      }
+      this.freeCount++;
+      freeBytes.addAndGet(this.capacity);
+      stats.incBufferPoolFreeSize(this.capacity);
+      if (slab.free.size() == slab.slices.length
+          && this.freeCount - slab.slices.length >= this.keepFree) {
+        drop(slab, stats);
+      }
+    }
+
+    private void drop(Slab slab, DMStats stats) {
+      int freed = slab.slices.length * this.capacity;
+      this.partial.remove(slab);
+      this.freeCount -= slab.slices.length;
+      for (Slice slice : slab.slices) {
+        owners.remove(slice.key);
+      }
+      slab.free.clear();
+      freeBytes.addAndGet(-freed);
+      stats.incBufferPoolFreeSize(-freed);
+      incDirectBytes(stats, -slab.bytes, slab.send);
+    }
+
+    /**
+     * Allocates a slab of this class and returns its first buffer. The other
+     * buffers of the slab go to the free buffers.
+     */
+    ByteBuffer allocate(DMStats stats, boolean send) {
+      stats.incBufferPoolAllocations();
+      Slab slab = new Slab(this, this.slabSize, send);
+      incDirectBytes(stats, this.slabSize, send);
+      if (slab.slices.length > 1) {
+        synchronized (this) {
+          for (int i = slab.slices.length - 1; i > 0; i--) {
+            slab.slices[i].free = true;
+            slab.free.push(slab.slices[i]);
+          }
+          this.partial.add(slab);
+          int added = slab.slices.length - 1;
+          this.freeCount += added;
+          freeBytes.addAndGet(added * this.capacity);
+          stats.incBufferPoolFreeSize(added * this.capacity);
+        }
+      }
+      return slab.slices[0].bb;
+    }
+
+    synchronized void clear() {
+      this.partial.clear();
+      this.freeCount = 0;
     }
   }
 
@@ -98,6 +98,13 @@ public class Connection implements Runnable {
   public final static int DIRECT_ACK_BIT = 0x20;
   //We no longer support early ack
   //public final static int EARLY_ACK_BIT = 0x10;
+  /**
+   * Set in the type of a message chunk whose payload is compressed. Only
+   * sent on connections that negotiated compression in their handshake, so
+   * peers that used this bit for early acks never see it.
+   * @since 9.0
+   */
+  public final static int COMPRESSED_BIT = 0x10;
 
   public static final int MSG_HEADER_SIZE_OFFSET = 0;
   public static final int MSG_HEADER_TYPE_OFFSET = 4;
@@ -309,6 +316,11 @@ public class Connection implements Runnable {
 
   /** Set to true once the handshake has been read */
   volatile boolean handshakeRead = false;
+  /**
+   * Set to true once the reader thread of this receiver has handed it to the
+   * selector readers of its ConnectionTable
+   */
+  private volatile boolean readBySelector = false;
   volatile boolean handshakeCancelled = false;
 
   private volatile int replyCode = 0;
@@ -399,6 +411,23 @@ public class Connection implements Runnable {
 
   boolean directAck;
 
+  /** whether the payload of the message being read is compressed */
+  boolean nioCompressed;
+
+  /**
+   * true if the receiver of this sender connection agreed to read
+   * compressed message chunks
+   * @since 9.0
+   */
+  private boolean compressSends;
+
+  /**
+   * true if this receiver connection agreed, in its handshake reply, to
+   * read compressed message chunks
+   * @since 9.0
+   */
+  private boolean acceptCompressed;
+
   short nioMsgId;
 
   /** whether the length of the next message has been established */
@@ -682,6 +711,8 @@ public class Connection implements Runnable {
       bb.putInt(cfg.getAsyncMaxQueueSize());
       // write own product version
       Version.writeOrdinal(bb, Version.CURRENT.ordinal(), true);
+      // tell the sender whether to compress; older senders ignore this
+      bb.put((byte)(this.acceptCompressed ? 1 : 0));
       // now set the msg length into position 0
       bb.putInt(0, calcHdrSize(bb.position()-MSG_HEADER_BYTES));
       if (useNIO()) {
@@ -881,6 +912,9 @@ public class Connection implements Runnable {
     // write the product version ordinal
     Version.CURRENT.writeOrdinal(connectHandshake, true);
     connectHandshake.writeInt(dominoCount.get()+1);
+    // offer to compress; receivers that don't know about compression
+    // ignore the trailing byte, so this does not need a new HANDSHAKE_VERSION
+    connectHandshake.writeBoolean(MessageCompression.isEnabled());
 // this writes the sending member + thread name that is stored in senderName
 // on the receiver to show the cause of reader thread creation
 //    if (dominoCount.get() > 0) {
@@ -911,6 +945,8 @@ public class Connection implements Runnable {
     os.writeLong(this.uniqueId);
     Version.CURRENT.writeOrdinal(os, true);
     os.writeInt(dominoCount.get()+1);
+    // offer to compress; see handshakeNio
+    os.writeBoolean(MessageCompression.isEnabled());
  // this writes the sending member + thread name that is stored in senderName
  // on the receiver to show the cause of reader thread creation
 //    if (dominoCount.get() > 0) {
@@ -1183,6 +1219,9 @@ public class Connection implements Runnable {
     if (preserveOrder && BATCH_SENDS) {
       conn.createBatchSendBuffer();
     }
+    else if (sharedResource && COALESCE_WINDOW_MICROS > 0) {
+      conn.createCoalescer();
+    }
     conn.finishedConnecting = true;
     return conn;
   }
@@ -1455,6 +1494,57 @@ public class Connection implements Runnable {
     }
   }
 
+  /**
+   * The time, in microseconds, a sender on a shared connection may wait for
+   * other small messages to go out in the same socket write as its own, or
+   * zero (the default) to write every message by itself. Senders only wait
+   * when the previous write of the connection carried more than one
+   * message, so a lone sender is never delayed.
+   */
+  private static final long COALESCE_WINDOW_MICROS = Long.getLong("p2p.coalesceWindowMicros", 0).longValue();
+  /** the size of the buffers messages are coalesced in */
+  private static final int COALESCE_BUFFER_SIZE = Integer.getInteger("p2p.coalesceBufferSize", 64*1024).intValue();
+  /** messages larger than this are written by themselves */
+  private static final int COALESCE_MAX_MESSAGE_SIZE = Math.min(COALESCE_BUFFER_SIZE,
+      Integer.getInteger("p2p.coalesceMaxMessageSize", 4*1024).intValue());
+  private MessageCoalescer coalescer;
+
+  private void createCoalescer() {
+    // the coalescer writes with gathering writes
+    if (!this.useNIO) {
+      return;
+    }
+    this.coalescer = new MessageCoalescer(new MessageCoalescer.Writer() {
+      public void write(ByteBuffer[] buffers) throws IOException {
+        coalescedWrite(buffers);
+      }
+    }, this.owner.getConduit().stats, this.owner.getConduit().getCancelCriterion(),
+        COALESCE_WINDOW_MICROS, COALESCE_BUFFER_SIZE, COALESCE_MAX_MESSAGE_SIZE,
+        TCPConduit.useDirectBuffers);
+  }
+
+  /**
+   * Writes the buffers of the coalescer to the socket
+   */
+  private void coalescedWrite(ByteBuffer[] buffers) throws IOException {
+    final boolean origSocketInUse = this.socketInUse;
+    byte originalState = -1;
+    synchronized (stateLock) {
+      originalState = this.connectionState;
+      this.connectionState = STATE_SENDING;
+    }
+    this.socketInUse = true;
+    try {
+      nioWriteFully(getSocket().getChannel(), buffers);
+    } finally {
+      accessed();
+      this.socketInUse = origSocketInUse;
+      synchronized (stateLock) {
+        this.connectionState = originalState;
+      }
+    }
+  }
+
   /** use to test message prep overhead (no socket write).
    * WARNING: turning this on completely disables distribution of batched sends
    */
@@ -1705,29 +1795,39 @@ public class Connection implements Runnable {
       }
     } finally {
       // bug36060: do the socket close within a finally block
-      if (logger.isDebugEnabled()) {
-        logger.debug("Stopping {} for {}", p2pReaderName(), remoteId);
-      }
-      if (this.isReceiver) {
-        if (!this.sharedResource) {
-          this.owner.owner.stats.incThreadOwnedReceivers(-1L, dominoCount.get());
-        }
-        asyncClose(false);
-        this.owner.removeAndCloseThreadOwnedSockets();
+      if (!this.readBySelector) {
+        readerStopped();
       }
-      ByteBuffer tmp = this.nioInputBuffer;
-      if(tmp != null) {
-        this.nioInputBuffer = null;
-        final DMStats stats = this.owner.getConduit().stats;
-        Buffers.releaseReceiveBuffer(tmp, stats);
-      }
-      // make sure that if the reader thread exits we notify a thread waiting
-      // for the handshake.
-      // see bug 37524 for an example of listeners hung in waitForHandshake
-      notifyHandshakeWaiter(false);
     } // finally
   }
 
+  /**
+   * Cleans up after the reader of this connection is done with it, be it
+   * its own thread or the selector readers.
+   */
+  void readerStopped() {
+    if (logger.isDebugEnabled()) {
+      logger.debug("Stopping {} for {}", p2pReaderName(), remoteId);
+    }
+    if (this.isReceiver) {
+      if (!this.sharedResource) {
+        this.owner.owner.stats.incThreadOwnedReceivers(-1L, dominoCount.get());
+      }
+      asyncClose(false);
+      this.owner.removeAndCloseThreadOwnedSockets();
+    }
+    ByteBuffer tmp = this.nioInputBuffer;
+    if(tmp != null) {
+      this.nioInputBuffer = null;
+      final DMStats stats = this.owner.getConduit().stats;
+      Buffers.releaseReceiveBuffer(tmp, stats);
+    }
+    // make sure that if the reader thread exits we notify a thread waiting
+    // for the handshake.
+    // see bug 37524 for an example of listeners hung in waitForHandshake
+    notifyHandshakeWaiter(false);
+  }
+
   private String p2pReaderName() {
     StringBuffer sb = new StringBuffer(64);
     if (this.isReceiver) {
@@ -1743,6 +1843,122 @@ public class Connection implements Runnable {
     return sb.toString();
   }
 
+  /**
+   * Hands this shared receiver, whose handshake has been read, to the
+   * selector readers of the connection table if there are any.
+   *
+   * @return true if the calling reader thread is done with this connection
+   */
+  private boolean handOffToSelector(SocketChannel channel) {
+    SelectorReaders selectorReaders = this.owner.getSelectorReaders();
+    if (selectorReaders == null) {
+      return false;
+    }
+    this.readBySelector = true;
+    if (!selectorReaders.register(this, channel)) {
+      this.readBySelector = false;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Reads and processes what is available on the channel of a receiver that
+   * is read by the selector readers. The channel is in non-blocking mode.
+   *
+   * @return true if the connection should be selected again, false if it has
+   *         been closed
+   */
+  boolean readSelected(SocketChannel channel) {
+    try {
+      for (;;) {
+        if (stopped) {
+          return false;
+        }
+        if (SystemFailure.getFailure() != null) {
+          // Allocate no objects here!
+          Socket s = this.socket;
+          if (s != null) {
+            try {
+              s.close();
+            }
+            catch (IOException e) {
+              // don't care
+            }
+          }
+          SystemFailure.checkFailure(); // throws
+        }
+        if (this.owner.getConduit().getCancelCriterion().cancelInProgress() != null) {
+          return false;
+        }
+        ByteBuffer buff = getNIOBuffer();
+        synchronized(stateLock) {
+          connectionState = STATE_READING;
+        }
+        int amt = channel.read(buff);
+        synchronized(stateLock) {
+          connectionState = STATE_IDLE;
+        }
+        if (amt == 0) {
+          return true;
+        }
+        if (amt < 0) {
+          this.readerShuttingDown = true;
+          try {
+            requestClose(LocalizedStrings.Connection_SOCKETCHANNEL_READ_RETURNED_EOF.toLocalizedString());
+          } catch (Exception e) {
+            // ignore - shutting down
+          }
+          return false;
+        }
+        processNIOBuffer();
+      }
+    }
+    catch (CancelException e) {
+      if (logger.isDebugEnabled()) {
+        logger.debug("{} Terminated <{}> due to cancellation", p2pReaderName(), this, e);
+      }
+      this.readerShuttingDown = true;
+      try { 
+        requestClose(LocalizedStrings.Connection_CACHECLOSED_IN_CHANNEL_READ_0.toLocalizedString(e));
+      } catch (Exception ex) {}
+    }
+    catch (ClosedChannelException e) {
+      this.readerShuttingDown = true;
+      try { 
+        requestClose(LocalizedStrings.Connection_CLOSEDCHANNELEXCEPTION_IN_CHANNEL_READ_0.toLocalizedString(e));
+      } catch (Exception ex) {}
+    }
+    catch (IOException e) {
+      if (! isSocketClosed()
+            && !"Socket closed".equalsIgnoreCase(e.getMessage())) {
+        if (logger.isDebugEnabled() && !isIgnorableIOException(e)) {
+          logger.debug("{} io exception for {}", p2pReaderName(), this, e);
+        }
+      }
+      this.readerShuttingDown = true;
+      try { 
+        requestClose(LocalizedStrings.Connection_IOEXCEPTION_IN_CHANNEL_READ_0.toLocalizedString(e));
+      } catch (Exception ex) {}
+    }
+    catch (Exception e) {
+      this.owner.getConduit().getCancelCriterion().checkCancelInProgress(null); // bug 37101
+      if (!stopped && ! isSocketClosed() ) {
+        logger.fatal(LocalizedMessage.create(LocalizedStrings.Connection_0_EXCEPTION_IN_CHANNEL_READ, p2pReaderName()), e);
+      }
+      this.readerShuttingDown = true;
+      try { 
+        requestClose(LocalizedStrings.Connection_0_EXCEPTION_IN_CHANNEL_READ.toLocalizedString(e)); 
+      } catch (Exception ex) {}
+    }
+    finally {
+      synchronized(stateLock) {
+        connectionState = STATE_IDLE;
+      }
+    }
+    return false;
+  }
+
   private void runNioReader() {
     // take a snapshot of uniqueId to detect reconnect attempts; see bug 37592
     SocketChannel channel = null;
@@ -1838,6 +2054,12 @@ public class Connection implements Runnable {
             // Once we have read the handshake the reader can go away
             break;
           }
+          if (this.isReceiver && this.sharedResource && this.handshakeRead
+              && handOffToSelector(channel)) {
+            // the selector readers read the rest and own the connection state
+            isHandShakeReader = true;
+            return;
+          }
         }
         catch (CancelException e) {
           if (logger.isDebugEnabled()) {
@@ -2262,6 +2484,8 @@ public class Connection implements Runnable {
                 // read the product version ordinal for on-the-fly serialization
                 // transformations (for rolling upgrades)
                 this.remoteVersion = Version.readVersion(dis, true);
+                this.compressSends = MessageCompression.readNegotiation(dis,
+                    dis.available());
               }
               notifyHandshakeWaiter(true);
             } else {
@@ -2498,6 +2722,15 @@ public class Connection implements Runnable {
       batchSend(buffer);
       return;
     }
+    if (this.coalescer != null && this.asyncDistributionTimeout == 0) {
+      // with async distribution the message may have to be queued and
+      // conflated, so it has to be written by itself
+      this.coalescer.send(buffer);
+      if (cacheContentChanges) {
+        messagesSent++;
+      }
+      return;
+    }
     final boolean origSocketInUse = this.socketInUse;
     byte originalState = -1;
     synchronized (stateLock) {
@@ -2538,6 +2771,60 @@ public class Connection implements Runnable {
       }
     }
   }
+  /**
+   * sends a serialized message, whose bytes are in the given buffers, to the
+   * other end of this connection with a gathering write. Writes that have to
+   * go through a single buffer get a copy of the message.
+   * @throws ConnectionException if the conduit has stopped
+   * @since 9.0
+   */
+  public void sendPreserialized(ByteBuffer[] buffers,
+      boolean cacheContentChanges, DistributionMessage msg)
+    throws IOException, ConnectionException
+  {
+    if (!connected) {
+      throw new ConnectionException(LocalizedStrings.Connection_NOT_CONNECTED_TO_0.toLocalizedString(this.remoteId));
+    }
+    if (this.batchFlusher != null || !useNIO()
+        || (this.preserveOrder && this.asyncDistributionTimeout != 0)) {
+      // the message may be batched or queued
+      int size = 0;
+      for (int i = 0; i < buffers.length; i++) {
+        size += buffers[i].remaining();
+      }
+      ByteBuffer copy = ByteBuffer.allocate(size);
+      for (int i = 0; i < buffers.length; i++) {
+        copy.put(buffers[i]);
+      }
+      copy.flip();
+      sendPreserialized(copy, cacheContentChanges, msg);
+      return;
+    }
+    if (this.coalescer != null) {
+      this.coalescer.send(buffers);
+    } else {
+      final boolean origSocketInUse = this.socketInUse;
+      byte originalState = -1;
+      synchronized (stateLock) {
+        originalState = this.connectionState;
+        this.connectionState = STATE_SENDING;
+      }
+      this.socketInUse = true;
+      try {
+        nioWriteFully(getSocket().getChannel(), buffers);
+      } finally {
+        accessed();
+        this.socketInUse = origSocketInUse;
+        synchronized (stateLock) {
+          this.connectionState = originalState;
+        }
+      }
+    }
+    if (cacheContentChanges) {
+      messagesSent++;
+    }
+  }
+
   /**
    * If <code>use</code> is true then "claim" the connection for our use.
    * If <code>use</code> is false then "release" the connection.
@@ -3288,6 +3575,41 @@ public class Connection implements Runnable {
     }
   }
 
+  /**
+   * Writes the given buffers with gathering writes, blocking until all of
+   * their bytes have been written. The caller has made sure the write does
+   * not have to be queued.
+   * @since 9.0
+   */
+  protected final void nioWriteFully(SocketChannel channel,
+                                     ByteBuffer[] buffers)
+    throws IOException
+  {
+    final DMStats stats = this.owner.getConduit().stats;
+    if (!this.sharedResource) {
+      stats.incTOSentMsg();
+    }
+    long remaining = 0;
+    for (int i = 0; i < buffers.length; i++) {
+      remaining += buffers[i].remaining();
+    }
+    long startLock = stats.startSocketLock();
+    synchronized (this.outLock) {
+      stats.endSocketLock(startLock);
+      do {
+        long amtWritten = 0;
+        long start = stats.startSocketWrite(true);
+        try {
+          amtWritten = channel.write(buffers);
+        }
+        finally {
+          stats.endSocketWrite(true, start, (int)amtWritten, 0);
+        }
+        remaining -= amtWritten;
+      } while (remaining > 0);
+    } // synchronized
+  }
+
   /** gets the buffer for receiving message length bytes */
   protected ByteBuffer getNIOBuffer() {
     final DMStats stats = this.owner.getConduit().stats;
@@ -3470,6 +3792,10 @@ public class Connection implements Runnable {
           if (directAck) {
             nioMessageType &= ~DIRECT_ACK_BIT; // clear the ack bit
           }
+          nioCompressed = (nioMessageType & COMPRESSED_BIT) != 0;
+          if (nioCompressed) {
+            nioMessageType &= ~COMPRESSED_BIT;
+          }
           // Following validation fixes bug 31145
           if (!validMsgType(nioMessageType)) {
             Integer nioMessageTypeInteger = Integer.valueOf(nioMessageType);
@@ -3493,11 +3819,27 @@ public class Connection implements Runnable {
           int oldLimit = nioInputBuffer.limit();
           nioInputBuffer.limit(startPos+nioMessageLength);
           if (this.handshakeRead) {
+            // the bytes of the message, decompressed if they came compressed
+            ByteBuffer msgBuffer = nioInputBuffer;
+            int payloadLength = nioMessageLength;
+            if (nioCompressed) {
+              try {
+                msgBuffer = MessageCompression.decompress(nioInputBuffer,
+                    this.owner.getConduit().stats);
+                payloadLength = msgBuffer.remaining();
+              }
+              catch (IOException ex) {
+                logger.fatal("Unable to decompress a message chunk from " + this.remoteAddr, ex);
+                this.readerShuttingDown = true;
+                requestClose("Unable to decompress a message chunk: " + ex);
+                return;
+              }
+            }
             if (nioMessageType == NORMAL_MSG_TYPE) {
               this.owner.getConduit().stats.incMessagesBeingReceived(true, nioMessageLength);
               ByteBufferInputStream bbis = remoteVersion == null
-                  ? new ByteBufferInputStream(nioInputBuffer)
-                  : new VersionedByteBufferInputStream(nioInputBuffer,
+                  ? new ByteBufferInputStream(msgBuffer)
+                  : new VersionedByteBufferInputStream(msgBuffer,
                       remoteVersion);
               DistributionMessage msg = null;
               try {
@@ -3575,7 +3917,7 @@ public class Connection implements Runnable {
               MsgDestreamer md = obtainMsgDestreamer(nioMsgId, remoteVersion);
               this.owner.getConduit().stats.incMessagesBeingReceived(md.size() == 0, nioMessageLength);
               try {
-                md.addChunk(nioInputBuffer, nioMessageLength);
+                md.addChunk(msgBuffer, payloadLength);
               }
               catch (IOException ex) {
                 logger.fatal(LocalizedMessage.create(LocalizedStrings.Connection_FAILED_HANDLING_CHUNK_MESSAGE), ex);
@@ -3586,7 +3928,7 @@ public class Connection implements Runnable {
               MsgDestreamer md = obtainMsgDestreamer(nioMsgId, remoteVersion);
               this.owner.getConduit().stats.incMessagesBeingReceived(md.size() == 0, nioMessageLength);
               try {
-                md.addChunk(nioInputBuffer, nioMessageLength);
+                md.addChunk(msgBuffer, payloadLength);
               }
               catch (IOException ex) {
                 logger.fatal(LocalizedMessage.create(LocalizedStrings.Connection_FAILED_HANDLING_END_CHUNK_MESSAGE), ex);
@@ -3708,6 +4050,8 @@ public class Connection implements Runnable {
                   // read the product version ordinal for on-the-fly serialization
                   // transformations (for rolling upgrades)
                   this.remoteVersion = Version.readVersion(dis, true);
+                  this.compressSends = MessageCompression.readNegotiation(dis,
+                      dis.available());
                 }
               }
               catch (Exception e) {
@@ -3782,6 +4126,9 @@ public class Connection implements Runnable {
                   dominoCount.set(dominoNumber);
 //                  this.senderName = dis.readUTF();
                 }
+                // the sender offers to compress
+                this.acceptCompressed = MessageCompression.readNegotiation(dis,
+                    dis.available());
                 if (!this.sharedResource) {
                   if (tipDomino()) {
                     logger.info(LocalizedMessage.create(
@@ -4071,6 +4418,15 @@ public class Connection implements Runnable {
   boolean nioChecked;
   boolean useNIO;
   
+  /**
+   * Returns true if large message chunks sent on this connection should be
+   * compressed.
+   * @since 9.0
+   */
+  final boolean compressesSends() {
+    return this.compressSends;
+  }
+
   private final boolean useNIO() {
     if (TCPConduit.useSSL) {
       return false;
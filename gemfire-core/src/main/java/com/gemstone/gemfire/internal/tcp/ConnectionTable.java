@@ -28,6 +28,7 @@ import org.apache.logging.log4j.Logger;
 import com.gemstone.gemfire.SystemFailure;
 import com.gemstone.gemfire.distributed.DistributedSystemDisconnectedException;
 import com.gemstone.gemfire.distributed.internal.DM;
+import com.gemstone.gemfire.distributed.internal.DMStats;
 import com.gemstone.gemfire.distributed.internal.InternalDistributedSystem;
 import com.gemstone.gemfire.distributed.internal.membership.InternalDistributedMember;
 import com.gemstone.gemfire.distributed.internal.membership.MembershipManager;
@@ -129,6 +130,12 @@ public class ConnectionTable  {
    */
   private volatile boolean closed = false;
 
+  /**
+   * reads the shared receivers once their handshake has been read, or null
+   * if every receiver has a reader thread of its own
+   */
+  private final SelectorReaders selectorReaders;
+
 
   /**
    * The most recent instance to be created
@@ -202,6 +209,9 @@ public class ConnectionTable  {
     this.threadOrderedConnMap = new ThreadLocal();
     this.threadConnMaps = new ArrayList();
     this.threadConnectionMap = new ConcurrentHashMap();
+    this.selectorReaders = (SelectorReaders.SELECTOR_THREADS > 0 && c.useNIO())
+        ? new SelectorReaders(SelectorReaders.SELECTOR_THREADS)
+        : null;
   /*  NOMUX: if (TCPConduit.useNIO) {
       inputMuxManager = new InputMuxManager(this);
       inputMuxManager.start(c.logger);
@@ -671,6 +681,14 @@ public class ConnectionTable  {
     return this.idleConnTimer;    
   }
   
+  /**
+   * returns the selector readers of this table, or null if receivers are
+   * read by threads of their own
+   */
+  SelectorReaders getSelectorReaders() {
+    return this.selectorReaders;
+  }
+
   protected void close() {
    /* NOMUX if (inputMuxManager != null) {
       inputMuxManager.stop();
@@ -716,6 +734,9 @@ public class ConnectionTable  {
       }
     }
     closeReceivers(false);
+    if (this.selectorReaders != null) {
+      this.selectorReaders.close();
+    }
     
     Map m = (Map)this.threadOrderedConnMap.get();
     if(m != null)
@@ -977,6 +998,11 @@ public class ConnectionTable  {
       return;
     }
     ct.removeAndCloseThreadOwnedSockets();
+    DMStats stats = ct.owner.stats;
+    if (stats != null) {
+      // return the send buffers the thread kept along with its sockets
+      Buffers.releaseThreadBuffers(stats);
+    }
 //    lastInstance = null; 
   }
 
@@ -0,0 +1,261 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.gemstone.gemfire.CancelCriterion;
+import com.gemstone.gemfire.distributed.internal.DMStats;
+import com.gemstone.gemfire.distributed.internal.DistributionStats;
+
+/**
+ * Packs small messages sent concurrently on a shared connection into one
+ * socket write. A sender that finds no write in progress becomes the
+ * writer: it lets other senders add their messages to the buffer for up
+ * to the coalescing window, then writes the buffer while they wait for the
+ * write to finish. Messages that arrive during a write go in the next
+ * buffer, which the first of their senders writes. Unlike the batch
+ * flusher, every sender returns once its message has been written.
+ * <p>
+ * The coalesce wait time statistic counts the time a sender waits for
+ * other senders, for the window and for the writes of other senders, but
+ * not the time it spends writing to the socket itself.
+ *
+ * @see Connection#COALESCE_WINDOW_MICROS
+ * @since 9.0
+ */
+final class MessageCoalescer {
+
+  /**
+   * Writes buffers to the socket of the connection
+   */
+  interface Writer {
+    void write(ByteBuffer[] buffers) throws IOException;
+  }
+
+  private final Writer writer;
+  private final DMStats stats;
+  private final CancelCriterion cancelCriterion;
+  private final long windowMicros;
+  private final int maxMessageSize;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  /** signalled when a write finishes or the fill buffer is full */
+  private final Condition changed = this.lock.newCondition();
+  private ByteBuffer fillBuffer;
+  private ByteBuffer writeBuffer;
+  /** the number of messages in the fill buffer */
+  private int fillCount;
+  /** the number of messages in the last write */
+  private int lastWriteCount;
+  /** the id of the batch in the fill buffer */
+  private long fillBatch = 1;
+  /** the id of the last batch that has been written, or whose write failed */
+  private long writtenBatch;
+  /** the id of the first batch whose write failed, zero if none did */
+  private long failedBatch;
+  private Exception failure;
+  /** true while a sender owns the socket */
+  private boolean writing;
+
+  MessageCoalescer(Writer writer, DMStats stats,
+      CancelCriterion cancelCriterion, long windowMicros, int bufferSize,
+      int maxMessageSize, boolean useDirectBuffers) {
+    this.writer = writer;
+    this.stats = stats;
+    this.cancelCriterion = cancelCriterion;
+    this.windowMicros = windowMicros;
+    this.maxMessageSize = Math.min(bufferSize, maxMessageSize);
+    if (useDirectBuffers) {
+      this.fillBuffer = ByteBuffer.allocateDirect(bufferSize);
+      this.writeBuffer = ByteBuffer.allocateDirect(bufferSize);
+    } else {
+      this.fillBuffer = ByteBuffer.allocate(bufferSize);
+      this.writeBuffer = ByteBuffer.allocate(bufferSize);
+    }
+  }
+
+  /**
+   * Returns once the remaining bytes of the given buffer have been written
+   * to the socket, alone or together with the messages of other senders.
+   */
+  void send(ByteBuffer src) throws IOException, ConnectionException {
+    if (src.remaining() > this.maxMessageSize) {
+      send(new ByteBuffer[] { src });
+      return;
+    }
+    final long start = DistributionStats.getStatTime();
+    // the time this sender spent writing, which is not waiting
+    long writeTime = 0;
+    this.lock.lock();
+    try {
+      // a message has to go out after the ones already in the buffer
+      while (src.remaining() > this.fillBuffer.remaining()) {
+        if (this.writing) {
+          // tell a writer waiting for more messages that there is no room
+          this.changed.signalAll();
+          await();
+        } else {
+          writeTime += writeBatch();
+        }
+      }
+      this.fillBuffer.put(src);
+      this.fillCount++;
+      final long batch = this.fillBatch;
+      if (this.fillBuffer.remaining() < this.maxMessageSize) {
+        this.changed.signalAll();
+      }
+      while (this.writtenBatch < batch) {
+        if (this.writing) {
+          await();
+        } else {
+          if (this.lastWriteCount > 1) {
+            linger();
+          }
+          writeTime += writeBatch();
+        }
+      }
+      if (this.failedBatch != 0 && batch >= this.failedBatch) {
+        Exception cause = this.failure;
+        if (cause instanceof ConnectionException) {
+          throw new ConnectionException(String.valueOf(cause), cause);
+        }
+        IOException ioe = new IOException(String.valueOf(cause));
+        ioe.initCause(cause);
+        throw ioe;
+      }
+    } finally {
+      this.lock.unlock();
+      this.stats.incCoalesceWaitTime(start + writeTime);
+    }
+  }
+
+  /**
+   * Writes the given buffers by themselves, after the messages already in
+   * the fill buffer.
+   */
+  void send(ByteBuffer[] srcs) throws IOException, ConnectionException {
+    final long start = DistributionStats.getStatTime();
+    long writeTime = 0;
+    this.lock.lock();
+    try {
+      while (this.writing || this.fillBuffer.position() > 0) {
+        if (this.writing) {
+          this.changed.signalAll();
+          await();
+        } else {
+          writeTime += writeBatch();
+        }
+      }
+      this.writing = true;
+      this.lock.unlock();
+      final long writeStart = DistributionStats.getStatTime();
+      try {
+        this.writer.write(srcs);
+      } finally {
+        writeTime += DistributionStats.getStatTime() - writeStart;
+        this.lock.lock();
+        this.writing = false;
+        this.changed.signalAll();
+      }
+    } finally {
+      this.lock.unlock();
+      this.stats.incCoalesceWaitTime(start + writeTime);
+    }
+  }
+
+  /**
+   * Lets other senders add to the fill buffer until the window is over or
+   * the buffer is full. The caller keeps the socket meanwhile.
+   */
+  private void linger() {
+    this.writing = true;
+    boolean interrupted = Thread.interrupted();
+    try {
+      long nanos = TimeUnit.MICROSECONDS.toNanos(this.windowMicros);
+      while (nanos > 0 && this.fillBuffer.remaining() >= this.maxMessageSize) {
+        nanos = this.changed.awaitNanos(nanos);
+      }
+    }
+    catch (InterruptedException ex) {
+      interrupted = true;
+    }
+    finally {
+      this.writing = false;
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** waits for a change; the lock is held */
+  private void await() {
+    this.cancelCriterion.checkCancelInProgress(null);
+    boolean interrupted = Thread.interrupted();
+    try {
+      this.changed.await();
+    }
+    catch (InterruptedException ex) {
+      interrupted = true;
+    }
+    finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Writes the fill buffer. The lock is held, and released during the
+   * write, and nobody else is writing. Returns the time spent writing.
+   */
+  private long writeBatch() throws IOException, ConnectionException {
+    final ByteBuffer batch = this.fillBuffer;
+    final int count = this.fillCount;
+    final long id = this.fillBatch++;
+    this.fillBuffer = this.writeBuffer;
+    this.writeBuffer = batch;
+    this.fillCount = 0;
+    this.writing = true;
+    this.lock.unlock();
+    final long writeStart = DistributionStats.getStatTime();
+    Exception cause = null;
+    boolean written = false;
+    try {
+      batch.flip();
+      this.writer.write(new ByteBuffer[] { batch });
+      written = true;
+    }
+    catch (IOException ex) {
+      cause = ex;
+      throw ex;
+    }
+    catch (RuntimeException ex) {
+      cause = ex;
+      throw ex;
+    }
+    finally {
+      batch.clear();
+      this.lock.lock();
+      this.writing = false;
+      this.writtenBatch = id;
+      this.lastWriteCount = count;
+      if (!written && this.failedBatch == 0) {
+        this.failedBatch = id;
+        this.failure = cause;
+      }
+      this.changed.signalAll();
+    }
+    this.stats.incCoalescedWrites(count);
+    return DistributionStats.getStatTime() - writeStart;
+  }
+}
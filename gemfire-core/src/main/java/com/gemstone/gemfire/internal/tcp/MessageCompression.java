@@ -0,0 +1,163 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.tcp;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.logging.log4j.Logger;
+import org.xerial.snappy.Snappy;
+import org.xerial.snappy.SnappyError;
+
+import com.gemstone.gemfire.distributed.internal.DMStats;
+import com.gemstone.gemfire.internal.logging.LogService;
+
+/**
+ * Compresses large message chunks sent on P2P connections with Snappy.
+ *
+ * Compression is negotiated by each connection during its handshake: the
+ * connecting member offers to compress, and the accepting member agrees if
+ * it has compression enabled too and reads the connection with NIO. Only
+ * the messages sent by the connecting member are compressed, and only the
+ * chunks of at least {@link #THRESHOLD} bytes that Snappy makes smaller. A
+ * compressed chunk has the {@link Connection#COMPRESSED_BIT} set in its
+ * message type, and its payload is the Snappy encoding of the original
+ * payload.
+ *
+ * @since 9.0
+ */
+final class MessageCompression {
+
+  private static final Logger logger = LogService.getLogger();
+
+  /**
+   * Message chunks of at least this many bytes are compressed on the
+   * connections that negotiated compression, zero (the default) to neither
+   * offer nor accept compression
+   */
+  static int THRESHOLD = Integer.getInteger("p2p.compressionThreshold", 0).intValue();
+
+  /** whether the Snappy library loaded, null until compression is used */
+  private static volatile Boolean codecLoaded;
+
+  private MessageCompression() {
+  }
+
+  /**
+   * Returns true if this member offers and accepts compression.
+   */
+  static boolean isEnabled() {
+    if (THRESHOLD <= 0) {
+      return false;
+    }
+    Boolean loaded = codecLoaded;
+    if (loaded == null) {
+      loaded = Boolean.valueOf(loadCodec());
+      codecLoaded = loaded;
+    }
+    return loaded.booleanValue();
+  }
+
+  /**
+   * Reads the compression flag a peer put at the end of its handshake or
+   * handshake reply, and returns true if both members want compression.
+   * Peers that don't know about compression send no flag, so nothing is
+   * read and false is returned when no bytes are left.
+   *
+   * @param available the number of bytes left in the handshake
+   */
+  static boolean readNegotiation(DataInput in, int available)
+      throws IOException {
+    return available > 0 && in.readBoolean() && isEnabled();
+  }
+
+  private static boolean loadCodec() {
+    try {
+      Snappy.getNativeLibraryVersion();
+      return true;
+    } catch (SnappyError e) {
+      logger.warn("P2P message compression is disabled because the Snappy library could not be loaded", e);
+    } catch (LinkageError e) {
+      logger.warn("P2P message compression is disabled because the Snappy library could not be loaded", e);
+    }
+    return false;
+  }
+
+  /**
+   * Returns a compressed copy of the message chunk whose bytes, starting
+   * with its header, are the remaining bytes of the given buffers. The
+   * buffers are not changed.
+   *
+   * @return the compressed chunk, or null if compressing does not make it
+   *         smaller
+   */
+  static ByteBuffer compress(ByteBuffer[] chunk, DMStats stats) {
+    long start = stats.startCompression();
+    ByteBuffer first = chunk[0];
+    int size = -Connection.MSG_HEADER_BYTES;
+    for (int i = 0; i < chunk.length; i++) {
+      size += chunk[i].remaining();
+    }
+    byte[] payload = new byte[size];
+    int offset = 0;
+    for (int i = 0; i < chunk.length; i++) {
+      ByteBuffer bb = chunk[i].duplicate();
+      if (i == 0) {
+        bb.position(bb.position() + Connection.MSG_HEADER_BYTES);
+      }
+      int length = bb.remaining();
+      bb.get(payload, offset, length);
+      offset += length;
+    }
+    byte[] compressed = new byte[Connection.MSG_HEADER_BYTES
+        + Snappy.maxCompressedLength(size)];
+    int compressedSize;
+    try {
+      compressedSize = Snappy.compress(payload, 0, size, compressed,
+          Connection.MSG_HEADER_BYTES);
+    } catch (IOException e) {
+      if (logger.isDebugEnabled()) {
+        logger.debug("Unable to compress a message chunk of {} bytes", size, e);
+      }
+      return null;
+    }
+    if (compressedSize >= size) {
+      return null;
+    }
+    ByteBuffer result = ByteBuffer.wrap(compressed, 0,
+        Connection.MSG_HEADER_BYTES + compressedSize);
+    int headerPos = first.position();
+    result.putInt(Connection.MSG_HEADER_SIZE_OFFSET,
+        Connection.calcHdrSize(compressedSize));
+    result.put(Connection.MSG_HEADER_TYPE_OFFSET, (byte)(first.get(headerPos
+        + Connection.MSG_HEADER_TYPE_OFFSET) | Connection.COMPRESSED_BIT));
+    result.put(Connection.MSG_HEADER_ID_OFFSET,
+        first.get(headerPos + Connection.MSG_HEADER_ID_OFFSET));
+    result.put(Connection.MSG_HEADER_ID_OFFSET + 1,
+        first.get(headerPos + Connection.MSG_HEADER_ID_OFFSET + 1));
+    stats.endCompression(start, size, compressedSize);
+    return result;
+  }
+
+  /**
+   * Returns the original payload of the compressed payload that is the
+   * remaining bytes of the given buffer. The buffer is not changed.
+   */
+  static ByteBuffer decompress(ByteBuffer payload, DMStats stats)
+      throws IOException {
+    long start = stats.startDecompression();
+    byte[] compressed = new byte[payload.remaining()];
+    payload.duplicate().get(compressed);
+    byte[] result = new byte[Snappy.uncompressedLength(compressed, 0,
+        compressed.length)];
+    Snappy.uncompress(compressed, 0, compressed.length, result, 0);
+    stats.endDecompression(start);
+    return ByteBuffer.wrap(result);
+  }
+}
@@ -67,6 +67,23 @@ public class MsgStreamer extends OutputStream implements
    * Currently this buffer is obtained from the connection.
    */
   private final ByteBuffer buffer;
+  /**
+   * Buffers of at least this many bytes given to {@link #write(ByteBuffer)}
+   * are not copied into the chunk buffer; the chunk refers to them and is
+   * sent with a gathering write.
+   */
+  private static final int MIN_TO_GATHER = Integer.getInteger("p2p.minToGather", 8*1024).intValue();
+  /**
+   * The buffers the current chunk refers to, and the position in the chunk
+   * buffer each of them goes at
+   */
+  private ByteBuffer[] gathered;
+  private int[] gatheredPositions;
+  private int gatheredCount;
+  /** the number of bytes of the current chunk in the gathered buffers */
+  private int gatheredBytes;
+  /** true while writing buffers the caller may still modify */
+  private boolean copyWrites;
   private int flushedBytes = 0;
   // the message this streamer is to send
   private final DistributionMessage msg;
@@ -270,11 +287,16 @@ public class MsgStreamer extends OutputStream implements
     this.buffer.put((byte)b);
   }
 
+  /** the number of bytes that can still be added to the current chunk */
+  private final int remainingSpace() {
+    return this.buffer.capacity() - this.buffer.position() - this.gatheredBytes;
+  }
+
   private final void ensureCapacity(int amount) {
     if (this.overflowBuf != null) {
       return;
     }
-    int remainingSpace = this.buffer.capacity() - this.buffer.position();
+    int remainingSpace = remainingSpace();
     if (amount > remainingSpace) {
       realFlush(false);
     }
@@ -311,7 +333,7 @@ public class MsgStreamer extends OutputStream implements
     }
     this.buffer.flip();
     setMessageHeader();
-    final int serializedBytes = this.buffer.limit(); 
+    final int serializedBytes = this.buffer.limit() + this.gatheredBytes;
     this.flushedBytes += serializedBytes;
     DistributionMessage conflationMsg = null;
     if (this.normalMsg) {
@@ -319,11 +341,30 @@ public class MsgStreamer extends OutputStream implements
       conflationMsg = this.msg;
     }
     this.stats.endMsgSerialization(this.serStartTime);
+    // the chunk is compressed once, for the first connection that wants it
+    boolean compressionTried = false;
+    ByteBuffer compressed = null;
     for (Iterator it=this.cons.iterator(); it.hasNext();) {
       Connection con = (Connection)it.next();
       try {
-        con.sendPreserialized(this.buffer, lastFlushForMessage && this.msg.containsRegionContentChange(),
-            conflationMsg);
+        if (con.compressesSends()
+            && serializedBytes >= MessageCompression.THRESHOLD) {
+          if (!compressionTried) {
+            compressionTried = true;
+            compressed = MessageCompression.compress(this.gatheredCount == 0
+                ? new ByteBuffer[] { this.buffer } : gatherChunk(), this.stats);
+          }
+        }
+        if (compressed != null && con.compressesSends()) {
+          con.sendPreserialized(compressed.duplicate(), lastFlushForMessage && this.msg.containsRegionContentChange(),
+              conflationMsg);
+        } else if (this.gatheredCount == 0) {
+          con.sendPreserialized(this.buffer, lastFlushForMessage && this.msg.containsRegionContentChange(),
+              conflationMsg);
+        } else {
+          con.sendPreserialized(gatherChunk(), lastFlushForMessage && this.msg.containsRegionContentChange(),
+              conflationMsg);
+        }
       } catch (IOException ex) {
         it.remove();
         if (this.ce == null) this.ce = new ConnectExceptions();
@@ -337,11 +378,86 @@ public class MsgStreamer extends OutputStream implements
       }
       this.buffer.rewind();
     }
+    if (this.gatheredCount > 0) {
+      for (int i = 0; i < this.gatheredCount; i++) {
+        this.gathered[i] = null;
+      }
+      this.gatheredCount = 0;
+      this.gatheredBytes = 0;
+    }
     startSerialization();
     this.buffer.clear();
     this.buffer.position(Connection.MSG_HEADER_BYTES);
   }
 
+  /**
+   * Returns the buffers of the current chunk in the order their bytes go
+   * out: the parts of the chunk buffer and the gathered buffers between
+   * them. The buffers are duplicates, so the chunk can be sent again.
+   */
+  private ByteBuffer[] gatherChunk() {
+    ByteBuffer[] result = new ByteBuffer[this.gatheredCount * 2 + 1];
+    int count = 0;
+    int start = 0;
+    for (int i = 0; i < this.gatheredCount; i++) {
+      int end = this.gatheredPositions[i];
+      if (end > start) {
+        result[count++] = slice(start, end);
+      }
+      result[count++] = this.gathered[i].duplicate();
+      start = end;
+    }
+    if (this.buffer.limit() > start) {
+      result[count++] = slice(start, this.buffer.limit());
+    }
+    if (count < result.length) {
+      ByteBuffer[] trimmed = new ByteBuffer[count];
+      System.arraycopy(result, 0, trimmed, 0, count);
+      result = trimmed;
+    }
+    return result;
+  }
+
+  private ByteBuffer slice(int start, int end) {
+    ByteBuffer bb = this.buffer.duplicate();
+    bb.limit(end);
+    bb.position(start);
+    return bb;
+  }
+
+  /**
+   * Adds the given buffer to the current chunk by reference, flushing
+   * chunks as they fill up.
+   */
+  private void gather(ByteBuffer bb) {
+    while (bb.hasRemaining()) {
+      int remainingSpace = remainingSpace();
+      if (remainingSpace == 0) {
+        realFlush(false);
+        continue;
+      }
+      int chunkSize = Math.min(remainingSpace, bb.remaining());
+      ByteBuffer part = bb.duplicate();
+      part.limit(part.position() + chunkSize);
+      bb.position(bb.position() + chunkSize);
+      if (this.gathered == null) {
+        this.gathered = new ByteBuffer[4];
+        this.gatheredPositions = new int[4];
+      } else if (this.gatheredCount == this.gathered.length) {
+        ByteBuffer[] newGathered = new ByteBuffer[this.gatheredCount * 2];
+        System.arraycopy(this.gathered, 0, newGathered, 0, this.gatheredCount);
+        this.gathered = newGathered;
+        int[] newPositions = new int[this.gatheredCount * 2];
+        System.arraycopy(this.gatheredPositions, 0, newPositions, 0, this.gatheredCount);
+        this.gatheredPositions = newPositions;
+      }
+      this.gathered[this.gatheredCount] = part;
+      this.gatheredPositions[this.gatheredCount] = this.buffer.position();
+      this.gatheredCount++;
+      this.gatheredBytes += chunkSize;
+    }
+  }
+
   @Override
   public final void close() throws IOException {
     try {
@@ -371,7 +487,7 @@ public class MsgStreamer extends OutputStream implements
       return;
     }
     while (len > 0) {
-      int remainingSpace = this.buffer.capacity() - this.buffer.position();
+      int remainingSpace = remainingSpace();
       if (remainingSpace == 0) {
         realFlush(false);
         if (this.overflowBuf != null) {
@@ -399,13 +515,19 @@ public class MsgStreamer extends OutputStream implements
       this.overflowBuf.write(bb);
       return;
     }
+    if (bb.remaining() >= MIN_TO_GATHER && !isOverflowMode()
+        && !this.copyWrites) {
+      // the caller has given up bb (see ByteBufferWriter)
+      gather(bb);
+      return;
+    }
     int len = bb.remaining();
     // TODO OFFHEAP: if len > remainingSpace and isOverflowMode() then
     // (and the overflow HDOS has doNotCopy set?) it is probably better to not copy part of
     // bb to this.buffer and then add the remainder of it to the HDOS. Instead
     // we can just add the whole bb to the HDOS.
     while (len > 0) {
-      int remainingSpace = this.buffer.capacity() - this.buffer.position();
+      int remainingSpace = remainingSpace();
       if (remainingSpace == 0) {
         realFlush(false);
         if (this.overflowBuf != null) {
@@ -451,7 +573,7 @@ public class MsgStreamer extends OutputStream implements
       }
     }
 
-    this.buffer.putInt(Connection.MSG_HEADER_SIZE_OFFSET, Connection.calcHdrSize(this.buffer.limit()-Connection.MSG_HEADER_BYTES));
+    this.buffer.putInt(Connection.MSG_HEADER_SIZE_OFFSET, Connection.calcHdrSize(this.buffer.limit()-Connection.MSG_HEADER_BYTES+this.gatheredBytes));
     this.buffer.put(Connection.MSG_HEADER_TYPE_OFFSET, (byte)(msgType&0xff));
     this.buffer.putShort(Connection.MSG_HEADER_ID_OFFSET, this.msgId);
     this.buffer.position(0);
@@ -729,7 +851,7 @@ public class MsgStreamer extends OutputStream implements
     int len = s.length();
     int offset = 0;
     while (len > 0) {
-      int remainingCharSpace = (this.buffer.capacity() - this.buffer.position())/2;
+      int remainingCharSpace = remainingSpace()/2;
       if (remainingCharSpace == 0) {
         realFlush(false);
         if (this.overflowBuf != null) {
@@ -827,7 +949,7 @@ public class MsgStreamer extends OutputStream implements
     writeShort(len);
     int offset = 0;
     while (len > 0) {
-      int remainingSpace = this.buffer.capacity() - this.buffer.position();
+      int remainingSpace = remainingSpace();
       if (remainingSpace == 0) {
         realFlush(false);
         if (this.overflowBuf != null) {
@@ -853,7 +975,7 @@ public class MsgStreamer extends OutputStream implements
       throw new UTFDataFormatException();
     }
     {
-      int remainingSpace = this.buffer.capacity() - this.buffer.position();
+      int remainingSpace = remainingSpace();
       if (remainingSpace >= ((strlen*3) + 2)) {
         // we have plenty of room to do this with one pass directly into the buffer
         writeQuickFullUTF(str, strlen);
@@ -934,7 +1056,13 @@ public class MsgStreamer extends OutputStream implements
     if (v instanceof HeapDataOutputStream) {
       HeapDataOutputStream other = (HeapDataOutputStream)v;
       InternalDataSerializer.writeArrayLength(other.size(), this);
-      other.sendTo((ByteBufferWriter)this);
+      // other is rewound and may be written to again
+      this.copyWrites = true;
+      try {
+        other.sendTo((ByteBufferWriter)this);
+      } finally {
+        this.copyWrites = false;
+      }
       other.rewind();
       return;
     }
@@ -944,7 +1072,7 @@ public class MsgStreamer extends OutputStream implements
     }
     if (isOverflowMode()) {
       // we must have recursed which is now allowed to fix bug 38194
-      int remainingSpace = this.buffer.capacity() - this.buffer.position();
+      int remainingSpace = remainingSpace();
       if (remainingSpace < 5) {
         // we don't even have room to write the length field so just create
         // the overflowBuf
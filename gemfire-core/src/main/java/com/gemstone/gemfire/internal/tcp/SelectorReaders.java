@@ -0,0 +1,329 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.tcp;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.Logger;
+
+import com.gemstone.gemfire.SystemFailure;
+import com.gemstone.gemfire.internal.logging.LogService;
+import com.gemstone.gemfire.internal.logging.LoggingThreadGroup;
+
+/**
+ * Reads the shared receiver connections of a ConnectionTable with a few
+ * selector threads instead of a reader thread per connection.
+ *
+ * A receiver still gets its own thread to read the handshake. After that it
+ * is handed to one of the selector loops, and its thread exits. When the
+ * connection has bytes to read, the loop stops selecting it and has a
+ * pooled reader thread read and process what is available, in the same way
+ * the connection's own thread would have. The connection is selected again
+ * once that thread is done, so the messages of a connection are still read
+ * and dispatched in order by one thread at a time.
+ *
+ * Messages may be processed inline by the thread that reads them and may
+ * block, so the readers are a pool that grows on demand; its size follows
+ * the number of connections being read at the same time rather than the
+ * number of connections.
+ *
+ * Thread owned receivers keep their own threads, since their thread is part
+ * of what they are.
+ *
+ * @since 9.0
+ */
+final class SelectorReaders {
+
+  private static final Logger logger = LogService.getLogger();
+
+  /**
+   * The number of selector threads reading shared receivers, zero (the
+   * default) to give every receiver its own thread
+   */
+  static final int SELECTOR_THREADS = Integer.getInteger(
+      "p2p.selectorReaderThreads", 0).intValue();
+
+  /** how long a pooled reader thread is kept when it has nothing to read */
+  private static final long READER_KEEP_ALIVE_SECONDS = 60;
+
+  /** how often a loop looks for connections that were closed while idle */
+  private static final long SWEEP_INTERVAL_MS = 1000;
+
+  private final Loop[] loops;
+
+  private final ExecutorService readers;
+
+  private final AtomicInteger nextLoop = new AtomicInteger();
+
+  private volatile boolean closed;
+
+  SelectorReaders(int loopCount) throws IOException {
+    final ThreadGroup group = LoggingThreadGroup.createThreadGroup(
+        "P2P Selector Reader Threads", logger);
+    ThreadFactory readerFactory = new ThreadFactory() {
+      private final AtomicInteger threadNum = new AtomicInteger();
+
+      public Thread newThread(final Runnable command) {
+        Runnable reader = new Runnable() {
+          public void run() {
+            ConnectionTable.threadWantsSharedResources();
+            Connection.makeReaderThread();
+            command.run();
+          }
+        };
+        Thread thread = new Thread(group, reader, "P2P selected message reader "
+            + this.threadNum.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    this.readers = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+        READER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), readerFactory);
+    this.loops = new Loop[loopCount];
+    try {
+      for (int i = 0; i < loopCount; i++) {
+        this.loops[i] = new Loop();
+        Thread thread = new Thread(group, this.loops[i], "P2P selector " + i);
+        thread.setDaemon(true);
+        thread.start();
+      }
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Starts reading the given connection, whose handshake has been read, with
+   * the selector loops.
+   *
+   * @return false if the connection could not be registered and has to be
+   *         read by its own thread
+   */
+  boolean register(Connection conn, SocketChannel channel) {
+    if (this.closed) {
+      return false;
+    }
+    try {
+      channel.configureBlocking(false);
+    } catch (IOException e) {
+      if (logger.isDebugEnabled()) {
+        logger.debug("Unable to read {} with a selector", conn, e);
+      }
+      try {
+        channel.configureBlocking(true);
+      } catch (IOException ignore) {
+        // the reader thread will find out
+      }
+      return false;
+    }
+    int index = (this.nextLoop.getAndIncrement() & Integer.MAX_VALUE)
+        % this.loops.length;
+    this.loops[index].add(conn, channel);
+    return true;
+  }
+
+  void close() {
+    this.closed = true;
+    for (Loop loop : this.loops) {
+      if (loop != null) {
+        loop.close();
+      }
+    }
+    this.readers.shutdown();
+  }
+
+  /**
+   * A selector and the connections registered with it. Only the loop's
+   * thread touches the selector's keys; other threads queue their requests.
+   */
+  private final class Loop implements Runnable {
+
+    private final Selector selector;
+
+    /** connections to register, and keys to select again */
+    private final Queue<Object> requests = new ConcurrentLinkedQueue<Object>();
+
+    /** the key of every connection of this loop, and whether it is being read */
+    private final Map<SelectionKey, Boolean> keys = new HashMap<SelectionKey, Boolean>();
+
+    Loop() throws IOException {
+      this.selector = Selector.open();
+    }
+
+    void add(Connection conn, SocketChannel channel) {
+      this.requests.add(new Object[] { conn, channel });
+      this.selector.wakeup();
+    }
+
+    void close() {
+      try {
+        this.selector.close();
+      } catch (IOException ignore) {
+        // we're done with it
+      }
+    }
+
+    public void run() {
+      long lastSweep = System.currentTimeMillis();
+      try {
+        while (!closed) {
+          this.selector.select(SWEEP_INTERVAL_MS);
+          processRequests();
+          for (Iterator<SelectionKey> it = this.selector.selectedKeys()
+              .iterator(); it.hasNext();) {
+            SelectionKey key = it.next();
+            it.remove();
+            read(key);
+          }
+          long now = System.currentTimeMillis();
+          if (now - lastSweep >= SWEEP_INTERVAL_MS) {
+            lastSweep = now;
+            sweep();
+          }
+        }
+      } catch (ClosedSelectorException e) {
+        // closed
+      } catch (VirtualMachineError err) {
+        SystemFailure.initiateFailure(err);
+        // If this ever returns, rethrow the error.  We're poisoned
+        // now, so don't let this thread continue.
+        throw err;
+      } catch (Throwable t) {
+        // Whenever you catch Error or Throwable, you must also
+        // catch VirtualMachineError (see above).  However, there is
+        // _still_ a possibility that you are dealing with a cascading
+        // error condition, so you also need to check to see if the JVM
+        // is still usable:
+        SystemFailure.checkFailure();
+        if (!closed) {
+          logger.fatal("P2P selector terminated unexpectedly", t);
+        }
+      } finally {
+        for (SelectionKey key : this.keys.keySet()) {
+          Connection conn = (Connection)key.attachment();
+          conn.requestClose("P2P selector stopped");
+          if (!this.keys.get(key).booleanValue()) {
+            conn.readerStopped();
+          }
+        }
+        this.keys.clear();
+        close();
+      }
+    }
+
+    private void processRequests() throws IOException {
+      Object request;
+      while ((request = this.requests.poll()) != null) {
+        if (request instanceof SelectionKey) {
+          SelectionKey key = (SelectionKey)request;
+          try {
+            key.interestOps(SelectionKey.OP_READ);
+            this.keys.put(key, Boolean.FALSE);
+          } catch (CancelledKeyException e) {
+            // closed while it was being read
+            this.keys.put(key, Boolean.FALSE);
+          }
+        }
+        else if (request instanceof Connection) {
+          // a reader thread found the connection closed
+          removeKeyOf((Connection)request);
+        }
+        else {
+          Object[] registration = (Object[])request;
+          Connection conn = (Connection)registration[0];
+          SocketChannel channel = (SocketChannel)registration[1];
+          try {
+            this.keys.put(channel.register(this.selector, SelectionKey.OP_READ,
+                conn), Boolean.FALSE);
+          } catch (IOException e) {
+            // the channel has been closed
+            conn.readerStopped();
+          }
+        }
+      }
+    }
+
+    private void removeKeyOf(Connection conn) {
+      for (Iterator<SelectionKey> it = this.keys.keySet().iterator(); it.hasNext();) {
+        SelectionKey key = it.next();
+        if (key.attachment() == conn) {
+          key.cancel();
+          it.remove();
+          return;
+        }
+      }
+    }
+
+    private void read(final SelectionKey key) {
+      try {
+        key.interestOps(0);
+      } catch (CancelledKeyException e) {
+        return; // the sweep will find it
+      }
+      this.keys.put(key, Boolean.TRUE);
+      final Connection conn = (Connection)key.attachment();
+      try {
+        readers.execute(new Runnable() {
+          public void run() {
+            boolean more = false;
+            try {
+              more = conn.readSelected((SocketChannel)key.channel());
+            } finally {
+              if (more) {
+                requests.add(key);
+              } else {
+                requests.add(conn);
+                conn.readerStopped();
+              }
+              selector.wakeup();
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // shutting down
+        this.keys.put(key, Boolean.FALSE);
+      }
+    }
+
+    /**
+     * Stops reading the connections that were closed while nobody was reading
+     * them, since the selector does not report those.
+     */
+    private void sweep() {
+      for (Iterator<Map.Entry<SelectionKey, Boolean>> it = this.keys.entrySet()
+          .iterator(); it.hasNext();) {
+        Map.Entry<SelectionKey, Boolean> entry = it.next();
+        SelectionKey key = entry.getKey();
+        if (!entry.getValue().booleanValue() && !key.channel().isOpen()) {
+          it.remove();
+          key.cancel();
+          ((Connection)key.attachment()).readerStopped();
+        }
+      }
+    }
+  }
+}
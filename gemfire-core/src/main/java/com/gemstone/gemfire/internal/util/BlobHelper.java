@@ -9,6 +9,7 @@
 package com.gemstone.gemfire.internal.util;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.gemstone.gemfire.DataSerializer;
 import com.gemstone.gemfire.distributed.internal.DMStats;
@@ -32,6 +33,18 @@ import com.gemstone.gemfire.pdx.internal.PdxInputStream;
 
 public class BlobHelper {
 
+  /**
+   * Deserialization counts of the threads that asked for them with
+   * {@link #startCountingDeserializations()}
+   */
+  private static final ThreadLocal<long[]> deserializationCount = new ThreadLocal<long[]>();
+
+  /**
+   * The number of threads counting deserializations, so that the other
+   * threads do not need to look up the thread local
+   */
+  private static final AtomicInteger countingThreads = new AtomicInteger();
+
   /**
    * A blob is a serialized Object. This method serializes the object into a
    * blob and returns the byte array that contains the blob.
@@ -181,6 +194,43 @@ public class BlobHelper {
     if (stats != null) {
       stats.endDeserialization(start, bytes);
     }
+    if (countingThreads.get() > 0) {
+      long[] count = deserializationCount.get();
+      if (count != null) {
+        count[0]++;
+      }
+    }
+  }
+
+  /**
+   * Starts counting the blobs deserialized by the calling thread.
+   * 
+   * @return false if the thread was already counting, in which case it
+   *         should not call {@link #stopCountingDeserializations()}
+   */
+  public static boolean startCountingDeserializations() {
+    if (deserializationCount.get() != null) {
+      return false;
+    }
+    deserializationCount.set(new long[1]);
+    countingThreads.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Returns the number of blobs deserialized by the calling thread since it
+   * started counting, or 0 if it is not counting.
+   */
+  public static long getDeserializationCount() {
+    long[] count = deserializationCount.get();
+    return count == null ? 0 : count[0];
+  }
+
+  public static void stopCountingDeserializations() {
+    if (deserializationCount.get() != null) {
+      deserializationCount.remove();
+      countingThreads.decrementAndGet();
+    }
   }
   
 }
@@ -392,6 +392,17 @@ public interface MemberMXBean {
    */
   public String[] fetchJvmThreads();
 
+  /**
+   * Returns the latency percentiles of the last statistic sample interval
+   * for each class of distribution message this member has timed, one line
+   * per message class and kind of latency: sending the message, processing
+   * it, and waiting for its replies. Latencies are only timed while time
+   * statistics are enabled.
+   *
+   * @since 9.0
+   */
+  public String[] fetchMessageLatencies();
+
   /**
    * Returns the maximum number of open file descriptors allowed for the member's
    * host operating system.
@@ -153,6 +153,11 @@ public class MemberMBean extends NotificationBroadcasterSupport implements
     return bridge.fetchJvmThreads();
   }
 
+  @Override
+  public String[] fetchMessageLatencies() {
+    return bridge.fetchMessageLatencies();
+  }
+
   @Override
   public String[] listRegions() {
     return bridge.getListOfRegions();
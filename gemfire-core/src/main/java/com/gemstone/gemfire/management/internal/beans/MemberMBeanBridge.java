@@ -1335,6 +1335,22 @@ public class MemberMBeanBridge {
     return thrdStr.toArray(result);
   }
 
+  /**
+   * 
+   * @return latency percentiles of each timed message class
+   */
+  public String[] fetchMessageLatencies() {
+    if (!(system.getDistributionManager().getStats() instanceof DistributionStats)) {
+      return ManagementConstants.NO_DATA_STRING;
+    }
+    List<String> lines = ((DistributionStats)system.getDistributionManager()
+        .getStats()).describeMessageLatencies();
+    if (lines.isEmpty()) {
+      return ManagementConstants.NO_DATA_STRING;
+    }
+    return lines.toArray(new String[lines.size()]);
+  }
+
   /**
    * 
    * @return list of regions
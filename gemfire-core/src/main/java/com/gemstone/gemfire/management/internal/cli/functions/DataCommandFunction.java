@@ -30,6 +30,8 @@ import com.gemstone.gemfire.cache.partition.PartitionRegionHelper;
 import com.gemstone.gemfire.cache.query.FunctionDomainException;
 import com.gemstone.gemfire.cache.query.NameResolutionException;
 import com.gemstone.gemfire.cache.query.Query;
+import com.gemstone.gemfire.cache.query.QueryException;
+import com.gemstone.gemfire.cache.query.QueryExecutionPlan;
 import com.gemstone.gemfire.cache.query.QueryInvalidException;
 import com.gemstone.gemfire.cache.query.QueryInvocationTargetException;
 import com.gemstone.gemfire.cache.query.QueryService;
@@ -209,12 +211,42 @@ public class DataCommandFunction extends FunctionAdapter implements  InternalEnt
     }
   }
   
+  /**
+   * Returns the query to analyze if the given one starts with
+   * {@link CliStrings#QUERY__EXPLAIN_ANALYZE}, null otherwise.
+   */
+  static String getQueryToAnalyze(String queryString) {
+    String prefix = CliStrings.QUERY__EXPLAIN_ANALYZE;
+    String trimmed = queryString.trim();
+    if (trimmed.length() > prefix.length()
+        && trimmed.regionMatches(true, 0, prefix, 0, prefix.length())
+        && Character.isWhitespace(trimmed.charAt(prefix.length()))) {
+      return trimmed.substring(prefix.length()).trim();
+    }
+    return null;
+  }
+
+  private DataCommandResult explainAnalyze(String queryString, String queryToAnalyze) {
+    QueryService qs = CacheFactory.getAnyInstance().getQueryService();
+    try {
+      QueryExecutionPlan plan = qs.newQuery(queryToAnalyze).explainAnalyze(new Object[0]);
+      return DataCommandResult.createSelectResult(queryString, new ArrayList<SelectResultRow>(), plan.toString(), null, null, true);
+    } catch (QueryException e) {
+      logger.warn(e.getMessage(), e);
+      return DataCommandResult.createSelectResult(queryString, null, null, e, e.getMessage(), false);
+    }
+  }
+
   @SuppressWarnings("rawtypes")
   private DataCommandResult select(String queryString) {
 
     Cache cache = CacheFactory.getAnyInstance();
     AtomicInteger nestedObjectCount = new AtomicInteger(0);
     if (queryString != null && !queryString.isEmpty()) {
+      String queryToAnalyze = getQueryToAnalyze(queryString);
+      if (queryToAnalyze != null) {
+        return explainAnalyze(queryString, queryToAnalyze);
+      }
       QueryService qs = cache.getQueryService();
 
       // TODO : Find out if is this optimised use. Can you have something equivalent of parsed queries with names
@@ -895,13 +927,17 @@ public class DataCommandFunction extends FunctionAdapter implements  InternalEnt
       //String query = querySB.toString().trim();      
       Object array[] = DataCommands.replaceGfshEnvVar(query, CommandExecutionContext.getShellEnv());
       query = (String) array[1];
-      query = addLimit(query);
+      // the plan of an analyzed query should not change with the fetch size
+      String queryToAnalyze = getQueryToAnalyze(query);
+      if (queryToAnalyze == null) {
+        query = addLimit(query);
+      }
       
       @SuppressWarnings("deprecation")
       QCompiler compiler = new QCompiler();
       Set<String> regionsInQuery = null;
       try {
-        CompiledValue compiledQuery = compiler.compileQuery(query);
+        CompiledValue compiledQuery = compiler.compileQuery(queryToAnalyze == null ? query : queryToAnalyze);
         Set<String> regions = new HashSet<String>();
         compiledQuery.getRegionsInQuery(regions, null);
         regionsInQuery = Collections.unmodifiableSet(regions);
@@ -1348,7 +1348,10 @@ public class CliStrings {
       + " Limit will default to the value stored in the \""
       + Gfsh.ENV_APP_FETCH_SIZE
       + "\" variable."
-      + " Page size will default to the value stored in the \"" + Gfsh.ENV_APP_COLLECTION_LIMIT + "\" variable.";
+      + " Page size will default to the value stored in the \"" + Gfsh.ENV_APP_COLLECTION_LIMIT + "\" variable."
+      + " A query starting with \"" + CliStrings.QUERY__EXPLAIN_ANALYZE + "\" is executed without showing its results"
+      + " and the rows, time, index lookups and deserializations of each stage of its execution are shown instead.";
+  public static final String QUERY__EXPLAIN_ANALYZE = "explain analyze";
   public static final String QUERY__QUERY = "query";
   public static final String QUERY__STEPNAME = "step-name";
   public static final String QUERY__STEPNAME__DEFAULTVALUE = "ALL";
@@ -204,6 +204,11 @@ public class MemberMXBeanAdapter implements MemberMXBean {
     throw new UnsupportedOperationException("Not Implemented!");
   }
 
+  @Override
+  public String[] fetchMessageLatencies() {
+    throw new UnsupportedOperationException("Not Implemented!");
+  }
+
   @Override
   public long getFileDescriptorLimit() {
     throw new UnsupportedOperationException("Not Implemented!");
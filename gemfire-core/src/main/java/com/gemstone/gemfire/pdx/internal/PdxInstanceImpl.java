@@ -581,6 +581,11 @@ public class PdxInstanceImpl extends PdxReaderImpl implements PdxInstance, Senda
     return super.readField(fieldName);
   }
 
+  @Override
+  public synchronized Object readField(PdxField ft) {
+    return super.readField(ft);
+  }
+
   @Override
   protected synchronized Object basicGetObject() {
     DMStats stats = InternalDataSerializer.getDMStats(null);
@@ -619,6 +624,15 @@ public class PdxInstanceImpl extends PdxReaderImpl implements PdxInstance, Senda
   public Object getRawField(String fieldName){
     return getUnmodifiableReader(fieldName).readRawField(fieldName);
   }
+
+  /**
+   * Returns the value of a field of this instance's type like
+   * {@link #getRawField(String)}, without looking the field up by name. The
+   * field must belong to {@link #getPdxType()}.
+   */
+  public Object getRawField(PdxField field){
+    return getUnmodifiableReader(field.getFieldName()).readRawField(field);
+  }
   
   
  public Object getDefaultValueIfFieldExistsInAnyPdxVersions(String fieldName,
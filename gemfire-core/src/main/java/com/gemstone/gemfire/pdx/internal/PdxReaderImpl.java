@@ -617,6 +617,14 @@ public class PdxReaderImpl implements InternalPdxReader, java.io.Serializable {
     if (ft == null) {
       return null;
     }
+    return readField(ft);
+  }
+
+  /**
+   * Reads a field that has already been looked up in the type of this
+   * reader.
+   */
+  public Object readField(PdxField ft) {
     switch (ft.getFieldType()) {
     case CHAR:
       return readChar(ft);
@@ -860,11 +868,19 @@ public class PdxReaderImpl implements InternalPdxReader, java.io.Serializable {
     if (ft == null) {
       return null;
     }
+    return readRawField(ft);
+  }
+
+  /**
+   * Same as {@link #readRawField(String)} for a field that has already been
+   * looked up in the type of this reader.
+   */
+  public Object readRawField(PdxField ft) {
     if (ft.getFieldType() == FieldType.STRING) {
       return readPdxString(ft);
     }
     else{
-      return readField(field);
+      return readField(ft);
     }
   }
   
@@ -316,6 +316,11 @@ public class PerfQuery {
       throw new UnsupportedOperationException();
     }
 
+    @Override
+    public QueryExecutionPlan explainAnalyze(Object[] params) {
+      throw new UnsupportedOperationException();
+    }
+
   }
   
   
@@ -19,11 +19,13 @@
 package com.gemstone.gemfire.cache.query.functional;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
@@ -60,6 +62,7 @@ import com.gemstone.gemfire.cache.query.internal.QueryObserverAdapter;
 import com.gemstone.gemfire.cache.query.internal.QueryObserverHolder;
 import com.gemstone.gemfire.cache.query.internal.index.CompactMapRangeIndex;
 import com.gemstone.gemfire.cache.query.internal.index.CompactRangeIndex;
+import com.gemstone.gemfire.cache.query.internal.index.IndexCheckpoint;
 import com.gemstone.gemfire.cache.query.internal.index.IndexProtocol;
 import com.gemstone.gemfire.cache.query.internal.index.RangeIndex;
 import com.gemstone.gemfire.cache.query.internal.types.ObjectTypeImpl;
@@ -71,6 +74,7 @@ import com.gemstone.gemfire.distributed.internal.DistributionConfig;
 import com.gemstone.gemfire.distributed.internal.InternalDistributedSystem;
 import com.gemstone.gemfire.internal.AvailablePort;
 import com.gemstone.gemfire.internal.FileUtil;
+import com.gemstone.gemfire.internal.cache.DiskStoreImpl;
 import com.gemstone.gemfire.internal.cache.LocalRegion;
 import com.gemstone.gemfire.test.junit.categories.IntegrationTest;
 
@@ -1034,6 +1038,77 @@ public class IndexCreationJUnitTest{
     }
   }
  
+  @Test
+  public void testIndexRecoveryFromCheckpoint() throws Exception {
+    InternalDistributedSystem.getAnyInstance().disconnect();
+    File file = new File("persistData0");
+    file.mkdir();
+    boolean checkpointEnabled = IndexCheckpoint.ENABLED;
+    IndexCheckpoint.ENABLED = true;
+    try {
+      {
+        Properties props = new Properties();
+        props.setProperty(DistributionConfig.NAME_NAME, "test");
+        props.setProperty("mcast-port", "0");
+        props.setProperty("cache-xml-file", IndexCreationJUnitTest.class.getResource("index-recovery-checkpoint.xml").toURI().getPath());
+        DistributedSystem ds = DistributedSystem.connect(props);
+        Cache cache = CacheFactory.create(ds);
+        Region region = cache.getRegion("portfolios");
+        for (int i = 0; i < 100; i++) {
+          region.put("" + i, new Portfolio(i));
+        }
+        cache.close();
+        ds.disconnect();
+      }
+      File[] checkpoints = file.listFiles(new FilenameFilter() {
+        public boolean accept(File dir, String name) {
+          return name.endsWith(".idx");
+        }
+      });
+      assertEquals(1, checkpoints.length);
+
+      {
+        // Values are not recovered, so they are only read if the indexes
+        // are rebuilt
+        System.setProperty(DiskStoreImpl.RECOVER_VALUE_PROPERTY_NAME, "false");
+        Portfolio.resetInstanceCount();
+        Properties props = new Properties();
+        props.setProperty(DistributionConfig.NAME_NAME, "test");
+        props.setProperty("mcast-port", "0");
+        props.setProperty("cache-xml-file", IndexCreationJUnitTest.class.getResource("index-recovery-checkpoint.xml").toURI().getPath());
+        DistributedSystem ds = DistributedSystem.connect(props);
+        Cache cache = CacheFactory.create(ds);
+        QueryService qs = cache.getQueryService();
+        Region region = cache.getRegion("portfolios");
+        assertEquals("Values should not have been read to populate the indexes", 0, Portfolio.instanceCount.get());
+        assertFalse("The checkpoint should have been removed", checkpoints[0].exists());
+
+        IndexStatistics is1 = qs.getIndex(region, "status").getStatistics();
+        assertEquals(2, is1.getNumberOfKeys());
+        assertEquals(100, is1.getNumberOfValues());
+
+        IndexStatistics is2 = qs.getIndex(region, "ID").getStatistics();
+        assertEquals(100, is2.getNumberOfKeys());
+        assertEquals(100, is2.getNumberOfValues());
+
+        SelectResults results = (SelectResults)qs.newQuery("SELECT * FROM /portfolios p WHERE p.status = 'active' AND p.ID < 10").execute();
+        assertEquals("OQL index results did not match", 5, results.size());
+
+        // the loaded indexes are maintained
+        region.destroy("0");
+        region.put("100", new Portfolio(100));
+        assertEquals(100, is2.getNumberOfValues());
+        results = (SelectResults)qs.newQuery("SELECT * FROM /portfolios p WHERE p.ID = 100").execute();
+        assertEquals(1, results.size());
+        ds.disconnect();
+      }
+    } finally {
+      IndexCheckpoint.ENABLED = checkpointEnabled;
+      System.clearProperty(DiskStoreImpl.RECOVER_VALUE_PROPERTY_NAME);
+      FileUtil.delete(file);
+    }
+  }
+
   @Test
   public void testIndexCreationWithoutLoadingData() throws Exception {
     QueryService qs;
@@ -15,6 +15,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
 
+import com.gemstone.gemfire.Statistics;
 import com.gemstone.gemfire.cache.Region;
 import com.gemstone.gemfire.cache.RegionShortcut;
 import com.gemstone.gemfire.cache.query.CacheUtils;
@@ -27,9 +28,13 @@ import com.gemstone.gemfire.cache.query.data.Portfolio;
 import com.gemstone.gemfire.cache.query.internal.QueryObserver;
 import com.gemstone.gemfire.cache.query.internal.QueryObserverAdapter;
 import com.gemstone.gemfire.cache.query.internal.QueryObserverHolder;
+import com.gemstone.gemfire.cache.query.internal.index.BitmapIndexStore;
 import com.gemstone.gemfire.cache.query.internal.index.CompactRangeIndex;
 import com.gemstone.gemfire.cache.query.internal.index.HashIndex;
+import com.gemstone.gemfire.cache.query.internal.index.IndexManager;
 import com.gemstone.gemfire.cache.query.internal.index.PrimaryKeyIndex;
+import com.gemstone.gemfire.cache.query.internal.index.PrimitiveKeyIndexStore;
+import com.gemstone.gemfire.distributed.internal.InternalDistributedSystem;
 import com.gemstone.gemfire.test.junit.categories.IntegrationTest;
 
 @Category(IntegrationTest.class)
@@ -366,4 +371,117 @@ public class MultiIndexCreationJUnitTest {
   
   }
  
+  @Test
+  public void testParallelPopulationOfDefinedIndexes() throws Exception {
+    Region r = CacheUtils.getRegion(regionName);
+    for (int i = 0; i < 5000; i++) {
+      r.put("" + i, new Portfolio(i));
+    }
+
+    QueryService qs = CacheUtils.getQueryService();
+    qs.defineIndex("statusIndex", "status", r.getFullPath());
+    qs.defineIndex("IDIndex", "ID", r.getFullPath());
+    List<Index> indexes = qs.createDefinedIndexes();
+    assertEquals(2, indexes.size());
+
+    Index ind = qs.getIndex(r, "statusIndex");
+    assertEquals(2, ind.getStatistics().getNumberOfKeys());
+    assertEquals(5000, ind.getStatistics().getNumberOfValues());
+    ind = qs.getIndex(r, "IDIndex");
+    assertEquals(5000, ind.getStatistics().getNumberOfKeys());
+    assertEquals(5000, ind.getStatistics().getNumberOfValues());
+    Statistics indexStats = null;
+    for (Statistics s : InternalDistributedSystem.getAnyInstance()
+        .findStatisticsByTextId("IDIndex")) {
+      if (!s.isClosed()) {
+        indexStats = s;
+      }
+    }
+    assertNotNull(indexStats);
+    assertEquals(5000, indexStats.getLong("numPopulatedEntries"));
+    assertEquals(0, indexStats.getInt("populatesInProgress"));
+
+    SelectResults sr = (SelectResults) qs.newQuery(
+        "select * from " + r.getFullPath() + " where ID >= 4000 and status = 'active'").execute();
+    assertEquals(500, sr.size());
+  }
+
+  @Test
+  public void testBulkLoadOfPrimitiveKeyIndexStore() throws Exception {
+    IndexManager.TEST_PRIMITIVE_KEY_INDEX_STORE = true;
+    try {
+      Region r = CacheUtils.getRegion(regionName);
+      for (int i = 0; i < 5000; i++) {
+        r.put("" + i, new Portfolio(i % 3000));
+      }
+
+      QueryService qs = CacheUtils.getQueryService();
+      qs.defineIndex("IDIndex", "ID", r.getFullPath());
+      qs.createDefinedIndexes();
+
+      Index ind = qs.getIndex(r, "IDIndex");
+      assertEquals(3000, ind.getStatistics().getNumberOfKeys());
+      assertEquals(5000, ind.getStatistics().getNumberOfValues());
+      assertTrue(((CompactRangeIndex) ind).getIndexStorage() instanceof PrimitiveKeyIndexStore);
+
+      SelectResults sr = (SelectResults) qs.newQuery(
+          "select * from " + r.getFullPath() + " where ID < 100").execute();
+      assertEquals(200, sr.size());
+      sr = (SelectResults) qs.newQuery(
+          "select * from " + r.getFullPath() + " where ID = 2999").execute();
+      assertEquals(1, sr.size());
+
+      // the bulk loaded tree is maintained as usual
+      r.put("5000", new Portfolio(2999));
+      r.destroy("0");
+      sr = (SelectResults) qs.newQuery(
+          "select * from " + r.getFullPath() + " where ID = 2999 or ID = 0").execute();
+      assertEquals(3, sr.size());
+    } finally {
+      IndexManager.TEST_PRIMITIVE_KEY_INDEX_STORE = false;
+    }
+  }
+
+  @Test
+  public void testBulkLoadOfPrimitiveKeyIndexStoreWithBitmaps() throws Exception {
+    int oldMaxKeys = BitmapIndexStore.MAX_KEYS;
+    IndexManager.TEST_PRIMITIVE_KEY_INDEX_STORE = true;
+    BitmapIndexStore.MAX_KEYS = 10000;
+    try {
+      Region r = CacheUtils.getRegion(regionName);
+      for (int i = 0; i < 5000; i++) {
+        r.put("" + i, new Portfolio(i % 3000));
+      }
+
+      QueryService qs = CacheUtils.getQueryService();
+      qs.defineIndex("IDIndex", "ID", r.getFullPath());
+      qs.createDefinedIndexes();
+
+      Index ind = qs.getIndex(r, "IDIndex");
+      assertEquals(3000, ind.getStatistics().getNumberOfKeys());
+      assertEquals(5000, ind.getStatistics().getNumberOfValues());
+      BitmapIndexStore store = ((CompactRangeIndex) ind).getBitmapIndexStore();
+      assertNotNull(store);
+      assertTrue(store.getDelegate() instanceof PrimitiveKeyIndexStore);
+      // the bulk loaded mappings are in the bitmaps too
+      assertEquals(3000, store.getNumBitmaps());
+
+      SelectResults sr = (SelectResults) qs.newQuery(
+          "select * from " + r.getFullPath() + " where ID < 100").execute();
+      assertEquals(200, sr.size());
+      sr = (SelectResults) qs.newQuery(
+          "select * from " + r.getFullPath() + " where ID = 2999").execute();
+      assertEquals(1, sr.size());
+
+      r.put("5000", new Portfolio(2999));
+      r.destroy("0");
+      assertEquals(2, store.getBitmap(Integer.valueOf(2999)).cardinality());
+      sr = (SelectResults) qs.newQuery(
+          "select * from " + r.getFullPath() + " where ID = 2999 or ID = 0").execute();
+      assertEquals(3, sr.size());
+    } finally {
+      IndexManager.TEST_PRIMITIVE_KEY_INDEX_STORE = false;
+      BitmapIndexStore.MAX_KEYS = oldMaxKeys;
+    }
+  }
 }
@@ -0,0 +1,205 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.cache.query.functional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.gemstone.gemfire.cache.Region;
+import com.gemstone.gemfire.cache.query.CacheUtils;
+import com.gemstone.gemfire.cache.query.SelectResults;
+import com.gemstone.gemfire.cache.query.Struct;
+import com.gemstone.gemfire.cache.query.data.Portfolio;
+import com.gemstone.gemfire.cache.query.internal.CompiledValue;
+import com.gemstone.gemfire.cache.query.internal.QueryObserverAdapter;
+import com.gemstone.gemfire.cache.query.internal.QueryObserverHolder;
+import com.gemstone.gemfire.internal.FileUtil;
+import com.gemstone.gemfire.internal.cache.persistence.query.TemporaryResultSetFactory;
+import com.gemstone.gemfire.test.junit.categories.IntegrationTest;
+
+/**
+ * Tests ORDER BY and GROUP BY queries whose rows are sorted in temporary
+ * results that overflow to disk, see
+ * {@link TemporaryResultSetFactory#SPILL_QUERY_RESULTS}. Every query is run
+ * with and without spilling and must return the same results.
+ */
+@Category(IntegrationTest.class)
+public class SpilledQueryResultsJUnitTest {
+
+  private static final int NUM_PORTFOLIOS = 500;
+
+  private long oldBudget;
+
+  private String oldDirectory;
+
+  private File directory;
+
+  private SpillObserver observer;
+
+  @Before
+  public void setUp() throws Exception {
+    this.oldBudget = TemporaryResultSetFactory.DEFAULT_MEMORY_BUDGET;
+    this.oldDirectory = TemporaryResultSetFactory.DEFAULT_DIRECTORY;
+    this.directory = new File("SpilledQueryResultsJUnitTest");
+    this.directory.mkdirs();
+    TemporaryResultSetFactory.DEFAULT_MEMORY_BUDGET = 1024;
+    TemporaryResultSetFactory.DEFAULT_DIRECTORY = this.directory.getAbsolutePath();
+    CacheUtils.startCache();
+    Region region = CacheUtils.createRegion("portfolios", Portfolio.class);
+    for (int i = 0; i < NUM_PORTFOLIOS; i++) {
+      region.put(Integer.toString(i), new Portfolio(i));
+    }
+    this.observer = new SpillObserver();
+    QueryObserverHolder.setInstance(this.observer);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    TemporaryResultSetFactory.SPILL_QUERY_RESULTS = false;
+    TemporaryResultSetFactory.DEFAULT_MEMORY_BUDGET = this.oldBudget;
+    TemporaryResultSetFactory.DEFAULT_DIRECTORY = this.oldDirectory;
+    QueryObserverHolder.reset();
+    CacheUtils.closeCache();
+    FileUtil.delete(this.directory);
+  }
+
+  @Test
+  public void testOrderByWithLimit() throws Exception {
+    List spilled = assertSameResults(
+        "SELECT p.ID FROM /portfolios p ORDER BY p.ID desc LIMIT 25", true);
+    assertEquals(25, spilled.size());
+    for (int i = 0; i < 25; i++) {
+      assertEquals(NUM_PORTFOLIOS - 1 - i, spilled.get(i));
+    }
+  }
+
+  @Test
+  public void testOrderByObjectsWithLimit() throws Exception {
+    List spilled = assertSameResults(
+        "SELECT p FROM /portfolios p WHERE p.ID >= 100 ORDER BY p.ID LIMIT 10", true);
+    assertEquals(10, spilled.size());
+    for (int i = 0; i < 10; i++) {
+      assertEquals(100 + i, ((Portfolio)spilled.get(i)).ID);
+    }
+  }
+
+  @Test
+  public void testDistinctStructsWithLimit() throws Exception {
+    List spilled = assertSameResults(
+        "SELECT DISTINCT p.status, p.type FROM /portfolios p ORDER BY p.status, p.type LIMIT 4", true);
+    assertEquals(4, spilled.size());
+    assertEquals("active", ((Struct)spilled.get(0)).get("status"));
+    assertEquals("inactive", ((Struct)spilled.get(3)).get("status"));
+  }
+
+  @Test
+  public void testNonDistinctStructsWithLimit() throws Exception {
+    List spilled = assertSameResults(
+        "SELECT p.type, p.ID FROM /portfolios p ORDER BY p.type, p.ID LIMIT 30", true);
+    assertEquals(30, spilled.size());
+  }
+
+  @Test
+  public void testGroupBy() throws Exception {
+    List spilled = assertSameResults(
+        "SELECT p.type, count(*), sum(p.ID) FROM /portfolios p GROUP BY p.type", true);
+    assertEquals(3, spilled.size());
+    int count = 0;
+    for (Object row : spilled) {
+      count += ((Integer)((Struct)row).getFieldValues()[1]).intValue();
+    }
+    assertEquals(NUM_PORTFOLIOS, count);
+  }
+
+  @Test
+  public void testOrderByWithoutLimitIsNotSpilled() throws Exception {
+    List spilled = assertSameResults(
+        "SELECT p.ID FROM /portfolios p ORDER BY p.ID", false);
+    assertEquals(NUM_PORTFOLIOS, spilled.size());
+  }
+
+  /**
+   * Runs the query with and without spilling and returns the results with
+   * spilling.
+   */
+  private List assertSameResults(String query, boolean expectSpill)
+      throws Exception {
+    TemporaryResultSetFactory.SPILL_QUERY_RESULTS = false;
+    List expected = execute(query);
+    assertEquals(0, this.observer.maxRunFiles);
+
+    TemporaryResultSetFactory.SPILL_QUERY_RESULTS = true;
+    List actual = execute(query);
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      Object e = expected.get(i);
+      Object a = actual.get(i);
+      if (e instanceof Portfolio) {
+        assertEquals(((Portfolio)e).ID, ((Portfolio)a).ID);
+      } else if (e instanceof Struct) {
+        assertEquals(Arrays.asList(((Struct)e).getFieldValues()),
+            Arrays.asList(((Struct)a).getFieldValues()));
+      } else {
+        assertEquals(e, a);
+      }
+    }
+    if (expectSpill) {
+      assertTrue("no rows were written to disk", this.observer.maxRunFiles > 0);
+    } else {
+      assertEquals(0, this.observer.maxRunFiles);
+    }
+    assertEquals("temporary results were not deleted", 0, runFiles(this.directory));
+    return actual;
+  }
+
+  private List execute(String query) throws Exception {
+    this.observer.maxRunFiles = 0;
+    SelectResults results = (SelectResults)CacheUtils.getQueryService()
+        .newQuery(query).execute();
+    return new ArrayList(results.asList());
+  }
+
+  static int runFiles(File directory) {
+    File[] files = directory.listFiles();
+    int count = 0;
+    if (files != null) {
+      for (File f : files) {
+        if (f.getName().endsWith(".run")) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Records the largest number of sorted runs on disk while iterating
+   */
+  private class SpillObserver extends QueryObserverAdapter {
+    volatile int maxRunFiles;
+
+    @Override
+    public void beforeIterationEvaluation(CompiledValue executer,
+        Object currentObject) {
+      int count = runFiles(directory);
+      if (count > this.maxRunFiles) {
+        this.maxRunFiles = count;
+      }
+    }
+  }
+}
@@ -0,0 +1,132 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.cache.query.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.gemstone.gemfire.cache.query.NameNotFoundException;
+import com.gemstone.gemfire.cache.query.QueryInvocationTargetException;
+import com.gemstone.gemfire.cache.query.QueryService;
+import com.gemstone.gemfire.test.junit.categories.UnitTest;
+
+@Category(UnitTest.class)
+public class AttributeDescriptorJUnitTest {
+
+  @Test
+  public void testReadGetterFieldAndMethod() throws Exception {
+    Address address = new Address("Portland", 97201);
+    assertEquals("Portland", new AttributeDescriptor("city").read(address));
+    assertEquals(97201, new AttributeDescriptor("zip").read(address));
+    assertEquals("US", new AttributeDescriptor("country").read(address));
+    assertEquals("Address", new AttributeDescriptor("kind").read(address));
+    assertEquals(1L, new AttributeDescriptor("version").read(address));
+  }
+
+  @Test
+  public void testDescriptorFollowsClassChanges() throws Exception {
+    AttributeDescriptor city = new AttributeDescriptor("city");
+    assertEquals("Portland", city.read(new Address("Portland", 1)));
+    assertEquals("Berlin", city.read(new Office("Berlin")));
+    assertEquals("Salem", city.read(new Address("Salem", 2)));
+  }
+
+  @Test
+  public void testUndefinedTargets() throws Exception {
+    AttributeDescriptor city = new AttributeDescriptor("city");
+    assertSame(QueryService.UNDEFINED, city.read(null));
+    assertSame(QueryService.UNDEFINED, city.read(QueryService.UNDEFINED));
+  }
+
+  @Test
+  public void testMissingAttribute() throws Exception {
+    AttributeDescriptor street = new AttributeDescriptor("street");
+    assertFalse(street.validateReadType(Address.class));
+    assertTrue(new AttributeDescriptor("city").validateReadType(Address.class));
+    try {
+      street.read(new Address("Portland", 1));
+      fail("expected NameNotFoundException");
+    } catch (NameNotFoundException expected) {
+    }
+  }
+
+  @Test
+  public void testGetterExceptionIsWrapped() throws Exception {
+    try {
+      new AttributeDescriptor("broken").read(new Address("Portland", 1));
+      fail("expected QueryInvocationTargetException");
+    } catch (QueryInvocationTargetException expected) {
+      assertTrue(expected.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  @Test
+  public void testMethodDispatchConvertsArguments() throws Exception {
+    List<Class> argTypes = new ArrayList<Class>();
+    argTypes.add(Integer.class);
+    MethodDispatch dispatch = new MethodDispatch(Address.class, "zipPlus",
+        argTypes);
+    List<Object> args = new ArrayList<Object>();
+    args.add(5);
+    assertEquals(97206L, dispatch.invoke(new Address("Portland", 97201), args));
+
+    dispatch = new MethodDispatch(Address.class, "getCity",
+        Collections.emptyList());
+    assertEquals("Salem", dispatch.invoke(new Address("Salem", 1),
+        Collections.emptyList()));
+  }
+
+  public static class Address {
+    public final int zip;
+    public static String country = "US";
+    private final String city;
+
+    public Address(String city, int zip) {
+      this.city = city;
+      this.zip = zip;
+    }
+
+    public String getCity() {
+      return this.city;
+    }
+
+    public String kind() {
+      return "Address";
+    }
+
+    public static long getVersion() {
+      return 1L;
+    }
+
+    public long zipPlus(long n) {
+      return this.zip + n;
+    }
+
+    public String getBroken() {
+      throw new IllegalStateException("broken");
+    }
+  }
+
+  public static class Office {
+    public final String city;
+
+    public Office(String city) {
+      this.city = city;
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.cache.query.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.gemstone.gemfire.cache.Cache;
+import com.gemstone.gemfire.cache.CacheFactory;
+import com.gemstone.gemfire.cache.Region;
+import com.gemstone.gemfire.cache.RegionShortcut;
+import com.gemstone.gemfire.cache.query.QueryExecutionPlan;
+import com.gemstone.gemfire.cache.query.QueryService;
+import com.gemstone.gemfire.cache.query.data.Portfolio;
+import com.gemstone.gemfire.test.junit.categories.IntegrationTest;
+
+/**
+ * Tests that queries analyzed through the public Query API return the plan
+ * they were executed with.
+ */
+@Category(IntegrationTest.class)
+public class QueryExplainAnalyzeJUnitTest {
+
+  private Cache cache;
+
+  private QueryService qs;
+
+  @Before
+  public void setUp() throws Exception {
+    this.cache = new CacheFactory().set("mcast-port", "0").create();
+    Region region = this.cache.createRegionFactory(RegionShortcut.REPLICATE)
+        .create("portfolios");
+    for (int i = 0; i < 100; i++) {
+      region.put("key" + i, new Portfolio(i));
+    }
+    this.qs = this.cache.getQueryService();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (this.cache != null) {
+      this.cache.close();
+    }
+  }
+
+  @Test
+  public void testScan() throws Exception {
+    QueryExecutionPlan plan = this.qs.newQuery(
+        "select * from /portfolios p where p.ID >= 90").explainAnalyze(
+        new Object[0]);
+    assertEquals(QueryPlan.QUERY, plan.getOperation());
+    assertEquals(1, plan.getExecutions());
+    assertEquals(10, plan.getRowsOut());
+    QueryExecutionPlan scan = find(plan, QueryPlan.SCAN);
+    assertNotNull(plan.toString(), scan);
+    assertEquals(100, scan.getRowsIn());
+    assertEquals(-1, scan.getEstimatedRows());
+    assertNull(plan.toString(), find(plan, QueryPlan.INDEX_LOOKUP));
+  }
+
+  @Test
+  public void testIndexLookup() throws Exception {
+    this.qs.createIndex("idIndex", "p.ID", "/portfolios p");
+    QueryExecutionPlan plan = this.qs.newQuery(
+        "select * from /portfolios p where p.ID >= $1").explainAnalyze(
+        new Object[] { Integer.valueOf(90) });
+    assertEquals(10, plan.getRowsOut());
+    QueryExecutionPlan lookup = find(plan, QueryPlan.INDEX_LOOKUP);
+    assertNotNull(plan.toString(), lookup);
+    assertEquals("idIndex", lookup.getDetail());
+    assertTrue(plan.toString(), lookup.getIndexLookups() > 0);
+    assertTrue(plan.toString(), lookup.getEstimatedRows() >= 0);
+    assertTrue(plan.toString(), plan.toString().contains("estimated rows="));
+  }
+
+  @Test
+  public void testEstimateOfSelectedFilter() throws Exception {
+    this.qs.createIndex("idIndex", "p.ID", "/portfolios p");
+    this.qs.createIndex("statusIndex", "p.status", "/portfolios p");
+    QueryExecutionPlan plan = this.qs.newQuery(
+        "select * from /portfolios p where p.ID = 5 and p.status = 'inactive'")
+        .explainAnalyze(new Object[0]);
+    assertEquals(1, plan.getRowsOut());
+    QueryExecutionPlan lookup = find(plan, QueryPlan.INDEX_LOOKUP);
+    assertNotNull(plan.toString(), lookup);
+    // the lookup is driven by the ID index, which has one entry for 5,
+    // rather than by the status index, which has 50 entries for inactive
+    long estimate = lookup.getEstimatedRows();
+    assertTrue(plan.toString(), estimate > 0 && estimate < 50);
+  }
+
+  private static QueryExecutionPlan find(QueryExecutionPlan plan,
+      String operation) {
+    for (QueryExecutionPlan child : plan.getChildren()) {
+      if (child.getOperation().equals(operation)) {
+        return child;
+      }
+      QueryExecutionPlan found = find(child, operation);
+      if (found != null) {
+        return found;
+      }
+    }
+    return null;
+  }
+}
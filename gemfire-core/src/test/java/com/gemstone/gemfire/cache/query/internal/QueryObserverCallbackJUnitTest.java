@@ -18,6 +18,7 @@ import static org.junit.Assert.fail;
 
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.junit.After;
@@ -410,6 +411,12 @@ public class QueryObserverCallbackJUnitTest{
     public void orderByColumnsEqual() {
       
     }
+
+    public void afterFilterSelection(List indexes, int sizeEstimate) {
+    }
+
+    public void afterEquiJoinOrdering(Index[][] joinIndexes, long[] sizeEstimates) {
+    }
     
   }
 }
@@ -0,0 +1,82 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.cache.query.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.gemstone.gemfire.test.junit.categories.UnitTest;
+
+@Category(UnitTest.class)
+public class QueryPlanJUnitTest {
+
+  @Test
+  public void testMergeAddsCountersOfSameStages() {
+    QueryPlan first = memberPlan(10, 4);
+    QueryPlan second = memberPlan(20, 6);
+    first.merge(second);
+
+    assertEquals(2, first.getExecutions());
+    QueryPlan scan = first.find(QueryPlan.SCAN);
+    assertEquals(1, first.getChildren().size());
+    assertEquals(2, scan.getExecutions());
+    assertEquals(30, scan.getRowsIn());
+    assertEquals(10, scan.getRowsOut());
+    assertNull(first.find(QueryPlan.LIMIT));
+  }
+
+  @Test
+  public void testMergeChildrenLeavesCountersAlone() {
+    QueryPlan root = new QueryPlan(QueryPlan.QUERY, "select * from /r");
+    root.mergeChildren(memberPlan(10, 4));
+    root.mergeChildren(memberPlan(5, 5));
+
+    assertEquals(0, root.getExecutions());
+    assertEquals(1, root.getChildren().size());
+    assertEquals(15, root.find(QueryPlan.SCAN).getRowsIn());
+  }
+
+  @Test
+  public void testSerialization() throws Exception {
+    QueryPlan plan = memberPlan(10, 4);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    plan.toData(new DataOutputStream(bytes));
+    QueryPlan copy = new QueryPlan();
+    copy.fromData(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+    assertEquals(plan.toString(), copy.toString());
+    assertEquals(4, copy.find(QueryPlan.SCAN).getRowsOut());
+  }
+
+  @Test
+  public void testToStringIndentsChildren() {
+    String plan = memberPlan(10, 4).toString();
+    String[] lines = plan.split("\n");
+    assertEquals(2, lines.length);
+    assertTrue(lines[0], lines[0].startsWith("MEMBER member1 (executions=1"));
+    assertTrue(lines[1], lines[1].startsWith("  SCAN /r (executions=1, rows in=10, rows out=4"));
+  }
+
+  private static QueryPlan memberPlan(long rowsIn, long rowsOut) {
+    QueryPlan member = new QueryPlan(QueryPlan.MEMBER, "member1");
+    member.recordExecution(1000, 0, rowsOut);
+    QueryPlan scan = new QueryPlan(QueryPlan.SCAN, "/r");
+    scan.recordExecution(500, rowsIn, rowsOut);
+    member.addChild(scan);
+    return member;
+  }
+}
@@ -0,0 +1,137 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.cache.query.internal.cq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.gemstone.gemfire.test.junit.categories.UnitTest;
+
+@Category(UnitTest.class)
+public class CqPredicateIndexJUnitTest {
+
+  @Test
+  public void testEqualityAndRangePredicates() {
+    CqPredicateIndex index = CqPredicateIndex.EMPTY
+        .add("active", "SELECT * FROM /portfolios p WHERE p.status = 'active'")
+        .add("inactive", "SELECT * FROM /portfolios p WHERE 'inactive' = p.status")
+        .add("big", "SELECT * FROM /portfolios p WHERE p.id > 100 AND p.status = 'active'")
+        .add("small", "SELECT * FROM /portfolios WHERE id <= 10")
+        .add("city", "SELECT * FROM /portfolios p WHERE p.address.city = 'Portland'");
+    assertTrue(index.isSelective());
+
+    assertCandidates(index, new Portfolio(5, "active", "Salem"), "active", "small");
+    assertCandidates(index, new Portfolio(200, "inactive", "Portland"), "inactive", "big", "city");
+    // bounds are inclusive since numbers are compared as doubles
+    assertCandidates(index, new Portfolio(100, "closed", "Salem"), "big");
+    assertCandidates(index, new Portfolio(50, "closed", "Salem"));
+  }
+
+  @Test
+  public void testUnindexedQueriesAreAlwaysCandidates() {
+    CqPredicateIndex index = CqPredicateIndex.EMPTY
+        .add("or", "SELECT * FROM /portfolios p WHERE p.id = 1 OR p.id = 2")
+        .add("ne", "SELECT * FROM /portfolios p WHERE p.status <> 'active'")
+        .add("all", "SELECT * FROM /portfolios p")
+        .add("method", "SELECT * FROM /portfolios p WHERE p.isActive() = true")
+        .add("invalid", "SELECT * FROM");
+    assertFalse(index.isSelective());
+
+    index = index.add("one", "SELECT * FROM /portfolios p WHERE p.id = 1");
+    assertTrue(index.isSelective());
+    assertCandidates(index, new Portfolio(2, "active", "Salem"), "or", "ne", "all", "method", "invalid");
+  }
+
+  @Test
+  public void testUnreadableValuesMatchAllPredicatesOnTheAttribute() {
+    CqPredicateIndex index = CqPredicateIndex.EMPTY
+        .add("city", "SELECT * FROM /portfolios p WHERE p.address.city = 'Portland'")
+        .add("id", "SELECT * FROM /portfolios p WHERE p.id < 10");
+    assertCandidates(index, new Portfolio(20, "active", null), "city");
+    assertCandidates(index, "not a portfolio", "city", "id");
+  }
+
+  @Test
+  public void testNumbersOfDifferentTypes() {
+    CqPredicateIndex index = CqPredicateIndex.EMPTY
+        .add("int", "SELECT * FROM /portfolios p WHERE p.id = 7")
+        .add("double", "SELECT * FROM /portfolios p WHERE p.id >= 6.5")
+        .add("string", "SELECT * FROM /portfolios p WHERE p.id = '7'");
+    assertCandidates(index, new Portfolio(7, "active", "Salem"), "int", "double", "string");
+    assertCandidates(index, new Portfolio(6, "active", "Salem"), "string");
+  }
+
+  @Test
+  public void testRemove() {
+    CqPredicateIndex index = CqPredicateIndex.EMPTY
+        .add("active", "SELECT * FROM /portfolios p WHERE p.status = 'active'");
+    assertSame(index, index.remove("unknown"));
+    index = index.remove("active");
+    assertEquals(0, index.size());
+    assertFalse(index.isSelective());
+  }
+
+  @Test
+  public void testNormalize() {
+    assertEquals(7.0, CqPredicateIndex.normalize(7));
+    assertEquals(7.0, CqPredicateIndex.normalize(7L));
+    assertEquals(0.0, CqPredicateIndex.normalize(-0.0f));
+    assertNull(CqPredicateIndex.normalize(Double.NaN));
+    assertNull(CqPredicateIndex.normalize('c'));
+    assertNull(CqPredicateIndex.normalize(null));
+  }
+
+  private static void assertCandidates(CqPredicateIndex index, Object value,
+      String... expected) {
+    Set<String> candidates = new HashSet<String>();
+    index.addCandidates(value, candidates);
+    assertEquals(new HashSet<String>(Arrays.asList(expected)), candidates);
+  }
+
+  public static class Portfolio {
+    public final int id;
+    private final String status;
+    private final Address address;
+
+    public Portfolio(int id, String status, String city) {
+      this.id = id;
+      this.status = status;
+      this.address = city == null ? null : new Address(city);
+    }
+
+    public String getStatus() {
+      return this.status;
+    }
+
+    public Address getAddress() {
+      return this.address;
+    }
+
+    public boolean isActive() {
+      return "active".equals(this.status);
+    }
+  }
+
+  public static class Address {
+    public final String city;
+
+    public Address(String city) {
+      this.city = city;
+    }
+  }
+}
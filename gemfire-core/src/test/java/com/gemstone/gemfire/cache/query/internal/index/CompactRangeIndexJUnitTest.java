@@ -8,6 +8,7 @@
 package com.gemstone.gemfire.cache.query.internal.index;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -96,7 +97,76 @@ public class CompactRangeIndexJUnitTest  {
     SelectResults results = (SelectResults) qs.newQuery("Select * from /exampleRegion r where r.status = null").execute();
     assertEquals("Null matched Results expected", numObjects, results.size());
   }
-  
+
+  /*
+   * Tests that updates which leave the indexed field alone, and which are
+   * not applied to the index store, keep the index consistent with updates
+   * that do change it
+   */
+  @Test
+  public void testUpdateWithUnchangedIndexKey() throws Exception {
+    index = utils.createIndex("indexName", "status", "/exampleRegion");
+    Region region = utils.getCache().getRegion("exampleRegion");
+    for (int i = 1; i <= 10; i++) {
+      Portfolio p = new Portfolio(i);
+      p.status = "active";
+      region.put("KEY-" + i, p);
+    }
+    for (int i = 1; i <= 10; i++) {
+      Portfolio p = new Portfolio(i + 100);
+      p.status = i <= 4 ? "inactive" : "active";
+      region.put("KEY-" + i, p);
+    }
+    QueryService qs = utils.getCache().getQueryService();
+    SelectResults results = (SelectResults)qs.newQuery(
+        "Select * from /exampleRegion r where r.status = 'active'").execute();
+    assertEquals(6, results.size());
+    for (Object o : results) {
+      assertTrue(((Portfolio)o).getID() > 100);
+    }
+    results = (SelectResults)qs.newQuery(
+        "Select * from /exampleRegion r where r.status = 'inactive'").execute();
+    assertEquals(4, results.size());
+  }
+
+  /*
+   * Tests that the key distribution histogram is built and rebuilt by the
+   * background builder while callers keep getting the previous one
+   */
+  @Test
+  public void testHistogramIsBuiltInBackground() throws Exception {
+    index = utils.createIndex("idIndex", "p.ID", "/exampleRegion p");
+    CompactRangeIndex cindex = (CompactRangeIndex)index;
+    Region region = utils.getCache().getRegion("exampleRegion");
+    for (int i = 0; i < 1000; i++) {
+      region.put("KEY-" + i, new Portfolio(i));
+    }
+    IndexHistogram first = waitForHistogram(cindex, null);
+    assertEquals(1000, first.getNumValues());
+
+    for (int i = 1000; i < 1500; i++) {
+      region.put("KEY-" + i, new Portfolio(i));
+    }
+    // the stale histogram is returned while the new one is built
+    assertSame(first, cindex.getHistogram());
+    IndexHistogram second = waitForHistogram(cindex, first);
+    assertEquals(1500, second.getNumValues());
+  }
+
+  private IndexHistogram waitForHistogram(CompactRangeIndex cindex,
+      IndexHistogram previous) throws InterruptedException {
+    long end = System.currentTimeMillis() + 60000;
+    IndexHistogram histogram = cindex.getHistogram();
+    while (histogram == null || histogram == previous) {
+      if (System.currentTimeMillis() > end) {
+        fail("The histogram of the index was not built");
+      }
+      Thread.sleep(10);
+      histogram = cindex.getHistogram();
+    }
+    return histogram;
+  }
+
   //Tests race condition where we possibly were missing remove calls due to transitioning
   //to an empty index elem before adding the entries
   //the fix is to add the entries to the elem and then transition to that elem
@@ -0,0 +1,117 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.cache.query.internal.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.gemstone.gemfire.test.junit.categories.UnitTest;
+
+@Category(UnitTest.class)
+public class EntryBitmapJUnitTest {
+
+  @Test
+  public void testAddRemoveContains() {
+    EntryBitmap bitmap = new EntryBitmap();
+    assertTrue(bitmap.isEmpty());
+    assertTrue(bitmap.add(5));
+    assertFalse(bitmap.add(5));
+    assertTrue(bitmap.add(70000));
+    assertTrue(bitmap.contains(5));
+    assertTrue(bitmap.contains(70000));
+    assertFalse(bitmap.contains(6));
+    assertEquals(2, bitmap.cardinality());
+    assertTrue(bitmap.remove(5));
+    assertFalse(bitmap.remove(5));
+    assertFalse(bitmap.contains(5));
+    assertEquals(1, bitmap.cardinality());
+    assertTrue(bitmap.remove(70000));
+    assertTrue(bitmap.isEmpty());
+  }
+
+  @Test
+  public void testDenseContainerConversion() {
+    EntryBitmap bitmap = new EntryBitmap();
+    int count = EntryBitmap.ARRAY_MAX_SIZE * 2;
+    for (int i = 0; i < count; i++) {
+      bitmap.add(i * 2);
+    }
+    assertEquals(count, bitmap.cardinality());
+    for (int i = 0; i < count * 2; i++) {
+      assertEquals(i % 2 == 0, bitmap.contains(i));
+    }
+    for (int i = 0; i < count - 10; i++) {
+      bitmap.remove(i * 2);
+    }
+    assertEquals(10, bitmap.cardinality());
+    assertIterates(bitmap, expected(count - 10, count));
+  }
+
+  @Test
+  public void testAndOr() {
+    EntryBitmap a = new EntryBitmap();
+    EntryBitmap b = new EntryBitmap();
+    TreeSet<Integer> expectedAnd = new TreeSet<Integer>();
+    TreeSet<Integer> expectedOr = new TreeSet<Integer>();
+    for (int i = 0; i < 20000; i++) {
+      if (i % 3 == 0) {
+        a.add(i);
+        expectedOr.add(i);
+      }
+      if (i % 5 == 0) {
+        b.add(i);
+        expectedOr.add(i);
+      }
+      if (i % 15 == 0) {
+        expectedAnd.add(i);
+      }
+    }
+    b.add(200000);
+    expectedOr.add(200000);
+    assertIterates(EntryBitmap.and(a, b), expectedAnd);
+    assertIterates(EntryBitmap.or(a, b), expectedOr);
+    // the operands are not modified
+    assertEquals(6667, a.cardinality());
+  }
+
+  @Test
+  public void testCopyIsIndependent() {
+    EntryBitmap bitmap = new EntryBitmap();
+    bitmap.add(1);
+    EntryBitmap copy = bitmap.copy();
+    copy.add(2);
+    bitmap.remove(1);
+    assertTrue(copy.contains(1));
+    assertFalse(bitmap.contains(2));
+  }
+
+  private static TreeSet<Integer> expected(int from, int to) {
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int i = from; i < to; i++) {
+      expected.add(i * 2);
+    }
+    return expected;
+  }
+
+  private static void assertIterates(EntryBitmap bitmap,
+      TreeSet<Integer> expected) {
+    assertEquals(expected.size(), bitmap.cardinality());
+    EntryBitmap.OrdinalIterator iterator = bitmap.iterator();
+    for (Integer ordinal : expected) {
+      assertTrue(iterator.hasNext());
+      assertEquals(ordinal.intValue(), iterator.next());
+    }
+    assertFalse(iterator.hasNext());
+  }
+}
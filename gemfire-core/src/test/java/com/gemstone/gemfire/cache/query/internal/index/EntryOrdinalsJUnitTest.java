@@ -0,0 +1,146 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.cache.query.internal.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.gemstone.gemfire.cache.query.CacheUtils;
+import com.gemstone.gemfire.internal.cache.RegionEntry;
+import com.gemstone.gemfire.internal.cache.RegionEntryContext;
+import com.gemstone.gemfire.internal.cache.VMThinRegionEntryHeap;
+import com.gemstone.gemfire.test.junit.categories.IntegrationTest;
+
+/**
+ * Tests {@link EntryOrdinals} against reference counts kept in an
+ * IdentityHashMap
+ */
+@Category(IntegrationTest.class)
+public class EntryOrdinalsJUnitTest {
+
+  private List<RegionEntry> entries;
+
+  @Before
+  public void setUp() throws Exception {
+    CacheUtils.startCache();
+    RegionEntryContext region = (RegionEntryContext)CacheUtils.createRegion(
+        "entries", String.class);
+    this.entries = new ArrayList<RegionEntry>();
+    for (int i = 0; i < 1000; i++) {
+      this.entries.add(VMThinRegionEntryHeap.getEntryFactory().createEntry(
+          region, "key" + i, "value" + i));
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    CacheUtils.closeCache();
+  }
+
+  @Test
+  public void testAcquireAndRelease() {
+    EntryOrdinals ordinals = new EntryOrdinals();
+    RegionEntry a = this.entries.get(0);
+    RegionEntry b = this.entries.get(1);
+    assertEquals(-1, ordinals.get(a));
+
+    int ordinalA = ordinals.acquire(a);
+    int ordinalB = ordinals.acquire(b);
+    assertTrue(ordinalA != ordinalB);
+    assertEquals(ordinalA, ordinals.acquire(a));
+    assertEquals(ordinalA, ordinals.get(a));
+    assertSame(a, ordinals.getEntry(ordinalA));
+    assertEquals(2, ordinals.size());
+
+    ordinals.release(a);
+    assertEquals(ordinalA, ordinals.get(a));
+    ordinals.release(a);
+    assertEquals(-1, ordinals.get(a));
+    assertNull(ordinals.getEntry(ordinalA));
+    assertEquals(1, ordinals.size());
+    // releasing an entry without an ordinal does nothing
+    ordinals.release(a);
+    assertEquals(1, ordinals.size());
+
+    // the released ordinal is reused
+    RegionEntry c = this.entries.get(2);
+    assertEquals(ordinalA, ordinals.acquire(c));
+    assertSame(c, ordinals.getEntry(ordinalA));
+    assertEquals(ordinalB, ordinals.get(b));
+  }
+
+  @Test
+  public void testRandomOperations() {
+    EntryOrdinals ordinals = new EntryOrdinals();
+    Map<RegionEntry, Integer> refCounts = new IdentityHashMap<RegionEntry, Integer>();
+    Map<RegionEntry, Integer> expected = new IdentityHashMap<RegionEntry, Integer>();
+    Random random = new Random(2014);
+    for (int op = 0; op < 200000; op++) {
+      // a growing working set makes the table grow and then shrink
+      int bound = op < 100000 ? 1 + op / 100 : 1 + (200000 - op) / 100;
+      RegionEntry re = this.entries.get(random.nextInt(bound));
+      Integer count = refCounts.get(re);
+      if (random.nextInt(3) > 0 || count == null) {
+        int ordinal = ordinals.acquire(re);
+        if (count == null) {
+          expected.put(re, ordinal);
+          refCounts.put(re, 1);
+        } else {
+          assertEquals(expected.get(re).intValue(), ordinal);
+          refCounts.put(re, count + 1);
+        }
+      } else {
+        ordinals.release(re);
+        if (count == 1) {
+          refCounts.remove(re);
+          expected.remove(re);
+        } else {
+          refCounts.put(re, count - 1);
+        }
+      }
+      if (op % 1000 == 0) {
+        check(ordinals, expected);
+      }
+    }
+    check(ordinals, expected);
+  }
+
+  private void check(EntryOrdinals ordinals, Map<RegionEntry, Integer> expected) {
+    assertEquals(expected.size(), ordinals.size());
+    Set<Integer> used = new HashSet<Integer>();
+    for (RegionEntry re : this.entries) {
+      Integer ordinal = expected.get(re);
+      if (ordinal == null) {
+        assertEquals(-1, ordinals.get(re));
+      } else {
+        assertEquals(ordinal.intValue(), ordinals.get(re));
+        assertSame(re, ordinals.getEntry(ordinal));
+        assertTrue("ordinal " + ordinal + " assigned twice", used.add(ordinal));
+      }
+    }
+    // ordinals are reused, so they stay below the largest number in use
+    for (Integer ordinal : used) {
+      assertTrue(ordinal < this.entries.size());
+    }
+  }
+}
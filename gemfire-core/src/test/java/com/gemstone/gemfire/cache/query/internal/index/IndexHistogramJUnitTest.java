@@ -0,0 +1,102 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.cache.query.internal.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.gemstone.gemfire.test.junit.categories.UnitTest;
+
+@Category(UnitTest.class)
+public class IndexHistogramJUnitTest {
+
+  /**
+   * Keys 0 to 99 map to 10 values each while a single outlier key of 10000
+   * maps to one value. A uniform distribution between the first and last key
+   * would estimate about 10 values below 100.
+   */
+  private IndexHistogram createSkewedHistogram() {
+    IndexHistogram.Builder builder = new IndexHistogram.Builder(1001, 0);
+    for (int i = 0; i < 100; i++) {
+      builder.add(Integer.valueOf(i), 10);
+    }
+    builder.add(Integer.valueOf(10000), 1);
+    return builder.create();
+  }
+
+  @Test
+  public void testCounts() {
+    IndexHistogram histogram = createSkewedHistogram();
+    assertEquals(1001, histogram.getNumValues());
+    assertEquals(101, histogram.getNumDistinctKeys());
+    assertEquals(9, histogram.estimateEqual());
+    assertTrue(histogram.getNumBuckets() > 1);
+    assertTrue(histogram.getNumBuckets() <= IndexHistogram.NUM_BUCKETS + 1);
+  }
+
+  @Test
+  public void testSkewedRangeEstimates() {
+    IndexHistogram histogram = createSkewedHistogram();
+    long below = histogram.estimateLessThan(Integer.valueOf(100), false);
+    assertTrue("Estimate was " + below, below >= 950 && below <= 1000);
+    long above = histogram.estimateGreaterThan(Integer.valueOf(100), false);
+    assertTrue("Estimate was " + above, above <= 51);
+    long half = histogram.estimateLessThan(Integer.valueOf(50), false);
+    assertTrue("Estimate was " + half, half >= 400 && half <= 600);
+  }
+
+  @Test
+  public void testOutOfRangeEstimates() {
+    IndexHistogram histogram = createSkewedHistogram();
+    assertEquals(0, histogram.estimateLessThan(Integer.valueOf(-1), true));
+    assertEquals(0, histogram.estimateLessThan(Integer.valueOf(0), false));
+    assertEquals(1001, histogram.estimateLessThan(Integer.valueOf(20000), false));
+    assertEquals(1001, histogram.estimateLessThan(Integer.valueOf(10000), true));
+    assertEquals(0, histogram.estimateGreaterThan(Integer.valueOf(10000), false));
+    assertEquals(1001, histogram.estimateGreaterThan(Integer.valueOf(-5), false));
+  }
+
+  @Test
+  public void testMixedNumericTypes() {
+    IndexHistogram histogram = createSkewedHistogram();
+    long below = histogram.estimateLessThan(Long.valueOf(100), false);
+    assertEquals(below, histogram.estimateLessThan(Double.valueOf(100.0d), false));
+  }
+
+  @Test
+  public void testNonNumericKeys() {
+    IndexHistogram.Builder builder = new IndexHistogram.Builder(26, 0);
+    for (char c = 'a'; c <= 'z'; c++) {
+      builder.add(String.valueOf(c), 1);
+    }
+    IndexHistogram histogram = builder.create();
+    long below = histogram.estimateLessThan("n", false);
+    assertTrue("Estimate was " + below, below >= 10 && below <= 16);
+    assertEquals(-1, histogram.estimateLessThan(Integer.valueOf(1), false));
+  }
+
+  @Test
+  public void testEmptyHistogram() {
+    IndexHistogram histogram = new IndexHistogram.Builder(0, 0).create();
+    assertEquals(0, histogram.getNumValues());
+    assertEquals(0, histogram.estimateEqual());
+    assertEquals(0, histogram.estimateLessThan(Integer.valueOf(1), true));
+    assertEquals(0, histogram.estimateGreaterThan(Integer.valueOf(1), true));
+  }
+
+  @Test
+  public void testStaleness() {
+    IndexHistogram histogram = createSkewedHistogram();
+    assertFalse(histogram.isStale(10));
+    assertTrue(histogram.isStale(1000));
+  }
+}
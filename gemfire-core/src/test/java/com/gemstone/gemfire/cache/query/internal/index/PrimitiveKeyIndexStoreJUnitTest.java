@@ -0,0 +1,149 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.cache.query.internal.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.gemstone.gemfire.cache.query.internal.index.PrimitiveKeyIndexStore.KeyType;
+import com.gemstone.gemfire.test.junit.categories.UnitTest;
+
+@Category(UnitTest.class)
+public class PrimitiveKeyIndexStoreJUnitTest {
+
+  private static final double[] DOUBLES = { Double.NEGATIVE_INFINITY,
+      -Double.MAX_VALUE, -1.5d, -Double.MIN_VALUE, -0.0d, 0.0d,
+      Double.MIN_VALUE, 1.0d, 1.5d, Double.MAX_VALUE,
+      Double.POSITIVE_INFINITY, Double.NaN };
+
+  @Test
+  public void testKeyTypeForKey() {
+    assertEquals(KeyType.INTEGER, KeyType.forKey(Integer.valueOf(1)));
+    assertEquals(KeyType.LONG, KeyType.forKey(Long.valueOf(1)));
+    assertEquals(KeyType.FLOAT, KeyType.forKey(Float.valueOf(1)));
+    assertEquals(KeyType.DOUBLE, KeyType.forKey(Double.valueOf(1)));
+    assertEquals(KeyType.DATE, KeyType.forKey(new Date()));
+    assertEquals(KeyType.TIMESTAMP, KeyType.forKey(new Timestamp(0)));
+    // outside of the nanosecond range of a long
+    assertNull(KeyType.forKey(new Timestamp(Long.MAX_VALUE / 1000)));
+    assertNull(KeyType.forKey("1"));
+    assertNull(KeyType.forKey(null));
+  }
+
+  @Test
+  public void testDoubleEncodingPreservesOrder() {
+    for (int i = 0; i < DOUBLES.length; i++) {
+      Double d = Double.valueOf(DOUBLES[i]);
+      long encoded = KeyType.DOUBLE.encode(d);
+      assertEquals(d, KeyType.DOUBLE.decode(encoded));
+      for (int j = 0; j < DOUBLES.length; j++) {
+        Double other = Double.valueOf(DOUBLES[j]);
+        assertEquals(Integer.signum(d.compareTo(other)),
+            Long.signum(Long.valueOf(encoded).compareTo(
+                Long.valueOf(KeyType.DOUBLE.encode(other)))));
+      }
+    }
+  }
+
+  @Test
+  public void testFloatEncodingRoundTrips() {
+    float[] floats = { Float.NEGATIVE_INFINITY, -2.5f, -0.0f, 0.0f, 0.1f,
+        Float.MAX_VALUE, Float.NaN };
+    long previous = Long.MIN_VALUE;
+    for (float f : floats) {
+      long encoded = KeyType.FLOAT.encode(Float.valueOf(f));
+      assertEquals(Float.valueOf(f), KeyType.FLOAT.decode(encoded));
+      assertTrue(encoded > previous);
+      previous = encoded;
+    }
+  }
+
+  @Test
+  public void testIntegralKeysRoundTrip() {
+    assertEquals(Integer.valueOf(Integer.MIN_VALUE),
+        KeyType.INTEGER.decode(KeyType.INTEGER.encode(Integer
+            .valueOf(Integer.MIN_VALUE))));
+    assertEquals(Long.valueOf(Long.MAX_VALUE),
+        KeyType.LONG.decode(KeyType.LONG.encode(Long.valueOf(Long.MAX_VALUE))));
+    Date date = new Date(1234567L);
+    assertEquals(date, KeyType.DATE.decode(KeyType.DATE.encode(date)));
+  }
+
+  @Test
+  public void testTimestampEncodingPreservesOrder() {
+    long[] times = { -9000000000000L, -1001L, -1000L, -1L, 0L, 1L, 999L,
+        1000L, 1234567890123L, 9000000000000L };
+    int[] nanos = { 0, 1, 999999, 500000000, 999999999 };
+    List<Timestamp> timestamps = new ArrayList<Timestamp>();
+    for (long time : times) {
+      for (int n : nanos) {
+        Timestamp ts = new Timestamp(time);
+        ts.setNanos(n);
+        timestamps.add(ts);
+      }
+    }
+    for (Timestamp ts : timestamps) {
+      long encoded = KeyType.TIMESTAMP.encode(ts);
+      assertEquals(ts, KeyType.TIMESTAMP.decode(encoded));
+      for (Timestamp other : timestamps) {
+        assertEquals(Integer.signum(ts.compareTo(other)),
+            Long.signum(Long.valueOf(encoded).compareTo(
+                Long.valueOf(KeyType.TIMESTAMP.encode(other)))));
+      }
+    }
+  }
+
+  @Test
+  public void testTimestampHintsCoverTheMillisecond() {
+    Timestamp ts = new Timestamp(5000L);
+    ts.setNanos(123456789);
+    Date date = new Date(ts.getTime());
+    long lower = KeyType.TIMESTAMP.hint(date, true);
+    long upper = KeyType.TIMESTAMP.hint(date, false);
+    Timestamp first = new Timestamp(ts.getTime());
+    Timestamp last = new Timestamp(ts.getTime());
+    last.setNanos(123999999);
+    assertTrue(lower < KeyType.TIMESTAMP.encode(first));
+    assertTrue(upper > KeyType.TIMESTAMP.encode(last));
+    assertTrue(KeyType.TIMESTAMP.isExact(ts));
+    assertFalse(KeyType.TIMESTAMP.isExact(date));
+  }
+
+  @Test
+  public void testExactSearchKeys() {
+    assertTrue(KeyType.INTEGER.isExact(Long.valueOf(5)));
+    assertTrue(KeyType.LONG.isExact(Integer.valueOf(5)));
+    assertFalse(KeyType.INTEGER.isExact(Double.valueOf(5)));
+    assertFalse(KeyType.DOUBLE.isExact(Float.valueOf(5)));
+    assertFalse(KeyType.DATE.isExact(new Timestamp(5)));
+    assertEquals(5L, KeyType.INTEGER.encodeExact(Long.valueOf(5)));
+  }
+
+  @Test
+  public void testHintsAreConservative() {
+    assertTrue(KeyType.INTEGER.hint(Double.valueOf(5.5d), true) <= 5);
+    assertTrue(KeyType.INTEGER.hint(Double.valueOf(5.5d), false) >= 6);
+    assertEquals(Long.MIN_VALUE, KeyType.LONG.hint(Double.valueOf(1.0E19d),
+        true));
+    assertEquals(Long.MAX_VALUE, KeyType.INTEGER.hint("5", false));
+    long lower = KeyType.FLOAT.hint(Double.valueOf(0.1d), true);
+    assertTrue(lower <= KeyType.FLOAT.encode(Float.valueOf(0.1f)));
+    long upper = KeyType.DOUBLE.hint(Integer.valueOf(3), false);
+    assertTrue(upper >= KeyType.DOUBLE.encode(Double.valueOf(3.0d)));
+  }
+}
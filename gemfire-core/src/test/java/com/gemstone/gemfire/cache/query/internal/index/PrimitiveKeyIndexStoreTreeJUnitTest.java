@@ -0,0 +1,451 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.cache.query.internal.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.gemstone.gemfire.cache.AttributesFactory;
+import com.gemstone.gemfire.cache.DataPolicy;
+import com.gemstone.gemfire.cache.query.CacheUtils;
+import com.gemstone.gemfire.cache.query.QueryService;
+import com.gemstone.gemfire.cache.query.data.Portfolio;
+import com.gemstone.gemfire.cache.query.internal.index.AbstractIndex.InternalIndexStatistics;
+import com.gemstone.gemfire.cache.query.internal.index.IndexStore.IndexStoreEntry;
+import com.gemstone.gemfire.internal.cache.LocalRegion;
+import com.gemstone.gemfire.internal.cache.RegionEntry;
+import com.gemstone.gemfire.internal.cache.RegionEntryContext;
+import com.gemstone.gemfire.internal.cache.VMThinRegionEntryHeap;
+import com.gemstone.gemfire.internal.cache.persistence.query.CloseableIterator;
+import com.gemstone.gemfire.test.junit.categories.IntegrationTest;
+
+/**
+ * Checks the B+tree of {@link PrimitiveKeyIndexStore} against a TreeMap
+ * holding the same mappings, through enough adds and removes to split and
+ * merge nodes on several levels.
+ */
+@Category(IntegrationTest.class)
+public class PrimitiveKeyIndexStoreTreeJUnitTest {
+
+  private LocalRegion region;
+
+  private CountingStatistics stats;
+
+  private PrimitiveKeyIndexStore store;
+
+  /** the expected mappings */
+  private TreeMap<Integer, Set<RegionEntry>> expected;
+
+  /** the key each entry is currently mapped to */
+  private Map<RegionEntry, Integer> keyOf;
+
+  private List<RegionEntry> entries;
+
+  @Before
+  public void setUp() throws Exception {
+    CacheUtils.startCache();
+    AttributesFactory factory = new AttributesFactory();
+    factory.setDataPolicy(DataPolicy.NORMAL);
+    factory.setIndexMaintenanceSynchronous(true);
+    this.region = (LocalRegion)CacheUtils.getCache().createRegion(
+        "portfolios", factory.create());
+    this.stats = new CountingStatistics();
+    this.store = new PrimitiveKeyIndexStore(this.region, this.stats);
+    this.expected = new TreeMap<Integer, Set<RegionEntry>>();
+    this.keyOf = new HashMap<RegionEntry, Integer>();
+    this.entries = new ArrayList<RegionEntry>();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    this.region.destroyRegion();
+    CacheUtils.closeCache();
+  }
+
+  @Test
+  public void testRandomOperationsMatchTreeMap() throws Exception {
+    createEntries(3000);
+    Random random = new Random(17);
+    for (int op = 0; op < 30000; op++) {
+      RegionEntry entry = this.entries.get(random.nextInt(this.entries.size()));
+      Integer oldKey = this.keyOf.get(entry);
+      Integer newKey = Integer.valueOf(random.nextInt(4000) - 2000);
+      if (oldKey == null) {
+        add(newKey, entry);
+      }
+      else if (random.nextBoolean()) {
+        remove(oldKey, entry);
+      }
+      else {
+        update(newKey, oldKey, entry);
+      }
+      if (op % 5000 == 0) {
+        verify();
+      }
+    }
+    verify();
+    verifyRanges(random);
+    assertTrue(this.store.isPrimitiveMode());
+  }
+
+  @Test
+  public void testGrowAndShrink() throws Exception {
+    int count = PrimitiveKeyIndexStore.NODE_SIZE
+        * PrimitiveKeyIndexStore.NODE_SIZE * 2;
+    createEntries(count);
+    // ascending keys always split the last node
+    for (int i = 0; i < count; i++) {
+      add(Integer.valueOf(i), this.entries.get(i));
+    }
+    verify();
+    // removing every other key leaves half empty leaves to be merged
+    for (int i = 0; i < count; i += 2) {
+      remove(Integer.valueOf(i), this.entries.get(i));
+    }
+    verify();
+    verifyRanges(new Random(3));
+    // descending removes empty the tree from the end
+    for (int i = count - 1; i >= 0; i -= 2) {
+      remove(Integer.valueOf(i), this.entries.get(i));
+    }
+    verify();
+    assertEquals(0, this.store.size());
+    add(Integer.valueOf(42), this.entries.get(0));
+    verify();
+  }
+
+  @Test
+  public void testDuplicateKeys() throws Exception {
+    // enough entries per key to go from a single entry to an IndexElemArray
+    // and on to an IndexConcurrentHashSet
+    createEntries(IndexManager.INDEX_ELEMARRAY_THRESHOLD * 3 + 10);
+    for (int i = 0; i < this.entries.size(); i++) {
+      add(Integer.valueOf(i % 3), this.entries.get(i));
+    }
+    verify();
+    for (int i = 0; i < 3; i++) {
+      assertEquals(this.expected.get(Integer.valueOf(i)).size(),
+          this.store.size(Integer.valueOf(i)));
+      assertEquals(this.expected.get(Integer.valueOf(i)).size(),
+          this.store.size(Long.valueOf(i)));
+    }
+    for (int i = 0; i < this.entries.size(); i += 2) {
+      remove(Integer.valueOf(i % 3), this.entries.get(i));
+    }
+    verify();
+  }
+
+  @Test
+  public void testNullAndUndefinedKeys() throws Exception {
+    createEntries(10);
+    for (int i = 0; i < 6; i++) {
+      add(Integer.valueOf(i), this.entries.get(i));
+    }
+    this.store.addMapping(IndexManager.NULL, this.entries.get(6));
+    this.store.addMapping(IndexManager.NULL, this.entries.get(7));
+    this.store.addMapping(QueryService.UNDEFINED, this.entries.get(8));
+    assertEquals(2, this.store.size(IndexManager.NULL));
+    assertEquals(1, this.store.size(QueryService.UNDEFINED));
+    assertEquals(2, count(this.store.get(IndexManager.NULL)));
+    // range scans skip the null and undefined keys
+    assertEquals(6, count(this.store.iterator(null)));
+    assertEquals(8, this.stats.numKeys);
+    assertEquals(9, this.stats.numValues);
+    this.store.removeMapping(IndexManager.NULL, this.entries.get(6));
+    assertEquals(1, this.store.size(IndexManager.NULL));
+  }
+
+  @Test
+  public void testBulkLoad() throws Exception {
+    int count = PrimitiveKeyIndexStore.NODE_SIZE * 40 + 3;
+    createEntries(count);
+    Object[] keys = new Object[count];
+    RegionEntry[] loaded = new RegionEntry[count];
+    Random random = new Random(5);
+    for (int i = 0; i < count; i++) {
+      Integer key = Integer.valueOf(random.nextInt(count / 2));
+      keys[i] = i == 7 ? IndexManager.NULL : key;
+      loaded[i] = this.entries.get(i);
+      if (i != 7) {
+        expect(key, loaded[i]);
+      }
+    }
+    this.store.bulkLoad(keys, loaded, count);
+    assertEquals(1, this.store.size(IndexManager.NULL));
+    this.store.removeMapping(IndexManager.NULL, loaded[7]);
+    verify();
+    verifyRanges(random);
+    // the bulk loaded tree is maintained like any other
+    for (int i = 0; i < count; i += 3) {
+      if (i != 7) {
+        remove((Integer)keys[i], loaded[i]);
+      }
+    }
+    verify();
+  }
+
+  @Test
+  public void testBulkLoadFallsBackForMixedTypes() throws Exception {
+    createEntries(4);
+    Object[] keys = { Integer.valueOf(3), Integer.valueOf(1),
+        Double.valueOf(2.5d), Integer.valueOf(2) };
+    this.store.bulkLoad(keys, this.entries.toArray(new RegionEntry[4]), 4);
+    assertFalse(this.store.isPrimitiveMode());
+    List<Object> keysFound = iterateKeys(this.store.iterator(null));
+    assertEquals(4, keysFound.size());
+    assertEquals(Integer.valueOf(1), keysFound.get(0));
+    assertEquals(Double.valueOf(2.5d), keysFound.get(2));
+    assertEquals(4, this.stats.numKeys);
+    assertEquals(4, this.stats.numValues);
+  }
+
+  @Test
+  public void testFallbackToGenericStore() throws Exception {
+    int count = PrimitiveKeyIndexStore.NODE_SIZE * 30;
+    createEntries(count + 1);
+    for (int i = 0; i < count; i++) {
+      add(Integer.valueOf(i), this.entries.get(i));
+    }
+    CloseableIterator<IndexStoreEntry> open = this.store.iterator(null);
+    List<Object> keysFound = new ArrayList<Object>();
+    for (int i = 0; i < 10; i++) {
+      keysFound.add(open.next().getDeserializedKey());
+    }
+
+    // a key of another type moves every mapping to the generic store
+    Double other = Double.valueOf(count / 2 + 0.5d);
+    this.store.addMapping(other, this.entries.get(count));
+    assertFalse(this.store.isPrimitiveMode());
+    assertEquals(count + 1, this.store.size());
+    assertEquals(count + 1, this.stats.numKeys);
+    assertEquals(count + 1, this.stats.numValues);
+
+    // the open iterator continues in the generic store
+    keysFound.addAll(iterateKeys(open));
+    assertEquals(count + 1, keysFound.size());
+    for (int i = 1; i < keysFound.size(); i++) {
+      assertTrue(keysFound.get(i - 1) + " before " + keysFound.get(i),
+          ((Number)keysFound.get(i - 1)).doubleValue()
+          < ((Number)keysFound.get(i)).doubleValue());
+    }
+    assertEquals(2, count(this.store.iterator(Integer.valueOf(count / 2),
+        true, Integer.valueOf(count / 2 + 1), false, null)));
+
+    // later changes are applied to the generic store
+    this.store.removeMapping(Integer.valueOf(0), this.entries.get(0));
+    this.store.removeMapping(other, this.entries.get(count));
+    assertEquals(count - 1, this.store.size());
+    assertEquals(count - 1, count(this.store.iterator(null)));
+    assertEquals(count - 1, this.stats.numValues);
+  }
+
+  @Test
+  public void testTimestampKeys() throws Exception {
+    createEntries(300);
+    TreeMap<Timestamp, RegionEntry> timestamps = new TreeMap<Timestamp, RegionEntry>();
+    for (int i = 0; i < this.entries.size(); i++) {
+      Timestamp ts = new Timestamp(1000000L + (i % 100));
+      ts.setNanos(ts.getNanos() + (i / 100) * 1000);
+      timestamps.put(ts, this.entries.get(i));
+      this.store.addMapping(ts, this.entries.get(i));
+    }
+    assertTrue(this.store.isPrimitiveMode());
+    List<Object> keysFound = iterateKeys(this.store.iterator(null));
+    assertEquals(new ArrayList<Object>(timestamps.keySet()), keysFound);
+
+    Timestamp from = new ArrayList<Timestamp>(timestamps.keySet()).get(50);
+    Timestamp to = new ArrayList<Timestamp>(timestamps.keySet()).get(120);
+    assertEquals(new ArrayList<Object>(timestamps.descendingMap()
+        .subMap(to, true, from, false).keySet()),
+        iterateKeys(this.store.descendingIterator(from, false, to, true,
+            null)));
+  }
+
+  private void createEntries(int count) {
+    for (int i = 0; i < count; i++) {
+      String regionKey = "" + i;
+      this.entries.add(VMThinRegionEntryHeap.getEntryFactory().createEntry(
+          (RegionEntryContext)this.region, regionKey, new Portfolio(i)));
+    }
+  }
+
+  private void add(Integer key, RegionEntry entry) throws Exception {
+    this.store.addMapping(key, entry);
+    expect(key, entry);
+  }
+
+  private void expect(Integer key, RegionEntry entry) {
+    Set<RegionEntry> values = this.expected.get(key);
+    if (values == null) {
+      values = new HashSet<RegionEntry>();
+      this.expected.put(key, values);
+    }
+    values.add(entry);
+    this.keyOf.put(entry, key);
+  }
+
+  private void remove(Integer key, RegionEntry entry) throws Exception {
+    this.store.removeMapping(key, entry);
+    unexpect(key, entry);
+  }
+
+  private void unexpect(Integer key, RegionEntry entry) {
+    Set<RegionEntry> values = this.expected.get(key);
+    values.remove(entry);
+    if (values.isEmpty()) {
+      this.expected.remove(key);
+    }
+    this.keyOf.remove(entry);
+  }
+
+  private void update(Integer newKey, Integer oldKey, RegionEntry entry)
+      throws Exception {
+    this.store.updateMapping(newKey, oldKey, entry, null);
+    unexpect(oldKey, entry);
+    expect(newKey, entry);
+  }
+
+  /**
+   * Checks the whole store, the key counts and the statistics against the
+   * expected mappings
+   */
+  private void verify() {
+    assertEquals(this.expected.size(), this.store.size());
+    assertEquals(this.expected.size(), this.stats.numKeys);
+    assertEquals(this.keyOf.size(), this.stats.numValues);
+    verifyIterator(this.expected, this.store.iterator(null));
+    verifyIterator(this.expected.descendingMap(),
+        this.store.descendingIterator(null));
+    for (Map.Entry<Integer, Set<RegionEntry>> e : this.expected.entrySet()) {
+      assertEquals(e.getValue().size(), this.store.size(e.getKey()));
+    }
+  }
+
+  /**
+   * Checks random ranges with every combination of inclusive bounds, in both
+   * directions, with integral and floating point bounds
+   */
+  private void verifyRanges(Random random) {
+    if (this.expected.isEmpty()) {
+      return;
+    }
+    int low = this.expected.firstKey().intValue() - 5;
+    int high = this.expected.lastKey().intValue() + 5;
+    for (int i = 0; i < 200; i++) {
+      int from = low + random.nextInt(high - low + 1);
+      int to = from + random.nextInt(high - from + 1);
+      boolean fromInclusive = random.nextBoolean();
+      boolean toInclusive = random.nextBoolean();
+      Integer fromKey = Integer.valueOf(from);
+      Integer toKey = Integer.valueOf(to);
+      if (from == to && !(fromInclusive && toInclusive)) {
+        continue;
+      }
+      NavigableMap<Integer, Set<RegionEntry>> range = this.expected.subMap(
+          fromKey, fromInclusive, toKey, toInclusive);
+      verifyIterator(range, this.store.iterator(fromKey, fromInclusive,
+          toKey, toInclusive, null));
+      verifyIterator(range.descendingMap(), this.store.descendingIterator(
+          fromKey, fromInclusive, toKey, toInclusive, null));
+      verifyIterator(this.expected.tailMap(fromKey, fromInclusive),
+          this.store.iterator(fromKey, fromInclusive, null));
+      verifyIterator(this.expected.tailMap(fromKey, fromInclusive)
+          .descendingMap(), this.store.descendingIterator(fromKey,
+          fromInclusive, null));
+      // bounds of another numeric type only seed the scan position
+      verifyIterator(this.expected.subMap(fromKey, true, toKey, true),
+          this.store.iterator(Double.valueOf(from - 0.5d), false,
+              Double.valueOf(to + 0.5d), true, null));
+      verifyIterator(this.expected.subMap(fromKey, true, toKey, true)
+          .descendingMap(), this.store.descendingIterator(Long.valueOf(from),
+          true, Long.valueOf(to), true, null));
+    }
+  }
+
+  private void verifyIterator(Map<Integer, Set<RegionEntry>> expectedRange,
+      CloseableIterator<IndexStoreEntry> iterator) {
+    try {
+      Integer currentKey = null;
+      Set<RegionEntry> found = new HashSet<RegionEntry>();
+      List<Integer> keys = new ArrayList<Integer>();
+      while (iterator.hasNext()) {
+        IndexStoreEntry entry = iterator.next();
+        Integer key = (Integer)entry.getDeserializedKey();
+        if (!key.equals(currentKey)) {
+          if (currentKey != null) {
+            assertEquals(expectedRange.get(currentKey), found);
+          }
+          keys.add(key);
+          currentKey = key;
+          found = new HashSet<RegionEntry>();
+        }
+        assertTrue(found.add(((PrimitiveKeyIndexStore.PrimitiveKeyIndexStoreEntry)entry)
+            .getRegionEntry()));
+      }
+      if (currentKey != null) {
+        assertEquals(expectedRange.get(currentKey), found);
+      }
+      assertEquals(new ArrayList<Integer>(expectedRange.keySet()), keys);
+    } finally {
+      iterator.close();
+    }
+  }
+
+  private static List<Object> iterateKeys(
+      CloseableIterator<IndexStoreEntry> iterator) {
+    List<Object> keys = new ArrayList<Object>();
+    try {
+      while (iterator.hasNext()) {
+        keys.add(iterator.next().getDeserializedKey());
+      }
+    } finally {
+      iterator.close();
+    }
+    return keys;
+  }
+
+  private static int count(CloseableIterator<IndexStoreEntry> iterator) {
+    return iterateKeys(iterator).size();
+  }
+
+  /**
+   * Keeps the key and value counts the store reports
+   */
+  private static class CountingStatistics extends InternalIndexStatistics {
+    long numKeys;
+
+    long numValues;
+
+    @Override
+    public void incNumKeys(long count) {
+      this.numKeys += count;
+    }
+
+    @Override
+    public void incNumValues(int delta) {
+      this.numValues += delta;
+    }
+  }
+}
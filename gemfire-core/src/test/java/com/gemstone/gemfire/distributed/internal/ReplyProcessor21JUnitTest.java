@@ -0,0 +1,202 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.distributed.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.gemstone.gemfire.distributed.DistributedSystem;
+import com.gemstone.gemfire.distributed.internal.membership.InternalDistributedMember;
+import com.gemstone.gemfire.test.junit.categories.IntegrationTest;
+
+/**
+ * Tests that {@link ReplyProcessor21} counts down the members it waits on
+ * as replies come in and members leave, and finishes exactly once.
+ */
+@Category(IntegrationTest.class)
+public class ReplyProcessor21JUnitTest {
+
+  private InternalDistributedSystem system;
+
+  @Before
+  public void setUp() {
+    Properties props = new Properties();
+    props.setProperty(DistributionConfig.MCAST_PORT_NAME, "0");
+    props.setProperty(DistributionConfig.LOCATORS_NAME, "");
+    this.system = (InternalDistributedSystem)DistributedSystem.connect(props);
+  }
+
+  @After
+  public void tearDown() {
+    if (this.system != null) {
+      this.system.disconnect();
+    }
+  }
+
+  @Test
+  public void testSingleMember() throws Exception {
+    InternalDistributedMember a = member(1);
+    CountingProcessor processor = new CountingProcessor(this.system, Arrays.asList(a));
+    assertEquals(1, processor.numMembers());
+    assertTrue(processor.waitingOnMember(a));
+    assertFalse(processor.waitingOnMember(member(2)));
+
+    // a reply from a member that was not asked changes nothing
+    processor.process(reply(member(2), processor));
+    assertEquals(1, processor.numMembers());
+    assertEquals(0, processor.finishes.get());
+
+    processor.process(reply(a, processor));
+    assertEquals(0, processor.numMembers());
+    assertFalse(processor.waitingOnMember(a));
+    assertTrue(processor.waitForReplies(1000));
+    assertEquals(1, processor.finishes.get());
+
+    // a late duplicate neither counts nor finishes again
+    processor.process(reply(a, processor));
+    assertEquals(0, processor.numMembers());
+    assertEquals(1, processor.finishes.get());
+  }
+
+  @Test
+  public void testRepliesAndDepartures() throws Exception {
+    InternalDistributedMember a = member(1);
+    InternalDistributedMember b = member(2);
+    InternalDistributedMember c = member(3);
+    // a is expected to reply twice
+    CountingProcessor processor = new CountingProcessor(this.system,
+        Arrays.asList(a, b, a, c));
+    assertEquals(4, processor.numMembers());
+
+    // one reply only accounts for one of a's cells
+    processor.process(reply(a, processor));
+    assertEquals(3, processor.numMembers());
+    assertTrue(processor.waitingOnMember(a));
+
+    // a departure accounts for all of them
+    processor.memberDeparted(a, true);
+    assertEquals(2, processor.numMembers());
+    assertFalse(processor.waitingOnMember(a));
+    processor.memberDeparted(a, true);
+    assertEquals(2, processor.numMembers());
+
+    processor.memberDeparted(b, false);
+    assertEquals(1, processor.numMembers());
+    assertEquals(0, processor.finishes.get());
+
+    processor.process(reply(c, processor));
+    assertEquals(0, processor.numMembers());
+    assertTrue(processor.waitForReplies(1000));
+    assertEquals(1, processor.finishes.get());
+  }
+
+  @Test
+  public void testNoMembers() throws Exception {
+    CountingProcessor processor = new CountingProcessor(this.system,
+        new ArrayList<InternalDistributedMember>());
+    assertEquals(0, processor.numMembers());
+    assertFalse(processor.waitingOnMember(member(1)));
+    assertTrue(processor.waitForReplies(1000));
+  }
+
+  @Test
+  public void testConcurrentReplies() throws Exception {
+    final int threads = 8;
+    final int perThread = 50;
+    final List<InternalDistributedMember> members = new ArrayList<InternalDistributedMember>();
+    for (int i = 0; i < threads * perThread; i++) {
+      members.add(member(i + 1));
+    }
+    final CountingProcessor processor = new CountingProcessor(this.system, members);
+    final CyclicBarrier barrier = new CyclicBarrier(threads);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Object>> results = new ArrayList<Future<Object>>();
+      for (int t = 0; t < threads; t++) {
+        final int first = t * perThread;
+        results.add(executor.submit(new Callable<Object>() {
+          public Object call() throws Exception {
+            barrier.await();
+            for (int i = first; i < first + perThread; i++) {
+              InternalDistributedMember m = members.get(i);
+              if (i % 5 == 0) {
+                processor.memberDeparted(m, true);
+              } else {
+                processor.process(reply(m, processor));
+              }
+            }
+            return null;
+          }
+        }));
+      }
+      assertTrue(processor.waitForReplies(60000));
+      for (Future<Object> f : results) {
+        f.get(60, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(0, processor.numMembers());
+    assertEquals(1, processor.finishes.get());
+  }
+
+  private static InternalDistributedMember member(int port) throws Exception {
+    return new InternalDistributedMember("localhost", port);
+  }
+
+  private static ReplyMessage reply(InternalDistributedMember sender,
+      ReplyProcessor21 processor) {
+    ReplyMessage reply = new ReplyMessage();
+    reply.setProcessorId(processor.getProcessorId());
+    reply.setSender(sender);
+    return reply;
+  }
+
+  /**
+   * Counts how often the processor finishes. The members are made up, so
+   * they are not in the view and must not be treated as departed when the
+   * wait starts.
+   */
+  private static class CountingProcessor extends ReplyProcessor21 {
+    final AtomicInteger finishes = new AtomicInteger();
+
+    CountingProcessor(InternalDistributedSystem system,
+        Collection<InternalDistributedMember> members) {
+      super(system, members);
+    }
+
+    @Override
+    protected void postFinish() {
+      this.finishes.incrementAndGet();
+    }
+
+    @Override
+    protected void processActiveMembers(Set activeMembers) {
+    }
+  }
+}
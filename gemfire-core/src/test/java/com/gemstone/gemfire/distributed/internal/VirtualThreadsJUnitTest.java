@@ -0,0 +1,79 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.distributed.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.gemstone.gemfire.test.junit.categories.UnitTest;
+
+/**
+ * Tests {@link VirtualThreads}
+ */
+@Category(UnitTest.class)
+public class VirtualThreadsJUnitTest {
+
+  @Test
+  public void testSupportedVersions() {
+    assertFalse(VirtualThreads.isSupportedVersion(null));
+    assertFalse(VirtualThreads.isSupportedVersion(""));
+    assertFalse(VirtualThreads.isSupportedVersion("1.7"));
+    assertFalse(VirtualThreads.isSupportedVersion("1.8"));
+    assertFalse(VirtualThreads.isSupportedVersion("11"));
+    assertFalse(VirtualThreads.isSupportedVersion("21"));
+    assertFalse(VirtualThreads.isSupportedVersion("23"));
+    assertTrue(VirtualThreads.isSupportedVersion("24"));
+    assertTrue(VirtualThreads.isSupportedVersion("25"));
+    assertTrue(VirtualThreads.isSupportedVersion("26-ea"));
+  }
+
+  @Test
+  public void testSupportedOnThisJVM() {
+    assertEquals(VirtualThreads.isSupportedVersion(
+        System.getProperty("java.specification.version")),
+        VirtualThreads.isSupported());
+  }
+
+  @Test
+  public void testUncaughtExceptionGoesToHandler() throws Exception {
+    if (!VirtualThreads.isSupported()) {
+      return;
+    }
+    final RuntimeException failure = new RuntimeException("expected");
+    final AtomicReference<Thread> failedThread = new AtomicReference<Thread>();
+    final AtomicReference<Throwable> caught = new AtomicReference<Throwable>();
+    final CountDownLatch handled = new CountDownLatch(1);
+    Thread.UncaughtExceptionHandler handler = new Thread.UncaughtExceptionHandler() {
+      public void uncaughtException(Thread t, Throwable e) {
+        failedThread.set(t);
+        caught.set(e);
+        handled.countDown();
+      }
+    };
+    Thread thread = VirtualThreads.newThread(new Runnable() {
+      public void run() {
+        throw failure;
+      }
+    }, "VirtualThreadsJUnitTest", handler);
+    assertEquals("VirtualThreadsJUnitTest", thread.getName());
+    assertTrue(thread.isDaemon());
+    thread.start();
+    assertTrue(handled.await(60, TimeUnit.SECONDS));
+    assertSame(thread, failedThread.get());
+    assertSame(failure, caught.get());
+  }
+}
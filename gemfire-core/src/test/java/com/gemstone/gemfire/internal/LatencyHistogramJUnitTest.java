@@ -0,0 +1,71 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.gemstone.gemfire.test.junit.categories.UnitTest;
+
+@Category(UnitTest.class)
+public class LatencyHistogramJUnitTest {
+
+  @Test
+  public void testBucketsCoverValues() {
+    long previousHighest = -1;
+    for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+      long highest = LatencyHistogram.highestValueOf(i);
+      assertTrue(highest > previousHighest);
+      assertEquals(i, LatencyHistogram.bucketOf(previousHighest + 1));
+      assertEquals(i, LatencyHistogram.bucketOf(highest));
+      previousHighest = highest;
+    }
+    assertEquals(LatencyHistogram.MAX_VALUE, previousHighest);
+    assertEquals(LatencyHistogram.BUCKETS - 1,
+        LatencyHistogram.bucketOf(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long i = 1; i <= 10000; i++) {
+      histogram.record(i * 1000);
+    }
+    long[] counts = new long[LatencyHistogram.BUCKETS];
+    long total = histogram.drainTo(counts);
+    assertEquals(10000, total);
+    assertEquals(10000000, histogram.drainMax());
+    assertClose(5000000, LatencyHistogram.valueAtPercentile(counts, total, 50));
+    assertClose(9900000, LatencyHistogram.valueAtPercentile(counts, total, 99));
+    assertClose(9999000, LatencyHistogram.valueAtPercentile(counts, total, 99.99));
+    assertClose(1000, LatencyHistogram.valueAtPercentile(counts, total, 0));
+  }
+
+  @Test
+  public void testDrainStartsOver() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(5);
+    histogram.record(-1);
+    long[] counts = new long[LatencyHistogram.BUCKETS];
+    assertEquals(2, histogram.drainTo(counts));
+    assertEquals(1, counts[0]);
+    assertEquals(1, counts[5]);
+    assertEquals(5, histogram.drainMax());
+    assertEquals(0, histogram.drainTo(counts));
+    assertEquals(0, histogram.drainMax());
+    assertEquals(0, LatencyHistogram.valueAtPercentile(counts, 0, 99));
+  }
+
+  private static void assertClose(long expected, long actual) {
+    assertTrue("expected " + expected + " but was " + actual,
+        actual >= expected && actual <= expected + expected / LatencyHistogram.SUB_BUCKETS);
+  }
+}
@@ -0,0 +1,144 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.cache;
+
+import java.io.File;
+
+import com.gemstone.gemfire.cache.AttributesFactory;
+import com.gemstone.gemfire.cache.DataPolicy;
+import com.gemstone.gemfire.cache.DiskStore;
+import com.gemstone.gemfire.cache.DiskStoreFactory;
+import com.gemstone.gemfire.cache.EvictionAction;
+import com.gemstone.gemfire.cache.EvictionAttributes;
+import com.gemstone.gemfire.cache.Region;
+import com.gemstone.gemfire.cache.Scope;
+import com.gemstone.gemfire.cache30.CacheTestCase;
+import com.gemstone.gemfire.internal.OSProcess;
+import com.gemstone.gemfire.internal.cache.lru.LRUStatistics;
+
+import dunit.Host;
+import dunit.SerializableRunnable;
+import dunit.VM;
+
+/**
+ * Tests that with {@link InitialImageOperation#DIRECT_TO_DISK} the values of
+ * an initial image go straight to disk in a region that overflows to disk,
+ * and that without it they stay in memory.
+ */
+public class GIIDirectToDiskDUnitTest extends CacheTestCase {
+
+  private static final String REGION_NAME = "region";
+
+  private static final int NUM_ENTRIES = 200;
+
+  /** well above NUM_ENTRIES, so LRU eviction never kicks in */
+  private static final int LRU_LIMIT = 10 * NUM_ENTRIES;
+
+  public GIIDirectToDiskDUnitTest(String name) {
+    super(name);
+  }
+
+  @Override
+  public void tearDown2() throws Exception {
+    invokeInEveryVM(new SerializableRunnable("reset direct to disk") {
+      public void run() {
+        InitialImageOperation.DIRECT_TO_DISK = false;
+      }
+    });
+    super.tearDown2();
+  }
+
+  public void testOverflowImageGoesToDisk() throws Exception {
+    doTest(false, true);
+  }
+
+  public void testPersistentOverflowImageGoesToDisk() throws Exception {
+    doTest(true, true);
+  }
+
+  public void testOverflowImageStaysInMemoryByDefault() throws Exception {
+    doTest(false, false);
+  }
+
+  private void doTest(final boolean persistent, final boolean directToDisk) {
+    Host host = Host.getHost(0);
+    VM vm0 = host.getVM(0);
+    VM vm1 = host.getVM(1);
+
+    createRegion(vm0, persistent);
+    vm0.invoke(new SerializableRunnable("create data") {
+      public void run() {
+        Region region = getCache().getRegion(REGION_NAME);
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+          region.put(Integer.valueOf(i), "value" + i);
+        }
+      }
+    });
+
+    vm1.invoke(new SerializableRunnable("set direct to disk") {
+      public void run() {
+        InitialImageOperation.DIRECT_TO_DISK = directToDisk;
+      }
+    });
+    createRegion(vm1, persistent);
+
+    vm1.invoke(new SerializableRunnable("check image") {
+      public void run() {
+        LocalRegion region = (LocalRegion)getCache().getRegion(REGION_NAME);
+        DiskRegionStats diskStats = region.getDiskRegion().getStats();
+        LRUStatistics lruStats = region.getEvictionController()
+            .getLRUHelper().getStats();
+        assertEquals(NUM_ENTRIES, region.size());
+        assertEquals(0, lruStats.getEvictions());
+        assertEquals(0, lruStats.getDestroys());
+        if (directToDisk) {
+          assertEquals(0, diskStats.getNumEntriesInVM());
+          assertEquals(NUM_ENTRIES, diskStats.getNumOverflowOnDisk());
+          for (int i = 0; i < NUM_ENTRIES; i++) {
+            Integer key = Integer.valueOf(i);
+            assertNull(region.getValueInVM(key));
+            assertEquals("value" + i, region.getValueOnDisk(key));
+          }
+        } else {
+          assertEquals(NUM_ENTRIES, diskStats.getNumEntriesInVM());
+          assertEquals(0, diskStats.getNumOverflowOnDisk());
+          for (int i = 0; i < NUM_ENTRIES; i++) {
+            assertNotNull(region.getValueInVM(Integer.valueOf(i)));
+          }
+        }
+        // values on disk are faulted back in when read
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+          assertEquals("value" + i, region.get(Integer.valueOf(i)));
+        }
+        assertEquals(0, lruStats.getEvictions());
+      }
+    });
+  }
+
+  private void createRegion(VM vm, final boolean persistent) {
+    vm.invoke(new SerializableRunnable("create overflow region") {
+      public void run() {
+        File dir = new File("GIIDirectToDisk" + OSProcess.getId());
+        dir.mkdirs();
+        DiskStoreFactory dsf = getCache().createDiskStoreFactory();
+        dsf.setDiskDirs(new File[] { dir });
+        DiskStore ds = dsf.create(REGION_NAME);
+
+        AttributesFactory factory = new AttributesFactory();
+        factory.setScope(Scope.DISTRIBUTED_ACK);
+        factory.setDataPolicy(persistent ? DataPolicy.PERSISTENT_REPLICATE
+            : DataPolicy.REPLICATE);
+        factory.setEvictionAttributes(EvictionAttributes.createLRUEntryAttributes(
+            LRU_LIMIT, EvictionAction.OVERFLOW_TO_DISK));
+        factory.setDiskStoreName(ds.getName());
+        factory.setDiskSynchronous(true);
+        getCache().createRegion(REGION_NAME, factory.create());
+      }
+    });
+  }
+}
@@ -0,0 +1,319 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.gemstone.gemfire.DataSerializer;
+import com.gemstone.gemfire.cache.Cache;
+import com.gemstone.gemfire.cache.DataPolicy;
+import com.gemstone.gemfire.cache.Region;
+import com.gemstone.gemfire.cache.RegionFactory;
+import com.gemstone.gemfire.cache.Scope;
+import com.gemstone.gemfire.cache30.CacheTestCase;
+import com.gemstone.gemfire.distributed.internal.DistributionManager;
+import com.gemstone.gemfire.distributed.internal.DistributionMessage;
+import com.gemstone.gemfire.distributed.internal.DistributionMessageObserver;
+import com.gemstone.gemfire.internal.HeapDataOutputStream;
+import com.gemstone.gemfire.internal.Version;
+import com.gemstone.gemfire.internal.VersionedDataInputStream;
+import com.gemstone.gemfire.internal.cache.InitialImageOperation.RequestImageMessage;
+import com.gemstone.gemfire.internal.util.BlobHelper;
+
+import dunit.Host;
+import dunit.SerializableCallable;
+import dunit.SerializableRunnable;
+import dunit.VM;
+
+/**
+ * Tests getting a full initial image in segments from several replicas, see
+ * {@link InitialImageOperation#MAX_IMAGE_SOURCES}.
+ */
+public class GIIMultiSourceDUnitTest extends CacheTestCase {
+
+  protected static final String REGION_NAME = "region";
+
+  private static final int NUM_ENTRIES = 1000;
+
+  private static final int origMaxSources = InitialImageOperation.MAX_IMAGE_SOURCES;
+
+  /** number of segment requests received by this VM */
+  protected static final AtomicInteger segmentRequests = new AtomicInteger();
+
+  public GIIMultiSourceDUnitTest(String name) {
+    super(name);
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    invokeInEveryVM(new SerializableRunnable("use several image sources") {
+      public void run() {
+        InitialImageOperation.MAX_IMAGE_SOURCES = 3;
+        segmentRequests.set(0);
+        DistributionMessageObserver.setInstance(new DistributionMessageObserver() {
+          @Override
+          public void beforeProcessMessage(DistributionManager dm,
+              DistributionMessage message) {
+            if (message instanceof RequestImageMessage
+                && ((RequestImageMessage)message).numSegments > 1) {
+              segmentRequests.incrementAndGet();
+            }
+          }
+        });
+      }
+    });
+  }
+
+  @Override
+  public void tearDown2() throws Exception {
+    invokeInEveryVM(new SerializableRunnable("reset image sources") {
+      public void run() {
+        InitialImageOperation.MAX_IMAGE_SOURCES = origMaxSources;
+        DistributionMessageObserver.setInstance(null);
+      }
+    });
+    super.tearDown2();
+  }
+
+  public void testImageFromSeveralSources() throws Throwable {
+    Host host = Host.getHost(0);
+    VM vm0 = host.getVM(0);
+    VM vm1 = host.getVM(1);
+    VM vm2 = host.getVM(2);
+
+    createRegion(vm0);
+    createRegion(vm1);
+    createData(vm0);
+    destroySomeData(vm0);
+
+    createRegion(vm2);
+
+    vm2.invoke(new SerializableRunnable("check image") {
+      public void run() {
+        Region region = getCache().getRegion(REGION_NAME);
+        List keys = keys();
+        assertEquals(keys.size() / 2, region.size());
+        for (int i = 0; i < keys.size(); i++) {
+          Object key = keys.get(i);
+          if (i % 2 == 0) {
+            assertFalse(region.containsKey(key));
+          } else {
+            assertEquals("value" + i, region.get(key));
+          }
+        }
+      }
+    });
+    assertEquals(1, getSegmentRequests(vm0));
+    assertEquals(1, getSegmentRequests(vm1));
+
+    // the new replica can itself provide a segment
+    createRegion(host.getVM(3));
+    host.getVM(3).invoke(new SerializableRunnable("check image") {
+      public void run() {
+        assertEquals(keys().size() / 2, getCache().getRegion(REGION_NAME).size());
+      }
+    });
+  }
+
+  public void testSingleSourceByDefault() throws Throwable {
+    invokeInEveryVM(new SerializableRunnable("use one image source") {
+      public void run() {
+        InitialImageOperation.MAX_IMAGE_SOURCES = 1;
+      }
+    });
+    Host host = Host.getHost(0);
+    VM vm0 = host.getVM(0);
+    VM vm1 = host.getVM(1);
+    VM vm2 = host.getVM(2);
+
+    createRegion(vm0);
+    createRegion(vm1);
+    createData(vm0);
+    createRegion(vm2);
+
+    vm2.invoke(new SerializableRunnable("check image") {
+      public void run() {
+        assertEquals(keys().size(), getCache().getRegion(REGION_NAME).size());
+      }
+    });
+    assertEquals(0, getSegmentRequests(vm0));
+    assertEquals(0, getSegmentRequests(vm1));
+  }
+
+  /**
+   * Every key belongs to exactly one segment, and a copy of the key, as
+   * another member would see it, belongs to the same one.
+   */
+  public void testSegmentsAreStableAcrossMembers() throws Exception {
+    List keys = keys();
+    keys.add(new IdentityKey(1));
+    keys.add(new IdentityKey(2));
+    for (int numSegments = 2; numSegments <= 4; numSegments++) {
+      int[] counts = new int[numSegments];
+      for (Object key : (List<Object>)keys) {
+        int segment = InitialImageOperation.segmentOf(key, numSegments);
+        assertTrue(segment >= 0 && segment < numSegments);
+        Object copy = BlobHelper.deserializeBlob(BlobHelper.serializeToBlob(key));
+        assertEquals("segment of " + key, segment,
+            InitialImageOperation.segmentOf(copy, numSegments));
+        counts[segment]++;
+      }
+      for (int i = 0; i < numSegments; i++) {
+        assertTrue("segment " + i + " of " + numSegments + " is empty",
+            counts[i] > 0);
+      }
+    }
+  }
+
+  /**
+   * A member older than 9.0 receives the request in its old form, without
+   * the segment, so it is never asked for less than the whole image.
+   */
+  public void testSegmentNotSentToOlderMembers() throws Exception {
+    RequestImageMessage m = new RequestImageMessage();
+    m.regionPath = "/" + REGION_NAME;
+    m.numSegments = 3;
+    m.segment = 2;
+
+    RequestImageMessage current = copy(m, Version.CURRENT);
+    assertEquals(3, current.numSegments);
+    assertEquals(2, current.segment);
+    assertNull(current.baseVersionVector);
+
+    RequestImageMessage old = copy(m, Version.GFE_82);
+    assertEquals("/" + REGION_NAME, old.regionPath);
+    assertEquals(0, old.numSegments);
+    assertEquals(0, old.segment);
+  }
+
+  private RequestImageMessage copy(RequestImageMessage m, Version version)
+      throws Exception {
+    HeapDataOutputStream out = new HeapDataOutputStream(version);
+    DataSerializer.writeObject(m, out);
+    DataInputStream in = new VersionedDataInputStream(
+        new ByteArrayInputStream(out.toByteArray()), version);
+    return (RequestImageMessage)DataSerializer.readObject(in);
+  }
+
+  protected static List keys() {
+    List keys = new ArrayList();
+    for (int i = 0; i < NUM_ENTRIES; i++) {
+      switch (i % 4) {
+      case 0:
+        keys.add(Integer.valueOf(i));
+        break;
+      case 1:
+        keys.add("key" + i);
+        break;
+      case 2:
+        keys.add(Long.valueOf(i));
+        break;
+      default:
+        keys.add(new ValueKey(i));
+      }
+    }
+    for (KeyKind kind : KeyKind.values()) {
+      keys.add(kind);
+    }
+    return keys;
+  }
+
+  private int getSegmentRequests(VM vm) {
+    return ((Integer)vm.invoke(new SerializableCallable("get segment requests") {
+      public Object call() {
+        return Integer.valueOf(segmentRequests.get());
+      }
+    })).intValue();
+  }
+
+  private void createRegion(VM vm) {
+    vm.invoke(new SerializableRunnable("Create replicated region") {
+      public void run() {
+        getCache();
+        RegionFactory rf = new RegionFactory();
+        rf.setDataPolicy(DataPolicy.REPLICATE);
+        rf.setScope(Scope.DISTRIBUTED_ACK);
+        rf.create(REGION_NAME);
+      }
+    });
+  }
+
+  private void createData(VM vm) {
+    vm.invoke(new SerializableRunnable("create data") {
+      public void run() {
+        Cache cache = getCache();
+        Region region = cache.getRegion(REGION_NAME);
+        List keys = keys();
+        for (int i = 0; i < keys.size(); i++) {
+          region.put(keys.get(i), "value" + i);
+        }
+      }
+    });
+  }
+
+  private void destroySomeData(VM vm) {
+    vm.invoke(new SerializableRunnable("destroy data") {
+      public void run() {
+        Region region = getCache().getRegion(REGION_NAME);
+        List keys = keys();
+        for (int i = 0; i < keys.size(); i += 2) {
+          region.destroy(keys.get(i));
+        }
+      }
+    });
+  }
+
+  /** an enum key, whose hash code differs from member to member */
+  public static enum KeyKind {
+    RED, GREEN, BLUE, YELLOW, BLACK, WHITE
+  }
+
+  /** a key with a value based hash code */
+  public static class ValueKey implements Serializable {
+    private final int id;
+
+    public ValueKey(int id) {
+      this.id = id;
+    }
+
+    @Override
+    public int hashCode() {
+      return this.id;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof ValueKey && ((ValueKey)o).id == this.id;
+    }
+
+    @Override
+    public String toString() {
+      return "ValueKey" + this.id;
+    }
+  }
+
+  /** a key that inherits the identity hash code */
+  public static class IdentityKey implements Serializable {
+    private final int id;
+
+    public IdentityKey(int id) {
+      this.id = id;
+    }
+
+    @Override
+    public String toString() {
+      return "IdentityKey" + this.id;
+    }
+  }
+}
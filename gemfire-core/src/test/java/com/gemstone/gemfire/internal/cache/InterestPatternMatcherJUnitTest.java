@@ -0,0 +1,110 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.gemstone.gemfire.test.junit.categories.UnitTest;
+
+@Category(UnitTest.class)
+public class InterestPatternMatcherJUnitTest {
+
+  @Test
+  public void testLiteralPrefix() {
+    assertPrefix("abc", 3, "abc");
+    assertPrefix("abc", 3, "abc.*");
+    assertPrefix("a.b", 4, "a\\.b.*");
+    assertPrefix("ab", 2, "ab[0-9]");
+    assertPrefix("", 0, "\\d+");
+    assertPrefix("ab", 2, "ab\\d");
+    assertEquals(-1, InterestPatternMatcher.literalPrefix("abc*", new StringBuilder()));
+    assertEquals(-1, InterestPatternMatcher.literalPrefix("ab\\.?", new StringBuilder()));
+  }
+
+  @Test
+  public void testMatchingClients() {
+    Map<Object, Map<Object, Pattern>> patterns = new HashMap<Object, Map<Object, Pattern>>();
+    register(patterns, "c1", "order-.*", "customer-1");
+    register(patterns, "c2", "order-1.*");
+    register(patterns, "c3", "order-[0-9]+");
+    register(patterns, "c4", "customer-1.*", "customer-1");
+    InterestPatternMatcher matcher = new InterestPatternMatcher(patterns);
+
+    assertClients(matcher, "order-12", "c1", "c2", "c3");
+    assertClients(matcher, "order-x", "c1");
+    assertClients(matcher, "customer-1", "c1", "c4");
+    assertClients(matcher, "customer-10", "c4");
+    assertNull(matcher.addMatchingClients("account", null));
+    // ".*" does not match line terminators
+    assertClients(matcher, "order-1\n2");
+  }
+
+  @Test
+  public void testSameResultsAsPatterns() {
+    String[] regexes = { "a.*", "ab.*", "abc", "a\\.b.*", "b.*", "ba?", ".*c",
+        "a[bc].*", "ab|ba", "" };
+    Map<Object, Map<Object, Pattern>> patterns = new HashMap<Object, Map<Object, Pattern>>();
+    Random random = new Random(11);
+    for (int client = 0; client < 20; client++) {
+      register(patterns, client, regexes[random.nextInt(regexes.length)],
+          regexes[random.nextInt(regexes.length)]);
+    }
+    InterestPatternMatcher matcher = new InterestPatternMatcher(patterns);
+    assertEquals(true, matcher.isFor(patterns));
+    for (int i = 0; i < 1000; i++) {
+      StringBuilder key = new StringBuilder();
+      int length = random.nextInt(5);
+      for (int j = 0; j < length; j++) {
+        key.append("abc.\n".charAt(random.nextInt(5)));
+      }
+      Set<Object> expected = new HashSet<Object>();
+      for (Map.Entry<Object, Map<Object, Pattern>> entry : patterns.entrySet()) {
+        for (Pattern pattern : entry.getValue().values()) {
+          if (pattern.matcher(key).matches()) {
+            expected.add(entry.getKey());
+          }
+        }
+      }
+      Set actual = matcher.addMatchingClients(key.toString(), new HashSet());
+      assertEquals(key.toString(), expected, actual);
+    }
+  }
+
+  private static void register(Map<Object, Map<Object, Pattern>> patterns,
+      Object clientID, String... regexes) {
+    Map<Object, Pattern> clientPatterns = new HashMap<Object, Pattern>();
+    for (String regex : regexes) {
+      clientPatterns.put(regex, Pattern.compile(regex));
+    }
+    patterns.put(clientID, clientPatterns);
+  }
+
+  private static void assertPrefix(String expected, int end, String regex) {
+    StringBuilder literal = new StringBuilder();
+    assertEquals(end, InterestPatternMatcher.literalPrefix(regex, literal));
+    assertEquals(expected, literal.toString());
+  }
+
+  private static void assertClients(InterestPatternMatcher matcher, String key,
+      Object... expected) {
+    Set actual = matcher.addMatchingClients(key, new HashSet());
+    assertEquals(new HashSet<Object>(Arrays.asList(expected)), actual);
+  }
+}
@@ -0,0 +1,158 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.cache.ha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.gemstone.gemfire.test.junit.categories.UnitTest;
+
+@Category(UnitTest.class)
+public class HAEventRingBufferJUnitTest {
+
+  private final int oldMaxCapacity = HAEventRingBuffer.MAX_CAPACITY;
+
+  @After
+  public void tearDown() {
+    HAEventRingBuffer.MAX_CAPACITY = this.oldMaxCapacity;
+  }
+
+  @Test
+  public void testPutGetRemove() {
+    HAEventRingBuffer buffer = new HAEventRingBuffer();
+    for (long i = 1; i <= 200; i++) {
+      buffer.put(i, "e" + i);
+    }
+    assertEquals(200, buffer.size());
+    assertEquals("e1", buffer.get(1));
+    assertEquals("e200", buffer.get(200));
+    assertNull(buffer.get(0));
+    assertNull(buffer.get(201));
+
+    assertEquals("e1", buffer.remove(1));
+    assertNull(buffer.remove(1));
+    assertNull(buffer.get(1));
+    assertEquals("e100", buffer.remove(100));
+    assertEquals(198, buffer.size());
+    assertEquals("e101", buffer.get(101));
+  }
+
+  @Test
+  public void testPositionsOutOfOrder() {
+    HAEventRingBuffer buffer = new HAEventRingBuffer();
+    buffer.put(5, "e5");
+    buffer.put(3, "e3");
+    buffer.remove(3);
+    buffer.remove(5);
+    buffer.put(7, "e7");
+    // a put that got its position before the one of 7
+    buffer.put(6, "e6");
+    buffer.put(1000, "e1000");
+    assertEquals("e6", buffer.get(6));
+    assertEquals("e7", buffer.get(7));
+    assertEquals("e1000", buffer.get(1000));
+    assertEquals(3, buffer.size());
+  }
+
+  @Test
+  public void testSameContentsAsMap() {
+    HAEventRingBuffer buffer = new HAEventRingBuffer();
+    TreeMap<Long, Object> expected = new TreeMap<Long, Object>();
+    Random random = new Random(3);
+    long tail = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (expected.isEmpty() || random.nextInt(3) > 0) {
+        // mostly in order, sometimes a little late
+        long position = ++tail - random.nextInt(2);
+        if (!expected.containsKey(position)) {
+          buffer.put(position, "e" + position);
+          expected.put(position, "e" + position);
+        }
+      }
+      else {
+        // mostly from the head, sometimes conflated from the middle
+        Long position = random.nextBoolean() ? expected.firstKey()
+            : expected.ceilingKey(tail - random.nextInt(20));
+        if (position != null) {
+          assertEquals(expected.remove(position), buffer.remove(position));
+        }
+      }
+      assertEquals(expected.size(), buffer.size());
+    }
+    Map<Long, Object> actual = new TreeMap<Long, Object>();
+    buffer.copyTo(actual);
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testOldEventIsKeptAsStraggler() {
+    HAEventRingBuffer.MAX_CAPACITY = 128;
+    HAEventRingBuffer buffer = new HAEventRingBuffer();
+    // an event nobody takes while many later ones come and go
+    buffer.put(1, "e1");
+    for (long i = 2; i <= 10000; i++) {
+      buffer.put(i, "e" + i);
+      if (i > 2) {
+        assertEquals("e" + (i - 1), buffer.remove(i - 1));
+      }
+    }
+    assertEquals("e1", buffer.get(1));
+    assertEquals("e10000", buffer.get(10000));
+    assertEquals(2, buffer.size());
+    // a put that got its position long ago
+    buffer.put(5000, "late");
+    assertEquals("late", buffer.get(5000));
+    assertEquals("late", buffer.remove(5000));
+    assertEquals("e1", buffer.remove(1));
+    assertNull(buffer.get(1));
+  }
+
+  @Test
+  public void testSameContentsAsMapBeyondCapacity() {
+    HAEventRingBuffer.MAX_CAPACITY = 64;
+    HAEventRingBuffer buffer = new HAEventRingBuffer();
+    TreeMap<Long, Object> expected = new TreeMap<Long, Object>();
+    Random random = new Random(7);
+    long tail = 0;
+    for (int i = 0; i < 20000; i++) {
+      int op = random.nextInt(10);
+      if (expected.isEmpty() || op < 6) {
+        // mostly in order, sometimes far behind
+        long position = op == 0 ? Math.max(1, tail - random.nextInt(500))
+            : ++tail;
+        buffer.put(position, "e" + position + "-" + i);
+        expected.put(position, "e" + position + "-" + i);
+      }
+      else {
+        // from the middle more often than the head, so old events linger
+        Long position = op == 9 ? expected.firstKey()
+            : expected.ceilingKey(tail - random.nextInt(100));
+        if (position != null) {
+          assertEquals(expected.remove(position), buffer.remove(position));
+        }
+      }
+      assertEquals(expected.size(), buffer.size());
+      if (i % 1000 == 0) {
+        for (Map.Entry<Long, Object> e : expected.entrySet()) {
+          assertEquals(e.getValue(), buffer.get(e.getKey()));
+        }
+      }
+    }
+    Map<Long, Object> actual = new TreeMap<Long, Object>();
+    buffer.copyTo(actual);
+    assertEquals(expected, actual);
+  }
+}
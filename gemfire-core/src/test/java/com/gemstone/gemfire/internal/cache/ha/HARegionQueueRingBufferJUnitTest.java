@@ -0,0 +1,186 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.cache.ha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.gemstone.gemfire.cache.Cache;
+import com.gemstone.gemfire.cache.CacheFactory;
+import com.gemstone.gemfire.internal.cache.Conflatable;
+import com.gemstone.gemfire.internal.cache.EventID;
+import com.gemstone.gemfire.test.junit.categories.IntegrationTest;
+
+/**
+ * Tests that a primary HARegionQueue keeps its events in the
+ * {@link HAEventRingBuffer}, copies them into its region while a GII
+ * request is served, and keeps events that stay behind for long.
+ */
+@Category(IntegrationTest.class)
+public class HARegionQueueRingBufferJUnitTest {
+
+  private boolean oldUseRingBuffer;
+
+  private int oldMaxCapacity;
+
+  private Cache cache;
+
+  private int sequenceId;
+
+  @Before
+  public void setUp() throws Exception {
+    this.oldUseRingBuffer = HARegionQueue.USE_RING_BUFFER;
+    this.oldMaxCapacity = HAEventRingBuffer.MAX_CAPACITY;
+    HARegionQueue.USE_RING_BUFFER = true;
+    this.cache = new CacheFactory().set("mcast-port", "0").create();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    HARegionQueue.USE_RING_BUFFER = this.oldUseRingBuffer;
+    HAEventRingBuffer.MAX_CAPACITY = this.oldMaxCapacity;
+    if (this.cache != null) {
+      this.cache.close();
+    }
+  }
+
+  @Test
+  public void testPrimaryEventsAreNotInRegion() throws Exception {
+    HARegionQueue rq = createQueue("primary", true);
+    List<Conflatable> events = putEvents(rq, "key", 20);
+    assertEquals(20, rq.size());
+    assertEquals(0, countEventsInRegion(rq));
+    for (Long position : positions(rq)) {
+      assertNotNull(rq.getEventAt(position));
+    }
+    assertTaken(rq, events);
+  }
+
+  @Test
+  public void testSecondaryEventsAreInRegion() throws Exception {
+    HARegionQueue rq = createQueue("secondary", false);
+    List<Conflatable> events = putEvents(rq, "key", 20);
+    assertEquals(20, countEventsInRegion(rq));
+    for (Long position : positions(rq)) {
+      assertSame(rq.getRegion().get(position), rq.getEventAt(position));
+    }
+    assertTaken(rq, events);
+  }
+
+  @Test
+  public void testEventsAreCopiedIntoRegionForGII() throws Exception {
+    HARegionQueue rq = createQueue("gii", true);
+    List<Conflatable> events = putEvents(rq, "key", 10);
+
+    rq.startGiiQueueing();
+    // the image is made of the region's entries
+    assertEquals(10, countEventsInRegion(rq));
+    for (Long position : positions(rq)) {
+      assertSame(rq.getEventAt(position), rq.getRegion().get(position));
+    }
+    // a second request does not copy them again
+    rq.startGiiQueueing();
+    assertEquals(10, countEventsInRegion(rq));
+
+    // puts are held back until the last request is done
+    events.addAll(putEvents(rq, "during", 5));
+    assertEquals(10, countEventsInRegion(rq));
+    rq.endGiiQueueing();
+    assertEquals(10, countEventsInRegion(rq));
+    rq.endGiiQueueing();
+
+    // the copies are gone and the held back puts are in the ring buffer
+    assertEquals(0, countEventsInRegion(rq));
+    assertEquals(15, rq.size());
+    assertTaken(rq, events);
+  }
+
+  @Test
+  public void testLingeringEventBeyondRingCapacity() throws Exception {
+    HAEventRingBuffer.MAX_CAPACITY = 64;
+    HARegionQueue rq = createQueue("lingering", true);
+    List<Conflatable> first = putEvents(rq, "first", 1);
+    // every update of the hot key is conflated away, so the first event
+    // stays at the head while the positions move far ahead of it
+    List<Conflatable> hot = new ArrayList<Conflatable>();
+    for (int i = 0; i < 500; i++) {
+      Conflatable event = newEvent("hot", "value" + i, true);
+      rq.put(event);
+      hot.add(event);
+    }
+    assertEquals(2, rq.size());
+    assertEquals(0, countEventsInRegion(rq));
+    List<Conflatable> expected = new ArrayList<Conflatable>(first);
+    expected.add(hot.get(hot.size() - 1));
+    assertTaken(rq, expected);
+  }
+
+  private HARegionQueue createQueue(String name, boolean primary)
+      throws Exception {
+    HARegionQueue rq = HARegionQueue.getHARegionQueueInstance(name,
+        this.cache, HARegionQueue.NON_BLOCKING_HA_QUEUE, false);
+    rq.setPrimary(primary);
+    return rq;
+  }
+
+  private List<Conflatable> putEvents(HARegionQueue rq, String keyPrefix,
+      int count) throws Exception {
+    List<Conflatable> events = new ArrayList<Conflatable>();
+    for (int i = 0; i < count; i++) {
+      Conflatable event = newEvent(keyPrefix + i, "value" + i, false);
+      rq.put(event);
+      events.add(event);
+    }
+    return events;
+  }
+
+  private Conflatable newEvent(Object key, Object value, boolean conflate) {
+    return new ConflatableObject(key, value, new EventID(new byte[] { 1 }, 1,
+        ++this.sequenceId), conflate, "region");
+  }
+
+  /** the positions of the events in the queue, in order */
+  private static List<Long> positions(HARegionQueue rq) throws Exception {
+    List<Long> result = new ArrayList<Long>();
+    for (Object position : rq.getAvalaibleIds()) {
+      result.add((Long)position);
+    }
+    return result;
+  }
+
+  private static int countEventsInRegion(HARegionQueue rq) {
+    int count = 0;
+    for (Object key : rq.getRegion().keySet()) {
+      if (key instanceof Long) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static void assertTaken(HARegionQueue rq, List<Conflatable> expected)
+      throws Exception {
+    for (Conflatable event : expected) {
+      Conflatable taken = (Conflatable)rq.take();
+      assertEquals(event.getEventId(), taken.getEventId());
+      assertEquals(event.getValueToConflate(), taken.getValueToConflate());
+    }
+    assertNull(rq.take());
+    assertEquals(0, rq.size());
+  }
+}
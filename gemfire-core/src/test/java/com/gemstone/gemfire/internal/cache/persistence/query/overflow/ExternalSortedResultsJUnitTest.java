@@ -0,0 +1,174 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.cache.persistence.query.overflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.gemstone.gemfire.internal.FileUtil;
+import com.gemstone.gemfire.internal.cache.CachedDeserializable;
+import com.gemstone.gemfire.internal.cache.persistence.query.CloseableIterator;
+import com.gemstone.gemfire.internal.cache.persistence.query.SortKeyExtractor;
+import com.gemstone.gemfire.test.junit.categories.UnitTest;
+
+@Category(UnitTest.class)
+public class ExternalSortedResultsJUnitTest {
+
+  private File directory;
+
+  private MemoryBudget budget;
+
+  @Before
+  public void setUp() {
+    this.directory = new File("ExternalSortedResultsJUnitTest");
+    this.directory.mkdirs();
+    this.budget = new MemoryBudget(4096);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtil.delete(this.directory);
+  }
+
+  @Test
+  public void testSpilledBagIsSorted() {
+    ExternalSortedResults bag = new ExternalSortedResults(null, false, false,
+        this.budget, this.directory);
+    List<Integer> expected = new ArrayList<Integer>();
+    Random random = new Random(7);
+    for (int i = 0; i < 5000; i++) {
+      int value = random.nextInt(1000);
+      bag.add(value);
+      expected.add(value);
+    }
+    assertTrue(bag.getRunCount() > 0);
+    assertTrue(this.budget.getUsed() <= this.budget.getLimit());
+    Collections.sort(expected);
+    assertIterates(expected, bag.iterator());
+    bag.close();
+    assertEquals(0, this.budget.getUsed());
+    assertEquals(0, this.directory.list().length);
+  }
+
+  @Test
+  public void testSpilledSetIsDistinctAndReversed() {
+    ExternalSortedResults set = new ExternalSortedResults(null, true, true,
+        this.budget, this.directory);
+    TreeSet<Integer> expected = new TreeSet<Integer>(
+        Collections.reverseOrder());
+    for (int i = 0; i < 3000; i++) {
+      int value = (i * 31) % 700;
+      set.add(value);
+      expected.add(value);
+    }
+    assertTrue(set.getRunCount() > 0);
+    assertIterates(new ArrayList<Integer>(expected), set.iterator());
+    set.close();
+  }
+
+  @Test
+  public void testSetKeepsLastElementForEqualKeys() {
+    SortKeyExtractor firstChar = new SortKeyExtractor() {
+      public Object getSortKey(Object element) {
+        return ((String)element).charAt(0);
+      }
+    };
+    ExternalSortedResults set = new ExternalSortedResults(firstChar, false,
+        true, this.budget, this.directory);
+    for (int i = 0; i < 2000; i++) {
+      set.add("b" + i);
+      set.add("a" + i);
+    }
+    List<String> expected = new ArrayList<String>();
+    expected.add("a1999");
+    expected.add("b1999");
+    assertIterates(expected, set.iterator());
+    set.close();
+  }
+
+  @Test
+  public void testManyRunsAreMerged() {
+    ExternalSortedResults bag = new ExternalSortedResults(null, false, false,
+        new MemoryBudget(256), this.directory);
+    int count = 5000;
+    for (int i = count - 1; i >= 0; i--) {
+      bag.add(i);
+    }
+    assertTrue(bag.getRunCount() < ExternalSortedResults.MERGE_FAN_IN);
+    List<Integer> expected = new ArrayList<Integer>();
+    for (int i = 0; i < count; i++) {
+      expected.add(i);
+    }
+    assertIterates(expected, bag.iterator());
+    bag.close();
+    assertEquals(0, this.directory.list().length);
+  }
+
+  @Test
+  public void testIteratorIgnoresLaterAdds() {
+    ExternalSortedResults bag = new ExternalSortedResults(null, false, false,
+        this.budget, this.directory);
+    for (int i = 0; i < 1000; i++) {
+      bag.add(i);
+    }
+    CloseableIterator<CachedDeserializable> iterator = bag.iterator();
+    for (int i = 0; i < 1000; i++) {
+      bag.add(-1);
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i, iterator.next().getDeserializedForReading());
+    }
+    assertFalse(iterator.hasNext());
+    iterator.close();
+    bag.close();
+  }
+
+  @Test
+  public void testSpilledListKeepsOrder() {
+    OverflowResultList list = new OverflowResultList(this.budget,
+        this.directory);
+    List<Integer> expected = new ArrayList<Integer>();
+    for (int i = 0; i < 3000; i++) {
+      list.add(3000 - i);
+      expected.add(3000 - i);
+    }
+    assertTrue(list.getSpilledCount() > 0);
+    assertIterates(expected, list.iterator());
+    assertIterates(expected.subList(1234, expected.size()),
+        list.iterator(1234));
+    assertIterates(expected.subList(2999, expected.size()),
+        list.iterator(2999));
+    assertIterates(Collections.emptyList(), list.iterator(5000));
+    list.close();
+    assertEquals(0, this.budget.getUsed());
+    assertEquals(0, this.directory.list().length);
+  }
+
+  private static void assertIterates(List<?> expected,
+      CloseableIterator<CachedDeserializable> iterator) {
+    List<Object> actual = new ArrayList<Object>();
+    while (iterator.hasNext()) {
+      actual.add(iterator.next().getDeserializedForReading());
+    }
+    iterator.close();
+    assertEquals(expected, actual);
+  }
+}
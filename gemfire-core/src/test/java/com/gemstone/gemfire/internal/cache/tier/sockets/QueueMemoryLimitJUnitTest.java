@@ -0,0 +1,184 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.cache.tier.sockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.gemstone.gemfire.cache.Cache;
+import com.gemstone.gemfire.cache.CacheFactory;
+import com.gemstone.gemfire.internal.cache.EventID;
+import com.gemstone.gemfire.internal.cache.ha.ConflatableObject;
+import com.gemstone.gemfire.internal.cache.ha.HARegionQueue;
+import com.gemstone.gemfire.internal.cache.lru.Sizeable;
+import com.gemstone.gemfire.test.junit.categories.IntegrationTest;
+
+/**
+ * Tests the byte accounting of client queues and the policies applied by
+ * {@link CacheClientProxy} when a queue exceeds
+ * {@link CacheClientProxy#MAX_QUEUE_MEMORY}.
+ */
+@Category(IntegrationTest.class)
+public class QueueMemoryLimitJUnitTest {
+
+  private static final int EVENT_SIZE = 100;
+
+  private static final long LIMIT = 10 * EVENT_SIZE;
+
+  private long oldLimit;
+
+  private Cache cache;
+
+  private HARegionQueue queue;
+
+  private int sequenceId;
+
+  @Before
+  public void setUp() throws Exception {
+    this.oldLimit = CacheClientProxy.MAX_QUEUE_MEMORY;
+    CacheClientProxy.MAX_QUEUE_MEMORY = LIMIT;
+    this.cache = new CacheFactory().set("mcast-port", "0").create();
+    this.queue = HARegionQueue.getHARegionQueueInstance(
+        "QueueMemoryLimitJUnitTest", this.cache,
+        HARegionQueue.NON_BLOCKING_HA_QUEUE, false);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    CacheClientProxy.MAX_QUEUE_MEMORY = this.oldLimit;
+    this.cache.close();
+  }
+
+  @Test
+  public void testQueuedBytesFollowPutsAndRemoves() throws Exception {
+    put(12);
+    assertEquals(12 * EVENT_SIZE, this.queue.getQueuedBytes());
+    drain(5);
+    assertEquals(7 * EVENT_SIZE, this.queue.getQueuedBytes());
+    drain(7);
+    assertEquals(0, this.queue.getQueuedBytes());
+  }
+
+  @Test
+  public void testWaitForQueuedBytes() throws Exception {
+    put(12);
+    assertFalse(this.queue.waitForQueuedBytes(LIMIT, 50));
+
+    final CountDownLatch waiting = new CountDownLatch(1);
+    final AtomicBoolean result = new AtomicBoolean();
+    Thread waiter = new Thread("QueueMemoryLimitJUnitTest waiter") {
+      @Override
+      public void run() {
+        waiting.countDown();
+        try {
+          result.set(queue.waitForQueuedBytes(LIMIT, 60000));
+        } catch (InterruptedException e) {
+          // result stays false
+        }
+      }
+    };
+    waiter.start();
+    assertTrue(waiting.await(60, TimeUnit.SECONDS));
+    drain(2);
+    waiter.join(60000);
+    assertFalse(waiter.isAlive());
+    assertTrue(result.get());
+    assertTrue(this.queue.waitForQueuedBytes(LIMIT, 0));
+  }
+
+  @Test
+  public void testThrottlePolicy() throws Exception {
+    put(12);
+    long start = System.currentTimeMillis();
+    assertTrue(CacheClientProxy.applyQueueMemoryPolicy(this.queue, LIMIT,
+        CacheClientProxy.QUEUE_MEMORY_POLICY_THROTTLE, 100));
+    assertTrue(System.currentTimeMillis() - start >= 100);
+    assertFalse(this.queue.getConflateForMemory());
+    drain(2);
+    assertFalse(CacheClientProxy.applyQueueMemoryPolicy(this.queue, LIMIT,
+        CacheClientProxy.QUEUE_MEMORY_POLICY_THROTTLE, 60000));
+  }
+
+  @Test
+  public void testConflatePolicy() throws Exception {
+    put(12);
+    assertTrue(CacheClientProxy.applyQueueMemoryPolicy(this.queue, LIMIT,
+        CacheClientProxy.QUEUE_MEMORY_POLICY_CONFLATE, 0));
+    assertTrue(this.queue.getConflateForMemory());
+    // below the limit but above half of it conflation stays on
+    drain(4);
+    assertFalse(CacheClientProxy.applyQueueMemoryPolicy(this.queue, LIMIT,
+        CacheClientProxy.QUEUE_MEMORY_POLICY_CONFLATE, 0));
+    assertTrue(this.queue.getConflateForMemory());
+    drain(3);
+    assertFalse(CacheClientProxy.applyQueueMemoryPolicy(this.queue, LIMIT,
+        CacheClientProxy.QUEUE_MEMORY_POLICY_CONFLATE, 0));
+    assertFalse(this.queue.getConflateForMemory());
+  }
+
+  @Test
+  public void testDisconnectPolicy() throws Exception {
+    put(12);
+    assertTrue(CacheClientProxy.applyQueueMemoryPolicy(this.queue, LIMIT,
+        CacheClientProxy.QUEUE_MEMORY_POLICY_DISCONNECT, 0));
+    assertTrue(this.queue.isClientSlowReciever());
+  }
+
+  @Test
+  public void testReinitializeResetsQueuedBytes() throws Exception {
+    put(12);
+    CacheClientProxy.applyQueueMemoryPolicy(this.queue, LIMIT,
+        CacheClientProxy.QUEUE_MEMORY_POLICY_CONFLATE, 0);
+    assertTrue(this.queue.getConflateForMemory());
+
+    this.queue.reinitializeRegion();
+
+    assertEquals(0, this.queue.getQueuedBytes());
+    assertFalse(this.queue.getConflateForMemory());
+    assertTrue(this.queue.waitForQueuedBytes(LIMIT, 0));
+    put(1);
+    assertEquals(EVENT_SIZE, this.queue.getQueuedBytes());
+  }
+
+  private void put(int count) throws Exception {
+    for (int i = 0; i < count; i++) {
+      this.sequenceId++;
+      this.queue.put(new SizedEvent("key" + this.sequenceId, "value",
+          new EventID(new byte[] { 1 }, 1, this.sequenceId)));
+    }
+  }
+
+  private void drain(int count) throws Exception {
+    for (int i = 0; i < count; i++) {
+      assertNotNull(this.queue.peek());
+      this.queue.remove();
+    }
+  }
+
+  private static class SizedEvent extends ConflatableObject implements Sizeable {
+
+    SizedEvent(Object key, Object value, EventID id) {
+      super(key, value, id, false, "QueueMemoryLimitJUnitTest");
+    }
+
+    public int getSizeInBytes() {
+      return EVENT_SIZE;
+    }
+  }
+}
@@ -0,0 +1,250 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.cache.tier.sockets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.gemstone.gemfire.internal.Version;
+import com.gemstone.gemfire.internal.cache.tier.MessageType;
+import com.gemstone.gemfire.test.junit.categories.UnitTest;
+
+/**
+ * Tests {@link SharedBuffer} and that a {@link Message} sends a shared value
+ * byte for byte the same as the same value in a byte[].
+ */
+@Category(UnitTest.class)
+public class SharedBufferJUnitTest {
+
+  private static final int COMM_BUFFER_SIZE = 1024;
+
+  private ServerSocketChannel server;
+
+  private ExecutorService reader;
+
+  @Before
+  public void setUp() throws Exception {
+    SharedBuffer.clearPool();
+    this.server = ServerSocketChannel.open();
+    this.server.socket().bind(new InetSocketAddress(InetAddress.getLocalHost(), 0));
+    this.reader = Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    this.reader.shutdownNow();
+    this.server.close();
+    SharedBuffer.clearPool();
+  }
+
+  @Test
+  public void testGatheringWriteMatchesCopy() throws Exception {
+    // larger than the comm buffer, so the value is written from the shared
+    // buffer together with the buffered header and parts
+    assertSameBytes(value(10 * COMM_BUFFER_SIZE + 3), false);
+    assertSameBytes(value(10 * COMM_BUFFER_SIZE + 3), true);
+  }
+
+  @Test
+  public void testSmallValueMatchesCopy() throws Exception {
+    // fits in the comm buffer, so it is copied into it
+    assertSameBytes(value(100), true);
+    assertSameBytes(value(COMM_BUFFER_SIZE - 100), false);
+  }
+
+  @Test
+  public void testPartsReleaseTheirReferences() throws Exception {
+    byte[] value = value(4 * COMM_BUFFER_SIZE);
+    SharedBuffer shared = SharedBuffer.create(value);
+    Message m1 = newMessage(shared, true);
+    Message m2 = newMessage(shared, true);
+    assertEquals(3, shared.getRefCount());
+
+    // the owner lets go while the messages are still to be sent
+    shared.release();
+    assertEquals(2, shared.getRefCount());
+    assertEquals(0, SharedBuffer.getPooledBytes());
+
+    assertArrayEquals(expected(value, true), valuePart(send(m1)));
+    assertEquals(1, shared.getRefCount());
+    assertEquals(0, SharedBuffer.getPooledBytes());
+    // another value must not get the memory while m2 still sends it
+    SharedBuffer other = SharedBuffer.create(value(4 * COMM_BUFFER_SIZE));
+    assertArrayEquals(expected(value, true), valuePart(send(m2)));
+    assertEquals(0, shared.getRefCount());
+    assertFalse(shared.retain());
+    assertEquals(4 * COMM_BUFFER_SIZE, SharedBuffer.getPooledBytes());
+
+    other.release();
+    assertEquals(8 * COMM_BUFFER_SIZE, SharedBuffer.getPooledBytes());
+  }
+
+  @Test
+  public void testPooledBufferIsReused() throws Exception {
+    byte[] first = value(3000);
+    SharedBuffer shared = SharedBuffer.create(first);
+    shared.release();
+    assertEquals(4096, SharedBuffer.getPooledBytes());
+
+    byte[] second = new byte[2500];
+    for (int i = 0; i < second.length; i++) {
+      second[i] = (byte)(i * 7);
+    }
+    SharedBuffer reused = SharedBuffer.create(second);
+    assertEquals(0, SharedBuffer.getPooledBytes());
+    ByteBuffer bb = reused.duplicate();
+    assertEquals(second.length, bb.remaining());
+    byte[] copy = new byte[bb.remaining()];
+    bb.get(copy);
+    assertArrayEquals(second, copy);
+    assertTrue(reused.isCopyOf(second));
+    assertFalse(reused.isCopyOf(first));
+    reused.release();
+  }
+
+  @Test
+  public void testPoolIsBounded() throws Exception {
+    long oldMax = SharedBuffer.MAX_POOLED_BYTES;
+    SharedBuffer.MAX_POOLED_BYTES = 4096;
+    try {
+      SharedBuffer a = SharedBuffer.create(value(4096));
+      SharedBuffer b = SharedBuffer.create(value(4096));
+      a.release();
+      b.release();
+      assertEquals(4096, SharedBuffer.getPooledBytes());
+    } finally {
+      SharedBuffer.MAX_POOLED_BYTES = oldMax;
+    }
+  }
+
+  /**
+   * Sends a message with the value as a shared buffer and as a byte[] and
+   * checks that the bytes on the wire are the same
+   */
+  private void assertSameBytes(byte[] value, boolean isObject) throws Exception {
+    SharedBuffer shared = SharedBuffer.create(value);
+    byte[] sharedBytes = send(newMessage(shared, isObject));
+    assertEquals(1, shared.getRefCount());
+    shared.release();
+
+    Message copying = new Message(3, Version.CURRENT);
+    copying.setMessageType(MessageType.LOCAL_CREATE);
+    copying.setTransactionId(17);
+    copying.addStringPart("region");
+    copying.addRawPart(value, isObject);
+    copying.addObjPart(Boolean.TRUE);
+    byte[] copiedBytes = send(copying);
+
+    assertArrayEquals(copiedBytes, sharedBytes);
+    assertArrayEquals(expected(value, isObject), valuePart(sharedBytes));
+  }
+
+  private Message newMessage(SharedBuffer shared, boolean isObject) {
+    assertTrue(shared.retain());
+    Message m = new Message(3, Version.CURRENT);
+    m.setMessageType(MessageType.LOCAL_CREATE);
+    m.setTransactionId(17);
+    m.addStringPart("region");
+    m.addRawPart(shared, isObject);
+    m.addObjPart(Boolean.TRUE);
+    return m;
+  }
+
+  /**
+   * Returns the bytes the value part must have on the wire, its header
+   * followed by the value
+   */
+  private byte[] expected(byte[] value, boolean isObject) {
+    ByteBuffer bb = ByteBuffer.allocate(5 + value.length);
+    bb.putInt(value.length);
+    bb.put(isObject ? (byte)1 : (byte)0);
+    bb.put(value);
+    return bb.array();
+  }
+
+  /**
+   * Sends the message over a socket channel and returns the bytes received
+   */
+  private byte[] send(Message m) throws Exception {
+    Future<byte[]> received = this.reader.submit(new Callable<byte[]>() {
+      public byte[] call() throws Exception {
+        SocketChannel ch = server.accept();
+        try {
+          InputStream in = ch.socket().getInputStream();
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          byte[] buf = new byte[512];
+          int n;
+          while ((n = in.read(buf)) >= 0) {
+            out.write(buf, 0, n);
+          }
+          return out.toByteArray();
+        } finally {
+          ch.close();
+        }
+      }
+    });
+    SocketChannel ch = SocketChannel.open(this.server.socket().getLocalSocketAddress());
+    try {
+      m.setComms(ch.socket(), ByteBuffer.allocate(COMM_BUFFER_SIZE), null);
+      m.send();
+    } finally {
+      ch.close();
+    }
+    return received.get(60, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Returns the value part, which is the second part, of a sent message
+   */
+  private byte[] valuePart(byte[] bytes) {
+    ByteBuffer bb = ByteBuffer.wrap(bytes);
+    assertEquals(MessageType.LOCAL_CREATE, bb.getInt());
+    assertEquals(bytes.length - 17, bb.getInt());
+    assertEquals(3, bb.getInt());
+    assertEquals(17, bb.getInt());
+    bb.get();
+    // skip the region name part
+    int regionLength = bb.getInt();
+    bb.get();
+    bb.position(bb.position() + regionLength);
+    int valueLength = bb.getInt();
+    byte[] valuePart = new byte[5 + valueLength];
+    bb.position(bb.position() - 4);
+    bb.get(valuePart);
+    assertTrue(bb.remaining() > 0);
+    return valuePart;
+  }
+
+  private static byte[] value(int size) {
+    byte[] value = new byte[size];
+    for (int i = 0; i < size; i++) {
+      value[i] = (byte)i;
+    }
+    return value;
+  }
+}
@@ -0,0 +1,276 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.gemstone.gemfire.distributed.internal.LonerDistributionManager.DummyDMStats;
+import com.gemstone.gemfire.test.junit.categories.UnitTest;
+
+/**
+ * Tests the accounting of the direct buffer pool in {@link Buffers}.
+ */
+@Category(UnitTest.class)
+public class BuffersJUnitTest {
+
+  private static final int SIZE = 10000;
+
+  /** the capacity of the size class holding SIZE */
+  private static final int CAPACITY = 16 * 1024;
+
+  private boolean oldUseDirectBuffers;
+
+  private CountingStats stats;
+
+  @Before
+  public void setUp() {
+    this.oldUseDirectBuffers = TCPConduit.useDirectBuffers;
+    TCPConduit.useDirectBuffers = true;
+    Buffers.clearPool();
+    this.stats = new CountingStats();
+  }
+
+  @After
+  public void tearDown() {
+    Buffers.releaseThreadBuffers(this.stats);
+    Buffers.clearPool();
+    TCPConduit.useDirectBuffers = this.oldUseDirectBuffers;
+  }
+
+  @Test
+  public void testBuffersAreCutFromSlabs() {
+    ByteBuffer bb = Buffers.acquireReceiveBuffer(SIZE, this.stats);
+    assertTrue(bb.isDirect());
+    assertEquals(SIZE, bb.limit());
+    assertEquals(CAPACITY, bb.capacity());
+    assertEquals(1, this.stats.allocations.get());
+    assertEquals(Buffers.SLAB_SIZE, this.stats.receiverDirect.get());
+    assertEquals(Buffers.SLAB_SIZE - CAPACITY, this.stats.freeSize.get());
+    assertEquals(Buffers.SLAB_SIZE, Buffers.getDirectBytes());
+
+    ByteBuffer other = Buffers.acquireReceiveBuffer(SIZE, this.stats);
+    assertNotSame(bb, other);
+    assertEquals(1, this.stats.allocations.get());
+    assertEquals(1, this.stats.hits.get());
+    assertEquals(Buffers.SLAB_SIZE - 2 * CAPACITY, this.stats.freeSize.get());
+
+    Buffers.releaseReceiveBuffer(bb, this.stats);
+    Buffers.releaseReceiveBuffer(other, this.stats);
+    assertEquals(Buffers.SLAB_SIZE, this.stats.freeSize.get());
+    assertEquals(Buffers.SLAB_SIZE, Buffers.getFreeBytes());
+    // the only slab is kept
+    assertEquals(Buffers.SLAB_SIZE, this.stats.receiverDirect.get());
+  }
+
+  @Test
+  public void testFreeSlabIsDropped() {
+    int perSlab = Buffers.SLAB_SIZE / CAPACITY;
+    List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+    for (int i = 0; i <= perSlab; i++) {
+      buffers.add(Buffers.acquireReceiveBuffer(SIZE, this.stats));
+    }
+    assertEquals(2, this.stats.allocations.get());
+    assertEquals(2L * Buffers.SLAB_SIZE, this.stats.receiverDirect.get());
+
+    for (ByteBuffer bb : buffers) {
+      Buffers.releaseReceiveBuffer(bb, this.stats);
+    }
+    // one slab of free buffers is kept, the other one is dropped
+    assertEquals(Buffers.SLAB_SIZE, this.stats.receiverDirect.get());
+    assertEquals(Buffers.SLAB_SIZE, Buffers.getDirectBytes());
+    assertEquals(Buffers.SLAB_SIZE, this.stats.freeSize.get());
+    assertEquals(Buffers.SLAB_SIZE, Buffers.getFreeBytes());
+
+    // a buffer of the dropped slab is no longer taken back
+    Buffers.releaseReceiveBuffer(buffers.get(buffers.size() - 1), this.stats);
+    Buffers.releaseReceiveBuffer(buffers.get(0), this.stats);
+    assertEquals(Buffers.SLAB_SIZE, Buffers.getFreeBytes());
+  }
+
+  @Test
+  public void testForeignBuffersAreNotAdopted() {
+    Buffers.releaseReceiveBuffer(ByteBuffer.allocateDirect(CAPACITY), this.stats);
+    Buffers.releaseSenderBuffer(ByteBuffer.allocateDirect(CAPACITY), this.stats);
+    Buffers.releaseReceiveBuffer(ByteBuffer.allocate(CAPACITY), this.stats);
+    assertEquals(0, this.stats.receiverDirect.get());
+    assertEquals(0, this.stats.senderDirect.get());
+    assertEquals(0, this.stats.freeSize.get());
+    assertEquals(0, Buffers.getDirectBytes());
+
+    Buffers.acquireReceiveBuffer(SIZE, this.stats);
+    assertEquals(1, this.stats.allocations.get());
+    assertEquals(0, this.stats.hits.get());
+  }
+
+  @Test
+  public void testDoubleReleaseIsIgnored() {
+    ByteBuffer bb = Buffers.acquireReceiveBuffer(SIZE, this.stats);
+    Buffers.releaseReceiveBuffer(bb, this.stats);
+    Buffers.releaseReceiveBuffer(bb, this.stats);
+    assertEquals(Buffers.SLAB_SIZE, Buffers.getFreeBytes());
+    assertEquals(Buffers.SLAB_SIZE, this.stats.freeSize.get());
+  }
+
+  @Test
+  public void testLargeBuffersAreNotPooled() {
+    int size = Buffers.MAX_POOLED_SIZE + 1;
+    ByteBuffer bb = Buffers.acquireReceiveBuffer(size, this.stats);
+    assertEquals(size, bb.capacity());
+    assertEquals(size, this.stats.receiverDirect.get());
+    assertEquals(0, this.stats.allocations.get());
+    Buffers.releaseReceiveBuffer(bb, this.stats);
+    Buffers.releaseReceiveBuffer(bb, this.stats);
+    assertEquals(0, this.stats.receiverDirect.get());
+    assertEquals(0, Buffers.getDirectBytes());
+    assertEquals(0, this.stats.freeSize.get());
+  }
+
+  @Test
+  public void testHeapBuffersWhenDirectBuffersAreDisabled() {
+    TCPConduit.useDirectBuffers = false;
+    ByteBuffer bb = Buffers.acquireSenderBuffer(SIZE, this.stats);
+    assertFalse(bb.isDirect());
+    assertEquals(SIZE, this.stats.senderHeap.get());
+    Buffers.releaseSenderBuffer(bb, this.stats);
+    assertEquals(0, this.stats.senderHeap.get());
+    assertEquals(0, Buffers.getDirectBytes());
+    assertEquals(0, this.stats.allocations.get());
+  }
+
+  @Test
+  public void testThreadKeepsSendBuffer() {
+    ByteBuffer bb = Buffers.acquireSenderBuffer(SIZE, this.stats);
+    long free = Buffers.getFreeBytes();
+    Buffers.releaseSenderBuffer(bb, this.stats);
+    // kept by this thread, not added to the free buffers
+    assertEquals(free, Buffers.getFreeBytes());
+    assertSame(bb, Buffers.acquireSenderBuffer(SIZE, this.stats));
+    assertEquals(1, this.stats.hits.get());
+    assertEquals(free, Buffers.getFreeBytes());
+
+    Buffers.releaseSenderBuffer(bb, this.stats);
+    Buffers.releaseThreadBuffers(this.stats);
+    assertEquals(Buffers.SLAB_SIZE, Buffers.getFreeBytes());
+  }
+
+  @Test
+  public void testThreadCacheIsBounded() {
+    List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+    for (int size = 4 * 1024; size <= Buffers.SLAB_SIZE; size *= 2) {
+      buffers.add(Buffers.acquireSenderBuffer(size, this.stats));
+    }
+    long free = Buffers.getFreeBytes();
+    long released = 0;
+    for (ByteBuffer bb : buffers) {
+      Buffers.releaseSenderBuffer(bb, this.stats);
+      released += bb.capacity();
+    }
+    long kept = (released - (Buffers.getFreeBytes() - free));
+    assertTrue(kept > 0);
+    assertTrue(kept <= Buffers.MAX_THREAD_CACHED_BYTES);
+    Buffers.releaseThreadBuffers(this.stats);
+    assertEquals(free + released, Buffers.getFreeBytes());
+  }
+
+  @Test
+  public void testBuffersOfTerminatedThreadAreReleased() throws Exception {
+    final CountingStats threadStats = this.stats;
+    Thread sender = new Thread("BuffersJUnitTest sender") {
+      @Override
+      public void run() {
+        ByteBuffer bb = Buffers.acquireSenderBuffer(SIZE, threadStats);
+        Buffers.releaseSenderBuffer(bb, threadStats);
+      }
+    };
+    sender.start();
+    sender.join(60000);
+    assertFalse(sender.isAlive());
+    assertEquals(Buffers.SLAB_SIZE - CAPACITY, Buffers.getFreeBytes());
+
+    // the next allocation takes back the buffer of the terminated thread
+    int otherSize = 4 * CAPACITY;
+    ByteBuffer bb = Buffers.acquireReceiveBuffer(otherSize, this.stats);
+    assertEquals(2, this.stats.allocations.get());
+    assertEquals(2L * Buffers.SLAB_SIZE - otherSize, Buffers.getFreeBytes());
+    Buffers.releaseReceiveBuffer(bb, this.stats);
+    assertEquals(2L * Buffers.SLAB_SIZE, Buffers.getFreeBytes());
+    assertEquals(2L * Buffers.SLAB_SIZE, this.stats.freeSize.get());
+  }
+
+  @Test
+  public void testReleasedThreadCacheIsForgotten() throws Exception {
+    final CountingStats threadStats = this.stats;
+    final int caches = Buffers.getThreadCacheCount();
+    final AtomicLong keptCaches = new AtomicLong();
+    Thread sender = new Thread("BuffersJUnitTest pooled sender") {
+      @Override
+      public void run() {
+        ByteBuffer bb = Buffers.acquireSenderBuffer(SIZE, threadStats);
+        Buffers.releaseSenderBuffer(bb, threadStats);
+        keptCaches.set(Buffers.getThreadCacheCount());
+        // as a pooled thread of the distribution manager does when done
+        Buffers.releaseThreadBuffers(threadStats);
+      }
+    };
+    sender.start();
+    sender.join(60000);
+    assertFalse(sender.isAlive());
+    assertEquals(caches + 1, keptCaches.get());
+    assertEquals(caches, Buffers.getThreadCacheCount());
+    assertEquals(Buffers.SLAB_SIZE, Buffers.getFreeBytes());
+  }
+
+  private static class CountingStats extends DummyDMStats {
+    final AtomicLong senderDirect = new AtomicLong();
+    final AtomicLong receiverDirect = new AtomicLong();
+    final AtomicLong senderHeap = new AtomicLong();
+    final AtomicLong receiverHeap = new AtomicLong();
+    final AtomicLong freeSize = new AtomicLong();
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong allocations = new AtomicLong();
+
+    @Override
+    public void incSenderBufferSize(int inc, boolean direct) {
+      (direct ? this.senderDirect : this.senderHeap).addAndGet(inc);
+    }
+
+    @Override
+    public void incReceiverBufferSize(int inc, boolean direct) {
+      (direct ? this.receiverDirect : this.receiverHeap).addAndGet(inc);
+    }
+
+    @Override
+    public void incBufferPoolFreeSize(int inc) {
+      this.freeSize.addAndGet(inc);
+    }
+
+    @Override
+    public void incBufferPoolHits() {
+      this.hits.incrementAndGet();
+    }
+
+    @Override
+    public void incBufferPoolAllocations() {
+      this.allocations.incrementAndGet();
+    }
+  }
+}
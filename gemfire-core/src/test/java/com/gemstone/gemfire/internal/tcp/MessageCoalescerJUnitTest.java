@@ -0,0 +1,372 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.gemstone.gemfire.CancelCriterion;
+import com.gemstone.gemfire.distributed.internal.DistributionStats;
+import com.gemstone.gemfire.distributed.internal.LonerDistributionManager.DummyDMStats;
+import com.gemstone.gemfire.test.junit.categories.UnitTest;
+
+/**
+ * Tests that {@link MessageCoalescer} writes every message intact, packs
+ * concurrent messages into one write and keeps the sender's own socket
+ * write out of the coalesce wait time.
+ */
+@Category(UnitTest.class)
+public class MessageCoalescerJUnitTest {
+
+  private static final int BUFFER_SIZE = 4096;
+
+  private static final int MAX_MESSAGE_SIZE = 1024;
+
+  private boolean oldEnableClockStats;
+
+  private CountingStats stats;
+
+  private ExecutorService senders;
+
+  @Before
+  public void setUp() {
+    this.oldEnableClockStats = DistributionStats.enableClockStats;
+    DistributionStats.enableClockStats = true;
+    this.stats = new CountingStats();
+    this.senders = Executors.newFixedThreadPool(8);
+  }
+
+  @After
+  public void tearDown() {
+    this.senders.shutdownNow();
+    DistributionStats.enableClockStats = this.oldEnableClockStats;
+  }
+
+  @Test
+  public void testConcurrentMessagesArriveIntact() throws Exception {
+    final CollectingWriter writer = new CollectingWriter(0);
+    final MessageCoalescer coalescer = newCoalescer(writer, 200);
+    final int messagesPerSender = 500;
+    List<Future<Object>> results = new ArrayList<Future<Object>>();
+    for (int s = 0; s < 8; s++) {
+      final int sender = s;
+      results.add(this.senders.submit(new Callable<Object>() {
+        public Object call() throws Exception {
+          for (int i = 0; i < messagesPerSender; i++) {
+            coalescer.send(message(sender, i, 1 + (i * 37) % 300));
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<Object> f : results) {
+      f.get(60, TimeUnit.SECONDS);
+    }
+
+    // every sender's messages are whole and in the order it sent them
+    Map<Integer, Integer> next = new HashMap<Integer, Integer>();
+    ByteBuffer received = ByteBuffer.wrap(writer.getBytes());
+    int total = 0;
+    while (received.hasRemaining()) {
+      int sender = received.get();
+      int seq = received.getShort();
+      int length = received.getShort();
+      Integer expected = next.get(sender);
+      assertEquals(expected == null ? 0 : expected.intValue(), seq);
+      next.put(sender, seq + 1);
+      for (int i = 0; i < length; i++) {
+        assertEquals((byte)(sender + seq + i), received.get());
+      }
+      total++;
+    }
+    assertEquals(8 * messagesPerSender, total);
+    assertEquals(total, this.stats.coalescedWrites.get());
+    assertTrue(writer.getWrites() <= total);
+  }
+
+  @Test
+  public void testMessagesSentDuringAWriteShareTheNextWrite() throws Exception {
+    final CollectingWriter writer = new CollectingWriter(0);
+    writer.block();
+    final MessageCoalescer coalescer = newCoalescer(writer, 0);
+    // the first sender holds the socket until the writer is unblocked
+    Future<Object> first = this.senders.submit(new Callable<Object>() {
+      public Object call() throws Exception {
+        coalescer.send(message(0, 0, 10));
+        return null;
+      }
+    });
+    writer.awaitWriteStarted();
+    List<Future<Object>> others = new ArrayList<Future<Object>>();
+    for (int s = 1; s <= 5; s++) {
+      final int sender = s;
+      others.add(this.senders.submit(new Callable<Object>() {
+        public Object call() throws Exception {
+          coalescer.send(message(sender, 0, 10));
+          return null;
+        }
+      }));
+    }
+    // let the others fill the buffer behind the blocked write
+    Thread.sleep(500);
+    writer.unblock();
+    first.get(60, TimeUnit.SECONDS);
+    for (Future<Object> f : others) {
+      f.get(60, TimeUnit.SECONDS);
+    }
+    assertEquals(2, writer.getWrites());
+    assertEquals(6 * 15, writer.getBytes().length);
+    assertEquals(6, this.stats.coalescedWrites.get());
+  }
+
+  @Test
+  public void testOwnWriteIsNotWaitTime() throws Exception {
+    final long writeMillis = 200;
+    CollectingWriter writer = new CollectingWriter(writeMillis);
+    MessageCoalescer coalescer = newCoalescer(writer, 0);
+    long start = System.nanoTime();
+    coalescer.send(message(0, 0, 10));
+    coalescer.send(new ByteBuffer[] { message(0, 1, 2 * MAX_MESSAGE_SIZE) });
+    long elapsed = System.nanoTime() - start;
+    assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(2 * writeMillis));
+    assertEquals(2, writer.getWrites());
+    // a lone sender waits for nobody, it only writes
+    assertTrue("waited " + this.stats.waitTime.get() + "ns",
+        this.stats.waitTime.get() < TimeUnit.MILLISECONDS.toNanos(writeMillis / 2));
+  }
+
+  @Test
+  public void testWaitForAnotherSendersWriteIsWaitTime() throws Exception {
+    final CollectingWriter writer = new CollectingWriter(0);
+    writer.block();
+    final MessageCoalescer coalescer = newCoalescer(writer, 0);
+    Future<Object> first = this.senders.submit(new Callable<Object>() {
+      public Object call() throws Exception {
+        coalescer.send(message(0, 0, 10));
+        return null;
+      }
+    });
+    writer.awaitWriteStarted();
+    Future<Object> second = this.senders.submit(new Callable<Object>() {
+      public Object call() throws Exception {
+        coalescer.send(message(1, 0, 10));
+        return null;
+      }
+    });
+    Thread.sleep(300);
+    writer.unblock();
+    first.get(60, TimeUnit.SECONDS);
+    second.get(60, TimeUnit.SECONDS);
+    assertTrue("waited " + this.stats.waitTime.get() + "ns",
+        this.stats.waitTime.get() >= TimeUnit.MILLISECONDS.toNanos(250));
+  }
+
+  @Test
+  public void testLargeMessageBypassesBuffer() throws Exception {
+    CollectingWriter writer = new CollectingWriter(0);
+    MessageCoalescer coalescer = newCoalescer(writer, 0);
+    ByteBuffer large = message(0, 0, 3 * MAX_MESSAGE_SIZE);
+    coalescer.send(large);
+    assertEquals(1, writer.getWrites());
+    assertSame(large, writer.getLastWritten()[0]);
+    assertEquals(0, large.remaining());
+    assertEquals(0, this.stats.coalescedWrites.get());
+  }
+
+  @Test
+  public void testWriteFailureIsThrownToEverySender() throws Exception {
+    final CollectingWriter writer = new CollectingWriter(0);
+    writer.block();
+    writer.failWith(new IOException("broken pipe"));
+    final MessageCoalescer coalescer = newCoalescer(writer, 0);
+    Future<Object> first = this.senders.submit(new Callable<Object>() {
+      public Object call() throws Exception {
+        coalescer.send(message(0, 0, 10));
+        return null;
+      }
+    });
+    writer.awaitWriteStarted();
+    Future<Object> second = this.senders.submit(new Callable<Object>() {
+      public Object call() throws Exception {
+        coalescer.send(message(1, 0, 10));
+        return null;
+      }
+    });
+    Thread.sleep(200);
+    writer.unblock();
+    assertFailed(first, "broken pipe");
+    // the second message is in the next batch, whose write fails as well
+    assertFailed(second, "broken pipe");
+    try {
+      coalescer.send(message(2, 0, 10));
+      fail("expected IOException");
+    } catch (IOException expected) {
+    }
+  }
+
+  private void assertFailed(Future<Object> f, String message) throws Exception {
+    try {
+      f.get(60, TimeUnit.SECONDS);
+      fail("expected IOException");
+    } catch (java.util.concurrent.ExecutionException ex) {
+      assertTrue(String.valueOf(ex.getCause()), ex.getCause() instanceof IOException);
+      assertTrue(String.valueOf(ex.getCause()),
+          String.valueOf(ex.getCause()).contains(message));
+    }
+  }
+
+  private MessageCoalescer newCoalescer(CollectingWriter writer, long windowMicros) {
+    return new MessageCoalescer(writer, this.stats, new NoCancel(),
+        windowMicros, BUFFER_SIZE, MAX_MESSAGE_SIZE, false);
+  }
+
+  /**
+   * Returns a message of a header with the sender, the sequence number and
+   * the length, followed by bytes computed from them
+   */
+  private static ByteBuffer message(int sender, int seq, int length) {
+    ByteBuffer bb = ByteBuffer.allocate(5 + length);
+    bb.put((byte)sender);
+    bb.putShort((short)seq);
+    bb.putShort((short)length);
+    for (int i = 0; i < length; i++) {
+      bb.put((byte)(sender + seq + i));
+    }
+    bb.flip();
+    return bb;
+  }
+
+  /**
+   * Collects the bytes written, optionally taking some time for every write,
+   * blocking until released, or failing
+   */
+  private static class CollectingWriter implements MessageCoalescer.Writer {
+    private final long writeMillis;
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final AtomicInteger writes = new AtomicInteger();
+    private final CountDownLatch started = new CountDownLatch(1);
+    private volatile CountDownLatch blocked;
+    private volatile IOException failure;
+    private volatile ByteBuffer[] lastWritten;
+
+    CollectingWriter(long writeMillis) {
+      this.writeMillis = writeMillis;
+    }
+
+    void block() {
+      this.blocked = new CountDownLatch(1);
+    }
+
+    void unblock() {
+      this.blocked.countDown();
+    }
+
+    void failWith(IOException ex) {
+      this.failure = ex;
+    }
+
+    void awaitWriteStarted() throws InterruptedException {
+      assertTrue(this.started.await(60, TimeUnit.SECONDS));
+    }
+
+    public void write(ByteBuffer[] buffers) throws IOException {
+      this.started.countDown();
+      CountDownLatch latch = this.blocked;
+      if (latch != null) {
+        try {
+          assertTrue(latch.await(60, TimeUnit.SECONDS));
+        } catch (InterruptedException ex) {
+          throw new IOException(ex.toString());
+        }
+      }
+      if (this.writeMillis > 0) {
+        try {
+          Thread.sleep(this.writeMillis);
+        } catch (InterruptedException ex) {
+          throw new IOException(ex.toString());
+        }
+      }
+      if (this.failure != null) {
+        throw this.failure;
+      }
+      this.writes.incrementAndGet();
+      this.lastWritten = buffers;
+      synchronized (this.bytes) {
+        for (ByteBuffer bb : buffers) {
+          byte[] b = new byte[bb.remaining()];
+          bb.get(b);
+          this.bytes.write(b, 0, b.length);
+        }
+      }
+    }
+
+    int getWrites() {
+      return this.writes.get();
+    }
+
+    ByteBuffer[] getLastWritten() {
+      return this.lastWritten;
+    }
+
+    byte[] getBytes() {
+      synchronized (this.bytes) {
+        return this.bytes.toByteArray();
+      }
+    }
+  }
+
+  private static class CountingStats extends DummyDMStats {
+    final AtomicLong waitTime = new AtomicLong();
+    final AtomicInteger coalescedWrites = new AtomicInteger();
+
+    @Override
+    public void incCoalescedWrites(int messages) {
+      this.coalescedWrites.addAndGet(messages);
+    }
+
+    @Override
+    public void incCoalesceWaitTime(long start) {
+      this.waitTime.addAndGet(DistributionStats.getStatTime() - start);
+    }
+  }
+
+  private static class NoCancel extends CancelCriterion {
+    @Override
+    public String cancelInProgress() {
+      return null;
+    }
+
+    @Override
+    public RuntimeException generateCancelledException(Throwable e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.tcp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.gemstone.gemfire.distributed.internal.DMStats;
+import com.gemstone.gemfire.distributed.internal.LonerDistributionManager.DummyDMStats;
+import com.gemstone.gemfire.test.junit.categories.UnitTest;
+
+/**
+ * Tests that message chunks survive compression and decompression, that
+ * chunks which don't shrink are sent as they are, and that compression is
+ * only used when both ends of a connection want it.
+ */
+@Category(UnitTest.class)
+public class MessageCompressionJUnitTest {
+
+  private static final byte MSG_TYPE = (byte)Connection.NORMAL_MSG_TYPE;
+
+  private static final short MSG_ID = 4711;
+
+  private int oldThreshold;
+
+  private final DMStats stats = new DummyDMStats();
+
+  @Before
+  public void setUp() {
+    this.oldThreshold = MessageCompression.THRESHOLD;
+    MessageCompression.THRESHOLD = 1024;
+  }
+
+  @After
+  public void tearDown() {
+    MessageCompression.THRESHOLD = this.oldThreshold;
+  }
+
+  @Test
+  public void testCompressedChunkRoundTrip() throws Exception {
+    byte[] payload = compressible(64 * 1024);
+    ByteBuffer compressed = MessageCompression.compress(
+        new ByteBuffer[] { chunk(payload) }, this.stats);
+    assertNotNull(compressed);
+    assertTrue(compressed.remaining() < Connection.MSG_HEADER_BYTES + payload.length);
+
+    // the header describes the compressed payload and keeps type and id
+    int pos = compressed.position();
+    assertEquals(compressed.remaining() - Connection.MSG_HEADER_BYTES,
+        Connection.calcMsgByteSize(compressed.getInt(pos
+            + Connection.MSG_HEADER_SIZE_OFFSET)));
+    byte type = compressed.get(pos + Connection.MSG_HEADER_TYPE_OFFSET);
+    assertTrue((type & Connection.COMPRESSED_BIT) != 0);
+    assertEquals(MSG_TYPE, (byte)(type & ~Connection.COMPRESSED_BIT));
+    assertEquals(MSG_ID, compressed.getShort(pos + Connection.MSG_HEADER_ID_OFFSET));
+
+    assertArrayEquals(payload, decompress(compressed));
+  }
+
+  @Test
+  public void testGatheredChunkRoundTrip() throws Exception {
+    // a chunk that refers to value buffers compresses to the same bytes as
+    // the chunk with the values copied in
+    byte[] payload = compressible(40 * 1024);
+    ByteBuffer whole = MessageCompression.compress(
+        new ByteBuffer[] { chunk(payload) }, this.stats);
+
+    ByteBuffer header = ByteBuffer.allocate(Connection.MSG_HEADER_BYTES + 1000);
+    header.putInt(Connection.calcHdrSize(payload.length));
+    header.put(MSG_TYPE);
+    header.putShort(MSG_ID);
+    header.put(payload, 0, 1000);
+    header.flip();
+    ByteBuffer value = ByteBuffer.allocateDirect(payload.length - 1000);
+    value.put(payload, 1000, payload.length - 1000);
+    value.flip();
+    ByteBuffer[] gathered = new ByteBuffer[] { header, value };
+    ByteBuffer fromGathered = MessageCompression.compress(gathered, this.stats);
+
+    // the buffers are left for the uncompressed sends
+    assertEquals(0, header.position());
+    assertEquals(0, value.position());
+    assertEquals(whole, fromGathered);
+    assertArrayEquals(payload, decompress(fromGathered));
+  }
+
+  @Test
+  public void testIncompressibleChunkIsNotCompressed() throws Exception {
+    byte[] payload = new byte[16 * 1024];
+    new Random(17).nextBytes(payload);
+    assertNull(MessageCompression.compress(new ByteBuffer[] { chunk(payload) },
+        this.stats));
+  }
+
+  @Test
+  public void testNegotiation() throws Exception {
+    assertTrue(MessageCompression.isEnabled());
+    // both members want compression
+    assertTrue(negotiate(new byte[] { 1 }));
+    // the peer has compression disabled
+    assertFalse(negotiate(new byte[] { 0 }));
+  }
+
+  @Test
+  public void testPeerWithoutCompressionFallsBack() throws Exception {
+    // an older peer ends its handshake without the flag
+    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(new byte[0]));
+    assertFalse(MessageCompression.readNegotiation(dis, dis.available()));
+    // and the fields before the flag are read as before
+    dis = new DataInputStream(new ByteArrayInputStream(new byte[] { 0, 0, 0, 42 }));
+    assertEquals(42, dis.readInt());
+    assertFalse(MessageCompression.readNegotiation(dis, dis.available()));
+  }
+
+  @Test
+  public void testDisabledMemberRefusesCompression() throws Exception {
+    MessageCompression.THRESHOLD = 0;
+    assertFalse(MessageCompression.isEnabled());
+    // the peer's flag is still read, so nothing is left behind
+    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(new byte[] { 1 }));
+    assertFalse(MessageCompression.readNegotiation(dis, dis.available()));
+    assertEquals(0, dis.available());
+  }
+
+  private boolean negotiate(byte[] handshakeTail) throws Exception {
+    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(handshakeTail));
+    boolean result = MessageCompression.readNegotiation(dis, dis.available());
+    assertEquals(0, dis.available());
+    return result;
+  }
+
+  /**
+   * Returns the payload of the given compressed chunk decompressed, the way
+   * the reader does it
+   */
+  private byte[] decompress(ByteBuffer compressed) throws Exception {
+    ByteBuffer payload = compressed.duplicate();
+    payload.position(payload.position() + Connection.MSG_HEADER_BYTES);
+    ByteBuffer result = MessageCompression.decompress(payload, this.stats);
+    // the compressed chunk is not changed
+    assertEquals(compressed.position() + Connection.MSG_HEADER_BYTES,
+        payload.position());
+    byte[] bytes = new byte[result.remaining()];
+    result.get(bytes);
+    return bytes;
+  }
+
+  private static ByteBuffer chunk(byte[] payload) {
+    ByteBuffer bb = ByteBuffer.allocate(Connection.MSG_HEADER_BYTES + payload.length);
+    bb.putInt(Connection.calcHdrSize(payload.length));
+    bb.put(MSG_TYPE);
+    bb.putShort(MSG_ID);
+    bb.put(payload);
+    bb.flip();
+    return bb;
+  }
+
+  private static byte[] compressible(int size) {
+    byte[] bytes = new byte[size];
+    for (int i = 0; i < size; i++) {
+      bytes[i] = (byte)("abcdefgh".charAt(i % 8) + (i / 4096));
+    }
+    return bytes;
+  }
+}
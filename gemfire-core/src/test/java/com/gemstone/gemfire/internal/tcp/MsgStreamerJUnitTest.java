@@ -0,0 +1,289 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.tcp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.gemstone.gemfire.DataSerializer;
+import com.gemstone.gemfire.distributed.internal.DistributionManager;
+import com.gemstone.gemfire.distributed.internal.DistributionMessage;
+import com.gemstone.gemfire.distributed.internal.HighPriorityDistributionMessage;
+import com.gemstone.gemfire.distributed.internal.LonerDistributionManager.DummyDMStats;
+import com.gemstone.gemfire.internal.HeapDataOutputStream;
+import com.gemstone.gemfire.internal.InternalDataSerializer;
+import com.gemstone.gemfire.internal.ObjToByteArraySerializer;
+import com.gemstone.gemfire.internal.Version;
+import com.gemstone.gemfire.test.junit.categories.UnitTest;
+
+/**
+ * Tests that {@link MsgStreamer} sends large values handed over by
+ * reference with gathering writes, byte for byte the same as when it copies
+ * them, and keeps copying the buffers it must not hold on to.
+ */
+@Category(UnitTest.class)
+public class MsgStreamerJUnitTest {
+
+  private static final int SEND_BUFFER_SIZE = 32 * 1024;
+
+  private boolean oldUseDirectBuffers;
+
+  @Before
+  public void setUp() {
+    this.oldUseDirectBuffers = TCPConduit.useDirectBuffers;
+    TCPConduit.useDirectBuffers = false;
+  }
+
+  @After
+  public void tearDown() {
+    TCPConduit.useDirectBuffers = this.oldUseDirectBuffers;
+  }
+
+  @Test
+  public void testGatheredValueInOneChunk() throws Exception {
+    assertGatheredMatchesCopied(value(10 * 1024));
+  }
+
+  @Test
+  public void testGatheredValueAcrossChunks() throws Exception {
+    // the value is split over several chunks, the first and last of which
+    // also hold copied bytes
+    assertGatheredMatchesCopied(value(5 * SEND_BUFFER_SIZE + 123));
+  }
+
+  @Test
+  public void testSmallValueIsCopied() throws Exception {
+    byte[] value = value(1000);
+    SentChunks sent = send(new ValueMessage(value, Mode.UNMODIFIABLE));
+    assertEquals(0, sent.gatheredSends);
+    assertFalse(sent.referencedValue);
+    assertArrayEquals(send(new ValueMessage(value, Mode.COPY)).payload(),
+        sent.payload());
+  }
+
+  @Test
+  public void testReusableStreamIsCopied() throws Exception {
+    // a HeapDataOutputStream is rewound and may be written again after
+    // the streamer is done with it, so its buffers are never referenced
+    byte[] value = value(3 * SEND_BUFFER_SIZE);
+    SentChunks sent = send(new ValueMessage(value, Mode.HEAP_STREAM));
+    assertEquals(0, sent.gatheredSends);
+    assertArrayEquals(send(new ValueMessage(value, Mode.COPY)).payload(),
+        sent.payload());
+  }
+
+  @Test
+  public void testEveryConnectionGetsTheWholeChunk() throws Exception {
+    byte[] value = value(2 * SEND_BUFFER_SIZE);
+    List<SentChunks> sent = send(new ValueMessage(value, Mode.UNMODIFIABLE), 3);
+    byte[] expected = send(new ValueMessage(value, Mode.COPY)).payload();
+    for (SentChunks s : sent) {
+      assertTrue(s.gatheredSends > 0);
+      assertArrayEquals(expected, s.payload());
+    }
+  }
+
+  private void assertGatheredMatchesCopied(byte[] value) throws Exception {
+    SentChunks gathered = send(new ValueMessage(value, Mode.UNMODIFIABLE));
+    SentChunks copied = send(new ValueMessage(value, Mode.COPY));
+    assertTrue(gathered.gatheredSends > 0);
+    assertTrue(gathered.referencedValue);
+    assertEquals(0, copied.gatheredSends);
+    assertEquals(copied.chunks.size(), gathered.chunks.size());
+    for (int i = 0; i < copied.chunks.size(); i++) {
+      assertArrayEquals(withoutMsgId(copied.chunks.get(i)),
+          withoutMsgId(gathered.chunks.get(i)));
+    }
+  }
+
+  private SentChunks send(DistributionMessage msg) throws Exception {
+    return send(msg, 1).get(0);
+  }
+
+  /**
+   * Streams the message to the given number of connections and returns the
+   * chunks each of them was asked to send
+   */
+  private List<SentChunks> send(DistributionMessage msg, int connections)
+      throws Exception {
+    List<Connection> cons = new ArrayList<Connection>();
+    List<SentChunks> result = new ArrayList<SentChunks>();
+    for (int i = 0; i < connections; i++) {
+      SentChunks sent = new SentChunks(((ValueMessage)msg).value);
+      cons.add(sent.connection);
+      result.add(sent);
+    }
+    MsgStreamer streamer = new MsgStreamer(cons, msg, false, new DummyDMStats(),
+        SEND_BUFFER_SIZE);
+    int bytes = streamer.writeMessage();
+    for (SentChunks sent : result) {
+      int chunkBytes = 0;
+      for (byte[] chunk : sent.chunks) {
+        chunkBytes += chunk.length;
+      }
+      assertEquals(bytes, chunkBytes);
+    }
+    return result;
+  }
+
+  /** the message id of chunked messages differs between sends */
+  private static byte[] withoutMsgId(byte[] chunk) {
+    byte[] result = chunk.clone();
+    result[Connection.MSG_HEADER_ID_OFFSET] = 0;
+    result[Connection.MSG_HEADER_ID_OFFSET + 1] = 0;
+    return result;
+  }
+
+  private static byte[] value(int size) {
+    byte[] value = new byte[size];
+    for (int i = 0; i < size; i++) {
+      value[i] = (byte)(i * 31 + 7);
+    }
+    return value;
+  }
+
+  /**
+   * The chunks a mocked connection was asked to send
+   */
+  private static class SentChunks {
+    final Connection connection = mock(Connection.class);
+    final List<byte[]> chunks = new ArrayList<byte[]>();
+    int gatheredSends;
+    boolean referencedValue;
+
+    SentChunks(final byte[] value) throws Exception {
+      doAnswer(new Answer<Object>() {
+        public Object answer(InvocationOnMock invocation) {
+          ByteBuffer bb = (ByteBuffer)invocation.getArguments()[0];
+          chunks.add(bytes(new ByteBuffer[] { bb }));
+          return null;
+        }
+      }).when(this.connection).sendPreserialized(any(ByteBuffer.class),
+          anyBoolean(), any(DistributionMessage.class));
+      doAnswer(new Answer<Object>() {
+        public Object answer(InvocationOnMock invocation) {
+          ByteBuffer[] buffers = (ByteBuffer[])invocation.getArguments()[0];
+          gatheredSends++;
+          for (ByteBuffer bb : buffers) {
+            if (bb.hasArray() && bb.array() == value) {
+              referencedValue = true;
+            }
+          }
+          chunks.add(bytes(buffers));
+          return null;
+        }
+      }).when(this.connection).sendPreserialized(any(ByteBuffer[].class),
+          anyBoolean(), any(DistributionMessage.class));
+    }
+
+    /** copies the remaining bytes without consuming them */
+    private static byte[] bytes(ByteBuffer[] buffers) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      for (ByteBuffer bb : buffers) {
+        ByteBuffer dup = bb.duplicate();
+        byte[] b = new byte[dup.remaining()];
+        dup.get(b);
+        out.write(b, 0, b.length);
+      }
+      return out.toByteArray();
+    }
+
+    /** the bytes of all chunks without their headers */
+    byte[] payload() {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      for (byte[] chunk : this.chunks) {
+        assertEquals(chunk.length - Connection.MSG_HEADER_BYTES,
+            Connection.calcMsgByteSize(ByteBuffer.wrap(chunk).getInt(
+                Connection.MSG_HEADER_SIZE_OFFSET)));
+        out.write(chunk, Connection.MSG_HEADER_BYTES,
+            chunk.length - Connection.MSG_HEADER_BYTES);
+      }
+      return out.toByteArray();
+    }
+  }
+
+  private enum Mode {
+    /** written with DataSerializer.writeByteArray, which is copied */
+    COPY,
+    /** handed over with writeUnmodifiableByteArray */
+    UNMODIFIABLE,
+    /** written from a HeapDataOutputStream */
+    HEAP_STREAM
+  }
+
+  /**
+   * A message with some fields around a value written the given way
+   */
+  private static class ValueMessage extends HighPriorityDistributionMessage {
+    final byte[] value;
+    private final Mode mode;
+
+    ValueMessage(byte[] value, Mode mode) {
+      this.value = value;
+      this.mode = mode;
+    }
+
+    public int getDSFID() {
+      return NO_FIXED_ID;
+    }
+
+    @Override
+    protected void process(DistributionManager dm) {
+    }
+
+    @Override
+    public void toData(DataOutput out) throws IOException {
+      super.toData(out);
+      out.writeUTF("before the value");
+      out.writeLong(17L);
+      switch (this.mode) {
+      case COPY:
+        DataSerializer.writeByteArray(this.value, out);
+        break;
+      case UNMODIFIABLE:
+        InternalDataSerializer.writeUnmodifiableByteArray(this.value, out);
+        break;
+      case HEAP_STREAM:
+        HeapDataOutputStream hdos = new HeapDataOutputStream(this.value.length,
+            Version.CURRENT);
+        hdos.write(this.value);
+        ((ObjToByteArraySerializer)out).writeAsSerializedByteArray(hdos);
+        // the stream is still intact
+        assertArrayEquals(this.value, hdos.toByteArray());
+        break;
+      }
+      out.writeUTF("after the value");
+    }
+
+    @Override
+    public void fromData(DataInput in) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,222 @@
+/*=========================================================================
+ * Copyright (c) 2010-2014 Pivotal Software, Inc. All Rights Reserved.
+ * This product is protected by U.S. and international copyright
+ * and intellectual property laws. Pivotal products are covered by
+ * one or more patents listed at http://www.pivotal.io/patents.
+ *=========================================================================
+ */
+package com.gemstone.gemfire.internal.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.gemstone.gemfire.test.junit.categories.UnitTest;
+
+/**
+ * Tests that {@link SelectorReaders} reads each registered connection in
+ * order by one thread at a time, and stops reading connections that are
+ * closed by their peer, closed while idle, or still open when the readers
+ * close.
+ */
+@Category(UnitTest.class)
+public class SelectorReadersJUnitTest {
+
+  private ServerSocketChannel server;
+
+  private SelectorReaders readers;
+
+  private final List<SocketChannel> channels = new ArrayList<SocketChannel>();
+
+  @Before
+  public void setUp() throws Exception {
+    this.server = ServerSocketChannel.open();
+    this.server.socket().bind(new InetSocketAddress(InetAddress.getLocalHost(), 0));
+    this.readers = new SelectorReaders(2);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    this.readers.close();
+    for (SocketChannel ch : this.channels) {
+      ch.close();
+    }
+    this.server.close();
+  }
+
+  @Test
+  public void testConnectionsAreReadInOrder() throws Exception {
+    final int connections = 5;
+    final int messages = 300;
+    List<FakeReceiver> receivers = new ArrayList<FakeReceiver>();
+    List<SocketChannel> clients = new ArrayList<SocketChannel>();
+    for (int i = 0; i < connections; i++) {
+      SocketChannel client = connect();
+      FakeReceiver receiver = new FakeReceiver();
+      assertTrue(this.readers.register(receiver.connection, accept()));
+      receivers.add(receiver);
+      clients.add(client);
+    }
+    // interleave the writes to all connections
+    for (int m = 0; m < messages; m++) {
+      for (SocketChannel client : clients) {
+        ByteBuffer bb = ByteBuffer.allocate(4);
+        bb.putInt(m);
+        bb.flip();
+        while (bb.hasRemaining()) {
+          client.write(bb);
+        }
+      }
+    }
+    for (SocketChannel client : clients) {
+      client.close();
+    }
+    for (FakeReceiver receiver : receivers) {
+      assertTrue(receiver.stopped.await(60, TimeUnit.SECONDS));
+      ByteBuffer received = ByteBuffer.wrap(receiver.bytes());
+      assertEquals(4 * messages, received.remaining());
+      for (int m = 0; m < messages; m++) {
+        assertEquals(m, received.getInt());
+      }
+      assertEquals(1, receiver.maxConcurrentReads.get());
+      assertEquals(1, receiver.stops.get());
+      verify(receiver.connection, never()).requestClose(anyString());
+    }
+  }
+
+  @Test
+  public void testConnectionClosedWhileIdleIsStopped() throws Exception {
+    connect();
+    SocketChannel channel = accept();
+    FakeReceiver receiver = new FakeReceiver();
+    assertTrue(this.readers.register(receiver.connection, channel));
+    // closed locally, so the selector reports nothing and the sweep finds it
+    channel.close();
+    assertTrue(receiver.stopped.await(60, TimeUnit.SECONDS));
+    assertEquals(0, receiver.reads.get());
+    assertEquals(1, receiver.stops.get());
+  }
+
+  @Test
+  public void testCloseStopsRegisteredConnections() throws Exception {
+    connect();
+    FakeReceiver receiver = new FakeReceiver();
+    assertTrue(this.readers.register(receiver.connection, accept()));
+    // let the loop register the connection
+    Thread.sleep(200);
+    this.readers.close();
+    verify(receiver.connection, timeout(60000)).requestClose(anyString());
+    assertTrue(receiver.stopped.await(60, TimeUnit.SECONDS));
+    assertEquals(1, receiver.stops.get());
+  }
+
+  @Test
+  public void testRegisterAfterCloseFails() throws Exception {
+    connect();
+    SocketChannel channel = accept();
+    this.readers.close();
+    FakeReceiver receiver = new FakeReceiver();
+    assertFalse(this.readers.register(receiver.connection, channel));
+    // the connection's own thread goes on reading it
+    assertTrue(channel.isBlocking());
+  }
+
+  private SocketChannel connect() throws IOException {
+    SocketChannel ch = SocketChannel.open(this.server.socket().getLocalSocketAddress());
+    this.channels.add(ch);
+    return ch;
+  }
+
+  private SocketChannel accept() throws IOException {
+    SocketChannel ch = this.server.accept();
+    this.channels.add(ch);
+    return ch;
+  }
+
+  /**
+   * A mocked receiver connection that reads what is available, the way
+   * {@link Connection#readSelected} does, and records how it was read
+   */
+  private static class FakeReceiver {
+    final Connection connection = mock(Connection.class);
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    final AtomicInteger reads = new AtomicInteger();
+    final AtomicInteger stops = new AtomicInteger();
+    final CountDownLatch stopped = new CountDownLatch(1);
+    private final AtomicInteger concurrentReads = new AtomicInteger();
+    final AtomicInteger maxConcurrentReads = new AtomicInteger();
+
+    FakeReceiver() {
+      doAnswer(new Answer<Object>() {
+        public Object answer(InvocationOnMock invocation) throws Throwable {
+          SocketChannel channel = (SocketChannel)invocation.getArguments()[0];
+          reads.incrementAndGet();
+          int concurrent = concurrentReads.incrementAndGet();
+          try {
+            if (concurrent > maxConcurrentReads.get()) {
+              maxConcurrentReads.set(concurrent);
+            }
+            ByteBuffer bb = ByteBuffer.allocate(64);
+            for (;;) {
+              int n = channel.read(bb);
+              if (n < 0) {
+                return Boolean.FALSE;
+              }
+              if (n == 0) {
+                return Boolean.TRUE;
+              }
+              synchronized (received) {
+                received.write(bb.array(), 0, bb.position());
+              }
+              bb.clear();
+              // give another thread the chance to read at the same time
+              Thread.yield();
+            }
+          } finally {
+            concurrentReads.decrementAndGet();
+          }
+        }
+      }).when(this.connection).readSelected(any(SocketChannel.class));
+      doAnswer(new Answer<Object>() {
+        public Object answer(InvocationOnMock invocation) {
+          stops.incrementAndGet();
+          stopped.countDown();
+          return null;
+        }
+      }).when(this.connection).readerStopped();
+    }
+
+    byte[] bytes() {
+      synchronized (this.received) {
+        return this.received.toByteArray();
+      }
+    }
+  }
+}